@@ -0,0 +1,72 @@
+package com.bstapp.benchmark;
+
+import com.bstapp.service.BstService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Parsing speed of the number input: the scalar NumberTokenizer against the
+ * Vector API parser (VectorNumberParser), both through BstService.parseNumberArray
+ * like a real request. This one is JMH and not a hand-made loop like the other
+ * benchmarks, because the vector code is very slow until C2 has compiled it into
+ * SIMD instructions, and JMH's forks and warm-up iterations take care of that
+ * (and of dead code elimination, since the result is returned).
+ * 
+ * Needs both profiles, the vector one for the parser and jmh for this file:
+ * 
+ *   mvn -Pvector,jmh test-compile exec:exec
+ *   mvn -Pvector,jmh test-compile exec:exec -Djmh.args="NumberParsingBenchmark -p megabytes=1,100"
+ * 
+ * The forks get --add-modules jdk.incubator.vector and a heap big enough for the
+ * 1 GB input: the String itself, its bytes for the vector parser and the parsed ints.
+ * Without the vector profile the "vector" runs fail in setUp instead of quietly
+ * measuring the scalar parser twice.
+ * 
+ * The input is random ints (all sizes of numbers, with signs) separated by ", ",
+ * about 12 characters per number (see ParseBenchmark.makeInput).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"--add-modules=jdk.incubator.vector", "-Xmx6g"})
+public class NumberParsingBenchmark {
+    
+    // Input size in MB
+    @Param({"1", "100", "1024"})
+    public int megabytes;
+    
+    @Param({"scalar", "vector"})
+    public String parser;
+    
+    private BstService bstService;
+    private String input;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        bstService = new BstService(null, null);
+        bstService.setVectorParsing(parser.equals("vector"));
+        if (parser.equals("vector") && !bstService.isVectorParsing()) {
+            throw new IllegalStateException("No vector parser, build with -Pvector");
+        }
+        input = ParseBenchmark.makeInput((long) megabytes << 20);
+    }
+    
+    @Benchmark
+    public int[] parse() {
+        return bstService.parseNumberArray(input);
+    }
+}
@@ -1,15 +1,40 @@
 package com.bstapp.controller;
 
 import com.bstapp.model.BstTree;
+import com.bstapp.service.BalanceMode;
+import com.bstapp.service.BinaryFormat;
 import com.bstapp.service.BstService;
+import com.bstapp.service.BuildMode;
+import com.bstapp.service.DuplicateMode;
+import com.bstapp.service.InvalidNumberException;
+import com.bstapp.service.LookupMode;
+import com.bstapp.service.NumberGenerator;
+import com.bstapp.service.OffHeapMetrics;
+import com.bstapp.service.SetOperation;
+import com.bstapp.service.TreeNotFoundException;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PrimitiveIterator;
 
 /*
  * This is my controller class that handles all the HTTP requests for the BST application.
@@ -65,10 +90,18 @@ public class BstController {
      * 
      * The @RequestBody annotation tells Spring to parse the incoming JSON and convert it
      * to a Map object. I'm using Map<String, String> because the JSON has a simple structure
-     * like {"numbers": "7, 3, 9, 1, 4"}.
+     * like {"numbers": "7, 3, 9, 1, 4"}. There's also an optional "balance" field
+     * ("none", "avl" or "rb") that picks how the tree is built, an optional "mode"
+     * field ("insertion" or "balanced") that says if the insertion order matters,
+     * and an optional "duplicates" field ("ignore" or "count") for multiset trees.
+     * 
+     * Instead of "numbers" there can be a "generator", e.g. {"generator": "range 1..5000000"}
+     * or {"generator": "uniform 50000 seed 42"}: the server makes the numbers itself
+     * (see NumberGenerator), so load tests don't have to send megabytes of text.
      * 
      * I wrapped everything in try-catch because many things can go wrong:
-     * - User might enter letters instead of numbers (NumberFormatException)
+     * - User might enter letters instead of numbers (NumberFormatException, the
+     *   response then also has the "offset" of the bad number in the input)
      * - User might leave the field empty (IllegalArgumentException)
      * - Something unexpected might happen (general Exception)
      * 
@@ -81,18 +114,39 @@ public class BstController {
             // First I get the numbers string from the JSON payload
             String numbersInput = payload.get("numbers");
             
-            // Then I parse it into a list of integers using my service
-            List<Integer> numbers = bstService.parseNumbers(numbersInput);
+            // Optional "balance" field, e.g. {"numbers": "...", "balance": "avl"}
+            // If it's missing we build the normal unbalanced tree
+            BalanceMode balance = BalanceMode.fromString(payload.get("balance"));
+            
+            // Optional "mode" field, {"mode": "balanced"} means the order doesn't matter
+            // and we can build a perfectly balanced tree from the sorted numbers
+            BuildMode mode = BuildMode.fromString(payload.get("mode"));
+            
+            // Optional "duplicates" field, {"duplicates": "count"} keeps a count per value
+            // instead of dropping the numbers that are already in the tree
+            DuplicateMode duplicates = DuplicateMode.fromString(payload.get("duplicates"));
+            
+            // Optional "generator" field instead of the numbers, the service makes them on the fly
+            String generator = payload.get("generator");
+            if (generator != null) {
+                if (numbersInput != null) {
+                    throw new IllegalArgumentException("Send either numbers or a generator, not both");
+                }
+                return ResponseEntity.ok(bstService.buildAndSaveTree(NumberGenerator.parse(generator),
+                        balance, mode, duplicates));
+            }
+            
+            // Then I parse it into an array of ints using my service (no boxing needed here)
+            int[] numbers = bstService.parseNumberArray(numbersInput);
             
             // Build the BST, save to database, and get JSON representation
-            String treeJson = bstService.buildAndSaveTree(numbers);
+            String treeJson = bstService.buildAndSaveTree(numbers, balance, mode, duplicates);
             
             // Return 200 OK with the tree JSON
             return ResponseEntity.ok(treeJson);
         } catch (NumberFormatException e) {
-            // User entered something that's not a number
-            return ResponseEntity.badRequest()
-                    .body(Map.of("error", "Invalid number format. Please enter valid integers."));
+            // User entered something that's not a number (the body says where, if we know)
+            return ResponseEntity.badRequest().body(invalidNumbers(e));
         } catch (IllegalArgumentException e) {
             // User sent empty input or something similar
             return ResponseEntity.badRequest()
@@ -104,6 +158,573 @@ public class BstController {
         }
     }
     
+    /*
+     * The same endpoint for producers that already have the numbers as ints:
+     * 
+     * POST /process-numbers?format=int32    (Content-Type: application/octet-stream)
+     * POST /process-numbers?format=varint   (Content-Type: application/octet-stream)
+     * 
+     * The body is the raw numbers, 4 bytes little-endian each (the default) or as
+     * zigzag varints, so nobody has to format them as text just for us to parse
+     * them back. Spring picks this method instead of the one above because of
+     * the Content-Type. The balance / mode / duplicates options are query
+     * parameters like for /api/trees/stream, because the body is only the numbers.
+     * 
+     * The response and errors are the same as for the JSON version; the "offset" of
+     * a bad number is in bytes here.
+     */
+    @PostMapping(value = "/process-numbers", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    @ResponseBody
+    public ResponseEntity<?> processBinaryNumbers(HttpServletRequest request,
+                                                  @RequestParam(value = "format", required = false) String format,
+                                                  @RequestParam(value = "balance", required = false) String balance,
+                                                  @RequestParam(value = "mode", required = false) String mode,
+                                                  @RequestParam(value = "duplicates", required = false) String duplicates) {
+        try {
+            int[] numbers = bstService.readBinaryNumbers(request.getInputStream(), request.getContentLengthLong(),
+                    BinaryFormat.fromString(format));
+            String treeJson = bstService.buildAndSaveTree(numbers, BalanceMode.fromString(balance),
+                    BuildMode.fromString(mode), DuplicateMode.fromString(duplicates));
+            return ResponseEntity.ok(treeJson);
+        } catch (NumberFormatException e) {
+            return ResponseEntity.badRequest().body(invalidNumbers(e));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError()
+                    .body(Map.of("error", "An error occurred: " + e.getMessage()));
+        }
+    }
+    
+    /*
+     * The 400 body for input with a bad number in it. When the parser knows where
+     * that number starts, the position goes into "offset" (characters from the
+     * start of "numbers"), e.g. {"error": "...", "offset": 6}.
+     */
+    private static Map<String, Object> invalidNumbers(NumberFormatException e) {
+        if (e instanceof InvalidNumberException invalid) {
+            return Map.of("error", "Invalid number format. Please enter valid integers.",
+                    "offset", invalid.getOffset());
+        }
+        return Map.of("error", "Invalid number format. Please enter valid integers.");
+    }
+    
+    /*
+     * Builds and saves a tree from a big upload without reading the body into memory first:
+     * 
+     * POST /api/trees/stream?balance=avl   (Content-Type: text/plain)        7, 3, 9, 1, 4
+     * POST /api/trees/stream               (Content-Type: application/json)  [7, 3, 9, 1, 4]
+     * 
+     * /process-numbers needs the whole body as a Map before it can start, which for
+     * a few hundred MB of numbers means several copies of the input. Here I hand the
+     * request's input stream to the service, which puts every number into the tree as
+     * soon as it's read. The balance / mode / duplicates options are query parameters,
+     * because the body is only the numbers.
+     * 
+     * Text bodies use the charset from the Content-Type (UTF-8 if there is none),
+     * JSON is always UTF-8. The response is only the new row's id and timestamp,
+     * sending a tree of that size back wouldn't help anyone.
+     * The body isn't kept, so the row's input is the preorder of the tree instead
+     * (see BstService.streamAndSaveTree).
+     * Errors are the same as for /process-numbers, including the offset of a bad number.
+     */
+    @PostMapping(value = "/api/trees/stream", consumes = {MediaType.TEXT_PLAIN_VALUE, MediaType.APPLICATION_JSON_VALUE})
+    @ResponseBody
+    public ResponseEntity<?> streamNumbers(HttpServletRequest request,
+                                           @RequestParam(value = "balance", required = false) String balance,
+                                           @RequestParam(value = "mode", required = false) String mode,
+                                           @RequestParam(value = "duplicates", required = false) String duplicates) {
+        try {
+            boolean json = MediaType.parseMediaType(request.getContentType()).isCompatibleWith(MediaType.APPLICATION_JSON);
+            Charset charset = json || request.getCharacterEncoding() == null
+                    ? StandardCharsets.UTF_8 : Charset.forName(request.getCharacterEncoding());
+            
+            BstTree saved = bstService.streamAndSaveTree(new InputStreamReader(request.getInputStream(), charset), json,
+                    request.getContentLengthLong(), BalanceMode.fromString(balance), BuildMode.fromString(mode),
+                    DuplicateMode.fromString(duplicates));
+            
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("id", saved.getId());
+            response.put("createdAt", saved.getCreatedAt());
+            return ResponseEntity.ok(response);
+        } catch (NumberFormatException e) {
+            return ResponseEntity.badRequest().body(invalidNumbers(e));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError()
+                    .body(Map.of("error", "An error occurred: " + e.getMessage()));
+        }
+    }
+    
+    /*
+     * Creates a new saved tree from an existing one plus some more numbers.
+     * The body is the same as for /process-numbers, e.g. {"numbers": "12, 5"}.
+     * 
+     * The service only inserts the new numbers into the saved tree (sharing the rest
+     * of it in memory) instead of rebuilding everything. The response is the new
+     * row, with its id, the combined input and the new treeJson.
+     * 
+     * Unknown ids give 404 Not Found, bad numbers give 400 like /process-numbers.
+     */
+    @PostMapping("/api/trees/{id}/derive")
+    @ResponseBody
+    public ResponseEntity<?> deriveTree(@PathVariable Long id, @RequestBody Map<String, String> payload) {
+        try {
+            List<Integer> numbers = bstService.parseNumbers(payload.get("numbers"));
+            return ResponseEntity.ok(bstService.deriveTree(id, numbers));
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        } catch (NumberFormatException e) {
+            return ResponseEntity.badRequest().body(invalidNumbers(e));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError()
+                    .body(Map.of("error", "An error occurred: " + e.getMessage()));
+        }
+    }
+    
+    /*
+     * Adds numbers to a saved tree in place: same body as /derive, but the row
+     * itself is updated instead of saving a new one. Numbers that are already in
+     * the tree are skipped. The response is the updated row.
+     * 
+     * Unknown ids give 404 Not Found, bad numbers give 400 like /process-numbers.
+     */
+    @PostMapping("/api/trees/{id}/append")
+    @ResponseBody
+    public ResponseEntity<?> appendToTree(@PathVariable Long id, @RequestBody Map<String, String> payload) {
+        try {
+            List<Integer> numbers = bstService.parseNumbers(payload.get("numbers"));
+            return ResponseEntity.ok(bstService.appendToTree(id, numbers));
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        } catch (NumberFormatException e) {
+            return ResponseEntity.badRequest().body(invalidNumbers(e));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError()
+                    .body(Map.of("error", "An error occurred: " + e.getMessage()));
+        }
+    }
+    
+    /*
+     * Combines two saved trees into a new saved tree:
+     * 
+     * POST /api/trees/merge   {"left": 1, "right": 2, "operation": "union"}
+     * 
+     * operation is "union" (the default), "intersection" or "difference" (the values
+     * of left that aren't in right). The result is built balanced and saved as a new
+     * row, which is the response, like for /derive.
+     * 
+     * Unknown ids give 404 Not Found; a missing id, an unknown operation or an
+     * empty result give 400.
+     */
+    @PostMapping("/api/trees/merge")
+    @ResponseBody
+    public ResponseEntity<?> mergeTrees(@RequestBody Map<String, String> payload) {
+        try {
+            Long left = treeId(payload, "left");
+            Long right = treeId(payload, "right");
+            SetOperation operation = SetOperation.fromString(payload.get("operation"));
+            return ResponseEntity.ok(bstService.mergeTrees(left, right, operation));
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        } catch (NumberFormatException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", "Invalid tree id. Please enter a whole number."));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError()
+                    .body(Map.of("error", "An error occurred: " + e.getMessage()));
+        }
+    }
+    
+    // A tree id from the request body; Jackson turns JSON numbers into strings for this map
+    private static Long treeId(Map<String, String> payload, String field) {
+        String value = payload.get(field);
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException("Missing tree id: " + field);
+        }
+        return Long.valueOf(value.trim());
+    }
+    
+    /*
+     * How two saved trees differ in shape:
+     * 
+     * GET /api/trees/diff?a=1&b=2&limit=100
+     * {"divergenceLevel": 1, "identical": false, "insertedCount": 1, "missingCount": 0,
+     *  "relocatedCount": 1, "inserted": [45], "missing": [],
+     *  "relocated": [{"value": 40, "a": {...}, "b": {...}}]}
+     * 
+     * inserted are the values only in b, missing the ones only in a, relocated the
+     * ones that hang under another parent. The lists stop after limit entries
+     * (default 100), the counts are exact. Unknown ids give 404, a negative limit 400.
+     */
+    @GetMapping("/api/trees/diff")
+    @ResponseBody
+    public ResponseEntity<?> diffTrees(@RequestParam("a") Long a, @RequestParam("b") Long b,
+                                       @RequestParam(value = "limit", defaultValue = "100") int limit) {
+        try {
+            return ResponseEntity.ok(bstService.diffTrees(a, b, limit));
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    /*
+     * Reading a saved tree without downloading its whole treeJson:
+     * 
+     * GET /api/trees/{id}/contains?v=5          {"id": 1, "value": 5, "contains": true}
+     * GET /api/trees/{id}/range?lo=10&hi=20     [10, 12, 17]  (sorted, both ends included)
+     * 
+     * contains takes an optional mode: "frozen" (the default) or "splay", which
+     * answers from a splay tree copy where hot values stay near the top (see
+     * LookupMode). An unknown mode gives 400.
+     * 
+     * Both are answered from the decoded tree the service keeps in memory. The range
+     * is streamed: values are written to the response while the tree is walked, so
+     * even a range with millions of values never sits in a list on the server.
+     * Unknown ids give 404 Not Found, lo > hi gives 400.
+     */
+    @GetMapping("/api/trees/{id}/contains")
+    @ResponseBody
+    public ResponseEntity<?> treeContains(@PathVariable Long id, @RequestParam("v") int value,
+                                          @RequestParam(value = "mode", required = false) String mode) {
+        try {
+            boolean contains = bstService.treeContains(id, value, LookupMode.fromString(mode));
+            return ResponseEntity.ok(Map.of("id", id, "value", value, "contains", contains));
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    @GetMapping("/api/trees/{id}/range")
+    @ResponseBody
+    public ResponseEntity<StreamingResponseBody> treeRange(@PathVariable Long id,
+                                                           @RequestParam("lo") int lo, @RequestParam("hi") int hi) {
+        try {
+            PrimitiveIterator.OfInt values = bstService.treeRange(id, lo, hi);
+            StreamingResponseBody body = out -> {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+                writer.write('[');
+                boolean first = true;
+                while (values.hasNext()) {
+                    if (!first) {
+                        writer.write(", ");
+                    }
+                    writer.write(Integer.toString(values.nextInt()));
+                    first = false;
+                }
+                writer.write(']');
+                writer.flush();
+            };
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+        } catch (TreeNotFoundException e) {
+            return streamError(HttpStatus.NOT_FOUND, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return streamError(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+    
+    /*
+     * Spring only streams a ResponseEntity whose declared body type is
+     * StreamingResponseBody (with ResponseEntity<?> it would try to turn the lambda
+     * into JSON). So the errors of /range are streamed as well, in the same
+     * {"error": "..."} form as everywhere else.
+     */
+    private static ResponseEntity<StreamingResponseBody> streamError(HttpStatus status, String message) {
+        String json = "{\"error\":\"" + new String(JsonStringEncoder.getInstance().quoteAsString(message)) + "\"}";
+        return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON)
+                .body(out -> out.write(json.getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    /*
+     * Checks a whole batch of values against a saved tree in one call:
+     * 
+     * POST /api/trees/{id}/lookup                 [5, 8, 13]  ->  {"found": [true, false, true], ...}
+     * POST /api/trees/{id}/lookup?format=bitmap   [5, 8, 13]  ->  {"bitmap": "BQ==", ...}
+     * 
+     * The bitmap is Base64 of one bit per value: bit i % 8 (lowest bit first) of
+     * byte i / 8 is set if values[i] is in the tree. It's 8 times smaller than the
+     * boolean array for big batches. Both forms also say how many values were found.
+     * Unknown ids give 404 Not Found, an unknown format gives 400.
+     */
+    @PostMapping("/api/trees/{id}/lookup")
+    @ResponseBody
+    public ResponseEntity<?> lookupValues(@PathVariable Long id, @RequestBody int[] values,
+                                          @RequestParam(value = "format", defaultValue = "array") String format) {
+        try {
+            if (!format.equals("array") && !format.equals("bitmap")) {
+                throw new IllegalArgumentException("Unknown format '" + format + "'. Use array or bitmap.");
+            }
+            boolean[] found = bstService.treeLookup(id, values);
+            int hits = 0;
+            byte[] bitmap = new byte[(found.length + 7) / 8];
+            for (int i = 0; i < found.length; i++) {
+                if (found[i]) {
+                    hits++;
+                    bitmap[i >>> 3] |= (byte) (1 << (i & 7));
+                }
+            }
+            
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("id", id);
+            response.put("count", found.length);
+            response.put("hits", hits);
+            if (format.equals("bitmap")) {
+                response.put("bitmap", Base64.getEncoder().encodeToString(bitmap));
+            } else {
+                response.put("found", found);
+            }
+            return ResponseEntity.ok(response);
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    /*
+     * Order statistics of a saved tree, without downloading and sorting it:
+     * 
+     * GET /api/trees/{id}/rank?v=45          how many values are smaller than 45
+     * GET /api/trees/{id}/select?k=0         the k-th smallest value (k = 0 is the minimum)
+     * GET /api/trees/{id}/median             the (lower) median
+     * GET /api/trees/{id}/percentile?p=90    nearest-rank percentiles, p can be repeated
+     * 
+     * Each one is a single walk down the tree, so it costs O(depth) of the saved
+     * tree, which keeps the shape it was built with: O(log n) for "avl", "rb" and
+     * "balanced" trees, but O(n) for a tree built from sorted numbers without
+     * balancing, which is one long chain. Appends don't rebalance, so they can make
+     * a balanced tree deeper too. Unknown ids give 404 Not Found, k or p out of
+     * range (or an empty tree) gives 400.
+     */
+    @GetMapping("/api/trees/{id}/rank")
+    @ResponseBody
+    public ResponseEntity<?> treeRank(@PathVariable Long id, @RequestParam("v") int value) {
+        try {
+            return ResponseEntity.ok(Map.of("id", id, "value", value, "rank", bstService.treeRank(id, value)));
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    @GetMapping("/api/trees/{id}/select")
+    @ResponseBody
+    public ResponseEntity<?> treeSelect(@PathVariable Long id, @RequestParam("k") int k) {
+        try {
+            return ResponseEntity.ok(Map.of("id", id, "k", k, "value", bstService.treeSelect(id, k)));
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    @GetMapping("/api/trees/{id}/median")
+    @ResponseBody
+    public ResponseEntity<?> treeMedian(@PathVariable Long id) {
+        try {
+            return ResponseEntity.ok(Map.of("id", id, "median", bstService.treePercentile(id, 50)));
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    @GetMapping("/api/trees/{id}/percentile")
+    @ResponseBody
+    public ResponseEntity<?> treePercentiles(@PathVariable Long id, @RequestParam("p") List<Double> percentiles) {
+        try {
+            List<Map<String, Object>> values = new ArrayList<>();
+            for (double p : percentiles) {
+                values.add(Map.of("p", p, "value", bstService.treePercentile(id, p)));
+            }
+            return ResponseEntity.ok(Map.of("id", id, "percentiles", values));
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    /*
+     * count, sum, min and max of the values of a saved tree in [lo, hi]:
+     * 
+     * GET /api/trees/{id}/aggregate?lo=10&hi=20
+     * {"lo": 10, "hi": 20, "count": 3, "sum": 45, "min": 12, "max": 18}
+     * 
+     * min and max are null when nothing is in the range. Like rank, this is a few
+     * walks down the tree, not a traversal of the range: O(depth), with the same
+     * O(n) worst case for an unbalanced chain.
+     */
+    @GetMapping("/api/trees/{id}/aggregate")
+    @ResponseBody
+    public ResponseEntity<?> treeAggregate(@PathVariable Long id, @RequestParam("lo") int lo, @RequestParam("hi") int hi) {
+        try {
+            return ResponseEntity.ok(bstService.treeAggregate(id, lo, hi));
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    /*
+     * Removes values from a saved tree, in place:
+     * 
+     * DELETE /api/trees/{id}/values?v=5&v=9     single values
+     * DELETE /api/trees/{id}/values?lo=10&hi=20 every value from 10 to 20 (both included)
+     * 
+     * Both can be given in one request; they are applied together and the tree is
+     * saved once. The response says how many values were removed (every copy in a
+     * multiset tree) and how many are left. Unknown ids give 404 Not Found, a request
+     * with neither, or with lo > hi, gives 400.
+     * 
+     * The delete itself is O(depth) per value and per range, but the stored row
+     * (JSON and preorder input) is rewritten completely, so a request is O(n).
+     */
+    @DeleteMapping("/api/trees/{id}/values")
+    @ResponseBody
+    public ResponseEntity<?> deleteValues(@PathVariable Long id,
+                                          @RequestParam(value = "v", required = false) List<Integer> values,
+                                          @RequestParam(value = "lo", required = false) Integer lo,
+                                          @RequestParam(value = "hi", required = false) Integer hi) {
+        try {
+            if ((lo == null) != (hi == null)) {
+                throw new IllegalArgumentException("A range needs both lo and hi");
+            }
+            if (values == null && lo == null) {
+                throw new IllegalArgumentException("Give values (v) or a range (lo and hi) to delete");
+            }
+            return ResponseEntity.ok(bstService.deleteFromTree(id, values, lo, hi));
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError()
+                    .body(Map.of("error", "An error occurred: " + e.getMessage()));
+        }
+    }
+    
+    /*
+     * Shared trees: long-lived trees in memory that many clients insert into at the
+     * same time, instead of one new tree per /process-numbers call.
+     * 
+     * POST /api/shared-trees                    {"name": "orders"}  creates one
+     * POST /api/shared-trees/{name}/insert      {"numbers": "..."}  inserts into it
+     * GET  /api/shared-trees/{name}             its size
+     * GET  /api/shared-trees/{name}/contains?v= is v in it?
+     * POST /api/shared-trees/{name}/snapshot    saves it to bst_trees, returns the row
+     * 
+     * Unknown names give 404, a name that is already taken gives 409 Conflict.
+     */
+    @PostMapping("/api/shared-trees")
+    @ResponseBody
+    public ResponseEntity<?> createSharedTree(@RequestBody Map<String, String> payload) {
+        try {
+            String name = payload.get("name");
+            bstService.createSharedTree(name);
+            return ResponseEntity.status(HttpStatus.CREATED).body(Map.of("name", name, "size", 0));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body(Map.of("error", e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    @PostMapping("/api/shared-trees/{name}/insert")
+    @ResponseBody
+    public ResponseEntity<?> insertIntoSharedTree(@PathVariable String name, @RequestBody Map<String, String> payload) {
+        try {
+            List<Integer> numbers = bstService.parseNumbers(payload.get("numbers"));
+            int inserted = bstService.insertIntoSharedTree(name, numbers);
+            return ResponseEntity.ok(Map.of("name", name, "inserted", inserted,
+                    "size", bstService.getSharedTreeSize(name)));
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        } catch (NumberFormatException e) {
+            return ResponseEntity.badRequest().body(invalidNumbers(e));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    @GetMapping("/api/shared-trees/{name}")
+    @ResponseBody
+    public ResponseEntity<?> getSharedTree(@PathVariable String name) {
+        try {
+            return ResponseEntity.ok(Map.of("name", name, "size", bstService.getSharedTreeSize(name)));
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    @GetMapping("/api/shared-trees/{name}/contains")
+    @ResponseBody
+    public ResponseEntity<?> sharedTreeContains(@PathVariable String name, @RequestParam("v") int value) {
+        try {
+            return ResponseEntity.ok(Map.of("value", value, "contains", bstService.sharedTreeContains(name, value)));
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    @PostMapping("/api/shared-trees/{name}/snapshot")
+    @ResponseBody
+    public ResponseEntity<?> snapshotSharedTree(@PathVariable String name) {
+        try {
+            return ResponseEntity.ok(bstService.snapshotSharedTree(name));
+        } catch (TreeNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+    
     /*
      * This method shows the page with all previously created trees.
      * The Model object is used to pass data from the controller to the Thymeleaf template.
@@ -136,4 +757,16 @@ public class BstController {
     public ResponseEntity<List<BstTree>> getAllTreesApi() {
         return ResponseEntity.ok(bstService.getAllTrees());
     }
+    
+    /*
+     * Shows how much off-heap memory the tree builds are using.
+     * Very large trees are stored outside the Java heap while they are built, and
+     * this lets us check that the memory really goes back down (activePools should
+     * be 0 and allocatedBytes should drop) once a request is finished.
+     */
+    @GetMapping("/api/metrics/off-heap")
+    @ResponseBody
+    public ResponseEntity<OffHeapMetrics> getOffHeapMetrics() {
+        return ResponseEntity.ok(bstService.getOffHeapMetrics());
+    }
 }
@@ -32,8 +32,9 @@ public class BstTree {
      * This stores the original numbers that the user entered.
      * For example: "[7, 3, 9, 1, 4]"
      * I'm storing it as a String because it's just for display purposes.
+     * It's TEXT like treeJson, because a VARCHAR(255) only fits about 50 numbers.
      */
-    @Column(name = "input_numbers", nullable = false)
+    @Column(name = "input_numbers", columnDefinition = "TEXT", nullable = false)
     private String inputNumbers;
     
     /*
@@ -51,6 +52,16 @@ public class BstTree {
     @Column(name = "created_at")
     private LocalDateTime createdAt;
     
+    /*
+     * How many times this row was changed in place (append, delete). New rows start
+     * at 0. The service keeps decoded trees in a cache and uses this to tell whether
+     * a cached tree still matches the row, so a slow reader can't put an old tree
+     * back in the cache after a change. The DEFAULT is there for rows saved before
+     * this column existed (ddl-auto=update adds it to the old table).
+     */
+    @Column(name = "revision", columnDefinition = "BIGINT DEFAULT 0 NOT NULL")
+    private long revision;
+    
     /*
      * Default constructor required by JPA.
      * Hibernate needs this to create instances when loading from database.
@@ -106,4 +117,12 @@ public class BstTree {
     public void setCreatedAt(LocalDateTime createdAt) {
         this.createdAt = createdAt;
     }
+    
+    public long getRevision() {
+        return revision;
+    }
+    
+    public void setRevision(long revision) {
+        this.revision = revision;
+    }
 }
@@ -0,0 +1,152 @@
+package com.bstapp.service;
+
+import java.util.Arrays;
+
+/*
+ * Self-balancing AVL tree.
+ * 
+ * An AVL tree keeps, for every node, the heights of the left and right subtrees
+ * within 1 of each other. After each insert I walk back up the path and fix any
+ * node that got out of balance with one or two rotations. Because of that the
+ * height is at most about 1.44 * log2(n), so n inserts cost O(n log n) in total
+ * even for sorted input, where the plain BST needs O(n^2).
+ * 
+ * The nodes live in a NodePool. The height of each node is kept in a separate
+ * byte array with the same indices (a height never gets anywhere near 127).
+ * 
+ * The recursion in insert() only goes as deep as the tree is tall, which is
+ * around 45 levels even for two billion numbers, so it can't overflow the stack
+ * like the old unbalanced insert did.
+ * 
+ * A duplicate never gets a node of its own: it goes to NodePool.countDuplicate,
+ * which drops it, or adds one to the existing node's count if the pool has counts
+ * ("duplicates": "count"). Nothing changes shape, so no rebalancing is needed.
+ */
+public class AvlTree implements TreeEngine {
+    
+    private final NodePool pool;
+    
+    // Height of the subtree rooted at each node (a leaf has height 1)
+    private byte[] heights;
+    
+    // How many rotations were done so far, used to compare with RedBlackTree
+    private long rotations;
+    
+    public AvlTree() {
+        this(new HeapNodePool(16));
+    }
+    
+    // Builds into the given (empty) pool, so the caller decides heap or off-heap
+    public AvlTree(NodePool pool) {
+        this.pool = pool;
+        this.heights = new byte[pool.capacity()];
+    }
+    
+    // Inserts a value into the tree, rebalancing on the way back up
+    @Override
+    public void insert(int value) {
+        pool.setRoot(insert(pool.getRoot(), value));
+    }
+    
+    @Override
+    public NodePool build() {
+        return pool;
+    }
+    
+    public long getRotations() {
+        return rotations;
+    }
+    
+    private int insert(int node, int value) {
+        if (node == NodePool.NIL) {
+            int created = pool.addNode(value);
+            if (created >= heights.length) {
+                heights = Arrays.copyOf(heights, pool.capacity());
+            }
+            heights[created] = 1;
+            return created;
+        }
+        
+        int nodeValue = pool.getValue(node);
+        if (value < nodeValue) {
+            pool.setLeft(node, insert(pool.getLeft(node), value));
+        } else if (value > nodeValue) {
+            pool.setRight(node, insert(pool.getRight(node), value));
+        } else {
+            pool.countDuplicate(node);
+            return node;  // Duplicate, nothing changed below this node
+        }
+        
+        updateHeight(node);
+        return rebalance(node);
+    }
+    
+    /*
+     * Fixes the node if one side is more than one level taller than the other.
+     * There are four cases, named after the path to the tall grandchild:
+     * - left-left:   rotate right
+     * - right-right: rotate left
+     * - left-right:  rotate the left child left, then this node right
+     * - right-left:  rotate the right child right, then this node left
+     */
+    private int rebalance(int node) {
+        int balance = balanceFactor(node);
+        
+        if (balance > 1) {
+            if (balanceFactor(pool.getLeft(node)) < 0) {
+                pool.setLeft(node, rotateLeft(pool.getLeft(node)));
+            }
+            return rotateRight(node);
+        }
+        
+        if (balance < -1) {
+            if (balanceFactor(pool.getRight(node)) > 0) {
+                pool.setRight(node, rotateRight(pool.getRight(node)));
+            }
+            return rotateLeft(node);
+        }
+        
+        return node;
+    }
+    
+    /*
+     *       node            pivot
+     *       /  \            /   \
+     *    pivot  C   ->     A    node
+     *    /  \                   /  \
+     *   A    B                 B    C
+     */
+    private int rotateRight(int node) {
+        int pivot = pool.getLeft(node);
+        pool.setLeft(node, pool.getRight(pivot));
+        pool.setRight(pivot, node);
+        updateHeight(node);
+        updateHeight(pivot);
+        rotations++;
+        return pivot;
+    }
+    
+    // Mirror image of rotateRight
+    private int rotateLeft(int node) {
+        int pivot = pool.getRight(node);
+        pool.setRight(node, pool.getLeft(pivot));
+        pool.setLeft(pivot, node);
+        updateHeight(node);
+        updateHeight(pivot);
+        rotations++;
+        return pivot;
+    }
+    
+    private void updateHeight(int node) {
+        heights[node] = (byte) (1 + Math.max(height(pool.getLeft(node)), height(pool.getRight(node))));
+    }
+    
+    // Positive means the left side is taller, negative means the right side is
+    private int balanceFactor(int node) {
+        return height(pool.getLeft(node)) - height(pool.getRight(node));
+    }
+    
+    private int height(int node) {
+        return node == NodePool.NIL ? 0 : heights[node];
+    }
+}
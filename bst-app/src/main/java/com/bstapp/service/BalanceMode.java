@@ -0,0 +1,54 @@
+package com.bstapp.service;
+
+/*
+ * This enum lists the ways the service can build a tree from the input numbers.
+ * 
+ * NONE is the original behaviour: numbers are inserted one by one with no balancing,
+ * so the shape depends completely on the order of the input. It stays the default
+ * because the trees we already stored were built this way and people expect the same
+ * input to give the same tree.
+ * 
+ * AVL keeps the tree balanced while inserting, so sorted input no longer turns into
+ * a linked list. The tree height stays around log2(n) no matter what the order is.
+ * 
+ * RED_BLACK is also balanced, a bit less strictly than AVL (height up to 2 * log2(n)),
+ * but it needs at most two rotations per insert. That makes it the better choice for
+ * big, mostly sorted submissions. Nodes built this way carry a "color" in the JSON.
+ * 
+ * SPLAY isn't balanced in that sense: every insert moves the new value to the root
+ * (see SplayTree). The last numbers of the input end up near the top, which is
+ * what you want if those are the ones that will be looked up most.
+ */
+public enum BalanceMode {
+    NONE,
+    AVL,
+    RED_BLACK,
+    SPLAY;
+    
+    /*
+     * Converts the "balance" value from the request JSON into a BalanceMode.
+     * Missing or empty means NONE, and the comparison ignores upper/lower case.
+     * Anything else is a client mistake, so I throw IllegalArgumentException which
+     * the controller already turns into a 400 Bad Request.
+     */
+    public static BalanceMode fromString(String value) {
+        if (value == null || value.isBlank()) {
+            return NONE;
+        }
+        
+        switch (value.trim().toLowerCase()) {
+            case "none":
+                return NONE;
+            case "avl":
+                return AVL;
+            case "rb":
+            case "red-black":
+            case "redblack":
+                return RED_BLACK;
+            case "splay":
+                return SPLAY;
+            default:
+                throw new IllegalArgumentException("Unknown balance mode: " + value);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.bstapp.service;
+
+import java.util.Arrays;
+
+/*
+ * Engine for "mode": "balanced", where the insertion order doesn't matter.
+ * 
+ * insert() just collects the numbers into a plain int array. build() then:
+ * 1. sorts the array. parallelSort splits the work over the CPU cores for big
+ *    arrays and just does a normal sort for small ones.
+ * 2. removes duplicates in place. After sorting they are next to each other,
+ *    so one pass is enough. If the pool has counts, the same pass also remembers
+ *    how long each run of equal values was.
+ * 3. builds the tree from the middle down: the middle element becomes the root,
+ *    the middle of the left half becomes its left child, and so on.
+ * 
+ * Step 3 never searches from the root, so after sorting the build is O(n), and
+ * the tree has the minimum possible height, ceil(log2(n + 1)).
+ */
+public class BalancedBulkTree implements TreeEngine {
+    
+    private final NodePool pool;
+    private int[] values;
+    private int count;
+    
+    // Copies of each unique value, only for pools with counts
+    private int[] runs;
+    
+    // The pool stays empty until build(), when the sorted values go into it
+    public BalancedBulkTree(NodePool pool, int expectedSize) {
+        this.pool = pool;
+        this.values = new int[Math.max(expectedSize, 1)];
+    }
+    
+    @Override
+    public void insert(int value) {
+        if (count == values.length) {
+            values = Arrays.copyOf(values, count + (count >> 1) + 1);
+        }
+        values[count++] = value;
+    }
+    
+    @Override
+    public NodePool build() {
+        Arrays.parallelSort(values, 0, count);
+        
+        // Keep only the first copy of each value
+        int unique = Math.min(count, 1);
+        if (pool.hasCounts()) {
+            runs = new int[Math.max(count, 1)];
+            runs[0] = Math.min(count, 1);
+        }
+        for (int i = 1; i < count; i++) {
+            if (values[i] != values[unique - 1]) {
+                values[unique++] = values[i];
+                if (runs != null) {
+                    runs[unique - 1] = 1;
+                }
+            } else if (runs != null) {
+                runs[unique - 1]++;
+            }
+        }
+        
+        pool.setRoot(buildFromSorted(pool, 0, unique - 1));
+        values = null;  // Not needed anymore, let the GC have it
+        runs = null;
+        return pool;
+    }
+    
+    /*
+     * Builds a balanced tree from values[from..to] (both inclusive, sorted, no duplicates)
+     * and returns the index of its root. The recursion depth is only log2(n),
+     * about 24 levels for 10 million numbers.
+     */
+    private int buildFromSorted(NodePool pool, int from, int to) {
+        if (from > to) {
+            return NodePool.NIL;
+        }
+        int middle = (from + to) >>> 1;
+        int node = pool.addNode(values[middle]);
+        if (runs != null) {
+            pool.setCount(node, runs[middle]);
+        }
+        pool.setLeft(node, buildFromSorted(pool, from, middle - 1));
+        pool.setRight(node, buildFromSorted(pool, middle + 1, to));
+        return node;
+    }
+}
@@ -0,0 +1,38 @@
+package com.bstapp.service;
+
+/*
+ * How the numbers are encoded in an application/octet-stream body for
+ * /process-numbers (see BinaryNumberReader).
+ * 
+ * INT32 is every number as 4 bytes, little-endian (lowest byte first), which is
+ * what most producers already have in memory. It's the default.
+ * 
+ * VARINT is the zigzag varint encoding from Protocol Buffers (sint32): small
+ * numbers, negative or not, take 1 or 2 bytes instead of 4, the biggest ones 5.
+ */
+public enum BinaryFormat {
+    INT32,
+    VARINT;
+    
+    /*
+     * Converts the "format" request parameter into a BinaryFormat.
+     * Missing or empty means INT32, the comparison ignores upper/lower case, and
+     * anything else is an IllegalArgumentException (400 in the controller).
+     */
+    public static BinaryFormat fromString(String value) {
+        if (value == null || value.isBlank()) {
+            return INT32;
+        }
+        
+        switch (value.trim().toLowerCase()) {
+            case "int32":
+            case "int":
+                return INT32;
+            case "varint":
+            case "zigzag":
+                return VARINT;
+            default:
+                throw new IllegalArgumentException("Unknown binary format: " + value);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.bstapp.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/*
+ * Reads an application/octet-stream body of numbers (see BinaryFormat) into an int[].
+ * 
+ * Here there's nothing to parse: the producer already has the numbers as ints, so
+ * the only work is getting the bytes into the array. The body is read in 64 KB
+ * pieces into one little-endian ByteBuffer.
+ * - INT32: the whole ints of a piece are copied into the result in one bulk get
+ *   through an IntBuffer view of the buffer. The 1-3 bytes of an int cut in half
+ *   at the end of a piece are moved to the front (compact) and the next read
+ *   finishes it.
+ * - VARINT: every varint is read from the buffer as one long and decoded without
+ *   looking at its bytes one by one (see readVarints).
+ * Nothing is allocated per number, only the result array (which grows like
+ * ArrayList's if the body has more numbers than expected).
+ * 
+ * Bad input is an InvalidNumberException with the byte offset where the bad number
+ * starts: an int32 body whose length isn't a multiple of 4, a varint that's cut off
+ * at the end of the body, or a varint that doesn't fit in 32 bits (a 5th byte with
+ * more than 4 bits, or a 6th byte).
+ */
+public final class BinaryNumberReader {
+    
+    private static final int CHUNK_SIZE = 64 * 1024;
+    
+    // The biggest array most JVMs can allocate
+    private static final int MAX_VALUES = Integer.MAX_VALUE - 8;
+    
+    private BinaryNumberReader() {
+    }
+    
+    /*
+     * contentLength (-1 if unknown) is only used to size the result array: exactly
+     * for INT32, a guess of 3 bytes per number for VARINT. Like in
+     * BstService.streamAndSaveTree the guess is capped, so a wrong Content-Length
+     * can't make us allocate a huge array before anything was read.
+     */
+    public static int[] read(InputStream body, long contentLength, BinaryFormat format) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (format == BinaryFormat.VARINT) {
+            return readVarints(body, buffer, guessSize(contentLength, 3));
+        }
+        return readInt32(body, buffer, guessSize(contentLength, 4));
+    }
+    
+    private static int[] readInt32(InputStream body, ByteBuffer buffer, int expectedSize) throws IOException {
+        int[] values = new int[expectedSize];
+        int count = 0;
+        long offset = 0;  // Bytes of the body before the buffer's first byte
+        
+        while (fill(body, buffer)) {
+            buffer.flip();
+            int ints = buffer.remaining() >>> 2;
+            values = ensureCapacity(values, count, ints);
+            buffer.asIntBuffer().get(values, count, ints);  // The view has the buffer's byte order
+            count += ints;
+            offset += ints * 4L;
+            buffer.position(ints << 2);
+            buffer.compact();
+        }
+        
+        if (buffer.position() != 0) {
+            throw new InvalidNumberException(offset);  // The last int is missing some bytes
+        }
+        return trim(values, count);
+    }
+    
+    /*
+     * A varint has 7 bits of the number per byte, lowest first, and the top bit of
+     * every byte but the last is set. Zigzag then maps 0, -1, 1, -2, ... to
+     * 0, 1, 2, 3, ..., so small negative numbers stay short too.
+     * 
+     * Going byte by byte means a branch per byte that the CPU can't predict (the
+     * lengths are random), and that was as slow as parsing text. So every varint is
+     * read as one long instead: the first byte without the top bit is the last
+     * one (numberOfTrailingZeros), and the 7-bit groups are put together with
+     * shifts and masks. The last 1-7 bytes of a piece wait for the next read like
+     * for INT32, so a varint is never cut in half.
+     */
+    private static int[] readVarints(InputStream body, ByteBuffer buffer, int expectedSize) throws IOException {
+        int[] values = new int[expectedSize];
+        int count = 0;
+        long offset = 0;  // Bytes of the body before the buffer's first byte
+        boolean more = true;
+        
+        while (more) {
+            more = fill(body, buffer);
+            buffer.flip();
+            int limit = buffer.limit();
+            values = ensureCapacity(values, count, limit);  // At most one number per byte
+            
+            // With more to come, only where 8 bytes can be read; at the end of the body, everything
+            int end = more ? limit - 7 : limit;
+            int i = 0;
+            while (i < end) {
+                long word = wordAt(buffer, i);
+                int length = (Long.numberOfTrailingZeros(~word & 0x8080808080808080L) >>> 3) + 1;
+                if (length > 5 || (length == 5 && (word & 0x70_0000_0000L) != 0) || i + length > limit) {
+                    throw new InvalidNumberException(offset + i);  // More than 32 bits, or cut off at the end
+                }
+                long bytes = word & (-1L >>> (64 - (length << 3)));
+                int zigzag = (int) ((bytes & 0x7F)
+                        | ((bytes >>> 1) & 0x3F80)
+                        | ((bytes >>> 2) & 0x1FC000)
+                        | ((bytes >>> 3) & 0xFE00000)
+                        | ((bytes >>> 4) & 0xF0000000L));
+                values[count++] = (zigzag >>> 1) ^ -(zigzag & 1);
+                i += length;
+            }
+            offset += i;
+            buffer.position(i);
+            buffer.compact();
+        }
+        return trim(values, count);
+    }
+    
+    // The 8 bytes from index on as a little-endian long, with zeros after the end of the buffer
+    private static long wordAt(ByteBuffer buffer, int index) {
+        if (index <= buffer.limit() - 8) {
+            return buffer.getLong(index);
+        }
+        long word = 0;
+        for (int i = buffer.limit() - 1; i >= index; i--) {
+            word = (word << 8) | (buffer.get(i) & 0xFF);
+        }
+        return word;
+    }
+    
+    // Reads as much as fits after the buffer's position; false at the end of the body
+    private static boolean fill(InputStream body, ByteBuffer buffer) throws IOException {
+        int read = body.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (read < 0) {
+            return false;
+        }
+        buffer.position(buffer.position() + read);
+        return true;
+    }
+    
+    private static int guessSize(long contentLength, int bytesPerNumber) {
+        if (contentLength < 0) {
+            return 1024;
+        }
+        return (int) Math.min(contentLength / bytesPerNumber + 1, BstService.MAX_GUESSED_SIZE);
+    }
+    
+    // Returns values, or a bigger copy of it if more numbers don't fit after count
+    private static int[] ensureCapacity(int[] values, int count, int more) {
+        long needed = (long) count + more;
+        if (needed <= values.length) {
+            return values;
+        }
+        if (needed > MAX_VALUES) {
+            throw new IllegalArgumentException("Too many numbers in the body");
+        }
+        long grown = Math.max(needed, values.length + (values.length >> 1) + 1L);
+        return Arrays.copyOf(values, (int) Math.min(grown, MAX_VALUES));
+    }
+    
+    private static int[] trim(int[] values, int count) {
+        return count == values.length ? values : Arrays.copyOf(values, count);
+    }
+}
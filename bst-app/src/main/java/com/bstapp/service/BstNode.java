@@ -26,6 +26,9 @@ public class BstNode {
     // Reference to the right child node (values greater than this node)
     private BstNode right;
     
+    // How many times the value was inserted, only set in multiset trees (null otherwise)
+    private Integer count;
+    
     /*
      * Constructor that creates a new node with the given value.
      * When a node is first created, it doesn't have any children yet,
@@ -70,4 +73,14 @@ public class BstNode {
     public void setRight(BstNode right) {
         this.right = right;
     }
+    
+    // Gets the count (null unless the tree counts duplicates)
+    public Integer getCount() {
+        return count;
+    }
+    
+    // Sets the count - used for multiset trees
+    public void setCount(Integer count) {
+        this.count = count;
+    }
 }
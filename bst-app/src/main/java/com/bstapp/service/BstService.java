@@ -2,13 +2,30 @@ package com.bstapp.service;
 
 import com.bstapp.model.BstTree;
 import com.bstapp.repository.BstTreeRepository;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.CharBuffer;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+import java.util.regex.Pattern;
 
 /*
  * This is the service class where all the business logic lives.
@@ -30,6 +47,85 @@ public class BstService {
     // Spring Boot auto-configures this for us which is really nice
     private final ObjectMapper objectMapper;
     
+    // Trees with at least this many input numbers are built off-heap (see OffHeapNodePool).
+    // Configured with bst.offheap.threshold in application.properties. It has to be well
+    // below the biggest tree whose JSON still fits in a String (about 12M nodes, see
+    // TreeJsonWriter), or no build that goes off-heap could ever be saved.
+    private long offHeapThreshold = 5_000_000L;
+    
+    // Plain insertion-order trees with at least this many numbers are built on all
+    // cores (see ParallelPlainTree). Configured with bst.parallel.threshold.
+    private long parallelThreshold = 1_000_000L;
+    
+    // How many saved trees are kept decoded in memory (see loadVersion).
+    // Configured with bst.versions.cache-size.
+    private int versionCacheSize = 32;
+    
+    // The most numbers one "generator" may make (see NumberGenerator), so a typo like
+    // "range 1..2000000000" doesn't keep the server busy for minutes. The default is
+    // about the biggest tree whose JSON still fits in a String (see TreeJsonWriter);
+    // deep trees, like a range without balancing, are refused far below it anyway.
+    // Configured with bst.generator.max-count.
+    private long maxGeneratedCount = 10_000_000L;
+    
+    // Parse number input with the Vector API (see VectorNumberParser) when the JVM has it.
+    // Configured with bst.parser.vector.
+    private boolean vectorParsing = true;
+    
+    // VectorNumberParser.parse(String), or null if we can't use it. The parser is only
+    // compiled into the jar with mvn -Pvector (see the pom), and the Vector API is an
+    // incubator module that's only there with --add-modules jdk.incubator.vector.
+    private static final Method VECTOR_PARSE;
+    
+    static {
+        Method parse = null;
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                parse = Class.forName("com.bstapp.service.VectorNumberParser").getDeclaredMethod("parse", String.class);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                parse = null;  // Built without -Pvector
+            }
+        }
+        VECTOR_PARSE = parse;
+    }
+    
+    // Long-lived trees that many requests insert into, by name (see /api/shared-trees)
+    private final Map<String, ConcurrentTree> sharedTrees = new ConcurrentHashMap<>();
+    
+    // Streaming parser for JSON number arrays in request bodies (thread-safe, so one is enough)
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    
+    // Upper limit for the size guessed from a Content-Length, see streamAndSaveTree (and BinaryNumberReader)
+    static final int MAX_GUESSED_SIZE = 1 << 24;
+    
+    // Shared tree names end up in URLs, so I keep them simple
+    private static final Pattern SHARED_TREE_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    
+    /*
+     * Recently used saved trees in their decoded, persistent form, by tree id.
+     * A LinkedHashMap in access order forgets the least recently used tree once
+     * there are too many. Versions never change, so handing the same one to
+     * several requests at the same time is fine. Each one remembers the revision
+     * of the row it was decoded from or saved as (see cacheVersion).
+     */
+    private final Map<Long, CachedVersion> versions = Collections.synchronizedMap(
+            new LinkedHashMap<Long, CachedVersion>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, CachedVersion> eldest) {
+                    return size() > versionCacheSize;
+                }
+            });
+    
+    /*
+     * Locks for changing saved trees in place (append, delete), so two changes to
+     * the same tree can't overwrite each other's result. A tree uses the stripe of
+     * its id (see lockFor). A fixed number of them, because a map with a lock per id
+     * would keep one for every id ever changed, or asked for and not found. Two
+     * trees that share a stripe just wait for each other.
+     */
+    private static final int TREE_LOCK_STRIPES = 64;
+    private final Object[] treeLocks = newLocks(TREE_LOCK_STRIPES);
+    
     /*
      * Constructor with dependency injection.
      * Spring will automatically find the BstTreeRepository and ObjectMapper beans
@@ -41,6 +137,51 @@ public class BstService {
         this.objectMapper = objectMapper;
     }
     
+    // Spring calls this with the value from application.properties
+    @Value("${bst.offheap.threshold:5000000}")
+    public void setOffHeapThreshold(long offHeapThreshold) {
+        this.offHeapThreshold = offHeapThreshold;
+    }
+    
+    public long getOffHeapThreshold() {
+        return offHeapThreshold;
+    }
+    
+    @Value("${bst.parallel.threshold:1000000}")
+    public void setParallelThreshold(long parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+    
+    public long getParallelThreshold() {
+        return parallelThreshold;
+    }
+    
+    @Value("${bst.versions.cache-size:32}")
+    public void setVersionCacheSize(int versionCacheSize) {
+        this.versionCacheSize = versionCacheSize;
+    }
+    
+    // Checked here, so a bad value stops the application at startup instead of failing requests
+    @Value("${bst.generator.max-count:10000000}")
+    public void setMaxGeneratedCount(long maxGeneratedCount) {
+        if (maxGeneratedCount < 1 || maxGeneratedCount > TreeJsonWriter.MAX_LENGTH) {
+            throw new IllegalArgumentException("bst.generator.max-count must be between 1 and "
+                    + TreeJsonWriter.MAX_LENGTH + ", was " + maxGeneratedCount);
+        }
+        this.maxGeneratedCount = maxGeneratedCount;
+    }
+    
+    @Value("${bst.parser.vector:true}")
+    public void setVectorParsing(boolean vectorParsing) {
+        this.vectorParsing = vectorParsing;
+    }
+    
+    // True if parseNumberArray really tries the vector parser first (enabled, built with -Pvector
+    // and the module is there)
+    public boolean isVectorParsing() {
+        return vectorParsing && VECTOR_PARSE != null;
+    }
+    
     /*
      * This is the main method that ties everything together.
      * It takes a list of numbers, builds a BST from them, converts it to JSON,
@@ -51,20 +192,62 @@ public class BstService {
      * and what tree was built from it.
      */
     public String buildAndSaveTree(List<Integer> numbers) {
+        return buildAndSaveTree(numbers, BalanceMode.NONE);
+    }
+    
+    /*
+     * Same as above, but the caller picks how the tree is built.
+     * BalanceMode.NONE gives the classic unbalanced tree, AVL and RED_BLACK give balanced ones.
+     */
+    public String buildAndSaveTree(List<Integer> numbers, BalanceMode balance) {
+        return buildAndSaveTree(numbers, balance, BuildMode.INSERTION);
+    }
+    
+    /*
+     * Balance mode plus build mode.
+     * With BuildMode.BALANCED the insertion order is ignored and a perfectly
+     * balanced tree is built from the sorted, de-duplicated numbers instead.
+     */
+    public String buildAndSaveTree(List<Integer> numbers, BalanceMode balance, BuildMode mode) {
+        return buildAndSaveTree(numbers, balance, mode, DuplicateMode.IGNORE);
+    }
+    
+    /*
+     * The full version, which also says what to do with duplicates. With
+     * DuplicateMode.COUNT the saved tree is a multiset: every node has a "count"
+     * in the JSON, and that's how the tree is recognized again when it's loaded.
+     */
+    public String buildAndSaveTree(List<Integer> numbers, BalanceMode balance, BuildMode mode,
+                                   DuplicateMode duplicates) {
         // First check if the input is valid
         if (numbers == null || numbers.isEmpty()) {
             throw new IllegalArgumentException("Numbers list cannot be empty");
         }
+        return buildAndSaveTree(toIntArray(numbers), balance, mode, duplicates);
+    }
+    
+    /*
+     * The same for numbers that are already an int[] (what parseNumberArray gives),
+     * so the controller never has to box them into a List at all.
+     */
+    public String buildAndSaveTree(int[] numbers, BalanceMode balance, BuildMode mode,
+                                   DuplicateMode duplicates) {
+        if (numbers == null || numbers.length == 0) {
+            throw new IllegalArgumentException("Numbers list cannot be empty");
+        }
         
         // Step 1: Build the Binary Search Tree from the numbers
-        BstNode root = buildBst(numbers);
-        
-        // Step 2: Convert the tree to JSON format so it can be displayed nicely
-        String treeJson = convertToJson(root);
+        // (in the array-based NodePool form, no BstNode objects needed)
+        // The pool is closed as soon as we have the JSON, which frees off-heap memory right away
+        String treeJson;
+        try (NodePool tree = buildTree(numbers, balance, mode, duplicates)) {
+            // Step 2: Convert the tree to JSON format so it can be displayed nicely
+            treeJson = convertToJson(tree);
+        }
         
-        // Step 3: Convert the numbers list to a string for database storage
-        // toString() gives us something like "[7, 3, 9, 1, 4]" which is fine for display
-        String inputNumbers = numbers.toString();
+        // Step 3: Convert the numbers to a string for database storage
+        // Arrays.toString gives us something like "[7, 3, 9, 1, 4]" (same as List.toString) which is fine for display
+        String inputNumbers = Arrays.toString(numbers);
         
         // Step 4: Create a new entity and save it to the database
         BstTree bstTree = new BstTree(inputNumbers, treeJson);
@@ -74,67 +257,346 @@ public class BstService {
         return treeJson;
     }
     
+    /*
+     * The same for numbers made on the server ("generator" in /process-numbers).
+     * The generator hands its numbers straight to the engine's insert, so they are
+     * never in an array or a List, and the saved input is the generator's
+     * description (e.g. "uniform 50000 in 0..999 seed 42") instead of millions of
+     * numbers. Generating from it again gives the same tree.
+     */
+    public String buildAndSaveTree(NumberGenerator generator, BalanceMode balance, BuildMode mode,
+                                   DuplicateMode duplicates) {
+        if (generator.size() > maxGeneratedCount) {
+            throw new IllegalArgumentException("Generator makes " + generator.size()
+                    + " numbers, the limit is " + maxGeneratedCount);
+        }
+        
+        String treeJson;
+        try (NodePool tree = buildTree(generator, balance, mode, duplicates)) {
+            treeJson = convertToJson(tree);
+        }
+        repository.save(new BstTree(generator.toString(), treeJson));
+        return treeJson;
+    }
+    
+    /*
+     * Builds and saves a tree straight from a request body, for inputs that are too
+     * big to go through /process-numbers. There the body is a JSON string, then a
+     * Java String, then parsed numbers, all in memory at once before the first node
+     * exists. Here the body is read in 8 KB pieces and every number goes into the
+     * engine as soon as it's parsed, so the input is never in memory as a whole.
+     * 
+     * The body is either plain text in the usual syntax ("7, 3, 9", parsed by
+     * NumberTokenizer, which doesn't mind numbers cut in half between two pieces)
+     * or a JSON array of ints ([7, 3, 9], read token by token with Jackson's
+     * streaming parser).
+     * 
+     * Nothing of the input is kept. The row's input is the preorder of the built
+     * tree (like for snapshots and merges), written after the build: "[7, 3, 9]"
+     * for 7, 3, 9, but a body with a million copies of a few numbers only keeps
+     * those few. So the memory used is the tree's, not the body's. Building from
+     * that preorder (insertion order, no balancing) gives the same tree again. In
+     * count mode the copies are written out too, so there the text is as long as
+     * the number of values.
+     * 
+     * contentLength (-1 if unknown) is only used to guess how many numbers are
+     * coming, for the engine's first array sizes and the parallel decision.
+     * A random number with its separator is about 8 characters. The guess is
+     * capped, so a wrong Content-Length can't make us allocate a huge array up front;
+     * the arrays just grow if there are more numbers. Whether the nodes go off-heap
+     * is decided by the real count instead (SpillingNodePool), since the capped
+     * guess is always far below bst.offheap.threshold.
+     */
+    public BstTree streamAndSaveTree(Reader body, boolean jsonArray, long contentLength, BalanceMode balance,
+                                     BuildMode mode, DuplicateMode duplicates) throws IOException {
+        checkModes(balance, mode);  // Before reading anything
+        int expectedSize = contentLength < 0 ? 1024 : (int) Math.min(contentLength / 8 + 1, MAX_GUESSED_SIZE);
+        String treeJson;
+        String input;
+        
+        // The pool is closed even if the body has a bad number halfway through
+        try (NodePool pool = new SpillingNodePool(expectedSize, offHeapThreshold)) {
+            TreeEngine engine = newEngine(balance, mode, duplicates, pool, expectedSize);
+            IntConsumer sink = engine::insert;
+            long count = jsonArray ? readJsonArray(body, sink) : readText(body, sink);
+            if (count == 0) {
+                throw new IllegalArgumentException("Input cannot be empty");
+            }
+            NodePool tree = engine.build();
+            treeJson = convertToJson(tree);
+            input = preorderInput(tree);
+        }
+        
+        return repository.save(new BstTree(input, treeJson));
+    }
+    
+    // Feeds a text body to NumberTokenizer piece by piece; returns how many numbers there were
+    private static long readText(Reader body, IntConsumer sink) throws IOException {
+        NumberTokenizer tokenizer = new NumberTokenizer(sink);
+        char[] buffer = new char[8192];
+        CharBuffer chars = CharBuffer.wrap(buffer);
+        int read;
+        while ((read = body.read(buffer)) >= 0) {
+            if (!tokenizer.feed(chars, 0, read)) {
+                break;  // No need to read the rest, it's an error anyway
+            }
+        }
+        if (!tokenizer.finish()) {
+            throw new InvalidNumberException(tokenizer.getErrorOffset());
+        }
+        return tokenizer.getCount();
+    }
+    
+    /*
+     * Reads a JSON array of ints one token at a time. Anything in the array that isn't
+     * an int (a string, 1.5, a number that doesn't fit) and JSON syntax errors are an
+     * InvalidNumberException at the offset where the problem was found.
+     */
+    private static long readJsonArray(Reader body, IntConsumer sink) throws IOException {
+        long count = 0;
+        try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IllegalArgumentException("Body must be a JSON array of numbers");
+            }
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token != JsonToken.VALUE_NUMBER_INT || parser.getNumberType() != JsonParser.NumberType.INT) {
+                    throw new InvalidNumberException(parser.getTokenLocation().getCharOffset());
+                }
+                sink.accept(parser.getIntValue());
+                count++;
+            }
+            if (parser.nextToken() != null) {
+                throw new InvalidNumberException(parser.getTokenLocation().getCharOffset());
+            }
+        } catch (JsonProcessingException e) {
+            throw new InvalidNumberException(e.getLocation() == null ? 0 : e.getLocation().getCharOffset());
+        }
+        return count;
+    }
+    
+    /*
+     * This is where the tree actually gets built.
+     * I pick the engine for the requested modes, feed it every number, and get back
+     * the tree stored in a NodePool (plain int arrays instead of one object per node).
+     * 
+     * Big inputs get an off-heap pool, so the caller must close() the result when done.
+     */
+    public NodePool buildTree(int[] numbers, BalanceMode balance, BuildMode mode) {
+        return buildTree(numbers, balance, mode, DuplicateMode.IGNORE);
+    }
+    
+    // Same, with duplicates counted instead of dropped if duplicates is COUNT
+    public NodePool buildTree(int[] numbers, BalanceMode balance, BuildMode mode, DuplicateMode duplicates) {
+        TreeEngine engine = newEngine(balance, mode, duplicates, numbers.length);
+        for (int number : numbers) {
+            engine.insert(number);
+        }
+        return engine.build();
+    }
+    
+    // Same, with the numbers from a generator (the caller checks its size against the
+    // max count, which is an int; the capacity is clamped anyway, since it's only a size hint)
+    public NodePool buildTree(NumberGenerator generator, BalanceMode balance, BuildMode mode,
+                              DuplicateMode duplicates) {
+        int expectedSize = (int) Math.min(generator.size(), TreeJsonWriter.MAX_LENGTH);
+        TreeEngine engine = newEngine(balance, mode, duplicates, expectedSize);
+        generator.generate(engine::insert);
+        return engine.build();
+    }
+    
+    /*
+     * Picks the engine for a balance mode and build mode:
+     * - BuildMode.BALANCED: sort, de-duplicate and build from the middle (BalancedBulkTree)
+     * - BalanceMode.AVL / RED_BLACK: self-balancing trees
+     * - BalanceMode.SPLAY: splay tree, every new value is moved to the root
+     * - otherwise the plain insertion-order tree (PlainTree), or for big inputs
+     *   the same tree built on all cores (ParallelPlainTree)
+     * 
+     * BuildMode.BALANCED already gives a perfectly balanced tree, so asking for AVL
+     * or red-black on top of that doesn't make sense and I reject it instead of
+     * silently ignoring it.
+     * 
+     * expectedSize is how many numbers are coming, so the engine can size its
+     * arrays once instead of growing them. It also decides where the nodes go,
+     * see newPool.
+     */
+    public TreeEngine newEngine(BalanceMode balance, BuildMode mode, int expectedSize) {
+        return newEngine(balance, mode, DuplicateMode.IGNORE, expectedSize);
+    }
+    
+    /*
+     * Same, and with DuplicateMode.COUNT the pool gets a count column first. The
+     * engines don't need a mode of their own for that: where they used to skip a
+     * duplicate they now tell the pool (NodePool.countDuplicate), which only counts
+     * it if the column is there.
+     */
+    public TreeEngine newEngine(BalanceMode balance, BuildMode mode, DuplicateMode duplicates, int expectedSize) {
+        checkModes(balance, mode);
+        return newEngine(balance, mode, duplicates, newPool(expectedSize), expectedSize);
+    }
+    
+    private static void checkModes(BalanceMode balance, BuildMode mode) {
+        if (mode == BuildMode.BALANCED && balance != BalanceMode.NONE) {
+            throw new IllegalArgumentException("Build mode 'balanced' cannot be combined with balance '"
+                    + balance.name().toLowerCase() + "'");
+        }
+    }
+    
+    // Same, with a pool the caller made (and closes), see streamAndSaveTree. The modes are already checked.
+    private TreeEngine newEngine(BalanceMode balance, BuildMode mode, DuplicateMode duplicates, NodePool pool,
+                                 int expectedSize) {
+        if (duplicates == DuplicateMode.COUNT) {
+            pool.enableCounts();
+        }
+        if (mode == BuildMode.BALANCED) {
+            return new BalancedBulkTree(pool, expectedSize);
+        }
+        
+        switch (balance) {
+            case AVL:
+                return new AvlTree(pool);
+            case RED_BLACK:
+                return new RedBlackTree(pool);
+            case SPLAY:
+                return new SplayTree(pool);
+            case NONE:
+            default:
+                // Both give exactly the same tree, the parallel one is just faster on big inputs
+                if (expectedSize >= parallelThreshold) {
+                    return new ParallelPlainTree(pool, expectedSize);
+                }
+                return new PlainTree(pool);
+        }
+    }
+    
+    /*
+     * Picks the storage for a tree of about expectedSize nodes.
+     * Normal trees use int arrays on the heap. From the configured threshold on
+     * the nodes go into direct memory instead, where the garbage collector
+     * doesn't have to scan or copy them.
+     */
+    public NodePool newPool(int expectedSize) {
+        if (expectedSize >= offHeapThreshold) {
+            return new OffHeapNodePool();
+        }
+        return new HeapNodePool(expectedSize);
+    }
+    
+    /*
+     * Current off-heap memory usage, for the /api/metrics/off-heap endpoint.
+     */
+    public OffHeapMetrics getOffHeapMetrics() {
+        return new OffHeapMetrics(offHeapThreshold);
+    }
+    
     /*
      * This method builds the actual Binary Search Tree!
-     * It's pretty straightforward - I just iterate through the numbers list
-     * and insert each number one by one into the tree.
+     * It inserts the numbers one by one, in order, with no balancing.
      * 
      * The order of insertion matters a lot for the shape of the tree.
      * For example, if you insert [1, 2, 3, 4, 5] you get a completely unbalanced
      * right-skewed tree (basically a linked list). But if you insert [3, 1, 4, 2, 5]
      * you get a more balanced tree.
      * 
-     * I'm not implementing any balancing here (like AVL or Red-Black trees)
-     * because that would be extra work and wasn't required for this assignment.
+     * This method doesn't do any balancing on purpose, because stored trees should stay
+     * reproducible from their input. If you want a balanced tree, use the
+     * buildBst(numbers, balance) version below.
+     * 
+     * The building itself happens in PlainTree on arrays; this method returns the
+     * result as linked BstNode objects, which is easier to work with in code and tests.
      */
     public BstNode buildBst(List<Integer> numbers) {
+        return buildBst(numbers, BalanceMode.NONE, BuildMode.INSERTION);
+    }
+    
+    /*
+     * Builds a tree using the given balance mode.
+     * NONE is the plain insertion-order tree from buildBst(numbers) above,
+     * AVL and RED_BLACK rebalance after every insert so the height stays logarithmic.
+     */
+    public BstNode buildBst(List<Integer> numbers, BalanceMode balance) {
+        return buildBst(numbers, balance, BuildMode.INSERTION);
+    }
+    
+    /*
+     * Builds a tree using both a balance mode and a build mode, as BstNode objects.
+     */
+    public BstNode buildBst(List<Integer> numbers, BalanceMode balance, BuildMode mode) {
         // Handle edge cases - return null if input is null or empty
         if (numbers == null || numbers.isEmpty()) {
             return null;
         }
-        
-        // Start with an empty tree (null root)
-        BstNode root = null;
-        
-        // Insert each number into the tree one by one
-        // The insert method handles finding the right spot
+        try (NodePool tree = buildTree(toIntArray(numbers), balance, mode)) {
+            return tree.toBstNode();
+        }
+    }
+    
+    /*
+     * Builds a perfectly balanced tree when the insertion order doesn't matter.
+     * See BalancedBulkTree for how it works.
+     */
+    public BstNode buildBalancedBst(List<Integer> numbers) {
+        return buildBst(numbers, BalanceMode.NONE, BuildMode.BALANCED);
+    }
+    
+    // Unboxes the list once, so the engines only ever see plain ints
+    private static int[] toIntArray(List<Integer> numbers) {
+        int[] values = new int[numbers.size()];
+        int index = 0;
         for (Integer num : numbers) {
-            root = insert(root, num);
+            values[index++] = num;
         }
-        
-        return root;
+        return values;
     }
     
     /*
-     * Recursive method to insert a value into the BST.
+     * Method to insert a value into the BST.
      * This is the classic BST insertion algorithm I learned in Data Structures class.
      * 
      * The idea is simple:
-     * - If we hit a null node, that's where the new value goes
+     * - If we hit a null position, that's where the new value goes
      * - If the value is less than current node, go left
      * - If the value is greater than current node, go right
      * - If the value equals current node, we skip it (no duplicates)
      * 
      * I chose not to allow duplicates because it makes the tree simpler
      * and matches the standard BST definition where each value is unique.
+     * 
+     * This used to be recursive, one call per level. With sorted input the tree turns
+     * into a linked list, and a few tens of thousands of levels were enough to get a
+     * StackOverflowError on the request thread. Now it's a plain loop, so the depth
+     * of the tree doesn't matter anymore. It still returns the root, like before.
      */
     public BstNode insert(BstNode node, int value) {
-        // Base case: if we've reached a null position, create a new node here
+        // Empty tree: the new node becomes the root
         if (node == null) {
             return new BstNode(value);
         }
         
-        // Recursive case: decide whether to go left or right
-        if (value < node.getValue()) {
-            // Value is smaller, so it belongs in the left subtree
-            node.setLeft(insert(node.getLeft(), value));
-        } else if (value > node.getValue()) {
-            // Value is larger, so it belongs in the right subtree
-            node.setRight(insert(node.getRight(), value));
+        BstNode current = node;
+        while (true) {
+            if (value < current.getValue()) {
+                // Value is smaller, so it belongs in the left subtree
+                if (current.getLeft() == null) {
+                    current.setLeft(new BstNode(value));
+                    break;
+                }
+                current = current.getLeft();
+            } else if (value > current.getValue()) {
+                // Value is larger, so it belongs in the right subtree
+                if (current.getRight() == null) {
+                    current.setRight(new BstNode(value));
+                    break;
+                }
+                current = current.getRight();
+            } else {
+                // If value == current.getValue(), we just don't insert it (skip duplicates)
+                break;
+            }
         }
-        // If value == node.getValue(), we just don't insert it (skip duplicates)
         
-        // Return the (possibly modified) node
+        // Return the root of the tree
         return node;
     }
     
@@ -158,6 +620,16 @@ public class BstService {
         }
     }
     
+    /*
+     * Converts an array-based tree to JSON.
+     * The output is exactly the same as convertToJson(tree.toBstNode()) would give,
+     * but it's written directly from the arrays without creating any node objects
+     * (see TreeJsonWriter).
+     */
+    public String convertToJson(NodePool tree) {
+        return TreeJsonWriter.write(tree);
+    }
+    
     /*
      * Simple method to get all saved trees from the database.
      * I'm using a custom query method that orders by createdAt descending,
@@ -171,28 +643,542 @@ public class BstService {
         return repository.findAllByOrderByCreatedAtDesc();
     }
     
+    /*
+     * Derives a new saved tree from an existing one by adding more numbers.
+     * 
+     * Instead of rebuilding the whole tree from the combined input, I take the saved
+     * tree in its persistent form and insert only the new numbers. Each insert copies
+     * just the nodes on one root-to-leaf path, everything else is shared with the
+     * saved version (which stays cached and unchanged). The result is the same tree
+     * as building from the old input followed by the new numbers.
+     * 
+     * The new tree is saved as a new row, and its input is the old input plus the
+     * new numbers. Derived trees are plain BSTs: red-black colors of the original
+     * aren't kept, because plain inserts don't follow the red-black rules.
+     */
+    public BstTree deriveTree(Long parentId, List<Integer> numbers) {
+        if (numbers == null || numbers.isEmpty()) {
+            throw new IllegalArgumentException("Numbers list cannot be empty");
+        }
+        
+        BstTree parent = findTree(parentId);
+        PersistentTree version = loadVersion(parent).insertAll(toIntArray(numbers));
+        
+        String treeJson;
+        try (NodePool tree = version.toNodePool()) {
+            treeJson = convertToJson(tree);
+        }
+        BstTree derived = repository.save(new BstTree(appendInput(parent.getInputNumbers(), numbers), treeJson));
+        cacheVersion(derived, version);
+        return derived;
+    }
+    
+    /*
+     * Combines two saved trees into a new saved tree (union, intersection or
+     * difference of their values, see PersistentTree.merge).
+     * 
+     * Before, combining trees meant gluing their input strings together and building
+     * from scratch, which parses and inserts every number again. Here the two cached
+     * versions are merged in order and the result is built balanced, in O(n + m).
+     * 
+     * The new row's input is the preorder of the result, so building from it
+     * (insertion order, no balancing) gives exactly the same balanced tree. An empty
+     * result isn't saved, the caller gets an IllegalArgumentException (400).
+     */
+    public BstTree mergeTrees(Long leftId, Long rightId, SetOperation operation) {
+        PersistentTree merged = loadVersion(leftId).merge(loadVersion(rightId), operation);
+        if (merged.isEmpty()) {
+            throw new IllegalArgumentException("The " + operation.name().toLowerCase() + " of trees "
+                    + leftId + " and " + rightId + " is empty");
+        }
+        
+        BstTree saved;
+        try (NodePool tree = merged.toNodePool()) {
+            saved = repository.save(new BstTree(preorderInput(tree), convertToJson(tree)));
+        }
+        cacheVersion(saved, merged);
+        return saved;
+    }
+    
+    /*
+     * Adds numbers to a saved tree and stores the result in the same row.
+     * 
+     * Like deriveTree, only the new numbers are inserted into the cached persistent
+     * version, with the same dedup rule (numbers already in the tree are skipped, or
+     * counted if it's a multiset tree - the patcher then rewrites just the count).
+     * For the stored treeJson I don't serialize the whole tree again either:
+     * TreeJsonPatcher pastes the new leaves into the old text at the right spots.
+     * So the work grows with the number of appended values, apart from copying the
+     * text once (the database writes the whole column anyway).
+     * 
+     * If the stored JSON isn't in the exact format the patcher expects (for example
+     * a red-black tree, which has colors), the tree is written out completely, as a
+     * plain BST like deriveTree does.
+     * If every number was already in the tree, nothing is saved.
+     */
+    public BstTree appendToTree(Long id, List<Integer> numbers) {
+        if (numbers == null || numbers.isEmpty()) {
+            throw new IllegalArgumentException("Numbers list cannot be empty");
+        }
+        
+        synchronized (lockFor(id)) {
+            BstTree tree = findTree(id);
+            PersistentTree before = loadVersion(tree);
+            PersistentTree after = before.insertAll(toIntArray(numbers));
+            if (after == before) {
+                return tree;
+            }
+            
+            String treeJson = TreeJsonPatcher.patch(tree.getTreeJson(), before, after);
+            if (treeJson == null) {
+                try (NodePool pool = after.toNodePool()) {
+                    treeJson = convertToJson(pool);
+                }
+            }
+            tree.setTreeJson(treeJson);
+            tree.setInputNumbers(appendInput(tree.getInputNumbers(), numbers));
+            tree.setRevision(tree.getRevision() + 1);
+            BstTree saved = repository.save(tree);
+            cacheVersion(saved, after);
+            return saved;
+        }
+    }
+    
+    /*
+     * Removes single values from a saved tree, in place. Values that aren't in the
+     * tree are ignored. Returns how many were removed.
+     */
+    public long deleteValues(Long id, List<Integer> values) {
+        return deleteFromTree(id, values, null, null).getRemoved();
+    }
+    
+    /*
+     * Removes every value in [lo, hi] from a saved tree, in place, and returns how
+     * many were removed.
+     */
+    public long deleteRange(Long id, int lo, int hi) {
+        return deleteFromTree(id, null, lo, hi).getRemoved();
+    }
+    
+    /*
+     * Removes single values and/or every value in [lo, hi] from a saved tree and
+     * stores the result in the same row (DELETE /api/trees/{id}/values). Either part
+     * can be null, but not both. Both are applied to the cached version under the
+     * tree's lock and the row is written once, so another request never sees half
+     * of it. removed counts every copy of a value in a multiset tree.
+     * 
+     * The deletes themselves are cheap: the range is split off and the tree joined
+     * again (see PersistentTree.deleteRange), so a big range costs no more than a
+     * small one, O(depth). Writing the row isn't: after a delete the tree isn't what
+     * its old input would build any more, so I store its values in preorder as the
+     * new input (like snapshots do), which rebuilds exactly this tree, and the JSON
+     * is written completely because a delete moves nodes up, which changes the
+     * indentation of everything below them. That's O(n) for the whole request,
+     * however many values it removes, which is why both parts share one write.
+     * 
+     * Like appendToTree, the row's revision goes up, and before comes from
+     * loadVersion(tree), which only trusts a cached version of this revision, so
+     * removed is counted against the tree that is really in the row.
+     */
+    public DeleteResult deleteFromTree(Long id, List<Integer> values, Integer lo, Integer hi) {
+        if (values == null && lo == null) {
+            throw new IllegalArgumentException("Give values (v) or a range (lo and hi) to delete");
+        }
+        if (values != null && values.isEmpty()) {
+            throw new IllegalArgumentException("Values list cannot be empty");
+        }
+        if ((lo == null) != (hi == null)) {
+            throw new IllegalArgumentException("A range needs both lo and hi");
+        }
+        if (lo != null && lo > hi) {
+            throw new IllegalArgumentException("Range start " + lo + " is bigger than its end " + hi);
+        }
+        
+        synchronized (lockFor(id)) {
+            BstTree tree = findTree(id);
+            PersistentTree before = loadVersion(tree);
+            PersistentTree after = before;
+            if (values != null) {
+                after = after.deleteAll(toIntArray(values));
+            }
+            if (lo != null) {
+                after = after.deleteRange(lo, hi);
+            }
+            if (after == before) {
+                return new DeleteResult(id, 0, before.size());
+            }
+            
+            try (NodePool pool = after.toNodePool()) {
+                tree.setTreeJson(convertToJson(pool));
+                tree.setInputNumbers(preorderInput(pool));
+            }
+            tree.setRevision(tree.getRevision() + 1);
+            BstTree saved = repository.save(tree);
+            cacheVersion(saved, after);
+            return new DeleteResult(id, before.total() - after.total(), after.size());
+        }
+    }
+    
+    /*
+     * Is value in the saved tree? Answered from the frozen (Eytzinger) copy of the
+     * cached version, no JSON involved. The first lookup after a change builds the
+     * copy in O(n); saved trees are mostly read, so that's paid rarely.
+     */
+    public boolean treeContains(Long id, int value) {
+        return treeContains(id, value, LookupMode.FROZEN);
+    }
+    
+    /*
+     * Same, but the caller picks which copy answers (see LookupMode). With SPLAY the
+     * value is moved to the top of the version's splay tree copy, so the hot values
+     * of a skewed workload stay cheap to find.
+     */
+    public boolean treeContains(Long id, int value, LookupMode mode) {
+        PersistentTree version = loadVersion(id);
+        if (mode == LookupMode.SPLAY) {
+            return version.splay().contains(value);
+        }
+        return version.freeze().contains(value);
+    }
+    
+    /*
+     * Checks many values against a saved tree in one go (see FrozenTree.containsAll).
+     * found[i] is true if values[i] is in the tree.
+     */
+    public boolean[] treeLookup(Long id, int[] values) {
+        if (values == null) {
+            throw new IllegalArgumentException("Values array is missing");
+        }
+        return loadVersion(id).freeze().containsAll(values);
+    }
+    
+    /*
+     * The values of a saved tree in [lo, hi], in increasing order. In a multiset tree
+     * a value comes as many times as it was inserted.
+     * The tree is loaded right away (so an unknown id fails here, not while the
+     * caller is reading), but the values are only found as the iterator is read.
+     */
+    public PrimitiveIterator.OfInt treeRange(Long id, int lo, int hi) {
+        return loadVersion(id).rangeWithDuplicates(lo, hi);
+    }
+    
+    /*
+     * Order statistics of a saved tree (see PersistentTree.rank/select/percentile),
+     * answered from the cached version without sorting anything. The version has the
+     * shape of the saved tree, so these are O(depth): O(log n) if it was built
+     * balanced, up to O(n) for an unbalanced tree from sorted input.
+     */
+    public int treeRank(Long id, int value) {
+        return loadVersion(id).rank(value);
+    }
+    
+    public int treeSelect(Long id, int k) {
+        return loadVersion(id).select(k);
+    }
+    
+    public int treePercentile(Long id, double p) {
+        return loadVersion(id).percentile(p);
+    }
+    
+    // count, sum, min and max of the values in [lo, hi] (see PersistentTree.aggregate)
+    public RangeAggregate treeAggregate(Long id, int lo, int hi) {
+        return loadVersion(id).aggregate(lo, hi);
+    }
+    
+    /*
+     * Structural difference between two saved trees (see TreeDiff): which values
+     * only one of them has, which ones hang somewhere else, and the first level
+     * where they differ. Works on the cached versions in O(n + m), so the two
+     * treeJson texts are never written or compared. The lists in the result stop
+     * after limit entries.
+     */
+    public TreeDiff diffTrees(Long a, Long b, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative: " + limit);
+        }
+        return TreeDiff.compare(loadVersion(a), loadVersion(b), limit);
+    }
+    
+    /*
+     * Returns a saved tree in its persistent form. Recently used trees come from the
+     * cache, others are decoded from their stored treeJson (see TreeJsonReader).
+     */
+    public PersistentTree loadVersion(Long id) {
+        CachedVersion cached = versions.get(id);
+        if (cached != null) {
+            return cached.version;
+        }
+        return loadVersion(findTree(id));
+    }
+    
+    /*
+     * The version of exactly this row: the cached one only if it has the row's
+     * revision, otherwise the row's treeJson is decoded again. appendToTree and
+     * deleteFromTree change the tree based on what this returns, so an older cached
+     * version (or a newer one, if the row was read before a change) must not be used.
+     */
+    private PersistentTree loadVersion(BstTree tree) {
+        CachedVersion cached = versions.get(tree.getId());
+        if (cached != null && cached.revision == tree.getRevision()) {
+            return cached.version;
+        }
+        PersistentTree version;
+        try (NodePool pool = TreeJsonReader.read(tree.getTreeJson())) {
+            version = PersistentTree.fromNodePool(pool);
+        }
+        cacheVersion(tree, version);
+        return version;
+    }
+    
+    /*
+     * Caches version as the tree of row tree, unless a later revision of the row is
+     * already cached. A reader decodes the row it read without the tree's lock, and
+     * that can take long enough for an append to save and cache a newer version in
+     * the meantime; a plain put would then replace it with the old one.
+     */
+    private void cacheVersion(BstTree tree, PersistentTree version) {
+        CachedVersion fresh = new CachedVersion(tree.getRevision(), version);
+        versions.merge(tree.getId(), fresh, (old, now) -> now.revision >= old.revision ? now : old);
+    }
+    
+    private static Object[] newLocks(int count) {
+        Object[] locks = new Object[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+    
+    // The lock stripe of a saved tree (floorMod, so negative ids work too)
+    private Object lockFor(Long id) {
+        return treeLocks[(int) Math.floorMod(id, (long) TREE_LOCK_STRIPES)];
+    }
+    
+    // Loads a saved tree or throws TreeNotFoundException (404 in the controller)
+    public BstTree findTree(Long id) {
+        return repository.findById(id).orElseThrow(() -> new TreeNotFoundException(id));
+    }
+    
+    /*
+     * "[7, 3]" plus [9, 1] gives "[7, 3, 9, 1]", like numbers.toString() of the combined list.
+     * A generator's description stays in front: "range 1..100" plus [9] is "range 1..100, [9]".
+     */
+    private static String appendInput(String input, List<Integer> numbers) {
+        String added = numbers.toString();
+        if (input == null || input.isEmpty() || input.equals("[]")) {
+            return added;
+        }
+        if (!input.endsWith("]")) {
+            return input + ", " + added;
+        }
+        return input.substring(0, input.length() - 1) + ", " + added.substring(1);
+    }
+    
+    /*
+     * Creates a new, empty shared tree.
+     * The name must be 1-64 letters, digits, '-' or '_', and must not be taken yet.
+     */
+    public void createSharedTree(String name) {
+        if (name == null || !SHARED_TREE_NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Shared tree name must be 1-64 letters, digits, '-' or '_'");
+        }
+        if (sharedTrees.putIfAbsent(name, new ConcurrentTree()) != null) {
+            throw new IllegalStateException("Shared tree already exists: " + name);
+        }
+    }
+    
+    /*
+     * Inserts numbers into a shared tree and returns how many of them were new.
+     * Many requests can do this at the same time, see ConcurrentTree.
+     */
+    public int insertIntoSharedTree(String name, List<Integer> numbers) {
+        ConcurrentTree tree = getSharedTree(name);
+        int inserted = 0;
+        for (Integer number : numbers) {
+            if (tree.insert(number)) {
+                inserted++;
+            }
+        }
+        return inserted;
+    }
+    
+    public boolean sharedTreeContains(String name, int value) {
+        return getSharedTree(name).contains(value);
+    }
+    
+    public long getSharedTreeSize(String name) {
+        return getSharedTree(name).size();
+    }
+    
+    /*
+     * Saves the current state of a shared tree as a normal row in bst_trees.
+     * 
+     * The stored input is the snapshot's values in preorder, because inserting
+     * them in that order rebuilds exactly the same tree. Inserts into the shared
+     * tree can go on while the snapshot is taken (see ConcurrentTree.snapshot).
+     */
+    public BstTree snapshotSharedTree(String name) {
+        ConcurrentTree tree = getSharedTree(name);
+        try (NodePool snapshot = tree.snapshot()) {
+            if (snapshot.size() == 0) {
+                throw new IllegalArgumentException("Shared tree is empty: " + name);
+            }
+            return repository.save(new BstTree(preorderInput(snapshot), convertToJson(snapshot)));
+        }
+    }
+    
+    /*
+     * "[...]" with the values of a tree in preorder, which rebuild exactly the same
+     * tree (insertion order, no balancing). In a multiset tree each value is repeated
+     * as often as its count (right after each other, so the copies don't change the
+     * shape).
+     * 
+     * The walk uses an explicit stack, so any pool works, not only the ones whose
+     * nodes are already numbered in preorder (PersistentTree.toNodePool).
+     */
+    private static String preorderInput(NodePool tree) {
+        StringBuilder input = new StringBuilder("[");
+        boolean counts = tree.hasCounts();
+        int[] stack = new int[64];
+        int top = tree.getRoot() == NodePool.NIL ? -1 : 0;  // "[]" when everything was deleted
+        stack[0] = tree.getRoot();
+        while (top >= 0) {
+            int node = stack[top--];
+            int copies = counts ? tree.getCount(node) : 1;
+            for (int copy = 0; copy < copies; copy++) {
+                if (input.length() > 1) {
+                    input.append(", ");
+                }
+                input.append(tree.getValue(node));
+            }
+            if (top + 2 >= stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            if (tree.getRight(node) != NodePool.NIL) {
+                stack[++top] = tree.getRight(node);
+            }
+            if (tree.getLeft(node) != NodePool.NIL) {
+                stack[++top] = tree.getLeft(node);
+            }
+        }
+        return input.append(']').toString();
+    }
+    
+    private ConcurrentTree getSharedTree(String name) {
+        ConcurrentTree tree = name == null ? null : sharedTrees.get(name);
+        if (tree == null) {
+            throw new TreeNotFoundException(name);
+        }
+        return tree;
+    }
+    
     /*
      * This method parses the user's input string into a list of integers.
      * Users can enter numbers separated by commas, spaces, or both.
      * For example: "7, 3, 9" or "7 3 9" or "7,3,9" all work.
      * 
-     * I'm using Java Streams here because it makes the code more readable (in my opinion).
-     * The regex [,\s]+ splits on any combination of commas and whitespace.
+     * It used to split the input with the regex [,\s]+ and parse every piece with
+     * Integer.parseInt. Now it's parseNumberArray (one pass, no String per number)
+     * with the result boxed into a List for the callers that want one.
      * 
      * If the user enters invalid input like "abc" or empty string, we throw an exception
      * which gets caught in the controller and returned as an error response.
      */
     public List<Integer> parseNumbers(String input) {
-        // Check for null or empty input first
-        if (input == null || input.trim().isEmpty()) {
+        int[] values = parseNumberArray(input);
+        Integer[] boxed = new Integer[values.length];
+        for (int i = 0; i < values.length; i++) {
+            boxed[i] = values[i];
+        }
+        return Arrays.asList(boxed);
+    }
+    
+    /*
+     * Parses the input straight into an int[] with NumberTokenizer.
+     * Same syntax as before: commas and/or whitespace between the numbers, an
+     * optional sign, and every number has to fit in an int.
+     * 
+     * If the JVM has the Vector API, VectorNumberParser tries first. It only takes
+     * plain ASCII input and gives up (null) on anything else, including every error,
+     * so the result is always the same as NumberTokenizer's. The module check comes
+     * first, so without the module the class is never even loaded. It's called through
+     * reflection because it's only in the jar when built with -Pvector; that costs
+     * far less than parsing even a short input.
+     * 
+     * The tokenizer doesn't throw, it just stops at the first bad number. This
+     * throws once at the end: IllegalArgumentException for empty input and
+     * InvalidNumberException (a NumberFormatException) with the position of
+     * the bad number otherwise.
+     */
+    public int[] parseNumberArray(String input) {
+        // Check for null or empty input first (trim() would copy the whole string just to check)
+        if (input == null || isBlank(input)) {
             throw new IllegalArgumentException("Input cannot be empty");
         }
         
-        // Split the string by commas and/or spaces, convert to integers
-        return Arrays.stream(input.split("[,\\s]+"))  // Split by comma or whitespace
-                .filter(s -> !s.isEmpty())             // Remove empty strings
-                .map(String::trim)                      // Trim whitespace from each part
-                .map(Integer::parseInt)                 // Convert to Integer (throws if invalid)
-                .toList();                              // Collect to list
+        if (isVectorParsing()) {
+            int[] values = parseWithVectors(input);
+            if (values != null) {
+                return values;
+            }
+        }
+        NumberTokenizer.Parsed parsed = NumberTokenizer.parse(input);
+        if (!parsed.isValid()) {
+            throw new InvalidNumberException(parsed.getErrorOffset());
+        }
+        return parsed.getValues();
+    }
+    
+    private static int[] parseWithVectors(String input) {
+        try {
+            return (int[]) VECTOR_PARSE.invoke(null, input);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            // parse doesn't throw for bad input, so this is something like an OutOfMemoryError
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+    
+    /*
+     * Reads the numbers of an application/octet-stream body for /process-numbers,
+     * little-endian int32 or zigzag varints (see BinaryNumberReader). The producer
+     * already has ints, so there's no text to parse at all. An empty body is an
+     * IllegalArgumentException like empty text, a broken one an InvalidNumberException
+     * with the byte offset of the bad number.
+     */
+    public int[] readBinaryNumbers(InputStream body, long contentLength, BinaryFormat format) throws IOException {
+        int[] values = BinaryNumberReader.read(body, contentLength, format);
+        if (values.length == 0) {
+            throw new IllegalArgumentException("Input cannot be empty");
+        }
+        return values;
+    }
+    
+    // Blank the way trim() sees it: nothing but characters up to ' '
+    private static boolean isBlank(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            if (input.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // A cached version and the revision of the row it belongs to
+    private static final class CachedVersion {
+        final long revision;
+        final PersistentTree version;
+        
+        CachedVersion(long revision, PersistentTree version) {
+            this.revision = revision;
+            this.version = version;
+        }
     }
 }
@@ -0,0 +1,38 @@
+package com.bstapp.service;
+
+/*
+ * This enum says whether the insertion order of the numbers matters.
+ * 
+ * INSERTION is the normal behaviour: numbers go into the tree one by one, in the order
+ * the user typed them, and the balance mode decides if the tree rebalances or not.
+ * 
+ * BALANCED is for callers that only care about the set of values. The numbers are
+ * sorted and duplicates are removed, and then the tree is built directly from the
+ * sorted array: the middle element becomes the root, the middle of the left half
+ * becomes its left child, and so on. Every node is created exactly once without
+ * any root-to-leaf search, so after sorting the build is O(n), and the result is
+ * perfectly balanced (height = ceil(log2(n + 1))).
+ */
+public enum BuildMode {
+    INSERTION,
+    BALANCED;
+    
+    /*
+     * Converts the "mode" value from the request JSON. Missing or empty means INSERTION.
+     * Unknown values throw IllegalArgumentException, which becomes a 400 Bad Request.
+     */
+    public static BuildMode fromString(String value) {
+        if (value == null || value.isBlank()) {
+            return INSERTION;
+        }
+        
+        switch (value.trim().toLowerCase()) {
+            case "insertion":
+                return INSERTION;
+            case "balanced":
+                return BALANCED;
+            default:
+                throw new IllegalArgumentException("Unknown build mode: " + value);
+        }
+    }
+}
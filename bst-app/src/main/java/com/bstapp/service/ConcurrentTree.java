@@ -0,0 +1,176 @@
+package com.bstapp.service;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A BST that many threads can insert into and search at the same time, for the
+ * long-lived shared trees (/api/shared-trees).
+ * 
+ * There are no locks. Nodes are never removed or moved, so a node's child link
+ * only ever changes once: from null to the new node. An insert walks down like
+ * BstService.insert and, at the empty spot, tries to put its node there with a
+ * compare-and-set (CAS). If another thread filled that spot first, the CAS fails
+ * and the insert simply continues walking down from the node that was just added
+ * there. That also handles two threads inserting the same value: the loser finds
+ * the value on its way down and reports a duplicate.
+ * 
+ * Lookups are just reads of the volatile links, so they never wait for anything
+ * and never see a half-built node.
+ * 
+ * Like the other trees there is no rebalancing. With many clients inserting at
+ * once the insertion order isn't defined anyway, so the shape depends on timing,
+ * but it's always a valid BST with every value exactly once.
+ */
+public class ConcurrentTree {
+    
+    private static final VarHandle ROOT;
+    private static final VarHandle LEFT;
+    private static final VarHandle RIGHT;
+    
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            ROOT = lookup.findVarHandle(ConcurrentTree.class, "root", Node.class);
+            LEFT = lookup.findVarHandle(Node.class, "left", Node.class);
+            RIGHT = lookup.findVarHandle(Node.class, "right", Node.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    static final class Node {
+        final int value;
+        volatile Node left;
+        volatile Node right;
+        
+        Node(int value) {
+            this.value = value;
+        }
+    }
+    
+    private volatile Node root;
+    
+    // LongAdder instead of AtomicLong so the counter isn't one hot spot for all threads
+    private final LongAdder size = new LongAdder();
+    
+    /*
+     * Inserts value and returns true, or returns false if it was already there.
+     */
+    public boolean insert(int value) {
+        Node node = null;  // Created once, reused if a CAS fails
+        
+        Node current = root;
+        if (current == null) {
+            node = new Node(value);
+            if (ROOT.compareAndSet(this, null, node)) {
+                size.increment();
+                return true;
+            }
+            current = root;  // Somebody else created the root first
+        }
+        
+        while (true) {
+            if (value == current.value) {
+                return false;
+            }
+            boolean goLeft = value < current.value;
+            Node child = goLeft ? current.left : current.right;
+            if (child != null) {
+                current = child;
+                continue;
+            }
+            
+            if (node == null) {
+                node = new Node(value);
+            }
+            VarHandle link = goLeft ? LEFT : RIGHT;
+            if (link.compareAndSet(current, null, node)) {
+                size.increment();
+                return true;
+            }
+            // Lost the race for this spot; the loop reads the new child and goes on from there
+        }
+    }
+    
+    public boolean contains(int value) {
+        Node current = root;
+        while (current != null) {
+            if (value == current.value) {
+                return true;
+            }
+            current = value < current.value ? current.left : current.right;
+        }
+        return false;
+    }
+    
+    // Number of values inserted so far
+    public long size() {
+        return size.sum();
+    }
+    
+    /*
+     * Copies the current tree into a NodePool (in preorder), e.g. to save it.
+     * 
+     * Inserts can go on while this runs. The copy then contains every value that
+     * was in the tree when the snapshot started, plus maybe some that came in while
+     * copying, and it's always a valid BST.
+     * 
+     * Inserting the copied values in preorder gives exactly this tree again, which
+     * is what the service stores as the input numbers of a snapshot.
+     */
+    public NodePool snapshot() {
+        NodePool pool = new HeapNodePool((int) Math.min(Integer.MAX_VALUE - 8, size() + 16));
+        Node start = root;
+        if (start == null) {
+            return pool;
+        }
+        
+        // Explicit stack of (node, parent index, left or right child)
+        Node[] stack = new Node[64];
+        int[] parents = new int[64];
+        boolean[] isLeft = new boolean[64];
+        int top = 0;
+        stack[0] = start;
+        parents[0] = NodePool.NIL;
+        while (top >= 0) {
+            Node node = stack[top];
+            int parent = parents[top];
+            boolean left = isLeft[top];
+            top--;
+            
+            int index = pool.addNode(node.value);
+            if (parent == NodePool.NIL) {
+                pool.setRoot(index);
+            } else if (left) {
+                pool.setLeft(parent, index);
+            } else {
+                pool.setRight(parent, index);
+            }
+            
+            // Read each link once, it might change between two reads
+            Node leftChild = node.left;
+            Node rightChild = node.right;
+            if (top + 2 >= stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+                parents = Arrays.copyOf(parents, parents.length * 2);
+                isLeft = Arrays.copyOf(isLeft, isLeft.length * 2);
+            }
+            if (rightChild != null) {
+                top++;
+                stack[top] = rightChild;
+                parents[top] = index;
+                isLeft[top] = false;
+            }
+            if (leftChild != null) {
+                top++;
+                stack[top] = leftChild;
+                parents[top] = index;
+                isLeft[top] = true;
+            }
+        }
+        return pool;
+    }
+}
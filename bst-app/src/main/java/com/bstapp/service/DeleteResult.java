@@ -0,0 +1,35 @@
+package com.bstapp.service;
+
+/*
+ * What DELETE /api/trees/{id}/values did, returned as JSON. See BstService.deleteFromTree.
+ * 
+ * removed counts every copy of a value in a multiset tree (deleting a value that
+ * was inserted 3 times removes 3), and size is the number of nodes that are left,
+ * like the size of the other endpoints.
+ */
+public class DeleteResult {
+    
+    private final long id;
+    private final long removed;
+    private final int size;
+    
+    public DeleteResult(long id, long removed, int size) {
+        this.id = id;
+        this.removed = removed;
+        this.size = size;
+    }
+    
+    // ============ Getters ============
+    
+    public long getId() {
+        return id;
+    }
+    
+    public long getRemoved() {
+        return removed;
+    }
+    
+    public int getSize() {
+        return size;
+    }
+}
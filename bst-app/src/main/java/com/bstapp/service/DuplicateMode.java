@@ -0,0 +1,38 @@
+package com.bstapp.service;
+
+/*
+ * What happens when a number is inserted that is already in the tree.
+ * 
+ * IGNORE is the original behaviour: the tree is a set, so the copy is simply
+ * dropped. That's the default, for the same reason as BalanceMode.NONE.
+ * 
+ * COUNT makes the tree a multiset. Every node also stores how many times its value
+ * was inserted, and a duplicate just increments that count in place (no extra node,
+ * so the shape is the same as with IGNORE). The count is written into the JSON as a
+ * "count" field on every node, and the range and aggregate queries include it.
+ */
+public enum DuplicateMode {
+    IGNORE,
+    COUNT;
+    
+    /*
+     * Converts the "duplicates" value from the request JSON into a DuplicateMode.
+     * Missing or empty means IGNORE, the comparison ignores upper/lower case, and
+     * anything else is an IllegalArgumentException (400 in the controller).
+     */
+    public static DuplicateMode fromString(String value) {
+        if (value == null || value.isBlank()) {
+            return IGNORE;
+        }
+        
+        switch (value.trim().toLowerCase()) {
+            case "ignore":
+            case "skip":
+                return IGNORE;
+            case "count":
+                return COUNT;
+            default:
+                throw new IllegalArgumentException("Unknown duplicates mode: " + value);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.bstapp.service;
+
+import java.util.Arrays;
+
+/*
+ * A read-only copy of a saved tree that is only used for lookups.
+ * 
+ * Walking a tree of node objects (BstNode or PersistentTree.Node) means one
+ * pointer per level, and every node can be anywhere in the heap. So each level is
+ * likely a cache miss, and the CPU can't guess the next address before the current
+ * node has arrived. For a tree that is mostly read, I store the values differently:
+ * 
+ * Eytzinger layout: the values of a perfectly balanced BST, written level by level
+ * into one int[] (like a binary heap). The root is at index 1, and the children of
+ * index i are at 2i and 2i + 1. So there are no pointers at all, the top levels of
+ * every search share the same few cache lines, and the next index is computed
+ * instead of loaded.
+ * 
+ * The search loop is also written without an if: the comparison just picks the
+ * child (2i or 2i + 1), which the JIT turns into arithmetic, so there are no
+ * branch mispredictions either. It always runs to the bottom of the tree; the last
+ * index where the search went left is then the first value >= the key, and it's
+ * found by dropping the trailing "went right" bits of i.
+ * 
+ * Deep down the tree (where the nodes aren't in the cache anymore) the search also
+ * asks for the cache line four levels ahead, see lowerBound.
+ * 
+ * The shape is balanced no matter how unbalanced the saved tree is, so a search is
+ * always about log2(n) steps. Building it needs the values in sorted order, O(n).
+ */
+public final class FrozenTree {
+    
+    // Child indices go up to 2n + 1, which must still fit in an int
+    private static final int MAX_SIZE = 1 << 30;
+    
+    /*
+     * Java has no prefetch instruction, so lowerBound prefetches with ordinary reads.
+     * The JIT removes reads whose value is never used, so they are XORed together
+     * and compared with this constant. The field is only written when they happen
+     * to match (about once in 4 billion lookups), so threads searching at the same
+     * time don't fight over it.
+     */
+    private static final int PREFETCH_CHECK = 0x5EED;
+    private int prefetchCheckHits;
+    
+    // Searches run side by side in containsAll; 32 was the fastest in LookupBenchmark
+    private static final int GROUP_SIZE = 32;
+    
+    // layout[0] is unused so the index arithmetic stays simple
+    private final int[] layout;
+    private final int size;
+    
+    private FrozenTree(int[] layout, int size) {
+        this.layout = layout;
+        this.size = size;
+    }
+    
+    /*
+     * Builds the layout from values in increasing order (no duplicates).
+     * An inorder walk of the implicit tree (left child, node, right child) visits
+     * the indices in the order of the sorted values, so it just hands them out one
+     * after another. The recursion is only as deep as the balanced tree (~31 max).
+     */
+    public static FrozenTree fromSorted(int[] sorted) {
+        if (sorted.length >= MAX_SIZE) {
+            throw new IllegalArgumentException("Too many values for a frozen tree: " + sorted.length);
+        }
+        int[] layout = new int[sorted.length + 1];
+        fill(layout, sorted, 1, 0);
+        return new FrozenTree(layout, sorted.length);
+    }
+    
+    // Fills the subtree at index with sorted[next..], returns the next unused position
+    private static int fill(int[] layout, int[] sorted, int index, int next) {
+        if (index < layout.length) {
+            next = fill(layout, sorted, 2 * index, next);
+            layout[index] = sorted[next++];
+            next = fill(layout, sorted, 2 * index + 1, next);
+        }
+        return next;
+    }
+    
+    public boolean contains(int value) {
+        int index = lowerBound(value);
+        return index != 0 && layout[index] == value;
+    }
+    
+    /*
+     * Index of the first value >= value in the layout, or 0 if there is none.
+     * 
+     * Going down, every step appends one bit to index: 0 for left, 1 for right.
+     * The answer is the last node where we went left, so I shift away the trailing
+     * 1 bits and then that left step itself.
+     */
+    int lowerBound(int value) {
+        int[] layout = this.layout;
+        int n = size;
+        int index = 1;
+        int prefetched = 0;
+        while (index <= n) {
+            // The 16 nodes four levels below index sit next to each other, at 16 * index.
+            // Reading one of them now starts loading that cache line, so it's (mostly)
+            // there when the search arrives. Nothing waits for this read, because its
+            // value is only looked at after the loop.
+            prefetched ^= layout[prefetchIndex(index, n)];
+            index = 2 * index + (layout[index] < value ? 1 : 0);
+        }
+        if (prefetched == PREFETCH_CHECK) {
+            prefetchCheckHits++;  // Almost never true; it's only here so the JIT keeps the reads
+        }
+        return index >>> (Integer.numberOfTrailingZeros(~index) + 1);
+    }
+    
+    /*
+     * 16 * index, or n if that's past the end. Not Math.min(index << 4, n): from
+     * index 2^27 on (trees of more than 134M values) the shift overflows to a
+     * negative index. If index <= n / 16 the shift stays <= n, otherwise 16 * index
+     * is past n anyway, so the comparison never needs the shifted value.
+     */
+    static int prefetchIndex(int index, int n) {
+        return index <= (n >>> 4) ? index << 4 : n;
+    }
+    
+    /*
+     * Looks up many values at once; found[i] says whether values[i] is in the tree.
+     * 
+     * One search is a chain of loads where each one needs the previous result, so
+     * the CPU mostly waits for memory. Searches for different values don't depend on
+     * each other though, so I run a group of them side by side: every round moves
+     * each search of the group down one level. The loads of one round are
+     * independent and the CPU sends them to memory together, so the group waits for
+     * memory about as long as a single search would.
+     * 
+     * All searches in the Eytzinger layout take the same number of steps (the
+     * number of levels), apart from the partly filled last level. A search that
+     * has already fallen off the bottom just keeps its index (the ?: compiles to a
+     * conditional move, and Math.min keeps the read inside the array).
+     */
+    public boolean[] containsAll(int[] values) {
+        int[] layout = this.layout;
+        int n = size;
+        int levels = 32 - Integer.numberOfLeadingZeros(n);
+        boolean[] found = new boolean[values.length];
+        int[] indices = new int[GROUP_SIZE];
+        
+        for (int start = 0; start < values.length; start += GROUP_SIZE) {
+            int count = Math.min(GROUP_SIZE, values.length - start);
+            Arrays.fill(indices, 0, count, 1);
+            for (int level = 0; level < levels; level++) {
+                for (int j = 0; j < count; j++) {
+                    int index = indices[j];
+                    int next = 2 * index + (layout[Math.min(index, n)] < values[start + j] ? 1 : 0);
+                    indices[j] = index <= n ? next : index;
+                }
+            }
+            for (int j = 0; j < count; j++) {
+                int index = indices[j] >>> (Integer.numberOfTrailingZeros(~indices[j]) + 1);
+                found[start + j] = index != 0 && layout[index] == values[start + j];
+            }
+        }
+        return found;
+    }
+    
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,177 @@
+package com.bstapp.service;
+
+import java.util.Arrays;
+
+/*
+ * NodePool that keeps the tree in plain int arrays on the Java heap
+ * (a "struct of arrays"):
+ * 
+ *   values[i]  the number stored in node i
+ *   lefts[i]   index of the left child, or NIL
+ *   rights[i]  index of the right child, or NIL
+ * 
+ * A BstNode costs around 24 bytes plus the object header overhead per node and
+ * gives the garbage collector millions of tiny objects to track. Here a node is
+ * exactly 12 bytes, adding a node doesn't allocate anything (as long as the arrays
+ * are big enough), and the whole tree is three objects no matter how big it gets.
+ * 
+ * Red-black trees also need a color per node, so that array only exists after
+ * enableColors() is called. Same for the counts of multiset trees (enableCounts).
+ */
+public class HeapNodePool extends NodePool {
+    
+    private int[] values;
+    private int[] lefts;
+    private int[] rights;
+    
+    // Only used by red-black trees, null otherwise
+    private boolean[] red;
+    
+    // Only used by multiset trees, null otherwise
+    private int[] counts;
+    
+    /*
+     * Creates a pool with room for the given number of nodes.
+     * If the caller knows how many numbers are coming, the arrays never have to grow.
+     */
+    public HeapNodePool(int capacity) {
+        int initial = Math.max(capacity, 1);
+        values = new int[initial];
+        lefts = new int[initial];
+        rights = new int[initial];
+    }
+    
+    @Override
+    public int addNode(int value) {
+        if (size == values.length) {
+            grow();
+        }
+        values[size] = value;
+        lefts[size] = NIL;
+        rights[size] = NIL;
+        if (red != null) {
+            red[size] = true;  // New red-black nodes always start red
+        }
+        if (counts != null) {
+            counts[size] = 1;
+        }
+        return size++;
+    }
+    
+    // Same as the loop in NodePool, but grows the arrays only once
+    @Override
+    public int addNodes(int count) {
+        int first = size;
+        if (first + count > values.length) {
+            grow(first + count);
+        }
+        Arrays.fill(lefts, first, first + count, NIL);
+        Arrays.fill(rights, first, first + count, NIL);
+        if (red != null) {
+            Arrays.fill(red, first, first + count, true);
+        }
+        if (counts != null) {
+            Arrays.fill(counts, first, first + count, 1);
+        }
+        size += count;
+        return first;
+    }
+    
+    // Grows all arrays by about 50%, like ArrayList does
+    private void grow() {
+        grow(values.length + (values.length >> 1) + 1);
+    }
+    
+    private void grow(int newCapacity) {
+        values = Arrays.copyOf(values, newCapacity);
+        lefts = Arrays.copyOf(lefts, newCapacity);
+        rights = Arrays.copyOf(rights, newCapacity);
+        if (red != null) {
+            red = Arrays.copyOf(red, newCapacity);
+        }
+        if (counts != null) {
+            counts = Arrays.copyOf(counts, newCapacity);
+        }
+    }
+    
+    @Override
+    public int getValue(int node) {
+        return values[node];
+    }
+    
+    @Override
+    public void setValue(int node, int value) {
+        values[node] = value;
+    }
+    
+    @Override
+    public int getLeft(int node) {
+        return lefts[node];
+    }
+    
+    @Override
+    public void setLeft(int node, int child) {
+        lefts[node] = child;
+    }
+    
+    @Override
+    public int getRight(int node) {
+        return rights[node];
+    }
+    
+    @Override
+    public void setRight(int node, int child) {
+        rights[node] = child;
+    }
+    
+    @Override
+    public int capacity() {
+        return values.length;
+    }
+    
+    @Override
+    public void enableColors() {
+        if (red == null) {
+            red = new boolean[values.length];
+            Arrays.fill(red, 0, size, true);
+        }
+    }
+    
+    @Override
+    public boolean hasColors() {
+        return red != null;
+    }
+    
+    @Override
+    public boolean isRed(int node) {
+        return red[node];
+    }
+    
+    @Override
+    public void setRed(int node, boolean isRed) {
+        red[node] = isRed;
+    }
+    
+    @Override
+    public void enableCounts() {
+        if (counts == null) {
+            counts = new int[values.length];
+            Arrays.fill(counts, 0, size, 1);
+        }
+    }
+    
+    @Override
+    public boolean hasCounts() {
+        return counts != null;
+    }
+    
+    @Override
+    public int getCount(int node) {
+        return counts[node];
+    }
+    
+    @Override
+    public void setCount(int node, int count) {
+        counts[node] = count;
+    }
+}
@@ -0,0 +1,22 @@
+package com.bstapp.service;
+
+/*
+ * Thrown when the number input has something in it that isn't a valid int.
+ * It's still a NumberFormatException, so every place that already catches that
+ * keeps working, but it also knows where the bad number starts in the input
+ * (counting characters from 0). The controller puts that into the 400 response
+ * as "offset", so the user can find the typo in a long list.
+ */
+public class InvalidNumberException extends NumberFormatException {
+    
+    private final long offset;
+    
+    public InvalidNumberException(long offset) {
+        super("Invalid number at offset " + offset);
+        this.offset = offset;
+    }
+    
+    public long getOffset() {
+        return offset;
+    }
+}
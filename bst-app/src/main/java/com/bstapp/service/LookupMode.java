@@ -0,0 +1,38 @@
+package com.bstapp.service;
+
+/*
+ * This enum says which copy of a saved tree answers the contains lookups.
+ * 
+ * FROZEN is the default: the read-only Eytzinger array (FrozenTree). Every lookup
+ * takes about log2(n) steps, and any number of requests can search it at once.
+ * 
+ * SPLAY uses a splay tree copy instead (SplayTree), which moves every value that is
+ * looked up to its root. When most lookups ask for a few hot values, those stay at
+ * the top and a lookup only walks a couple of levels. Each lookup changes the
+ * tree though, so lookups on the same tree take turns. That's only worth it for
+ * really skewed traffic, see the Zipf numbers in LookupBenchmark.
+ */
+public enum LookupMode {
+    FROZEN,
+    SPLAY;
+    
+    /*
+     * Converts the "mode" request parameter. Missing or empty means FROZEN.
+     * Unknown values throw IllegalArgumentException, which becomes a 400 Bad Request.
+     */
+    public static LookupMode fromString(String value) {
+        if (value == null || value.isBlank()) {
+            return FROZEN;
+        }
+        
+        switch (value.trim().toLowerCase()) {
+            case "frozen":
+            case "eytzinger":
+                return FROZEN;
+            case "splay":
+                return SPLAY;
+            default:
+                throw new IllegalArgumentException("Unknown lookup mode: " + value);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.bstapp.service;
+
+/*
+ * Array-style storage for a whole binary search tree.
+ * 
+ * Instead of one BstNode object per node, a node here is just an int index, and
+ * the node's data (value, left child, right child, a color for red-black trees and
+ * a count for multiset trees) is stored in columns that the subclasses provide:
+ * 
+ * - HeapNodePool keeps the columns in plain int arrays on the Java heap
+ * - OffHeapNodePool keeps them in direct ByteBuffers outside the heap, for trees
+ *   so big that even the arrays would put pressure on the garbage collector
+ * 
+ * The engines (PlainTree, AvlTree, ...) and the JSON writer only use the methods
+ * here, so they don't know or care where the memory actually is.
+ * 
+ * A pool is AutoCloseable. For heap pools close() does nothing, but off-heap pools
+ * give their memory back right away, so whoever builds a tree should close it when
+ * they are done (try-with-resources). Nodes are never removed, so indices stay
+ * valid until then.
+ */
+public abstract class NodePool implements AutoCloseable {
+    
+    // Marks a missing child (like null for BstNode references)
+    public static final int NIL = -1;
+    
+    // Number of nodes in use
+    protected int size;
+    
+    // Index of the root node, NIL while the tree is empty
+    private int root = NIL;
+    
+    /*
+     * Adds a new node with no children and returns its index.
+     * It isn't linked into the tree yet - the caller does that with setLeft/setRight/setRoot.
+     * If colors are enabled, the new node is red.
+     */
+    public abstract int addNode(int value);
+    
+    /*
+     * Adds count nodes at once and returns the index of the first one. The nodes have
+     * no children yet, and the caller fills them in with setValue/setLeft/setRight.
+     * 
+     * This is for builders that know up front how many nodes they need and where
+     * each one goes, like ParallelPlainTree: different threads can then fill
+     * different nodes at the same time, which addNode can't do.
+     */
+    public int addNodes(int count) {
+        int first = size;
+        for (int i = 0; i < count; i++) {
+            addNode(0);
+        }
+        return first;
+    }
+    
+    public abstract int getValue(int node);
+    
+    public abstract void setValue(int node, int value);
+    
+    public abstract int getLeft(int node);
+    
+    public abstract void setLeft(int node, int child);
+    
+    public abstract int getRight(int node);
+    
+    public abstract void setRight(int node, int child);
+    
+    // Number of nodes the pool can hold before it has to grow
+    public abstract int capacity();
+    
+    // ============ Colors (red-black trees only) ============
+    
+    // Turns on the color column. Nodes that already exist start out red.
+    public abstract void enableColors();
+    
+    public abstract boolean hasColors();
+    
+    public abstract boolean isRed(int node);
+    
+    public abstract void setRed(int node, boolean isRed);
+    
+    // ============ Counts (multiset trees only) ============
+    
+    /*
+     * Turns on the count column: every node then says how many times its value was
+     * inserted. Nodes that already exist start out with a count of 1.
+     */
+    public abstract void enableCounts();
+    
+    public abstract boolean hasCounts();
+    
+    public abstract int getCount(int node);
+    
+    public abstract void setCount(int node, int count);
+    
+    /*
+     * Called by the engines when a value is already in the tree. Without counts the
+     * duplicate is just dropped; with counts the existing node counts one more, in
+     * place, so a multiset tree doesn't get a single extra node for duplicates.
+     */
+    public void countDuplicate(int node) {
+        if (hasCounts()) {
+            setCount(node, Math.addExact(getCount(node), 1));
+        }
+    }
+    
+    public int getRoot() {
+        return root;
+    }
+    
+    public void setRoot(int root) {
+        this.root = root;
+    }
+    
+    // Number of nodes in the pool
+    public int size() {
+        return size;
+    }
+    
+    // Heap pools have nothing to release
+    @Override
+    public void close() {
+    }
+    
+    /*
+     * Converts the tree into linked BstNode objects (RbNode if the pool has colors,
+     * and with the count filled in if it has counts).
+     * The pool is what the service uses internally, but BstNode is the public
+     * object form that the rest of the code and the tests work with.
+     * 
+     * I create one object per index first and then link them, so there's no
+     * recursion and deep trees are no problem.
+     */
+    public BstNode toBstNode() {
+        if (root == NIL) {
+            return null;
+        }
+        
+        boolean colors = hasColors();
+        boolean counts = hasCounts();
+        BstNode[] nodes = new BstNode[size];
+        for (int i = 0; i < size; i++) {
+            if (colors) {
+                RbNode node = new RbNode(getValue(i));
+                node.setRed(isRed(i));
+                nodes[i] = node;
+            } else {
+                nodes[i] = new BstNode(getValue(i));
+            }
+            if (counts) {
+                nodes[i].setCount(getCount(i));
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (getLeft(i) != NIL) {
+                nodes[i].setLeft(nodes[getLeft(i)]);
+            }
+            if (getRight(i) != NIL) {
+                nodes[i].setRight(nodes[getRight(i)]);
+            }
+        }
+        return nodes[root];
+    }
+}
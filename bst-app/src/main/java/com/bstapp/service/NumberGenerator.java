@@ -0,0 +1,393 @@
+package com.bstapp.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntConsumer;
+
+/*
+ * Numbers made on the server from a short description, for the "generator" field
+ * of /process-numbers. Load tests used to send things like all numbers from 1 to
+ * 5,000,000 as megabytes of text; now they send "range 1..5000000".
+ * 
+ * The descriptions (words are separated by spaces, upper/lower case doesn't matter):
+ * 
+ *   range 1..5000000            1, 2, 3, ..., 5000000 (both ends included)
+ *   range 1..99 step 2          1, 3, 5, ..., 99 (a negative step counts down: 10..1 step -1)
+ *   1..5000000                  Same as "range 1..5000000"
+ *   shuffle 1..5000000 seed 42  The same numbers as the range, each once, in random order
+ *   uniform 50000 seed 42       50000 random ints, every int equally likely
+ *   uniform 50000 in 0..999     50000 random ints from 0 to 999
+ *   gaussian 50000 sd 1000      50000 ints from a normal distribution (mean 0 unless "mean" is given)
+ * 
+ * Sorted input without balancing makes a chain, and a chain's JSON is too long to
+ * save from about 100,000 numbers on, so big ranges only work with a balance
+ * ("range 1..5000000" with "balance": "avl", or "mode": "balanced"). shuffle
+ * doesn't need one.
+ * 
+ * The random ones take an optional seed, and the same description always gives the
+ * same numbers. Without a seed one is picked at random, and toString includes it,
+ * so the description saved with the tree can always make it again.
+ * 
+ * Nothing is ever stored: generate hands the numbers one by one to an IntConsumer
+ * (BstService passes the tree engine's insert), so the memory used is the tree's.
+ * Even the shuffle doesn't keep a shuffled array. It goes through a random
+ * permutation of the positions, see Shuffle.
+ * 
+ * Bad descriptions are an IllegalArgumentException that says what's wrong (400 in
+ * the controller).
+ */
+public abstract class NumberGenerator {
+    
+    // How many numbers this makes (BstService checks it against bst.generator.max-count)
+    public abstract long size();
+    
+    // Passes every number to the sink, in order
+    public abstract void generate(IntConsumer sink);
+    
+    // The description in its full form, with every default written out (it's what gets saved)
+    @Override
+    public abstract String toString();
+    
+    /*
+     * Reads a description (see the top of the class).
+     */
+    public static NumberGenerator parse(String description) {
+        if (description == null || description.isBlank()) {
+            throw new IllegalArgumentException("Generator cannot be empty");
+        }
+        String[] words = description.trim().toLowerCase(Locale.ROOT).split("\\s+");
+        if (words[0].contains("..")) {
+            return Range.parse(words[0], options(words, 1, "step"));
+        }
+        if (words.length < 2) {
+            throw new IllegalArgumentException("Generator '" + words[0] + "' needs a range or a count");
+        }
+        
+        switch (words[0]) {
+            case "range":
+                return Range.parse(words[1], options(words, 2, "step"));
+            case "shuffle": {
+                Map<String, String> options = options(words, 2, "step", "seed");
+                return new Shuffle(Range.parse(words[1], options), seed(options));
+            }
+            case "uniform": {
+                Map<String, String> options = options(words, 2, "in", "seed");
+                long count = count(words[1]);
+                if (!options.containsKey("in")) {
+                    return new Uniform(count, Integer.MIN_VALUE, Integer.MAX_VALUE, seed(options));
+                }
+                int[] bounds = bounds(options.get("in"));
+                if (bounds[0] > bounds[1]) {
+                    throw new IllegalArgumentException("Range " + options.get("in") + " is empty");
+                }
+                return new Uniform(count, bounds[0], bounds[1], seed(options));
+            }
+            case "gaussian": {
+                Map<String, String> options = options(words, 2, "mean", "sd", "seed");
+                if (!options.containsKey("sd")) {
+                    throw new IllegalArgumentException("Generator 'gaussian' needs an sd (standard deviation)");
+                }
+                double mean = number(options.getOrDefault("mean", "0"), "mean");
+                double sd = number(options.get("sd"), "sd");
+                if (sd < 0) {
+                    throw new IllegalArgumentException("sd must not be negative");
+                }
+                return new Gaussian(count(words[1]), mean, sd, seed(options));
+            }
+            default:
+                throw new IllegalArgumentException("Unknown generator: " + words[0]);
+        }
+    }
+    
+    // The "name value" pairs from words[from] on; only the allowed names, each at most once
+    private static Map<String, String> options(String[] words, int from, String... allowed) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i < words.length; i += 2) {
+            if (!Arrays.asList(allowed).contains(words[i])) {
+                throw new IllegalArgumentException("Unknown generator option: " + words[i]);
+            }
+            if (i + 1 == words.length) {
+                throw new IllegalArgumentException("Generator option '" + words[i] + "' needs a value");
+            }
+            if (options.put(words[i], words[i + 1]) != null) {
+                throw new IllegalArgumentException("Generator option '" + words[i] + "' is given twice");
+            }
+        }
+        return options;
+    }
+    
+    // "lo..hi" as two ints
+    private static int[] bounds(String text) {
+        int dots = text.indexOf("..");
+        if (dots < 0) {
+            throw new IllegalArgumentException("Expected a range like 1..100, got: " + text);
+        }
+        try {
+            return new int[] {Integer.parseInt(text.substring(0, dots)), Integer.parseInt(text.substring(dots + 2))};
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Range ends must be ints: " + text);
+        }
+    }
+    
+    private static long count(String text) {
+        try {
+            long count = Long.parseLong(text);
+            if (count > 0) {
+                return count;
+            }
+        } catch (NumberFormatException e) {
+            // Same message as for zero or negative counts
+        }
+        throw new IllegalArgumentException("Count must be a positive number: " + text);
+    }
+    
+    private static double number(String text, String name) {
+        try {
+            double value = Double.parseDouble(text);
+            if (Double.isFinite(value)) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Same message as for NaN and infinity
+        }
+        throw new IllegalArgumentException(name + " must be a number: " + text);
+    }
+    
+    private static long seed(Map<String, String> options) {
+        String seed = options.get("seed");
+        if (seed == null) {
+            return ThreadLocalRandom.current().nextLong();
+        }
+        try {
+            return Long.parseLong(seed);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Seed must be a whole number: " + seed);
+        }
+    }
+    
+    // Prints a double without ".0" when it's a whole number (mean 0 instead of mean 0.0)
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+    
+    /*
+     * from, from + step, from + 2 * step, ... as long as the numbers don't pass "to".
+     */
+    static final class Range extends NumberGenerator {
+        
+        private final int from;
+        private final int to;
+        private final int step;
+        private final long size;
+        
+        Range(int from, int to, int step) {
+            if (step == 0) {
+                throw new IllegalArgumentException("step must not be 0");
+            }
+            if (from != to && (to > from) != (step > 0)) {
+                throw new IllegalArgumentException("Range " + from + ".." + to + " with step " + step + " is empty");
+            }
+            this.from = from;
+            this.to = to;
+            this.step = step;
+            this.size = ((long) to - from) / step + 1;
+        }
+        
+        static Range parse(String bounds, Map<String, String> options) {
+            int[] ends = bounds(bounds);
+            int step = 1;
+            if (options.containsKey("step")) {
+                try {
+                    step = Integer.parseInt(options.get("step"));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("step must be an int: " + options.get("step"));
+                }
+            }
+            return new Range(ends[0], ends[1], step);
+        }
+        
+        // The number at position index (0 to size - 1)
+        int get(long index) {
+            return (int) (from + index * step);
+        }
+        
+        @Override
+        public long size() {
+            return size;
+        }
+        
+        @Override
+        public void generate(IntConsumer sink) {
+            long value = from;
+            for (long i = 0; i < size; i++) {
+                sink.accept((int) value);
+                value += step;
+            }
+        }
+        
+        // Also used by Shuffle, which is the same range in another order
+        String describe() {
+            return from + ".." + to + (step == 1 ? "" : " step " + step);
+        }
+        
+        @Override
+        public String toString() {
+            return "range " + describe();
+        }
+    }
+    
+    /*
+     * The numbers of a range, each once, in random order.
+     * 
+     * Shuffling an array of 5 million numbers would need the array. Instead the
+     * positions 0..n-1 are sent through a Feistel network: a position is split into
+     * two halves of bits, and in every round one half is XORed with a scrambled
+     * version of the other half, then they swap. Each round can be undone, so this
+     * is a permutation of all numbers with that many bits, and with seeded round
+     * keys it looks random. The bits are rounded up so that n fits, and the
+     * positions that come out as n or more are skipped; because there are fewer
+     * than 4n positions in total, that's at most 3 skips per number on average.
+     * Every position below n comes out exactly once, so every number of the range
+     * does too.
+     */
+    static final class Shuffle extends NumberGenerator {
+        
+        private static final int ROUNDS = 4;
+        
+        private final Range range;
+        private final long seed;
+        private final int halfBits;
+        private final long halfMask;
+        private final long[] keys = new long[ROUNDS];
+        
+        Shuffle(Range range, long seed) {
+            this.range = range;
+            this.seed = seed;
+            int bits = 64 - Long.numberOfLeadingZeros(range.size() - 1);
+            this.halfBits = Math.max(1, (bits + 1) / 2);
+            this.halfMask = (1L << halfBits) - 1;
+            SplittableRandom random = new SplittableRandom(seed);
+            for (int round = 0; round < ROUNDS; round++) {
+                keys[round] = random.nextLong();
+            }
+        }
+        
+        @Override
+        public long size() {
+            return range.size();
+        }
+        
+        @Override
+        public void generate(IntConsumer sink) {
+            long size = range.size();
+            long positions = 1L << (2 * halfBits);
+            for (long i = 0; i < positions; i++) {
+                long position = permute(i);
+                if (position < size) {
+                    sink.accept(range.get(position));
+                }
+            }
+        }
+        
+        // A bijection on 0 .. 2^(2 * halfBits) - 1
+        long permute(long position) {
+            long left = position >>> halfBits;
+            long right = position & halfMask;
+            for (long key : keys) {
+                long mixed = left ^ (scramble(right ^ key) & halfMask);
+                left = right;
+                right = mixed;
+            }
+            return (left << halfBits) | right;
+        }
+        
+        // The finalizer of MurmurHash3: every input bit changes about half of the output bits
+        private static long scramble(long x) {
+            x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+            x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            return x ^ (x >>> 33);
+        }
+        
+        @Override
+        public String toString() {
+            return "shuffle " + range.describe() + " seed " + seed;
+        }
+    }
+    
+    // count ints from lo to hi (both included), all equally likely
+    static final class Uniform extends NumberGenerator {
+        
+        private final long count;
+        private final int lo;
+        private final int hi;
+        private final long seed;
+        
+        Uniform(long count, int lo, int hi, long seed) {
+            this.count = count;
+            this.lo = lo;
+            this.hi = hi;
+            this.seed = seed;
+        }
+        
+        @Override
+        public long size() {
+            return count;
+        }
+        
+        @Override
+        public void generate(IntConsumer sink) {
+            SplittableRandom random = new SplittableRandom(seed);
+            long end = hi + 1L;  // nextLong's upper bound is not included
+            for (long i = 0; i < count; i++) {
+                sink.accept((int) random.nextLong(lo, end));
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return "uniform " + count + " in " + lo + ".." + hi + " seed " + seed;
+        }
+    }
+    
+    /*
+     * count ints from a normal distribution: mean + sd * a standard normal random
+     * number, rounded, and clamped to the int range.
+     */
+    static final class Gaussian extends NumberGenerator {
+        
+        private final long count;
+        private final double mean;
+        private final double sd;
+        private final long seed;
+        
+        Gaussian(long count, double mean, double sd, long seed) {
+            this.count = count;
+            this.mean = mean;
+            this.sd = sd;
+            this.seed = seed;
+        }
+        
+        @Override
+        public long size() {
+            return count;
+        }
+        
+        @Override
+        public void generate(IntConsumer sink) {
+            SplittableRandom random = new SplittableRandom(seed);
+            for (long i = 0; i < count; i++) {
+                long value = Math.round(mean + sd * random.nextGaussian());
+                sink.accept((int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value)));
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return "gaussian " + count + " mean " + format(mean) + " sd " + format(sd) + " seed " + seed;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.bstapp.service;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/*
+ * Turns number input like "7, 3, 9" into ints in one pass over the characters.
+ * 
+ * parseNumbers used to split the text with a regex, make a String for every token,
+ * trim it, parse it with Integer.parseInt and collect boxed Integers into a List.
+ * For a 10 MB submission that's millions of short-lived objects, several times the
+ * size of the input. Here every character is looked at once, the current number is
+ * built up in a local variable, and each finished number goes straight to an
+ * IntConsumer (or into a plain int[], see parse). Nothing is allocated per number.
+ * 
+ * The accepted syntax is exactly the old one:
+ * - numbers are separated by any mix of commas and whitespace (space, \t, \n,
+ *   vertical tab, \f and \r, the same characters as \s in the old regex)
+ * - a number is an optional + or - and then digits, and it must fit in an int.
+ *   Non-ASCII digits work too, like in Integer.parseInt.
+ * - other control characters at the start or end of a number are ignored,
+ *   because the old code trimmed every token
+ * 
+ * Bad input is not an exception in here: the scanner stops at the first bad number
+ * and remembers where it starts (getErrorOffset). The caller decides what to do
+ * with it; BstService.parseNumberArray throws one exception at the very end.
+ * 
+ * The text can also come in pieces: feed can be called again and again, and a
+ * number split between two pieces is no problem, so the same scanner works on
+ * a stream.
+ */
+public final class NumberTokenizer {
+    
+    // Where the scanner is in the current number
+    private static final int OUTSIDE = 0;   // Between numbers
+    private static final int LEADING = 1;   // Only ignored control characters so far
+    private static final int SIGN = 2;      // Read the + or -
+    private static final int DIGITS = 3;
+    private static final int TRAILING = 4;  // Control characters after the digits
+    
+    private final IntConsumer sink;
+    
+    private int state = OUTSIDE;
+    private boolean negative;
+    
+    // The digits so far without the sign. A long, so the overflow check is one comparison.
+    private long magnitude;
+    
+    // Characters read before the current piece, where the current number started, and the error
+    private long consumed;
+    private long tokenStart;
+    private long errorOffset = -1;
+    private long count;
+    
+    public NumberTokenizer(IntConsumer sink) {
+        this.sink = sink;
+    }
+    
+    /*
+     * Parses a whole input into an int[] (exactly as long as the number of values).
+     * The result says where the first bad number is, if there is one.
+     */
+    public static Parsed parse(CharSequence input) {
+        Values values = new Values(input.length() / 4 + 16);
+        NumberTokenizer tokenizer = new NumberTokenizer(values);
+        if (!tokenizer.feed(input, 0, input.length()) || !tokenizer.finish()) {
+            return new Parsed(null, tokenizer.errorOffset);
+        }
+        return new Parsed(values.toArray(), -1);
+    }
+    
+    /*
+     * Scans text[from..to) and passes every number that ends in it to the sink.
+     * A number at the very end may continue in the next piece, so it's only
+     * finished by the next separator or by finish(). Returns false (and ignores
+     * the rest of the input from then on) once a bad number was found.
+     * 
+     * The state lives in locals during the loop and is written back at the end.
+     */
+    public boolean feed(CharSequence text, int from, int to) {
+        if (errorOffset >= 0) {
+            return false;
+        }
+        IntConsumer sink = this.sink;
+        int state = this.state;
+        boolean negative = this.negative;
+        long magnitude = this.magnitude;
+        
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c == ',' || c == ' ' || (c >= '\t' && c <= '\r')) {
+                if (state != OUTSIDE) {
+                    if (state < DIGITS) {
+                        errorOffset = tokenStart;  // Only a sign or control characters
+                        return false;
+                    }
+                    sink.accept(negative ? (int) -magnitude : (int) magnitude);
+                    count++;
+                    state = OUTSIDE;
+                }
+                continue;
+            }
+            
+            if (state == OUTSIDE) {
+                tokenStart = consumed + (i - from);
+                state = LEADING;
+                negative = false;
+                magnitude = 0;
+            }
+            int digit = c - '0';
+            if (digit < 0 || digit > 9) {
+                digit = c < 128 ? -1 : Character.digit(c, 10);
+            }
+            
+            if (digit >= 0 && state != TRAILING) {
+                magnitude = magnitude * 10 + digit;
+                if (magnitude > (negative ? 1L << 31 : Integer.MAX_VALUE)) {
+                    errorOffset = tokenStart;  // Doesn't fit in an int
+                    return false;
+                }
+                state = DIGITS;
+            } else if ((c == '-' || c == '+') && state == LEADING) {
+                negative = c == '-';
+                state = SIGN;
+            } else if (c <= ' ' && state != SIGN) {
+                if (state == DIGITS) {
+                    state = TRAILING;
+                }
+            } else {
+                errorOffset = tokenStart;
+                return false;
+            }
+        }
+        
+        this.state = state;
+        this.negative = negative;
+        this.magnitude = magnitude;
+        consumed += to - from;
+        return true;
+    }
+    
+    /*
+     * Ends the input: the number at the very end (if any) is checked and passed
+     * on. Returns false if there was a bad number anywhere.
+     */
+    public boolean finish() {
+        if (errorOffset >= 0) {
+            return false;
+        }
+        if (state != OUTSIDE) {
+            if (state < DIGITS) {
+                errorOffset = tokenStart;
+                return false;
+            }
+            sink.accept(negative ? (int) -magnitude : (int) magnitude);
+            count++;
+            state = OUTSIDE;
+        }
+        return true;
+    }
+    
+    // Number of values passed to the sink so far
+    public long getCount() {
+        return count;
+    }
+    
+    // Position of the first bad number in the input (counting from 0), or -1 if there is none
+    public long getErrorOffset() {
+        return errorOffset;
+    }
+    
+    /*
+     * The result of parse: the values, or where the first bad number is.
+     */
+    public static final class Parsed {
+        
+        private final int[] values;
+        private final long errorOffset;
+        
+        private Parsed(int[] values, long errorOffset) {
+            this.values = values;
+            this.errorOffset = errorOffset;
+        }
+        
+        public boolean isValid() {
+            return errorOffset < 0;
+        }
+        
+        // null if the input had a bad number
+        public int[] getValues() {
+            return values;
+        }
+        
+        public long getErrorOffset() {
+            return errorOffset;
+        }
+    }
+    
+    // A growing int[] that parse collects the values in
+    private static final class Values implements IntConsumer {
+        
+        private int[] values;
+        private int size;
+        
+        Values(int capacity) {
+            values = new int[capacity];
+        }
+        
+        @Override
+        public void accept(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size + (size >> 1) + 1);
+            }
+            values[size++] = value;
+        }
+        
+        int[] toArray() {
+            return size == values.length ? values : Arrays.copyOf(values, size);
+        }
+    }
+}
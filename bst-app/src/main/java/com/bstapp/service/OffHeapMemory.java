@@ -0,0 +1,115 @@
+package com.bstapp.service;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Allocates and frees the direct (off-heap) memory used by OffHeapNodePool,
+ * and keeps count of it for the metrics endpoint.
+ * 
+ * A direct ByteBuffer normally gives its memory back only when the garbage collector
+ * notices the buffer is unreachable, which can be much later. For 5M+ node trees
+ * that's tens of megabytes per build hanging around, so release() frees the memory right
+ * away using the buffer's cleaner (sun.misc.Unsafe.invokeCleaner, the same thing
+ * Netty and Lucene do). If that isn't available for some reason, we fall back to
+ * letting the GC do it; the counters are updated either way.
+ * 
+ * The counters are static because direct memory belongs to the whole JVM,
+ * not to one request or one service instance.
+ */
+public final class OffHeapMemory {
+    
+    private static final AtomicLong allocatedBytes = new AtomicLong();
+    private static final AtomicLong peakBytes = new AtomicLong();
+    private static final AtomicLong totalAllocatedBytes = new AtomicLong();
+    private static final AtomicLong activePools = new AtomicLong();
+    private static final AtomicLong poolsCreated = new AtomicLong();
+    private static final AtomicLong poolsReleased = new AtomicLong();
+    
+    // Unsafe.invokeCleaner(ByteBuffer), or null if we can't get to it
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+    
+    private OffHeapMemory() {
+    }
+    
+    // Allocates a zeroed direct buffer in the platform's byte order
+    static ByteBuffer allocate(int bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        long now = allocatedBytes.addAndGet(bytes);
+        totalAllocatedBytes.addAndGet(bytes);
+        peakBytes.accumulateAndGet(now, Math::max);
+        return buffer;
+    }
+    
+    // Frees a buffer from allocate(). The buffer must not be used afterwards.
+    static void release(ByteBuffer buffer) {
+        allocatedBytes.addAndGet(-buffer.capacity());
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException e) {
+                // Couldn't free it now; the GC will once the buffer is unreachable
+            }
+        }
+    }
+    
+    static void poolOpened() {
+        activePools.incrementAndGet();
+        poolsCreated.incrementAndGet();
+    }
+    
+    static void poolClosed() {
+        activePools.decrementAndGet();
+        poolsReleased.incrementAndGet();
+    }
+    
+    // True if memory is freed immediately on release, false if we depend on the GC
+    public static boolean isDeterministicRelease() {
+        return INVOKE_CLEANER != null;
+    }
+    
+    public static long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+    
+    public static long getPeakBytes() {
+        return peakBytes.get();
+    }
+    
+    public static long getTotalAllocatedBytes() {
+        return totalAllocatedBytes.get();
+    }
+    
+    public static long getActivePools() {
+        return activePools.get();
+    }
+    
+    public static long getPoolsCreated() {
+        return poolsCreated.get();
+    }
+    
+    public static long getPoolsReleased() {
+        return poolsReleased.get();
+    }
+}
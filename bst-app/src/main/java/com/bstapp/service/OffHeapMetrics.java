@@ -0,0 +1,77 @@
+package com.bstapp.service;
+
+/*
+ * A snapshot of the off-heap memory counters, returned as JSON by
+ * GET /api/metrics/off-heap.
+ * 
+ * The numbers are read once in the constructor, so one response is consistent
+ * with itself even if other requests are building trees at the same time.
+ */
+public class OffHeapMetrics {
+    
+    // Bytes of direct memory currently held by open pools
+    private final long allocatedBytes;
+    
+    // Highest value allocatedBytes has ever reached
+    private final long peakBytes;
+    
+    // All bytes ever allocated, including the ones already freed
+    private final long totalAllocatedBytes;
+    
+    // Pools that are open right now (should be 0 when no tree is being built)
+    private final long activePools;
+    
+    private final long poolsCreated;
+    private final long poolsReleased;
+    
+    // True if close() frees the memory immediately instead of waiting for the GC
+    private final boolean deterministicRelease;
+    
+    // Input size from which trees are built off-heap
+    private final long threshold;
+    
+    public OffHeapMetrics(long threshold) {
+        this.allocatedBytes = OffHeapMemory.getAllocatedBytes();
+        this.peakBytes = OffHeapMemory.getPeakBytes();
+        this.totalAllocatedBytes = OffHeapMemory.getTotalAllocatedBytes();
+        this.activePools = OffHeapMemory.getActivePools();
+        this.poolsCreated = OffHeapMemory.getPoolsCreated();
+        this.poolsReleased = OffHeapMemory.getPoolsReleased();
+        this.deterministicRelease = OffHeapMemory.isDeterministicRelease();
+        this.threshold = threshold;
+    }
+    
+    // ============ Getters ============
+    
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+    
+    public long getPeakBytes() {
+        return peakBytes;
+    }
+    
+    public long getTotalAllocatedBytes() {
+        return totalAllocatedBytes;
+    }
+    
+    public long getActivePools() {
+        return activePools;
+    }
+    
+    public long getPoolsCreated() {
+        return poolsCreated;
+    }
+    
+    public long getPoolsReleased() {
+        return poolsReleased;
+    }
+    
+    public boolean isDeterministicRelease() {
+        return deterministicRelease;
+    }
+    
+    public long getThreshold() {
+        return threshold;
+    }
+}
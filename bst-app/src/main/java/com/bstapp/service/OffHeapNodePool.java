@@ -0,0 +1,239 @@
+package com.bstapp.service;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/*
+ * NodePool that keeps the tree outside the Java heap, in direct ByteBuffers.
+ * 
+ * For our biggest batch trees (5M+ nodes) the int arrays of HeapNodePool are big,
+ * long-lived arrays that the garbage collector keeps copying around, in the same
+ * heap that also serves the UI. Here the garbage collector never sees the node data at all.
+ * 
+ * The memory is split into chunks of 2^20 nodes. Each chunk has one direct buffer
+ * per column (values, lefts, rights, colors for red-black trees and counts for
+ * multiset trees). Node i lives
+ * in chunk i >> 20 at position i & (2^20 - 1). Chunks are only allocated when the
+ * tree actually gets that big, and growing never copies the nodes we already have
+ * (a single buffer would also be limited to 2 GB).
+ * 
+ * close() frees every chunk immediately through OffHeapMemory. After that the pool
+ * drops its references, so a mistake like using it after close() fails with an
+ * exception instead of touching freed memory.
+ */
+public class OffHeapNodePool extends NodePool {
+    
+    private static final int CHUNK_SHIFT = 20;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    
+    // Int views used for reading and writing, one per chunk and column
+    private IntBuffer[] values = new IntBuffer[8];
+    private IntBuffer[] lefts = new IntBuffer[8];
+    private IntBuffer[] rights = new IntBuffer[8];
+    
+    // One byte per node (1 = red), only for red-black trees
+    private ByteBuffer[] colors;
+    
+    // One int per node, only for multiset trees
+    private IntBuffer[] counts;
+    
+    // The raw buffers behind the views above, kept so close() can free them
+    private ByteBuffer[] allocated = new ByteBuffer[32];
+    private int allocatedCount;
+    
+    private int chunkCount;
+    private boolean closed;
+    
+    public OffHeapNodePool() {
+        OffHeapMemory.poolOpened();
+    }
+    
+    @Override
+    public int addNode(int value) {
+        if (closed) {
+            throw new IllegalStateException("Off-heap node pool is already closed");
+        }
+        if (size == chunkCount << CHUNK_SHIFT) {
+            addChunk();
+        }
+        int chunk = size >>> CHUNK_SHIFT;
+        int index = size & CHUNK_MASK;
+        values[chunk].put(index, value);
+        lefts[chunk].put(index, NIL);
+        rights[chunk].put(index, NIL);
+        if (colors != null) {
+            colors[chunk].put(index, (byte) 1);
+        }
+        if (counts != null) {
+            counts[chunk].put(index, 1);
+        }
+        return size++;
+    }
+    
+    private void addChunk() {
+        if (chunkCount == values.length) {
+            int newLength = values.length * 2;
+            values = Arrays.copyOf(values, newLength);
+            lefts = Arrays.copyOf(lefts, newLength);
+            rights = Arrays.copyOf(rights, newLength);
+            if (colors != null) {
+                colors = Arrays.copyOf(colors, newLength);
+            }
+            if (counts != null) {
+                counts = Arrays.copyOf(counts, newLength);
+            }
+        }
+        values[chunkCount] = allocateInts();
+        lefts[chunkCount] = allocateInts();
+        rights[chunkCount] = allocateInts();
+        if (colors != null) {
+            colors[chunkCount] = allocateBytes(CHUNK_SIZE);
+        }
+        if (counts != null) {
+            counts[chunkCount] = allocateInts();
+        }
+        chunkCount++;
+    }
+    
+    private IntBuffer allocateInts() {
+        return allocateBytes(CHUNK_SIZE * Integer.BYTES).asIntBuffer();
+    }
+    
+    private ByteBuffer allocateBytes(int bytes) {
+        ByteBuffer buffer = OffHeapMemory.allocate(bytes);
+        if (allocatedCount == allocated.length) {
+            allocated = Arrays.copyOf(allocated, allocatedCount * 2);
+        }
+        allocated[allocatedCount++] = buffer;
+        return buffer;
+    }
+    
+    @Override
+    public int getValue(int node) {
+        return values[node >>> CHUNK_SHIFT].get(node & CHUNK_MASK);
+    }
+    
+    @Override
+    public void setValue(int node, int value) {
+        values[node >>> CHUNK_SHIFT].put(node & CHUNK_MASK, value);
+    }
+    
+    @Override
+    public int getLeft(int node) {
+        return lefts[node >>> CHUNK_SHIFT].get(node & CHUNK_MASK);
+    }
+    
+    @Override
+    public void setLeft(int node, int child) {
+        lefts[node >>> CHUNK_SHIFT].put(node & CHUNK_MASK, child);
+    }
+    
+    @Override
+    public int getRight(int node) {
+        return rights[node >>> CHUNK_SHIFT].get(node & CHUNK_MASK);
+    }
+    
+    @Override
+    public void setRight(int node, int child) {
+        rights[node >>> CHUNK_SHIFT].put(node & CHUNK_MASK, child);
+    }
+    
+    @Override
+    public int capacity() {
+        return chunkCount << CHUNK_SHIFT;
+    }
+    
+    @Override
+    public void enableColors() {
+        if (colors != null) {
+            return;
+        }
+        colors = new ByteBuffer[values.length];
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            colors[chunk] = allocateBytes(CHUNK_SIZE);
+        }
+        for (int node = 0; node < size; node++) {
+            setRed(node, true);
+        }
+    }
+    
+    @Override
+    public boolean hasColors() {
+        return colors != null;
+    }
+    
+    @Override
+    public boolean isRed(int node) {
+        return colors[node >>> CHUNK_SHIFT].get(node & CHUNK_MASK) != 0;
+    }
+    
+    @Override
+    public void setRed(int node, boolean isRed) {
+        colors[node >>> CHUNK_SHIFT].put(node & CHUNK_MASK, (byte) (isRed ? 1 : 0));
+    }
+    
+    @Override
+    public void enableCounts() {
+        if (counts != null) {
+            return;
+        }
+        counts = new IntBuffer[values.length];
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            counts[chunk] = allocateInts();
+        }
+        for (int node = 0; node < size; node++) {
+            setCount(node, 1);
+        }
+    }
+    
+    @Override
+    public boolean hasCounts() {
+        return counts != null;
+    }
+    
+    @Override
+    public int getCount(int node) {
+        return counts[node >>> CHUNK_SHIFT].get(node & CHUNK_MASK);
+    }
+    
+    @Override
+    public void setCount(int node, int count) {
+        counts[node >>> CHUNK_SHIFT].put(node & CHUNK_MASK, count);
+    }
+    
+    // Bytes of direct memory this pool holds right now
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (int i = 0; i < allocatedCount; i++) {
+            bytes += allocated[i].capacity();
+        }
+        return bytes;
+    }
+    
+    /*
+     * Frees all the direct memory right away. Calling it twice is harmless.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        
+        // Drop the views first so nothing can reach the memory after it's freed
+        values = null;
+        lefts = null;
+        rights = null;
+        colors = null;
+        counts = null;
+        for (int i = 0; i < allocatedCount; i++) {
+            OffHeapMemory.release(allocated[i]);
+            allocated[i] = null;
+        }
+        allocatedCount = 0;
+        chunkCount = 0;
+        OffHeapMemory.poolClosed();
+    }
+}
@@ -0,0 +1,348 @@
+package com.bstapp.service;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+/*
+ * Builds the same unbalanced insertion-order tree as PlainTree, but on all CPU cores.
+ * 
+ * The trick is that in an insertion-order BST the first number is always the root,
+ * and the left subtree is exactly the tree you'd get by inserting only the numbers
+ * smaller than the root, in their original order (same for the right subtree and
+ * the bigger numbers). Copies of the root value are skipped anyway (or, if the
+ * pool has counts, they are just how many times the root was inserted).
+ * So I can:
+ * 1. take the first number as the pivot and split the rest into "smaller" and
+ *    "bigger", keeping their order (a stable partition)
+ * 2. build the two halves as separate ForkJoin tasks, each one splitting again
+ *    by its own first number
+ * 3. once a piece is small enough (or we're a few levels down), build it with
+ *    a normal PlainTree
+ * 
+ * Each piece has its own small pool while building, so no locking is needed.
+ * At the end I know exactly how many nodes every piece has, so the pieces get
+ * their own index ranges in the final pool and are copied there in parallel too.
+ * The tree comes out exactly the same as the sequential one (node for node, so
+ * also the same JSON) - only the numbering of the nodes inside the pool differs.
+ * 
+ * Like BalancedBulkTree, insert() only collects the numbers, because the split
+ * needs all of them.
+ * 
+ * Sorted input doesn't split (everything is bigger than the first number), so it
+ * just goes sequential after a few levels, where PlainTree handles it in O(1)
+ * per number anyway.
+ */
+public class ParallelPlainTree implements TreeEngine {
+    
+    // Pieces smaller than this are built sequentially, splitting them costs more than it saves
+    private static final int LEAF_SIZE = 1 << 15;
+    
+    // Partitions smaller than this are done by one thread
+    private static final int PARALLEL_PARTITION_SIZE = 1 << 18;
+    
+    private final NodePool pool;
+    private final ForkJoinPool forkJoinPool;
+    private final int leafSize;
+    private final int parallelPartitionSize;
+    
+    // How many levels of pivots are split off before going sequential
+    private final int maxDepth;
+    
+    private int[] values;
+    private int count;
+    
+    public ParallelPlainTree(NodePool pool, int expectedSize) {
+        this(pool, expectedSize, ForkJoinPool.commonPool());
+    }
+    
+    public ParallelPlainTree(NodePool pool, int expectedSize, ForkJoinPool forkJoinPool) {
+        this(pool, expectedSize, forkJoinPool, LEAF_SIZE, PARALLEL_PARTITION_SIZE);
+    }
+    
+    // The tests use tiny sizes here, so small inputs still go through every step
+    ParallelPlainTree(NodePool pool, int expectedSize, ForkJoinPool forkJoinPool,
+                      int leafSize, int parallelPartitionSize) {
+        this.pool = pool;
+        this.forkJoinPool = forkJoinPool;
+        this.leafSize = leafSize;
+        this.parallelPartitionSize = parallelPartitionSize;
+        this.values = new int[Math.max(expectedSize, 1)];
+        
+        // About 16 pieces per core, so the uneven splits of random input still keep
+        // every core busy (2^(log2(cores) + 4) pieces when the splits are perfect)
+        int cores = forkJoinPool.getParallelism();
+        this.maxDepth = 32 - Integer.numberOfLeadingZeros(Math.max(cores - 1, 0)) + 4;
+    }
+    
+    @Override
+    public void insert(int value) {
+        if (count == values.length) {
+            values = Arrays.copyOf(values, count + (count >> 1) + 1);
+        }
+        values[count++] = value;
+    }
+    
+    @Override
+    public NodePool build() {
+        if (count == 0) {
+            return pool;
+        }
+        
+        // Step 1: split and build the pieces
+        int[] scratch = new int[count];
+        Piece root = forkJoinPool.invoke(new BuildTask(values, scratch, 0, count, 0));
+        values = null;  // Not needed anymore, let the GC have it
+        
+        // Step 2: copy every piece into its own range of the final pool
+        int first = pool.addNodes(root.size);
+        forkJoinPool.invoke(new CopyTask(root, first));
+        pool.setRoot(root.rootIndex(first));
+        return pool;
+    }
+    
+    /*
+     * One piece of the tree: either a pivot with two smaller pieces below it,
+     * or a subtree that was built sequentially in its own pool.
+     */
+    private static final class Piece {
+        final int pivot;
+        final int pivotCount;
+        final Piece left;
+        final Piece right;
+        final NodePool subtree;
+        
+        // Number of nodes in this piece, including everything below it
+        final int size;
+        
+        Piece(int pivot, int pivotCount, Piece left, Piece right) {
+            this.pivot = pivot;
+            this.pivotCount = pivotCount;
+            this.left = left;
+            this.right = right;
+            this.subtree = null;
+            this.size = 1 + sizeOf(left) + sizeOf(right);
+        }
+        
+        Piece(NodePool subtree) {
+            this.pivot = 0;
+            this.pivotCount = 0;
+            this.left = null;
+            this.right = null;
+            this.subtree = subtree;
+            this.size = subtree.size();
+        }
+        
+        // Index of this piece's root in the final pool, if the piece starts at offset
+        int rootIndex(int offset) {
+            return subtree == null ? offset : offset + subtree.getRoot();
+        }
+        
+        static int sizeOf(Piece piece) {
+            return piece == null ? 0 : piece.size;
+        }
+    }
+    
+    /*
+     * Builds the tree for src[from..to). The numbers are split into dst, and the
+     * children split them back into src, so two arrays are enough for all levels.
+     * Returns null if there is nothing to build.
+     */
+    private final class BuildTask extends RecursiveTask<Piece> {
+        private final int[] src;
+        private final int[] dst;
+        private final int from;
+        private final int to;
+        private final int depth;
+        
+        BuildTask(int[] src, int[] dst, int from, int to, int depth) {
+            this.src = src;
+            this.dst = dst;
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+        }
+        
+        @Override
+        protected Piece compute() {
+            if (from == to) {
+                return null;
+            }
+            if (to - from <= leafSize || depth >= maxDepth) {
+                return buildSequentially();
+            }
+            
+            int pivot = src[from];
+            int[] counts = partition(from + 1, to, pivot);
+            int smaller = counts[0];
+            int bigger = counts[1];
+            
+            // The smaller numbers go left, the bigger ones right, in their original order
+            BuildTask left = new BuildTask(dst, src, from + 1, from + 1 + smaller, depth + 1);
+            BuildTask right = new BuildTask(dst, src, from + 1 + smaller, from + 1 + smaller + bigger, depth + 1);
+            left.fork();
+            Piece rightPiece = right.compute();
+            Piece leftPiece = left.join();
+            
+            // Whatever was neither smaller nor bigger is a copy of the pivot
+            return new Piece(pivot, to - from - smaller - bigger, leftPiece, rightPiece);
+        }
+        
+        /*
+         * Stable partition of src[start..end) around pivot: the smaller numbers go
+         * to dst[start..], followed by the bigger ones. Copies of the pivot are
+         * dropped. Returns how many were smaller and how many bigger.
+         * 
+         * Big ranges are done in blocks: first every block counts its smaller and
+         * bigger numbers (in parallel), then a running total tells each block where
+         * its numbers go, and then all blocks copy them at the same time.
+         */
+        private int[] partition(int start, int end, int pivot) {
+            int length = end - start;
+            if (length < parallelPartitionSize) {
+                int smaller = 0;
+                int bigger = 0;
+                for (int i = start; i < end; i++) {
+                    if (src[i] < pivot) {
+                        smaller++;
+                    } else if (src[i] > pivot) {
+                        bigger++;
+                    }
+                }
+                int nextSmaller = start;
+                int nextBigger = start + smaller;
+                for (int i = start; i < end; i++) {
+                    int value = src[i];
+                    if (value < pivot) {
+                        dst[nextSmaller++] = value;
+                    } else if (value > pivot) {
+                        dst[nextBigger++] = value;
+                    }
+                }
+                return new int[] {smaller, bigger};
+            }
+            
+            int blocks = forkJoinPool.getParallelism() * 4;
+            int blockSize = (length + blocks - 1) / blocks;
+            int[] smallerCounts = new int[blocks];
+            int[] biggerCounts = new int[blocks];
+            
+            IntStream.range(0, blocks).parallel().forEach(block -> {
+                int blockStart = start + block * blockSize;
+                int blockEnd = Math.min(blockStart + blockSize, end);
+                int smaller = 0;
+                int bigger = 0;
+                for (int i = blockStart; i < blockEnd; i++) {
+                    if (src[i] < pivot) {
+                        smaller++;
+                    } else if (src[i] > pivot) {
+                        bigger++;
+                    }
+                }
+                smallerCounts[block] = smaller;
+                biggerCounts[block] = bigger;
+            });
+            
+            // Turn the counts into the position where each block starts writing
+            int totalSmaller = 0;
+            int totalBigger = 0;
+            for (int block = 0; block < blocks; block++) {
+                int smaller = smallerCounts[block];
+                int bigger = biggerCounts[block];
+                smallerCounts[block] = totalSmaller;
+                biggerCounts[block] = totalBigger;
+                totalSmaller += smaller;
+                totalBigger += bigger;
+            }
+            int smallerStart = start;
+            int biggerStart = start + totalSmaller;
+            
+            IntStream.range(0, blocks).parallel().forEach(block -> {
+                int blockStart = start + block * blockSize;
+                int blockEnd = Math.min(blockStart + blockSize, end);
+                int nextSmaller = smallerStart + smallerCounts[block];
+                int nextBigger = biggerStart + biggerCounts[block];
+                for (int i = blockStart; i < blockEnd; i++) {
+                    int value = src[i];
+                    if (value < pivot) {
+                        dst[nextSmaller++] = value;
+                    } else if (value > pivot) {
+                        dst[nextBigger++] = value;
+                    }
+                }
+            });
+            
+            return new int[] {totalSmaller, totalBigger};
+        }
+        
+        // The normal one-number-at-a-time build, on this piece only
+        private Piece buildSequentially() {
+            NodePool piecePool = new HeapNodePool(to - from);
+            if (pool.hasCounts()) {
+                piecePool.enableCounts();
+            }
+            PlainTree tree = new PlainTree(piecePool);
+            for (int i = from; i < to; i++) {
+                tree.insert(src[i]);
+            }
+            return new Piece(tree.build());
+        }
+    }
+    
+    /*
+     * Writes a piece into the final pool, starting at index offset.
+     * A pivot goes first, then its left piece, then its right piece, so every piece
+     * knows its range without waiting for the others.
+     */
+    private final class CopyTask extends RecursiveAction {
+        private final Piece piece;
+        private final int offset;
+        
+        CopyTask(Piece piece, int offset) {
+            this.piece = piece;
+            this.offset = offset;
+        }
+        
+        @Override
+        protected void compute() {
+            if (piece.subtree != null) {
+                copySubtree(piece.subtree);
+                return;
+            }
+            
+            int leftOffset = offset + 1;
+            int rightOffset = leftOffset + Piece.sizeOf(piece.left);
+            pool.setValue(offset, piece.pivot);
+            if (pool.hasCounts()) {
+                pool.setCount(offset, piece.pivotCount);
+            }
+            pool.setLeft(offset, piece.left == null ? NodePool.NIL : piece.left.rootIndex(leftOffset));
+            pool.setRight(offset, piece.right == null ? NodePool.NIL : piece.right.rootIndex(rightOffset));
+            
+            if (piece.left != null && piece.right != null) {
+                invokeAll(new CopyTask(piece.left, leftOffset), new CopyTask(piece.right, rightOffset));
+            } else if (piece.left != null) {
+                new CopyTask(piece.left, leftOffset).compute();
+            } else if (piece.right != null) {
+                new CopyTask(piece.right, rightOffset).compute();
+            }
+        }
+        
+        // Copies a sequentially built subtree, shifting all its indices by offset
+        private void copySubtree(NodePool subtree) {
+            boolean counts = pool.hasCounts();
+            for (int node = 0; node < subtree.size(); node++) {
+                int left = subtree.getLeft(node);
+                int right = subtree.getRight(node);
+                pool.setValue(offset + node, subtree.getValue(node));
+                pool.setLeft(offset + node, left == NodePool.NIL ? NodePool.NIL : offset + left);
+                pool.setRight(offset + node, right == NodePool.NIL ? NodePool.NIL : offset + right);
+                if (counts) {
+                    pool.setCount(offset + node, subtree.getCount(node));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,770 @@
+package com.bstapp.service;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/*
+ * An immutable ("persistent") version of the plain insertion-order BST.
+ * 
+ * insert() never changes a tree. It returns a new tree instead, and only the nodes
+ * on the path from the root down to the new leaf are copied (path copying). Every
+ * subtree next to that path is shared with the old version. So after adding a few
+ * numbers to a big saved tree, the old and the new version are both usable and
+ * together cost hardly more memory than one of them.
+ * 
+ * The shape is exactly what BstService.insert would give (same descent, duplicates
+ * skipped), so a derived tree is the same as rebuilding it from the old input plus
+ * the new numbers - just without the rebuild. The path is as long as the tree is
+ * deep, which is O(log n) for the usual random-ish inputs.
+ * 
+ * Deletes work the same way: delete() copies the path to the removed node, and
+ * deleteRange() cuts the tree into "below the range", "in the range" and "above
+ * the range" (split) and puts the outer two back together (join). Both only walk a
+ * few paths, so removing a whole range costs O(depth), however many values are in
+ * it - the middle part is simply dropped.
+ * 
+ * A tree can also be a multiset (see MULTISET_EMPTY and BstService's "duplicates":
+ * "count"). Then every node has a count, and inserting a value that is already
+ * there copies the path to it with the count one higher instead of returning the
+ * same tree. range() and everything built on it (freeze, merge, diff) and the
+ * order statistics still see every value once; rangeWithDuplicates() and
+ * aggregate() include the counts.
+ * 
+ * Because nothing ever changes, versions can be read from many threads without locks.
+ */
+public final class PersistentTree {
+    
+    public static final PersistentTree EMPTY = new PersistentTree(null, 0, false);
+    
+    // Empty multiset tree: the values inserted into it are counted
+    public static final PersistentTree MULTISET_EMPTY = new PersistentTree(null, 0, true);
+    
+    private final Node root;
+    private final int size;
+    private final boolean multiset;
+    
+    // Lookup copy of this version, made on first use (see freeze)
+    private volatile FrozenTree frozen;
+    
+    // Splay tree copy of this version for the "splay" lookup mode (see splay)
+    private volatile SplayTree splayed;
+    
+    private PersistentTree(Node root, int size, boolean multiset) {
+        this.root = root;
+        this.size = size;
+        this.multiset = multiset;
+    }
+    
+    /*
+     * A node that never changes after it's created.
+     * 
+     * Because the children are fixed, the node can also store a few facts about
+     * its whole subtree, computed once in the constructor:
+     * - size: number of nodes in the subtree
+     * - total: number of values in the subtree counting duplicates (same as size
+     *   unless it's a multiset tree)
+     * - sum: sum of the values in the subtree, each one count times (for aggregate())
+     * - textLength: length of the subtree's pretty printed JSON if it was the root,
+     *   with "\n" line breaks (see TreeJsonPatcher, which uses it to find positions
+     *   in the stored JSON). An int, capped at Integer.MAX_VALUE, to keep nodes small.
+     * 
+     * count is how many times the value was inserted in a multiset tree, and 0 in a
+     * normal tree (where it's not written to the JSON either).
+     */
+    static final class Node {
+        final int value;
+        final int count;
+        final Node left;
+        final Node right;
+        final int size;
+        final long total;
+        final long sum;
+        final int textLength;
+        
+        Node(int value, int count, Node left, Node right) {
+            this.value = value;
+            this.count = count;
+            this.left = left;
+            this.right = right;
+            this.size = 1 + sizeOf(left) + sizeOf(right);
+            int copies = Math.max(count, 1);
+            this.total = copies + totalOf(left) + totalOf(right);
+            this.sum = (long) value * copies + sumOf(left) + sumOf(right);
+            this.textLength = TreeJsonPatcher.textLength(value, count, left, right);
+        }
+        
+        // Same node with other children, used when a path is copied
+        Node with(Node newLeft, Node newRight) {
+            return new Node(value, count, newLeft, newRight);
+        }
+        
+        static int sizeOf(Node node) {
+            return node == null ? 0 : node.size;
+        }
+        
+        static long totalOf(Node node) {
+            return node == null ? 0 : node.total;
+        }
+        
+        static long sumOf(Node node) {
+            return node == null ? 0 : node.sum;
+        }
+    }
+    
+    /*
+     * Returns a tree that also contains value. If it's already there, this tree is
+     * returned as it is (same dedup rule as BstService.insert), or for a multiset
+     * tree a copy where that node counts one more.
+     * 
+     * First I walk down and remember the path, then I build the copies from the new
+     * leaf back up to the root. It's a loop, so deep trees are no problem.
+     */
+    public PersistentTree insert(int value) {
+        Node[] path = new Node[32];
+        int depth = 0;
+        Node current = root;
+        while (current != null && value != current.value) {
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+            }
+            path[depth++] = current;
+            current = value < current.value ? current.left : current.right;
+        }
+        
+        Node copy;
+        if (current == null) {
+            copy = new Node(value, multiset ? 1 : 0, null, null);
+        } else if (multiset) {
+            copy = new Node(value, Math.addExact(current.count, 1), current.left, current.right);
+        } else {
+            return this;  // Duplicate, nothing changes
+        }
+        
+        // Copy the path bottom-up, replacing one child on each level
+        for (int i = depth - 1; i >= 0; i--) {
+            Node original = path[i];
+            copy = value < original.value ? original.with(copy, original.right) : original.with(original.left, copy);
+        }
+        return new PersistentTree(copy, current == null ? size + 1 : size, multiset);
+    }
+    
+    // Inserts the values one after another, in order
+    public PersistentTree insertAll(int[] values) {
+        PersistentTree tree = this;
+        for (int value : values) {
+            tree = tree.insert(value);
+        }
+        return tree;
+    }
+    
+    /*
+     * Returns a tree without value (or this tree if value isn't in it). In a
+     * multiset tree all copies of the value go at once.
+     * 
+     * The removed node is replaced by its two subtrees joined together, which is
+     * the usual "replace with the smallest value of the right subtree" delete.
+     */
+    public PersistentTree delete(int value) {
+        Node[] path = new Node[32];
+        int depth = 0;
+        Node current = root;
+        while (current != null && current.value != value) {
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+            }
+            path[depth++] = current;
+            current = value < current.value ? current.left : current.right;
+        }
+        if (current == null) {
+            return this;  // Not in the tree
+        }
+        
+        Node copy = join(current.left, current.right);
+        for (int i = depth - 1; i >= 0; i--) {
+            Node original = path[i];
+            copy = value < original.value ? original.with(copy, original.right) : original.with(original.left, copy);
+        }
+        return new PersistentTree(copy, size - 1, multiset);
+    }
+    
+    // Deletes the values one after another
+    public PersistentTree deleteAll(int[] values) {
+        PersistentTree tree = this;
+        for (int value : values) {
+            tree = tree.delete(value);
+        }
+        return tree;
+    }
+    
+    /*
+     * Returns a tree without any value in [lo, hi] (both included).
+     * 
+     * split(lo) separates the values below lo, then a second split separates the
+     * ones up to hi. What's left in the middle is the range, and it isn't even
+     * looked at: its size is stored in its root, so counting it is O(1).
+     */
+    public PersistentTree deleteRange(int lo, int hi) {
+        if (lo > hi) {
+            throw new IllegalArgumentException("Range start " + lo + " is bigger than its end " + hi);
+        }
+        Node[] below = split(root, lo, false);
+        Node[] rest = split(below[1], hi, true);
+        int removed = Node.sizeOf(rest[0]);
+        if (removed == 0) {
+            return this;
+        }
+        return new PersistentTree(join(below[0], rest[1]), size - removed, multiset);
+    }
+    
+    /*
+     * Splits a subtree into two: {values before key, values after key}. If keyGoesLeft,
+     * key itself (if it's there) goes into the first tree, otherwise into the second.
+     * 
+     * Only the nodes on the search path for key are copied. Going back up the path,
+     * a node that belongs to the first tree keeps its left subtree and gets the
+     * first tree built so far as its right child (and the other way round).
+     */
+    static Node[] split(Node node, int key, boolean keyGoesLeft) {
+        Node[] path = new Node[32];
+        int depth = 0;
+        while (node != null) {
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+            }
+            path[depth++] = node;
+            node = goesLeft(node.value, key, keyGoesLeft) ? node.right : node.left;
+        }
+        
+        Node first = null;
+        Node second = null;
+        for (int i = depth - 1; i >= 0; i--) {
+            Node original = path[i];
+            if (goesLeft(original.value, key, keyGoesLeft)) {
+                first = original.with(original.left, first);
+            } else {
+                second = original.with(second, original.right);
+            }
+        }
+        return new Node[] {first, second};
+    }
+    
+    private static boolean goesLeft(int value, int key, boolean keyGoesLeft) {
+        return value < key || (keyGoesLeft && value == key);
+    }
+    
+    /*
+     * Joins two subtrees where every value of left is smaller than every value of
+     * right. The smallest node of right becomes the new root, with left as its left
+     * subtree. Only right's leftmost path is copied.
+     */
+    static Node join(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        
+        Node[] path = new Node[32];
+        int depth = 0;
+        Node current = right;
+        while (current.left != null) {
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+            }
+            path[depth++] = current;
+            current = current.left;
+        }
+        
+        // current is the smallest node; its right subtree takes its place
+        Node rest = current.right;
+        for (int i = depth - 1; i >= 0; i--) {
+            rest = path[i].with(rest, path[i].right);
+        }
+        return current.with(left, rest);
+    }
+    
+    public boolean contains(int value) {
+        Node current = root;
+        while (current != null) {
+            if (value == current.value) {
+                return true;
+            }
+            current = value < current.value ? current.left : current.right;
+        }
+        return false;
+    }
+    
+    /*
+     * Returns the values in [lo, hi] (both included) in increasing order, one at a
+     * time, so a big range never has to be copied into a list first.
+     * 
+     * It's an inorder walk with an explicit stack that starts at lo: on the way
+     * down, nodes smaller than lo are skipped together with their left subtree.
+     * Then every step is O(1) on average, and the walk stops at the first value
+     * above hi. Versions never change, so the iterator can be used for as long as
+     * needed, even while the saved tree gets new versions.
+     */
+    public PrimitiveIterator.OfInt range(int lo, int hi) {
+        if (lo > hi) {
+            throw new IllegalArgumentException("Range start " + lo + " is bigger than its end " + hi);
+        }
+        return new RangeIterator(root, lo, hi, false);
+    }
+    
+    /*
+     * Same as range, but in a multiset tree each value comes as many times as it
+     * was inserted (for a normal tree there's no difference). The copies are handed
+     * out from the node's count, so nothing extra is stored for them.
+     */
+    public PrimitiveIterator.OfInt rangeWithDuplicates(int lo, int hi) {
+        if (lo > hi) {
+            throw new IllegalArgumentException("Range start " + lo + " is bigger than its end " + hi);
+        }
+        return new RangeIterator(root, lo, hi, multiset);
+    }
+    
+    private static final class RangeIterator implements PrimitiveIterator.OfInt {
+        private final int hi;
+        private final boolean withDuplicates;
+        private Node[] stack = new Node[32];
+        private int top = -1;
+        
+        // Copies of the top node that are still to come (withDuplicates only)
+        private int repeats;
+        
+        RangeIterator(Node root, int lo, int hi, boolean withDuplicates) {
+            this.hi = hi;
+            this.withDuplicates = withDuplicates;
+            Node node = root;
+            while (node != null) {
+                if (node.value < lo) {
+                    node = node.right;
+                } else {
+                    push(node);
+                    node = node.left;
+                }
+            }
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return top >= 0 && stack[top].value <= hi;
+        }
+        
+        @Override
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (withDuplicates) {
+                if (repeats == 0) {
+                    repeats = stack[top].count;
+                }
+                if (--repeats > 0) {
+                    return stack[top].value;  // Stays on the stack for the next copy
+                }
+            }
+            Node node = stack[top--];
+            for (Node next = node.right; next != null; next = next.left) {
+                push(next);
+            }
+            return node.value;
+        }
+        
+        private void push(Node node) {
+            if (++top == stack.length) {
+                stack = Arrays.copyOf(stack, top * 2);
+            }
+            stack[top] = node;
+        }
+    }
+    
+    /*
+     * Order statistics. Every node knows the size of its subtree, so counting the
+     * values left of a path is free: whenever the walk goes right, everything in
+     * the left subtree plus the node itself is smaller. Both are one walk down,
+     * O(depth), which is O(log n) for random-ish input or a tree that was built
+     * balanced (the version keeps the saved shape), but O(n) for a chain made from
+     * sorted input. This tree doesn't rebalance itself.
+     */
+    
+    // How many values in the tree are smaller than value (value doesn't have to be in the tree)
+    public int rank(int value) {
+        int rank = 0;
+        Node current = root;
+        while (current != null) {
+            if (value <= current.value) {
+                current = current.left;
+            } else {
+                rank += Node.sizeOf(current.left) + 1;
+                current = current.right;
+            }
+        }
+        return rank;
+    }
+    
+    // The k-th smallest value, counting from 0 (so select(0) is the minimum)
+    public int select(int k) {
+        if (k < 0 || k >= size) {
+            throw new IllegalArgumentException("k must be between 0 and " + (size - 1) + ", was " + k);
+        }
+        Node current = root;
+        while (true) {
+            int leftSize = Node.sizeOf(current.left);
+            if (k < leftSize) {
+                current = current.left;
+            } else if (k == leftSize) {
+                return current.value;
+            } else {
+                k -= leftSize + 1;
+                current = current.right;
+            }
+        }
+    }
+    
+    /*
+     * The p-th percentile (0 to 100) with the nearest-rank method: the smallest value
+     * that at least p percent of the values are less than or equal to. It's always
+     * one of the values in the tree, and percentile(50) is the (lower) median.
+     * 
+     * The rank ceil(p * size / 100) is computed with BigDecimal from p as it was
+     * written: with doubles 55.0 / 100 * 100 is 55.00000000000001 and 0.07 * 10000
+     * is 700.0000000000001, and ceil makes both one rank too high.
+     */
+    public int percentile(double p) {
+        if (!(p >= 0 && p <= 100)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, was " + p);
+        }
+        if (size == 0) {
+            throw new IllegalArgumentException("Tree is empty");
+        }
+        int rank = BigDecimal.valueOf(p).multiply(BigDecimal.valueOf(size))
+                .divide(BigDecimal.valueOf(100), 0, RoundingMode.CEILING).intValueExact();
+        return select(Math.max(rank, 1) - 1);
+    }
+    
+    /*
+     * count, sum, min and max of the values in [lo, hi], in O(depth).
+     * 
+     * count and sum are "everything up to hi" minus "everything below lo", and each
+     * of those is one walk down that adds up the totals and sums of the subtrees
+     * left of the path (like rank). In a multiset tree both include the duplicates,
+     * because the stored totals and sums already do. min and max don't need anything stored: in a
+     * BST the smallest value in the range is simply the first value >= lo, and the
+     * largest one the last value <= hi.
+     */
+    public RangeAggregate aggregate(int lo, int hi) {
+        if (lo > hi) {
+            throw new IllegalArgumentException("Range start " + lo + " is bigger than its end " + hi);
+        }
+        long[] upToHi = prefix(hi, true);
+        long[] belowLo = prefix(lo, false);
+        long count = upToHi[0] - belowLo[0];
+        if (count == 0) {
+            return new RangeAggregate(lo, hi, 0, 0, null, null);
+        }
+        return new RangeAggregate(lo, hi, count, upToHi[1] - belowLo[1], ceiling(lo), floor(hi));
+    }
+    
+    // {count, sum} of the values below bound (or up to and including it)
+    private long[] prefix(int bound, boolean inclusive) {
+        long count = 0;
+        long sum = 0;
+        Node current = root;
+        while (current != null) {
+            if (current.value < bound || (inclusive && current.value == bound)) {
+                count += Node.totalOf(current.left) + Math.max(current.count, 1);
+                sum += Node.sumOf(current.left) + (long) current.value * Math.max(current.count, 1);
+                current = current.right;
+            } else {
+                current = current.left;
+            }
+        }
+        return new long[] {count, sum};
+    }
+    
+    // Smallest value >= value, or null if there is none
+    private Integer ceiling(int value) {
+        Integer best = null;
+        Node current = root;
+        while (current != null) {
+            if (current.value >= value) {
+                best = current.value;
+                current = current.left;
+            } else {
+                current = current.right;
+            }
+        }
+        return best;
+    }
+    
+    // Largest value <= value, or null if there is none
+    private Integer floor(int value) {
+        Integer best = null;
+        Node current = root;
+        while (current != null) {
+            if (current.value <= value) {
+                best = current.value;
+                current = current.right;
+            } else {
+                current = current.left;
+            }
+        }
+        return best;
+    }
+    
+    /*
+     * Combines this tree with other into a new tree (see SetOperation). The result
+     * is perfectly balanced, whatever the shapes of the two trees were.
+     * 
+     * Both trees are read in increasing order at the same time, like the merge step
+     * of merge sort: whichever side has the smaller next value moves on, and equal
+     * values move both. That gives the values of the result already sorted and
+     * without duplicates, so the tree is then built from the middle down
+     * (fromSorted). Both steps are linear, O(n + m) in total, and no value is
+     * searched for or inserted.
+     * 
+     * It's a set operation, so counts of multiset trees don't matter here and the
+     * result is a normal tree.
+     */
+    public PersistentTree merge(PersistentTree other, SetOperation operation) {
+        long capacity = operation == SetOperation.UNION ? (long) size + other.size : size;
+        if (capacity > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Merged tree would have too many values: " + capacity);
+        }
+        int[] merged = new int[(int) capacity];
+        int count = 0;
+        
+        PrimitiveIterator.OfInt mine = range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        PrimitiveIterator.OfInt theirs = other.range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        boolean hasMine = mine.hasNext();
+        boolean hasTheirs = theirs.hasNext();
+        int a = hasMine ? mine.nextInt() : 0;
+        int b = hasTheirs ? theirs.nextInt() : 0;
+        while (hasMine && hasTheirs) {
+            if (a < b) {
+                if (operation != SetOperation.INTERSECTION) {
+                    merged[count++] = a;
+                }
+                hasMine = mine.hasNext();
+                a = hasMine ? mine.nextInt() : 0;
+            } else if (b < a) {
+                if (operation == SetOperation.UNION) {
+                    merged[count++] = b;
+                }
+                hasTheirs = theirs.hasNext();
+                b = hasTheirs ? theirs.nextInt() : 0;
+            } else {
+                if (operation != SetOperation.DIFFERENCE) {
+                    merged[count++] = a;
+                }
+                hasMine = mine.hasNext();
+                a = hasMine ? mine.nextInt() : 0;
+                hasTheirs = theirs.hasNext();
+                b = hasTheirs ? theirs.nextInt() : 0;
+            }
+        }
+        
+        // One side is used up; the rest of the other one is only kept by some operations
+        if (operation != SetOperation.INTERSECTION) {
+            while (hasMine) {
+                merged[count++] = a;
+                hasMine = mine.hasNext();
+                a = hasMine ? mine.nextInt() : 0;
+            }
+        }
+        if (operation == SetOperation.UNION) {
+            while (hasTheirs) {
+                merged[count++] = b;
+                hasTheirs = theirs.hasNext();
+                b = hasTheirs ? theirs.nextInt() : 0;
+            }
+        }
+        return fromSorted(merged, count);
+    }
+    
+    /*
+     * Builds a perfectly balanced tree from sorted[0..count - 1] (increasing, no
+     * duplicates): the middle value is the root, the middle of each half its
+     * children, and so on, like BalancedBulkTree. The recursion is only log2(n)
+     * deep.
+     */
+    public static PersistentTree fromSorted(int[] sorted, int count) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        return new PersistentTree(buildFromSorted(sorted, 0, count - 1), count, false);
+    }
+    
+    private static Node buildFromSorted(int[] sorted, int from, int to) {
+        if (from > to) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        return new Node(sorted[middle], 0, buildFromSorted(sorted, from, middle - 1),
+                buildFromSorted(sorted, middle + 1, to));
+    }
+    
+    /*
+     * Returns the read-only Eytzinger copy of this version for fast lookups.
+     * 
+     * It's made the first time it's needed and then kept with the version. A version
+     * never changes, so the copy can't go stale: an append or delete creates a new
+     * version, which makes its own copy when it's first searched. If two threads
+     * ask at the same time, both may build one, which is harmless.
+     */
+    public FrozenTree freeze() {
+        FrozenTree copy = frozen;
+        if (copy == null) {
+            int[] sorted = new int[size];
+            PrimitiveIterator.OfInt values = range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = values.nextInt();
+            }
+            copy = FrozenTree.fromSorted(sorted);
+            frozen = copy;
+        }
+        return copy;
+    }
+    
+    /*
+     * Returns the splay tree copy of this version, for lookups in LookupMode.SPLAY.
+     * 
+     * Made on first use and kept like the frozen copy. Unlike that one it changes
+     * with every lookup (the values move around, the set of values doesn't), so
+     * there must only be one per version: otherwise lookups would warm up a copy
+     * that then gets thrown away. So building it is synchronized.
+     */
+    public SplayTree splay() {
+        SplayTree copy = splayed;
+        if (copy == null) {
+            synchronized (this) {
+                copy = splayed;
+                if (copy == null) {
+                    copy = new SplayTree(toNodePool());
+                    splayed = copy;
+                }
+            }
+        }
+        return copy;
+    }
+    
+    // Number of values in the tree (a value with duplicates only counts once)
+    public int size() {
+        return size;
+    }
+    
+    // Number of values counting every copy of a duplicate (same as size() unless it's a multiset tree)
+    public long total() {
+        return Node.totalOf(root);
+    }
+    
+    public boolean isEmpty() {
+        return root == null;
+    }
+    
+    // Whether duplicates are counted (see MULTISET_EMPTY)
+    public boolean isMultiset() {
+        return multiset;
+    }
+    
+    Node getRoot() {
+        return root;
+    }
+    
+    /*
+     * Creates a persistent tree with the same shape as a NodePool tree.
+     * The pool must number its nodes so that children come after their parent,
+     * like TreeJsonReader does. Then I can create the nodes from the last index
+     * to the first, and both children of a node always exist already.
+     * A pool with counts gives a multiset tree.
+     */
+    public static PersistentTree fromNodePool(NodePool pool) {
+        boolean counts = pool.hasCounts();
+        if (pool.getRoot() == NodePool.NIL) {
+            return counts ? MULTISET_EMPTY : EMPTY;
+        }
+        Node[] nodes = new Node[pool.size()];
+        for (int i = pool.size() - 1; i >= 0; i--) {
+            int left = pool.getLeft(i);
+            int right = pool.getRight(i);
+            nodes[i] = new Node(pool.getValue(i), counts ? pool.getCount(i) : 0,
+                    left == NodePool.NIL ? null : nodes[left],
+                    right == NodePool.NIL ? null : nodes[right]);
+        }
+        return new PersistentTree(nodes[pool.getRoot()], pool.size(), counts);
+    }
+    
+    /*
+     * Copies the tree into a NodePool (in preorder), so TreeJsonWriter can write it.
+     * A multiset tree gets a pool with counts.
+     */
+    public NodePool toNodePool() {
+        NodePool pool = toNodePool(root);
+        if (multiset) {
+            pool.enableCounts();
+        }
+        return pool;
+    }
+    
+    // Same for any subtree
+    static NodePool toNodePool(Node root) {
+        NodePool pool = new HeapNodePool(Node.sizeOf(root));
+        if (root == null) {
+            return pool;
+        }
+        if (root.count > 0) {
+            pool.enableCounts();
+        }
+        
+        // Preorder with an explicit stack; parents[i] is the pool index of stack[i]'s parent
+        Node[] stack = new Node[64];
+        int[] parents = new int[64];
+        boolean[] isLeft = new boolean[64];
+        int top = 0;
+        stack[0] = root;
+        parents[0] = NodePool.NIL;
+        while (top >= 0) {
+            Node node = stack[top];
+            int parent = parents[top];
+            boolean left = isLeft[top];
+            top--;
+            
+            int index = pool.addNode(node.value);
+            if (node.count > 0) {
+                pool.setCount(index, node.count);
+            }
+            if (parent == NodePool.NIL) {
+                pool.setRoot(index);
+            } else if (left) {
+                pool.setLeft(parent, index);
+            } else {
+                pool.setRight(parent, index);
+            }
+            
+            // Push right first so the left subtree is numbered first
+            if (top + 2 >= stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+                parents = Arrays.copyOf(parents, parents.length * 2);
+                isLeft = Arrays.copyOf(isLeft, isLeft.length * 2);
+            }
+            if (node.right != null) {
+                top++;
+                stack[top] = node.right;
+                parents[top] = index;
+                isLeft[top] = false;
+            }
+            if (node.left != null) {
+                top++;
+                stack[top] = node.left;
+                parents[top] = index;
+                isLeft[top] = true;
+            }
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,98 @@
+package com.bstapp.service;
+
+/*
+ * The classic unbalanced BST, stored in a NodePool.
+ * 
+ * Numbers are inserted in the order they arrive with no rebalancing, so the shape
+ * is exactly the same as BstService.insert would produce. That's the default engine,
+ * because stored trees must be reproducible from their input.
+ * 
+ * Sorted input is really common, and walking the whole right spine for every number
+ * made a few million sorted values take forever. So I remember the last node I
+ * inserted together with the range of values (lastLow, lastHigh) that leads to it
+ * from the root. A new node is always a leaf, so if the next number falls inside
+ * that range, a descent from the root would end at the same leaf anyway and I can
+ * attach it right there. Monotone input then costs O(1) per number and the tree is
+ * exactly the same as inserting from the root every time.
+ */
+public class PlainTree implements TreeEngine {
+    
+    private final NodePool pool;
+    
+    // The last inserted leaf and the open interval of values that reach it.
+    // I use long bounds so Integer.MIN_VALUE and MAX_VALUE still fit inside.
+    private int last = NodePool.NIL;
+    private long lastLow = Long.MIN_VALUE;
+    private long lastHigh = Long.MAX_VALUE;
+    
+    public PlainTree(NodePool pool) {
+        this.pool = pool;
+    }
+    
+    @Override
+    public void insert(int value) {
+        if (last != NodePool.NIL && value > lastLow && value < lastHigh) {
+            // Shortcut: the value belongs directly below the last inserted leaf
+            int lastValue = pool.getValue(last);
+            if (value == lastValue) {
+                pool.countDuplicate(last);  // Duplicate of the last value, skip it (or count it)
+                return;
+            }
+            int node = pool.addNode(value);
+            if (value < lastValue) {
+                pool.setLeft(last, node);
+                lastHigh = lastValue;
+            } else {
+                pool.setRight(last, node);
+                lastLow = lastValue;
+            }
+            last = node;
+            return;
+        }
+        
+        int current = pool.getRoot();
+        if (current == NodePool.NIL) {
+            last = pool.addNode(value);
+            pool.setRoot(last);
+            lastLow = Long.MIN_VALUE;
+            lastHigh = Long.MAX_VALUE;
+            return;
+        }
+        
+        // Normal case: walk down from the root, narrowing the interval as we go
+        long low = Long.MIN_VALUE;
+        long high = Long.MAX_VALUE;
+        while (true) {
+            int currentValue = pool.getValue(current);
+            if (value < currentValue) {
+                high = currentValue;
+                int left = pool.getLeft(current);
+                if (left == NodePool.NIL) {
+                    last = pool.addNode(value);
+                    pool.setLeft(current, last);
+                    break;
+                }
+                current = left;
+            } else if (value > currentValue) {
+                low = currentValue;
+                int right = pool.getRight(current);
+                if (right == NodePool.NIL) {
+                    last = pool.addNode(value);
+                    pool.setRight(current, last);
+                    break;
+                }
+                current = right;
+            } else {
+                pool.countDuplicate(current);  // Duplicate somewhere in the tree, skip it (or count it)
+                return;
+            }
+        }
+        lastLow = low;
+        lastHigh = high;
+    }
+    
+    @Override
+    public NodePool build() {
+        return pool;
+    }
+}
@@ -0,0 +1,56 @@
+package com.bstapp.service;
+
+/*
+ * count, sum, min and max of the values of a tree in [lo, hi], returned as JSON by
+ * GET /api/trees/{id}/aggregate. See PersistentTree.aggregate.
+ * 
+ * min and max are null if no value is in the range (count is 0 then). In a multiset
+ * tree count and sum include every copy of a value.
+ */
+public class RangeAggregate {
+    
+    private final int lo;
+    private final int hi;
+    
+    // Longs, because even 2^31 ints (or counts) can't overflow them
+    private final long count;
+    private final long sum;
+    
+    private final Integer min;
+    private final Integer max;
+    
+    public RangeAggregate(int lo, int hi, long count, long sum, Integer min, Integer max) {
+        this.lo = lo;
+        this.hi = hi;
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+    
+    // ============ Getters ============
+    
+    public int getLo() {
+        return lo;
+    }
+    
+    public int getHi() {
+        return hi;
+    }
+    
+    public long getCount() {
+        return count;
+    }
+    
+    public long getSum() {
+        return sum;
+    }
+    
+    public Integer getMin() {
+        return min;
+    }
+    
+    public Integer getMax() {
+        return max;
+    }
+}
@@ -0,0 +1,35 @@
+package com.bstapp.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/*
+ * A node of a red-black tree, in the BstNode object form.
+ * 
+ * The red-black engine itself works on a NodePool, but when a colored tree is turned
+ * back into objects (NodePool.toBstNode) the nodes become RbNodes so the color is
+ * still there. The color is part of the JSON output ("color": "red" or "black")
+ * so the page can draw red and black nodes differently.
+ */
+public class RbNode extends BstNode {
+    
+    // New nodes always start red
+    private boolean red = true;
+    
+    public RbNode(int value) {
+        super(value);
+    }
+    
+    // Color as it appears in the JSON
+    public String getColor() {
+        return red ? "red" : "black";
+    }
+    
+    @JsonIgnore
+    public boolean isRed() {
+        return red;
+    }
+    
+    public void setRed(boolean red) {
+        this.red = red;
+    }
+}
@@ -0,0 +1,190 @@
+package com.bstapp.service;
+
+import java.util.Arrays;
+
+/*
+ * Red-black tree, the balanced tree used by java.util.TreeMap.
+ * 
+ * The rules are:
+ * - every node is red or black, and the root is black
+ * - a red node never has a red child
+ * - every path from a node down to a null child has the same number of black nodes
+ * 
+ * That keeps the height below 2 * log2(n + 1). It's a looser bound than AVL,
+ * but the payoff is that an insert needs at most two rotations; everything else
+ * is just recoloring. AVL can rotate at almost every insert on sorted input, so
+ * for big append-style submissions red-black does noticeably less work.
+ * 
+ * The insert and the fix-up are both loops (the CLRS version with parent links),
+ * so there's no recursion at all. Duplicates don't add nodes: they are dropped, or
+ * counted on the existing node in a multiset pool (NodePool.countDuplicate).
+ * 
+ * The nodes and their colors live in a NodePool. The parent links are only needed
+ * while building, so they are kept in a separate array here instead of in the pool.
+ */
+public class RedBlackTree implements TreeEngine {
+    
+    private static final int NIL = NodePool.NIL;
+    
+    private final NodePool pool;
+    
+    // Parent of each node, NIL for the root
+    private int[] parents;
+    
+    // How many rotations were done so far, used to compare with AvlTree
+    private long rotations;
+    
+    public RedBlackTree() {
+        this(new HeapNodePool(16));
+    }
+    
+    // Builds into the given (empty) pool, so the caller decides heap or off-heap
+    public RedBlackTree(NodePool pool) {
+        this.pool = pool;
+        this.pool.enableColors();
+        this.parents = new int[pool.capacity()];
+    }
+    
+    @Override
+    public void insert(int value) {
+        // Normal BST descent to find the parent of the new node
+        int parent = NIL;
+        int current = pool.getRoot();
+        while (current != NIL) {
+            parent = current;
+            int currentValue = pool.getValue(current);
+            if (value < currentValue) {
+                current = pool.getLeft(current);
+            } else if (value > currentValue) {
+                current = pool.getRight(current);
+            } else {
+                pool.countDuplicate(current);  // Duplicate, skip it (or count it)
+                return;
+            }
+        }
+        
+        int node = pool.addNode(value);  // New nodes are red
+        if (node >= parents.length) {
+            parents = Arrays.copyOf(parents, pool.capacity());
+        }
+        parents[node] = parent;
+        if (parent == NIL) {
+            pool.setRoot(node);
+        } else if (value < pool.getValue(parent)) {
+            pool.setLeft(parent, node);
+        } else {
+            pool.setRight(parent, node);
+        }
+        
+        fixAfterInsert(node);
+    }
+    
+    @Override
+    public NodePool build() {
+        return pool;
+    }
+    
+    public long getRotations() {
+        return rotations;
+    }
+    
+    /*
+     * The new node is red, so the only rule that can break is "no red node with a
+     * red child". While the parent is red:
+     * - if the uncle is red too, recolor parent and uncle black, grandparent red,
+     *   and continue from the grandparent (no rotation)
+     * - otherwise rotate once or twice around the grandparent, and we're done
+     */
+    private void fixAfterInsert(int node) {
+        while (parents[node] != NIL && pool.isRed(parents[node])) {
+            int parent = parents[node];
+            int grandparent = parents[parent];  // Exists because a red node is never the root
+            
+            if (parent == pool.getLeft(grandparent)) {
+                int uncle = pool.getRight(grandparent);
+                if (uncle != NIL && pool.isRed(uncle)) {
+                    pool.setRed(parent, false);
+                    pool.setRed(uncle, false);
+                    pool.setRed(grandparent, true);
+                    node = grandparent;
+                } else {
+                    if (node == pool.getRight(parent)) {
+                        // Inner grandchild: turn it into the outer case first
+                        node = parent;
+                        rotateLeft(node);
+                        parent = parents[node];
+                    }
+                    pool.setRed(parent, false);
+                    pool.setRed(grandparent, true);
+                    rotateRight(grandparent);
+                }
+            } else {
+                // Mirror image of the case above
+                int uncle = pool.getLeft(grandparent);
+                if (uncle != NIL && pool.isRed(uncle)) {
+                    pool.setRed(parent, false);
+                    pool.setRed(uncle, false);
+                    pool.setRed(grandparent, true);
+                    node = grandparent;
+                } else {
+                    if (node == pool.getLeft(parent)) {
+                        node = parent;
+                        rotateRight(node);
+                        parent = parents[node];
+                    }
+                    pool.setRed(parent, false);
+                    pool.setRed(grandparent, true);
+                    rotateLeft(grandparent);
+                }
+            }
+        }
+        pool.setRed(pool.getRoot(), false);
+    }
+    
+    /*
+     *     node                pivot
+     *     /  \                /   \
+     *    A   pivot    ->    node   C
+     *        /  \           /  \
+     *       B    C         A    B
+     */
+    private void rotateLeft(int node) {
+        int pivot = pool.getRight(node);
+        int inner = pool.getLeft(pivot);
+        pool.setRight(node, inner);
+        if (inner != NIL) {
+            parents[inner] = node;
+        }
+        replaceChild(node, pivot);
+        pool.setLeft(pivot, node);
+        parents[node] = pivot;
+        rotations++;
+    }
+    
+    // Mirror image of rotateLeft
+    private void rotateRight(int node) {
+        int pivot = pool.getLeft(node);
+        int inner = pool.getRight(pivot);
+        pool.setLeft(node, inner);
+        if (inner != NIL) {
+            parents[inner] = node;
+        }
+        replaceChild(node, pivot);
+        pool.setRight(pivot, node);
+        parents[node] = pivot;
+        rotations++;
+    }
+    
+    // Puts pivot where node used to hang (under node's parent, or as the root)
+    private void replaceChild(int node, int pivot) {
+        int parent = parents[node];
+        parents[pivot] = parent;
+        if (parent == NIL) {
+            pool.setRoot(pivot);
+        } else if (node == pool.getLeft(parent)) {
+            pool.setLeft(parent, pivot);
+        } else {
+            pool.setRight(parent, pivot);
+        }
+    }
+}
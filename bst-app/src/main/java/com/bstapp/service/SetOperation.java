@@ -0,0 +1,38 @@
+package com.bstapp.service;
+
+/*
+ * This enum lists the ways two saved trees can be combined (POST /api/trees/merge).
+ * 
+ * UNION keeps every value that is in either tree, INTERSECTION only the values
+ * that are in both, and DIFFERENCE the values of the first tree that are not in
+ * the second one (so it's the only one where the order of the trees matters).
+ */
+public enum SetOperation {
+    UNION,
+    INTERSECTION,
+    DIFFERENCE;
+    
+    /*
+     * Converts the "operation" value from the request JSON. Missing or empty means
+     * UNION, the comparison ignores upper/lower case, and unknown values throw
+     * IllegalArgumentException, which becomes a 400 Bad Request.
+     */
+    public static SetOperation fromString(String value) {
+        if (value == null || value.isBlank()) {
+            return UNION;
+        }
+        
+        switch (value.trim().toLowerCase()) {
+            case "union":
+                return UNION;
+            case "intersection":
+            case "intersect":
+                return INTERSECTION;
+            case "difference":
+            case "minus":
+                return DIFFERENCE;
+            default:
+                throw new IllegalArgumentException("Unknown set operation: " + value);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.bstapp.service;
+
+/*
+ * NodePool for trees whose size isn't known up front, like the ones built while a
+ * request body is still being read (BstService.streamAndSaveTree).
+ * 
+ * newPool picks heap or off-heap storage from the expected size, but a streamed
+ * body only has a Content-Length, and that's just a guess (capped, so a wrong
+ * header can't allocate a huge array). So the decision is made from the real
+ * count instead: the nodes start in a HeapNodePool, and when the tree reaches the
+ * off-heap threshold they are copied once into an OffHeapNodePool, which is used
+ * from then on. Node indices stay the same, so the engine doesn't notice.
+ * 
+ * Every call is passed on to the current pool. That's one more method call per
+ * access, which is why the pools with a known size don't go through this class.
+ */
+final class SpillingNodePool extends NodePool {
+    
+    private final long offHeapThreshold;
+    private NodePool current;
+    
+    SpillingNodePool(int expectedSize, long offHeapThreshold) {
+        this.offHeapThreshold = offHeapThreshold;
+        this.current = expectedSize >= offHeapThreshold ? new OffHeapNodePool() : new HeapNodePool(expectedSize);
+    }
+    
+    @Override
+    public int addNode(int value) {
+        spillIfNeeded(1);
+        int node = current.addNode(value);
+        size = current.size();
+        return node;
+    }
+    
+    @Override
+    public int addNodes(int count) {
+        spillIfNeeded(count);
+        int first = current.addNodes(count);
+        size = current.size();
+        return first;
+    }
+    
+    // True once the nodes are in direct memory
+    boolean isOffHeap() {
+        return current instanceof OffHeapNodePool;
+    }
+    
+    // Moves the nodes off-heap if the pool is about to reach the threshold
+    private void spillIfNeeded(int more) {
+        if (isOffHeap() || (long) size + more < offHeapThreshold) {
+            return;
+        }
+        OffHeapNodePool offHeap = new OffHeapNodePool();
+        try {
+            if (current.hasColors()) {
+                offHeap.enableColors();
+            }
+            if (current.hasCounts()) {
+                offHeap.enableCounts();
+            }
+            for (int node = 0; node < size; node++) {
+                offHeap.addNode(current.getValue(node));
+                offHeap.setLeft(node, current.getLeft(node));
+                offHeap.setRight(node, current.getRight(node));
+                if (current.hasColors()) {
+                    offHeap.setRed(node, current.isRed(node));
+                }
+                if (current.hasCounts()) {
+                    offHeap.setCount(node, current.getCount(node));
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            offHeap.close();  // Out of direct memory, for example
+            throw e;
+        }
+        current = offHeap;  // The heap arrays are garbage now
+    }
+    
+    @Override
+    public int getValue(int node) {
+        return current.getValue(node);
+    }
+    
+    @Override
+    public void setValue(int node, int value) {
+        current.setValue(node, value);
+    }
+    
+    @Override
+    public int getLeft(int node) {
+        return current.getLeft(node);
+    }
+    
+    @Override
+    public void setLeft(int node, int child) {
+        current.setLeft(node, child);
+    }
+    
+    @Override
+    public int getRight(int node) {
+        return current.getRight(node);
+    }
+    
+    @Override
+    public void setRight(int node, int child) {
+        current.setRight(node, child);
+    }
+    
+    @Override
+    public int capacity() {
+        return current.capacity();
+    }
+    
+    @Override
+    public void enableColors() {
+        current.enableColors();
+    }
+    
+    @Override
+    public boolean hasColors() {
+        return current.hasColors();
+    }
+    
+    @Override
+    public boolean isRed(int node) {
+        return current.isRed(node);
+    }
+    
+    @Override
+    public void setRed(int node, boolean isRed) {
+        current.setRed(node, isRed);
+    }
+    
+    @Override
+    public void enableCounts() {
+        current.enableCounts();
+    }
+    
+    @Override
+    public boolean hasCounts() {
+        return current.hasCounts();
+    }
+    
+    @Override
+    public int getCount(int node) {
+        return current.getCount(node);
+    }
+    
+    @Override
+    public void setCount(int node, int count) {
+        current.setCount(node, count);
+    }
+    
+    @Override
+    public void close() {
+        current.close();
+    }
+}
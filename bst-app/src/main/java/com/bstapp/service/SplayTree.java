@@ -0,0 +1,203 @@
+package com.bstapp.service;
+
+/*
+ * Splay tree: a BST that moves every value it touches to the root.
+ * 
+ * Each insert and each lookup ends with a "splay" of the value: rotations along the
+ * search path until that node is the root. A value that is used a lot therefore
+ * stays near the top, and the values that aren't used sink down. For skewed
+ * traffic (a few hot values asked for over and over) most lookups only walk a
+ * couple of levels, whatever the size of the tree.
+ * 
+ * There's no balance information at all. A single operation can still be slow (the
+ * tree can even become a list, e.g. after sorted inserts), but the rotations of a
+ * splay roughly halve the depth of every node on the path, so any sequence of m
+ * operations costs O(m log n) in total: amortized O(log n) per operation. And for
+ * skewed traffic it's much better than that (a value with access frequency p costs
+ * about O(log 1/p)).
+ * 
+ * I use the top-down splay from Sleator and Tarjan's paper: on the way down the
+ * nodes we pass are hung into a "left tree" (all smaller than the value) and a
+ * "right tree" (all bigger), and at the end those two become the children of the
+ * node we stopped at. It's one loop without a parent array or recursion, so deep
+ * trees are no problem.
+ * 
+ * The nodes live in a NodePool like the other engines. The same class is also the
+ * lookup copy of a saved tree in the "splay" lookup mode (see PersistentTree.splay).
+ * Lookups change the tree, so contains() is synchronized: requests for the same tree
+ * take turns instead of reading it at the same time like with FrozenTree.
+ * 
+ * A duplicate is splayed to the root and then handed to NodePool.countDuplicate,
+ * which drops it or counts it in a multiset pool, same as in the other engines.
+ */
+public class SplayTree implements TreeEngine {
+    
+    private final NodePool pool;
+    
+    // How many rotations were done so far, used in TreeEngineBenchmark
+    private long rotations;
+    
+    public SplayTree() {
+        this(new HeapNodePool(16));
+    }
+    
+    // Works on the tree in the given pool; it can be empty or already hold a tree
+    public SplayTree(NodePool pool) {
+        this.pool = pool;
+    }
+    
+    /*
+     * Splays value to the root. If it's already there it just stays; otherwise
+     * the new node becomes the root, with the old root (now holding the closest
+     * value) as one child.
+     */
+    @Override
+    public synchronized void insert(int value) {
+        int root = pool.getRoot();
+        if (root == NodePool.NIL) {
+            pool.setRoot(pool.addNode(value));
+            return;
+        }
+        
+        root = splay(root, value);
+        int rootValue = pool.getValue(root);
+        if (value == rootValue) {
+            pool.countDuplicate(root);
+            pool.setRoot(root);  // Duplicate, but it's still the root now
+            return;
+        }
+        
+        int node = pool.addNode(value);
+        if (value < rootValue) {
+            pool.setLeft(node, pool.getLeft(root));
+            pool.setRight(node, root);
+            pool.setLeft(root, NodePool.NIL);
+        } else {
+            pool.setRight(node, pool.getRight(root));
+            pool.setLeft(node, root);
+            pool.setRight(root, NodePool.NIL);
+        }
+        pool.setRoot(node);
+    }
+    
+    /*
+     * Is value in the tree? Afterwards the value (or, if it's missing, the last
+     * node on its search path) is the root.
+     */
+    public synchronized boolean contains(int value) {
+        int root = pool.getRoot();
+        if (root == NodePool.NIL) {
+            return false;
+        }
+        root = splay(root, value);
+        pool.setRoot(root);
+        return pool.getValue(root) == value;
+    }
+    
+    @Override
+    public NodePool build() {
+        return pool;
+    }
+    
+    public long getRotations() {
+        return rotations;
+    }
+    
+    // Number of values in the tree
+    public int size() {
+        return pool.size();
+    }
+    
+    // The value at the root, i.e. the last one inserted or looked up (for tests)
+    synchronized int rootValue() {
+        return pool.getValue(pool.getRoot());
+    }
+    
+    /*
+     * Top-down splay. Returns the new root: the node with value, or the last node
+     * on the search path if value isn't in the tree.
+     * 
+     * Going left (value < node): if the value is also left of the left child, the
+     * two nodes are rotated first (zig-zig), which is the step that makes the
+     * amortized bound work. Then the node and everything right of it belong to the
+     * right tree: it's hung in as the left child of the smallest node there
+     * (rightMin), and the walk continues in its left subtree. Going right is the
+     * mirror image. Zig-zag cases need no special code, they are just a "link
+     * right" followed by a "link left".
+     */
+    private int splay(int node, int value) {
+        int leftRoot = NodePool.NIL;
+        int leftMax = NodePool.NIL;
+        int rightRoot = NodePool.NIL;
+        int rightMin = NodePool.NIL;
+        
+        while (true) {
+            int nodeValue = pool.getValue(node);
+            if (value < nodeValue) {
+                int child = pool.getLeft(node);
+                if (child == NodePool.NIL) {
+                    break;
+                }
+                if (value < pool.getValue(child)) {
+                    // Rotate right
+                    pool.setLeft(node, pool.getRight(child));
+                    pool.setRight(child, node);
+                    node = child;
+                    rotations++;
+                    if (pool.getLeft(node) == NodePool.NIL) {
+                        break;
+                    }
+                }
+                // Link right
+                if (rightMin == NodePool.NIL) {
+                    rightRoot = node;
+                } else {
+                    pool.setLeft(rightMin, node);
+                }
+                rightMin = node;
+                node = pool.getLeft(node);
+            } else if (value > nodeValue) {
+                int child = pool.getRight(node);
+                if (child == NodePool.NIL) {
+                    break;
+                }
+                if (value > pool.getValue(child)) {
+                    // Rotate left
+                    pool.setRight(node, pool.getLeft(child));
+                    pool.setLeft(child, node);
+                    node = child;
+                    rotations++;
+                    if (pool.getRight(node) == NodePool.NIL) {
+                        break;
+                    }
+                }
+                // Link left
+                if (leftMax == NodePool.NIL) {
+                    leftRoot = node;
+                } else {
+                    pool.setRight(leftMax, node);
+                }
+                leftMax = node;
+                node = pool.getRight(node);
+            } else {
+                break;
+            }
+        }
+        
+        // Reassemble: the node's subtrees go to the inner edges of the side trees,
+        // and the side trees become its children
+        if (leftMax == NodePool.NIL) {
+            leftRoot = pool.getLeft(node);
+        } else {
+            pool.setRight(leftMax, pool.getLeft(node));
+        }
+        if (rightMin == NodePool.NIL) {
+            rightRoot = pool.getRight(node);
+        } else {
+            pool.setLeft(rightMin, pool.getRight(node));
+        }
+        pool.setLeft(node, leftRoot);
+        pool.setRight(node, rightRoot);
+        return node;
+    }
+}
@@ -0,0 +1,270 @@
+package com.bstapp.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * The structural difference between two saved trees a and b, returned as JSON by
+ * GET /api/trees/diff. See compare() for how it's found.
+ * 
+ * - inserted: values that are in b but not in a
+ * - missing: values that are in a but not in b
+ * - relocated: values in both trees that hang under a different parent (or one of
+ *   them is the root). A relocated node takes its subtree with it, and the nodes
+ *   in that subtree that kept their parent aren't listed again, so the list shows
+ *   where the shapes really started to differ.
+ * - divergenceLevel: the first level (the root is level 0) where the trees differ
+ *   when laid on top of each other, i.e. where a position has different values or
+ *   a node in only one of them. null if the trees are identical.
+ * 
+ * The counts are always exact, but the lists stop after limit entries, so two big
+ * trees that have nothing in common don't produce a response with millions of values.
+ */
+public class TreeDiff {
+    
+    private final Integer divergenceLevel;
+    private final int insertedCount;
+    private final int missingCount;
+    private final int relocatedCount;
+    private final List<Integer> inserted;
+    private final List<Integer> missing;
+    private final List<Relocation> relocated;
+    
+    private TreeDiff(Integer divergenceLevel, int insertedCount, int missingCount, int relocatedCount,
+                     List<Integer> inserted, List<Integer> missing, List<Relocation> relocated) {
+        this.divergenceLevel = divergenceLevel;
+        this.insertedCount = insertedCount;
+        this.missingCount = missingCount;
+        this.relocatedCount = relocatedCount;
+        this.inserted = inserted;
+        this.missing = missing;
+        this.relocated = relocated;
+    }
+    
+    /*
+     * Compares two trees in two linear passes, without any JSON:
+     * 
+     * 1. Both trees are walked in order at the same time (like merging two sorted
+     *    lists). A value only on one side is inserted or missing; a value on both
+     *    sides has its parent in a and in b right there, so relocated nodes fall
+     *    out of the same pass. O(n + m), and no map from values to nodes is needed
+     *    because the two walks meet at equal values by themselves.
+     * 2. The trees are laid on top of each other level by level from the roots,
+     *    until a position differs. Subtrees that the two versions share (derived
+     *    and appended trees share most of their nodes) are skipped right away.
+     */
+    public static TreeDiff compare(PersistentTree a, PersistentTree b, int limit) {
+        List<Integer> inserted = new ArrayList<>();
+        List<Integer> missing = new ArrayList<>();
+        List<Relocation> relocated = new ArrayList<>();
+        int insertedCount = 0;
+        int missingCount = 0;
+        int relocatedCount = 0;
+        
+        InorderWalk left = new InorderWalk(a.getRoot());
+        InorderWalk right = new InorderWalk(b.getRoot());
+        while (left.node != null || right.node != null) {
+            if (right.node == null || (left.node != null && left.node.value < right.node.value)) {
+                if (missingCount++ < limit) {
+                    missing.add(left.node.value);
+                }
+                left.next();
+            } else if (left.node == null || right.node.value < left.node.value) {
+                if (insertedCount++ < limit) {
+                    inserted.add(right.node.value);
+                }
+                right.next();
+            } else {
+                if (left.parent != right.parent
+                        && (left.parent == null || right.parent == null || left.parent.value != right.parent.value)) {
+                    if (relocatedCount++ < limit) {
+                        relocated.add(new Relocation(left.node.value, left.position(), right.position()));
+                    }
+                }
+                left.next();
+                right.next();
+            }
+        }
+        
+        return new TreeDiff(firstDifferentLevel(a.getRoot(), b.getRoot()), insertedCount, missingCount,
+                relocatedCount, inserted, missing, relocated);
+    }
+    
+    // Level by level over pairs of nodes at the same position; null if nothing differs
+    private static Integer firstDifferentLevel(PersistentTree.Node a, PersistentTree.Node b) {
+        List<PersistentTree.Node> lefts = new ArrayList<>();
+        List<PersistentTree.Node> rights = new ArrayList<>();
+        lefts.add(a);
+        rights.add(b);
+        for (int level = 0; !lefts.isEmpty(); level++) {
+            List<PersistentTree.Node> nextLefts = new ArrayList<>();
+            List<PersistentTree.Node> nextRights = new ArrayList<>();
+            for (int i = 0; i < lefts.size(); i++) {
+                PersistentTree.Node x = lefts.get(i);
+                PersistentTree.Node y = rights.get(i);
+                if (x == y) {
+                    continue;  // The same subtree object (or both empty), nothing below can differ
+                }
+                if (x == null || y == null || x.value != y.value) {
+                    return level;
+                }
+                nextLefts.add(x.left);
+                nextRights.add(y.left);
+                nextLefts.add(x.right);
+                nextRights.add(y.right);
+            }
+            lefts = nextLefts;
+            rights = nextRights;
+        }
+        return null;
+    }
+    
+    /*
+     * Inorder walk that also knows each node's parent and depth.
+     * Explicit stack, so a tree that is a long list doesn't overflow anything.
+     */
+    private static final class InorderWalk {
+        
+        // The current node (null when the walk is done), its parent and depth
+        PersistentTree.Node node;
+        PersistentTree.Node parent;
+        int depth;
+        
+        private PersistentTree.Node[] nodes = new PersistentTree.Node[32];
+        private PersistentTree.Node[] parents = new PersistentTree.Node[32];
+        private int[] depths = new int[32];
+        private int top;
+        
+        InorderWalk(PersistentTree.Node root) {
+            pushLeftPath(root, null, 0);
+            next();
+        }
+        
+        void next() {
+            if (top == 0) {
+                node = null;
+                return;
+            }
+            top--;
+            node = nodes[top];
+            parent = parents[top];
+            depth = depths[top];
+            pushLeftPath(node.right, node, depth + 1);
+        }
+        
+        // Where the current node is, for the relocated list
+        Position position() {
+            if (parent == null) {
+                return new Position(null, "root", depth);
+            }
+            return new Position(parent.value, node.value < parent.value ? "left" : "right", depth);
+        }
+        
+        private void pushLeftPath(PersistentTree.Node start, PersistentTree.Node startParent, int startDepth) {
+            while (start != null) {
+                if (top == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, top * 2);
+                    parents = Arrays.copyOf(parents, top * 2);
+                    depths = Arrays.copyOf(depths, top * 2);
+                }
+                nodes[top] = start;
+                parents[top] = startParent;
+                depths[top] = startDepth;
+                top++;
+                startParent = start;
+                start = start.left;
+                startDepth++;
+            }
+        }
+    }
+    
+    // ============ Getters ============
+    
+    public Integer getDivergenceLevel() {
+        return divergenceLevel;
+    }
+    
+    public boolean isIdentical() {
+        return divergenceLevel == null;
+    }
+    
+    public int getInsertedCount() {
+        return insertedCount;
+    }
+    
+    public int getMissingCount() {
+        return missingCount;
+    }
+    
+    public int getRelocatedCount() {
+        return relocatedCount;
+    }
+    
+    public List<Integer> getInserted() {
+        return inserted;
+    }
+    
+    public List<Integer> getMissing() {
+        return missing;
+    }
+    
+    public List<Relocation> getRelocated() {
+        return relocated;
+    }
+    
+    /*
+     * A value that is in both trees at different places:
+     * {"value": 40, "a": {"parent": 30, "side": "right", "depth": 2}, "b": {...}}
+     */
+    public static class Relocation {
+        
+        private final int value;
+        private final Position a;
+        private final Position b;
+        
+        Relocation(int value, Position a, Position b) {
+            this.value = value;
+            this.a = a;
+            this.b = b;
+        }
+        
+        public int getValue() {
+            return value;
+        }
+        
+        public Position getA() {
+            return a;
+        }
+        
+        public Position getB() {
+            return b;
+        }
+    }
+    
+    // Where a node hangs in one tree; parent is null for the root
+    public static class Position {
+        
+        private final Integer parent;
+        private final String side;
+        private final int depth;
+        
+        Position(Integer parent, String side, int depth) {
+            this.parent = parent;
+            this.side = side;
+            this.depth = depth;
+        }
+        
+        public Integer getParent() {
+            return parent;
+        }
+        
+        public String getSide() {
+            return side;
+        }
+        
+        public int getDepth() {
+            return depth;
+        }
+    }
+}
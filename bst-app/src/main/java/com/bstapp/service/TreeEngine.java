@@ -0,0 +1,19 @@
+package com.bstapp.service;
+
+/*
+ * Common interface for the different ways of building a tree.
+ * 
+ * The service creates an engine (plain, AVL, red-black or balanced bulk build),
+ * feeds it the numbers one at a time with insert(), and then calls build() to get
+ * the finished tree. Every engine stores its nodes in a NodePool, so the rest of
+ * the service (JSON conversion, saving) doesn't care which engine was used.
+ */
+public interface TreeEngine {
+    
+    // Adds one number to the tree. Duplicates are ignored by every engine, unless the
+    // pool has counts (NodePool.enableCounts): then the existing node counts one more.
+    void insert(int value);
+    
+    // Returns the finished tree. The engine shouldn't be used after this.
+    NodePool build();
+}
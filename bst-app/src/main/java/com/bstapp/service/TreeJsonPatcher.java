@@ -0,0 +1,269 @@
+package com.bstapp.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Adds new leaves to a stored treeJson without writing the whole tree again.
+ * Used by BstService.appendToTree.
+ * 
+ * After an append most of the tree is unchanged, so most of the JSON text is too.
+ * The only difference is that some nodes got a new "left" or "right" field (or, in
+ * a multiset tree, a higher "count"). So instead of re-serializing a million nodes,
+ * I work out where those fields go in the old text and paste them in. Then the cost
+ * is one copy of the old text plus the work for the new nodes.
+ * 
+ * To find a position in the text without reading it, every PersistentTree.Node
+ * knows how long its subtree's JSON is (textLength). The pretty printer indents by
+ * depth, so the length of a subtree depends on where it sits in the tree. But that
+ * part is easy to count: every node writes 3 lines, minus one for the root, whose
+ * "left"/"right" line belongs to the parent. With INDENT spaces per level:
+ * 
+ *   length at depth d = textLength + INDENT * d * (3 * size - 1)
+ * 
+ * where textLength is the length as if the subtree was the whole tree (depth 0).
+ * In a multiset tree every node has a fourth line for its count, so it's 4 * size
+ * there.
+ * 
+ * The same count also gives the line breaks: there is one before each of those
+ * lines. The stored text has the line breaks of the system that wrote it (Jackson
+ * uses the system's separator), which isn't always this one, so textLength counts
+ * every line break as one character ("\n") and patch() reads the separator from
+ * the start of the stored text. For "\r\n" every line is one character longer:
+ * 
+ *   length at depth d = textLength + (INDENT * d + 1) * (3 * size - 1)
+ * 
+ * This only works if the stored text looks exactly like TreeJsonWriter's output
+ * (e.g. not compact JSON, no colors). I check the total length and the characters
+ * around every position I paste at; if anything doesn't match, patch() returns
+ * null and the caller writes everything.
+ */
+final class TreeJsonPatcher {
+    
+    private static final int INDENT = TreeJsonWriter.INDENT;
+    
+    // Lengths of '"value" : ', '"left" : ', '"right" : ' and '"count" : '
+    private static final int VALUE_NAME = 10;
+    private static final int LEFT_NAME = 9;
+    private static final int RIGHT_NAME = 10;
+    private static final int COUNT_NAME = 10;
+    
+    private TreeJsonPatcher() {
+    }
+    
+    /*
+     * Length of the pretty printed JSON of a node at depth 0 with "\n" line breaks,
+     * given its count (0 if it has none) and its children.
+     * Called by the PersistentTree.Node constructor, so it must be O(1). It's an
+     * int to keep the cached nodes small: a stored tree's JSON fits in a String
+     * anyway, and longer subtrees get Integer.MAX_VALUE, which patch() never matches.
+     */
+    static int textLength(int value, int count, PersistentTree.Node left, PersistentTree.Node right) {
+        // '{', newline, indent, "value" and the number
+        long length = 1 + 1 + INDENT + VALUE_NAME + digits(value);
+        if (left != null) {
+            length += 1 + 1 + INDENT + LEFT_NAME + lengthAt(left, 1, 1);
+        }
+        if (right != null) {
+            length += 1 + 1 + INDENT + RIGHT_NAME + lengthAt(right, 1, 1);
+        }
+        if (count > 0) {
+            length += 1 + 1 + INDENT + COUNT_NAME + digits(count);
+        }
+        length += 1 + 1;  // Newline and '}' (no indent at depth 0)
+        return (int) Math.min(length, Integer.MAX_VALUE);
+    }
+    
+    // Length of a subtree's JSON when its root is at the given depth, with line breaks of newline characters
+    static long lengthAt(PersistentTree.Node node, int depth, int newline) {
+        long lines = (node.count > 0 ? 4L : 3L) * node.size - 1;
+        return node.textLength + ((long) INDENT * depth + newline - 1) * lines;
+    }
+    
+    /*
+     * Returns the JSON of after, made by pasting its new nodes into json, which must
+     * be the JSON of before. after has to come from before by inserts only (so every
+     * node of before is still there, with the same children or new leaves below, and
+     * in a multiset tree maybe a higher count).
+     * Returns null if json doesn't have the layout this class expects.
+     */
+    static String patch(String json, PersistentTree before, PersistentTree after) {
+        PersistentTree.Node oldRoot = before.getRoot();
+        if (oldRoot == null || json == null || oldRoot.textLength == Integer.MAX_VALUE) {
+            return null;
+        }
+        
+        // The line breaks of the stored text, which the new fields get too
+        String separator = json.startsWith("{\r\n") ? "\r\n" : json.startsWith("{\n") ? "\n" : null;
+        if (separator == null) {
+            return null;
+        }
+        int newline = separator.length();
+        if (json.length() != lengthAt(oldRoot, 0, newline)) {
+            return null;
+        }
+        
+        // Find the new subtrees. Only copied nodes differ from the old ones, so the
+        // walk never enters the shared parts of the tree.
+        List<Edit> edits = new ArrayList<>();
+        List<Step> stack = new ArrayList<>();
+        stack.add(new Step(after.getRoot(), oldRoot, 0, 0));
+        while (!stack.isEmpty()) {
+            Step step = stack.remove(stack.size() - 1);
+            PersistentTree.Node now = step.now;
+            PersistentTree.Node old = step.old;
+            if (now == old) {
+                continue;
+            }
+            if (now.value != old.value || (now.count > 0) != (old.count > 0)
+                    || json.charAt((int) step.offset) != '{') {
+                return null;
+            }
+            
+            int d = step.depth;
+            long afterValue = step.offset + 1 + newline + (long) INDENT * (d + 1) + VALUE_NAME + digits(old.value);
+            long leftOffset = afterValue + 1 + newline + (long) INDENT * (d + 1) + LEFT_NAME;
+            long rightOffset = (old.left == null ? afterValue : leftOffset + lengthAt(old.left, d + 1, newline))
+                    + 1 + newline + (long) INDENT * (d + 1) + RIGHT_NAME;
+            long closing = step.offset + lengthAt(old, d, newline) - 1 - INDENT * d - newline;
+            if (!json.startsWith(Integer.toString(old.value), (int) (afterValue - digits(old.value)))) {
+                return null;
+            }
+            
+            // The count is the last field, so a new right child goes in front of it
+            long afterRight = closing;
+            if (old.count > 0) {
+                long countOffset = closing - digits(old.count);
+                afterRight = countOffset - COUNT_NAME - INDENT * (d + 1) - newline - 1;
+                if (!json.startsWith("\"count\" : " + old.count, (int) countOffset - COUNT_NAME)) {
+                    return null;
+                }
+                if (now.count != old.count) {
+                    edits.add(new Edit(countOffset, digits(old.count), Integer.toString(now.count)));
+                }
+            }
+            
+            if (now.left != old.left) {
+                if (old.left == null) {
+                    edits.add(new Edit(afterValue, "left", now.left, d + 1));
+                } else {
+                    stack.add(new Step(now.left, old.left, leftOffset, d + 1));
+                }
+            }
+            if (now.right != old.right) {
+                if (old.right == null) {
+                    // Right before the closing brace (or the count)
+                    if (!json.startsWith(separator, (int) closing)
+                            || !json.startsWith("}", (int) closing + newline + INDENT * d)) {
+                        return null;
+                    }
+                    edits.add(new Edit(afterRight, "right", now.right, d + 1));
+                } else {
+                    stack.add(new Step(now.right, old.right, rightOffset, d + 1));
+                }
+            }
+        }
+        
+        // Copy the old text, pasting the new fields and counts in at their positions
+        edits.sort((a, b) -> Long.compare(a.offset, b.offset));
+        long extra = 0;
+        for (Edit edit : edits) {
+            if (edit.subtree == null) {
+                extra += edit.text.length() - edit.replaced;
+            } else {
+                extra += 1 + newline + (long) INDENT * edit.depth + edit.name.length() + 5
+                        + lengthAt(edit.subtree, edit.depth, newline);
+            }
+        }
+        if (json.length() + extra > Integer.MAX_VALUE - 8) {
+            return null;
+        }
+        StringBuilder out = new StringBuilder((int) (json.length() + extra));
+        char[] indent = new char[0];
+        int copied = 0;
+        for (Edit edit : edits) {
+            int offset = (int) edit.offset;
+            out.append(json, copied, offset);
+            copied = offset;
+            if (edit.subtree == null) {
+                out.append(edit.text);
+                copied += edit.replaced;
+                continue;
+            }
+            
+            int spaces = INDENT * edit.depth;
+            if (indent.length < spaces) {
+                indent = new char[spaces * 2];
+                Arrays.fill(indent, ' ');
+            }
+            out.append(',').append(separator);
+            out.append(indent, 0, spaces);
+            out.append('"').append(edit.name).append("\" : ");
+            TreeJsonWriter.write(PersistentTree.toNodePool(edit.subtree), edit.depth, separator, out);
+        }
+        out.append(json, copied, json.length());
+        return out.toString();
+    }
+    
+    // Characters of value written as a decimal number, including the minus sign
+    private static int digits(int value) {
+        if (value == Integer.MIN_VALUE) {
+            return 11;
+        }
+        int digits = value < 0 ? 2 : 1;
+        int rest = Math.abs(value);
+        while (rest >= 10) {
+            rest /= 10;
+            digits++;
+        }
+        return digits;
+    }
+    
+    // A node of the new tree, the same node of the old tree, and where the old one is in the text
+    private static final class Step {
+        final PersistentTree.Node now;
+        final PersistentTree.Node old;
+        final long offset;
+        final int depth;
+        
+        Step(PersistentTree.Node now, PersistentTree.Node old, long offset, int depth) {
+            this.now = now;
+            this.old = old;
+            this.offset = offset;
+            this.depth = depth;
+        }
+    }
+    
+    /*
+     * A change at offset in the old text: either a new subtree that becomes the
+     * "left" or "right" field written there, or a count whose old digits (replaced
+     * characters) are overwritten with text.
+     */
+    private static final class Edit {
+        final long offset;
+        final String name;
+        final PersistentTree.Node subtree;
+        final int depth;
+        final int replaced;
+        final String text;
+        
+        Edit(long offset, String name, PersistentTree.Node subtree, int depth) {
+            this.offset = offset;
+            this.name = name;
+            this.subtree = subtree;
+            this.depth = depth;
+            this.replaced = 0;
+            this.text = null;
+        }
+        
+        Edit(long offset, int replaced, String text) {
+            this.offset = offset;
+            this.name = null;
+            this.subtree = null;
+            this.depth = 0;
+            this.replaced = replaced;
+            this.text = text;
+        }
+    }
+}
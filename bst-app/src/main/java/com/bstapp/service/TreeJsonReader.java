@@ -0,0 +1,187 @@
+package com.bstapp.service;
+
+import java.util.Arrays;
+
+/*
+ * Reads a stored treeJson back into a NodePool. It's the opposite of TreeJsonWriter.
+ * 
+ * I could have used Jackson here too, but Jackson refuses to read anything nested
+ * deeper than 1000 levels, and an unbalanced tree from sorted input is easily
+ * 100,000 levels deep. So this is a small hand-written parser with an explicit stack,
+ * which only understands the tree format:
+ * 
+ *   null, or an object with "value" (a number), optional "left" and "right"
+ *   (an object or null), an optional "count" (a positive number, multiset trees)
+ *   and an optional "color" ("red" or "black")
+ * 
+ * Whitespace between tokens doesn't matter, so compact JSON works as well as the
+ * pretty printed one. Anything else is an IllegalArgumentException.
+ */
+public final class TreeJsonReader {
+    
+    private final String json;
+    private int pos;
+    
+    private TreeJsonReader(String json) {
+        this.json = json;
+    }
+    
+    /*
+     * Parses the JSON into a new HeapNodePool. The nodes get indices in preorder
+     * (a parent always comes before its children), which PersistentTree relies on.
+     */
+    public static NodePool read(String json) {
+        if (json == null) {
+            throw new IllegalArgumentException("Tree JSON is missing");
+        }
+        TreeJsonReader reader = new TreeJsonReader(json);
+        NodePool pool = new HeapNodePool(Math.max(16, json.length() / 40));
+        reader.readTree(pool);
+        reader.skipWhitespace();
+        if (reader.pos != json.length()) {
+            throw reader.error("Unexpected content after the tree");
+        }
+        return pool;
+    }
+    
+    private void readTree(NodePool pool) {
+        skipWhitespace();
+        if (readNull()) {
+            return;
+        }
+        
+        // The objects we are inside of, innermost last
+        int[] stack = new int[64];
+        int depth = 0;
+        stack[0] = openObject(pool);
+        pool.setRoot(stack[0]);
+        boolean firstField = true;
+        
+        while (depth >= 0) {
+            int node = stack[depth];
+            skipWhitespace();
+            
+            if (peek() == '}') {
+                pos++;
+                depth--;
+                firstField = false;  // The parent continues after a field
+                continue;
+            }
+            if (!firstField) {
+                expect(',');
+                skipWhitespace();
+            }
+            firstField = false;
+            
+            String name = readString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            
+            switch (name) {
+                case "value":
+                    pool.setValue(node, readInt());
+                    break;
+                case "count":
+                    int count = readInt();
+                    if (count < 1) {
+                        throw error("Count must be at least 1, got " + count);
+                    }
+                    pool.enableCounts();
+                    pool.setCount(node, count);
+                    break;
+                case "color":
+                    String color = readString();
+                    if (!color.equals("red") && !color.equals("black")) {
+                        throw error("Unknown color '" + color + "'");
+                    }
+                    pool.enableColors();
+                    pool.setRed(node, color.equals("red"));
+                    break;
+                case "left":
+                case "right":
+                    if (readNull()) {
+                        break;
+                    }
+                    int child = openObject(pool);
+                    if (name.equals("left")) {
+                        pool.setLeft(node, child);
+                    } else {
+                        pool.setRight(node, child);
+                    }
+                    depth++;
+                    if (depth == stack.length) {
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    }
+                    stack[depth] = child;
+                    firstField = true;
+                    break;
+                default:
+                    throw error("Unknown field '" + name + "'");
+            }
+        }
+    }
+    
+    // Reads '{' and adds a node for the object; its value is filled in when we get to it
+    private int openObject(NodePool pool) {
+        expect('{');
+        return pool.addNode(0);
+    }
+    
+    private boolean readNull() {
+        if (json.startsWith("null", pos)) {
+            pos += 4;
+            return true;
+        }
+        return false;
+    }
+    
+    private int readInt() {
+        int start = pos;
+        if (pos < json.length() && json.charAt(pos) == '-') {
+            pos++;
+        }
+        while (pos < json.length() && Character.isDigit(json.charAt(pos))) {
+            pos++;
+        }
+        try {
+            return Integer.parseInt(json, start, pos, 10);
+        } catch (NumberFormatException e) {
+            pos = start;
+            throw error("Expected an int value");
+        }
+    }
+    
+    // Field names and colors never contain escapes, so I don't handle them
+    private String readString() {
+        expect('"');
+        int end = json.indexOf('"', pos);
+        if (end < 0) {
+            throw error("Unterminated string");
+        }
+        String value = json.substring(pos, end);
+        pos = end + 1;
+        return value;
+    }
+    
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        pos++;
+    }
+    
+    private char peek() {
+        return pos < json.length() ? json.charAt(pos) : '\0';
+    }
+    
+    private void skipWhitespace() {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+    }
+    
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Invalid tree JSON at position " + pos + ": " + message);
+    }
+}
@@ -0,0 +1,227 @@
+package com.bstapp.service;
+
+import java.util.Arrays;
+
+/*
+ * Writes a NodePool tree as JSON, character for character the same as what
+ * Jackson's pretty printer produces for the equivalent BstNode tree:
+ * 
+ *   {
+ *     "value" : 7,
+ *     "left" : {
+ *       "value" : 3
+ *     },
+ *     "right" : {
+ *       "value" : 9
+ *     }
+ *   }
+ * 
+ * Multiset trees also have a "count" field after "right" in every node, and
+ * red-black trees a "color" as the last field, again in the same order as Jackson
+ * writes the BstNode and RbNode properties.
+ * 
+ * Stored trees have always been written by Jackson, so the format must not change.
+ * Writing it by hand has two advantages: there are no BstNode objects to create
+ * just for the conversion, and it uses an explicit stack instead of recursion, so
+ * a very deep (unbalanced) tree can't cause a StackOverflowError here either.
+ * 
+ * The JSON has to fit in one String (the row stores it as one), and it grows with
+ * the depth of every node because of the indentation: about 160 characters per
+ * node in an AVL tree of 5M nodes, and quadratic for sorted input without
+ * balancing. So write() first adds up the exact length without writing anything
+ * (length), refuses trees that can't fit before allocating, and otherwise sizes
+ * the StringBuilder exactly, so it never has to grow and copy.
+ */
+public final class TreeJsonWriter {
+    
+    // Jackson's default pretty printer uses the system line separator and two spaces
+    static final String NEWLINE = System.lineSeparator();
+    static final int INDENT = 2;
+    
+    // The longest String (and StringBuilder) most JVMs can allocate
+    static final long MAX_LENGTH = Integer.MAX_VALUE - 8;
+    
+    // What we still have to do for a node on the stack
+    private static final int WRITE_LEFT = 0;
+    private static final int WRITE_RIGHT = 1;
+    private static final int CLOSE = 2;
+    
+    private TreeJsonWriter() {
+    }
+    
+    public static String write(NodePool pool) {
+        if (pool.getRoot() == NodePool.NIL) {
+            return "null";  // Same as Jackson for a null root
+        }
+        
+        long length = length(pool, 0);
+        if (length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Tree is too big to save: its JSON would have " + length
+                    + " characters, the limit is " + MAX_LENGTH);
+        }
+        StringBuilder out = new StringBuilder((int) length);
+        write(pool, 0, out);
+        return out.toString();
+    }
+    
+    /*
+     * The number of characters write(pool, depth, out) appends, without writing them.
+     * It walks the same nodes (with an explicit stack too) and adds up what each
+     * node's lines cost at its indentation level, so it's much cheaper than writing.
+     */
+    static long length(NodePool pool, int depth) {
+        int newline = NEWLINE.length();
+        long length = 0;
+        int[] nodes = new int[64];
+        int[] levels = new int[64];
+        int top = 0;
+        nodes[0] = pool.getRoot();
+        levels[0] = depth + 1;
+        
+        while (top >= 0) {
+            int node = nodes[top];
+            int level = levels[top];  // Indentation level of this node's fields
+            top--;
+            long line = newline + (long) INDENT * level;
+            
+            // "{", then "value" : 7 on its own line, and "}" one level less indented on the last line
+            length += 1 + line + "\"value\" : ".length() + digits(pool.getValue(node));
+            length += line - INDENT + 1;
+            if (pool.hasCounts()) {
+                length += 1 + line + "\"count\" : ".length() + digits(pool.getCount(node));
+            }
+            if (pool.hasColors()) {
+                length += 1 + line + "\"color\" : ".length() + (pool.isRed(node) ? "\"red\"" : "\"black\"").length();
+            }
+            
+            int left = pool.getLeft(node);
+            int right = pool.getRight(node);
+            if (top + 2 >= nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                levels = Arrays.copyOf(levels, levels.length * 2);
+            }
+            if (left != NodePool.NIL) {
+                length += 1 + line + "\"left\" : ".length();
+                nodes[++top] = left;
+                levels[top] = level + 1;
+            }
+            if (right != NodePool.NIL) {
+                length += 1 + line + "\"right\" : ".length();
+                nodes[++top] = right;
+                levels[top] = level + 1;
+            }
+        }
+        return length;
+    }
+    
+    // Characters of Integer.toString(value), without making the String
+    private static int digits(int value) {
+        long rest = Math.abs((long) value);
+        int digits = value < 0 ? 2 : 1;
+        while (rest >= 10) {
+            rest /= 10;
+            digits++;
+        }
+        return digits;
+    }
+    
+    /*
+     * Writes a (non-empty) tree as if its root was depth levels down in a bigger
+     * tree, so the indentation fits when it's pasted into existing JSON
+     * (see TreeJsonPatcher). depth 0 is the normal, top-level tree.
+     */
+    static void write(NodePool pool, int depth, StringBuilder out) {
+        write(pool, depth, NEWLINE, out);
+    }
+    
+    /*
+     * Same with other line breaks than this system's. TreeJsonPatcher pastes with
+     * whatever the stored text has, which depends on where it was written.
+     */
+    static void write(NodePool pool, int depth, String newline, StringBuilder out) {
+        int root = pool.getRoot();
+        Indent indent = new Indent();
+        
+        int[] nodes = new int[64];
+        int[] steps = new int[64];
+        int top = 0;
+        nodes[0] = root;
+        steps[0] = WRITE_LEFT;
+        openNode(out, indent, newline, pool, root, depth + 1);
+        
+        while (top >= 0) {
+            int node = nodes[top];
+            int level = depth + top + 1;  // Indentation level of this node's fields
+            int child = NodePool.NIL;
+            
+            if (steps[top] == WRITE_LEFT) {
+                steps[top] = WRITE_RIGHT;
+                child = pool.getLeft(node);
+                if (child != NodePool.NIL) {
+                    field(out, indent, newline, level, "left");
+                }
+            } else if (steps[top] == WRITE_RIGHT) {
+                steps[top] = CLOSE;
+                child = pool.getRight(node);
+                if (child != NodePool.NIL) {
+                    field(out, indent, newline, level, "right");
+                }
+            } else {
+                if (pool.hasCounts()) {
+                    field(out, indent, newline, level, "count");
+                    out.append(pool.getCount(node));
+                }
+                if (pool.hasColors()) {
+                    field(out, indent, newline, level, "color");
+                    out.append(pool.isRed(node) ? "\"red\"" : "\"black\"");
+                }
+                out.append(newline);
+                indent.append(out, level - 1);
+                out.append('}');
+                top--;
+                continue;
+            }
+            
+            if (child != NodePool.NIL) {
+                top++;
+                if (top == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, top * 2);
+                    steps = Arrays.copyOf(steps, top * 2);
+                }
+                nodes[top] = child;
+                steps[top] = WRITE_LEFT;
+                openNode(out, indent, newline, pool, child, level + 1);
+            }
+        }
+    }
+    
+    // Writes the opening brace and the "value" field of a node
+    private static void openNode(StringBuilder out, Indent indent, String newline, NodePool pool, int node, int level) {
+        out.append('{').append(newline);
+        indent.append(out, level);
+        out.append("\"value\" : ").append(pool.getValue(node));
+    }
+    
+    // Writes ",\n<indent>"name" : " before the next field of an object
+    private static void field(StringBuilder out, Indent indent, String newline, int level, String name) {
+        out.append(',').append(newline);
+        indent.append(out, level);
+        out.append('"').append(name).append("\" : ");
+    }
+    
+    /*
+     * A string of spaces that grows as deeper levels are needed,
+     * so indenting is a single append instead of a loop per line.
+     */
+    private static final class Indent {
+        private String spaces = " ".repeat(64);
+        
+        void append(StringBuilder out, int level) {
+            int length = level * INDENT;
+            if (length > spaces.length()) {
+                spaces = " ".repeat(Math.max(length, spaces.length() * 2));
+            }
+            out.append(spaces, 0, length);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.bstapp.service;
+
+/*
+ * Thrown when a request names a saved tree id that isn't in the database,
+ * or a shared tree name that was never created.
+ * The controller turns it into a 404 Not Found, so clients can tell
+ * "that tree doesn't exist" apart from "your input is wrong" (400).
+ */
+public class TreeNotFoundException extends RuntimeException {
+    
+    public TreeNotFoundException(Long id) {
+        super("Tree not found: " + id);
+    }
+    
+    public TreeNotFoundException(String sharedTreeName) {
+        super("Shared tree not found: " + sharedTreeName);
+    }
+}
@@ -0,0 +1,272 @@
+package com.bstapp.benchmark;
+
+import com.bstapp.service.BstNode;
+import com.bstapp.service.FrozenTree;
+import com.bstapp.service.HeapNodePool;
+import com.bstapp.service.NodePool;
+import com.bstapp.service.PersistentTree;
+import com.bstapp.service.PlainTree;
+import com.bstapp.service.SplayTree;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+/*
+ * Lookup speed of the different forms a saved tree can have in memory:
+ * 
+ * - BstNode:        the object tree (one pointer per level)
+ * - NodePool:       the index arrays the engines build into (an index per level)
+ * - PersistentTree: the cached version (one pointer per level, like BstNode)
+ * - Eytzinger:      FrozenTree, one int[] in BFS order with the branch-free search
+ * 
+ * The tree is built from random values in random order, like a normal saved tree,
+ * so the three pointer forms are about 2 * ln(n) levels deep on average. The
+ * lookups are random too, half of them for values that are in the tree.
+ * 
+ * Skipped unless you ask for it, like TreeEngineBenchmark:
+ * 
+ *   mvn test -Dtest=LookupBenchmark -Dbenchmark=true
+ *   mvn test -Dtest=LookupBenchmark -Dbenchmark=true -Dbenchmark.size=100000000
+ * 
+ * For 100M keys give the JVM a big heap (-Xmx24g in argLine or MAVEN_OPTS), the
+ * object trees need a few GB each. With less memory, measure only some layouts:
+ * 
+ *   mvn test -Dtest=LookupBenchmark -Dbenchmark=true -Dbenchmark.size=100000000
+ *       -Dbenchmark.layouts=NodePool,Eytzinger
+ * 
+ * compareZipfLookup replays a skewed trace instead (see there), for the splay
+ * lookup mode. -Dbenchmark.zipf sets the exponent (default 0.99, 0 is uniform).
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class LookupBenchmark {
+    
+    private static final int LOOKUPS = 2_000_000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    
+    @Test
+    void compareLookupLayouts() {
+        int size = Integer.getInteger("benchmark.size", 1_000_000);
+        Random random = new Random(42);
+        int[] values = new int[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = random.nextInt();
+        }
+        int[] keys = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            keys[i] = i % 2 == 0 ? values[random.nextInt(size)] : random.nextInt();
+        }
+        
+        System.out.printf("%,d keys, %,d lookups%n", size, LOOKUPS);
+        System.out.printf("%-15s %15s %10s%n", "layout", "lookups/sec", "ns/lookup");
+        
+        // Each form is built inside its own call and gone after it, so only one is in memory at a time
+        List<String> layouts = Arrays.asList(
+                System.getProperty("benchmark.layouts", "NodePool,BstNode,PersistentTree,Eytzinger").split(","));
+        if (layouts.contains("NodePool")) {
+            measurePool(values, keys);
+        }
+        if (layouts.contains("BstNode")) {
+            measureObjects(values, keys);
+        }
+        if (layouts.contains("PersistentTree")) {
+            measureVersion(values, keys);
+        }
+        if (layouts.contains("Eytzinger")) {
+            measureFrozen(values, keys);
+        }
+    }
+    
+    /*
+     * One lookup at a time (contains, with the prefetch read) against the whole
+     * batch at once (containsAll, searches interleaved in groups), on the same
+     * FrozenTree.
+     */
+    @Test
+    void compareBatchLookup() {
+        int size = Integer.getInteger("benchmark.size", 1_000_000);
+        Random random = new Random(42);
+        int[] values = new int[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = random.nextInt();
+        }
+        int[] keys = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            keys[i] = i % 2 == 0 ? values[random.nextInt(size)] : random.nextInt();
+        }
+        FrozenTree frozen = FrozenTree.fromSorted(Arrays.stream(values).sorted().distinct().toArray());
+        
+        System.out.printf("%,d keys, %,d lookups%n", size, LOOKUPS);
+        System.out.printf("%-15s %15s %10s%n", "method", "lookups/sec", "ns/lookup");
+        report("contains", keys, frozen::contains);
+        
+        double best = Double.MAX_VALUE;
+        int hits = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            boolean[] found = frozen.containsAll(keys);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            hits = 0;
+            for (boolean hit : found) {
+                hits += hit ? 1 : 0;
+            }
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, seconds);
+            }
+        }
+        System.out.printf("%-15s %,15.0f %10.1f   (%,d hits)%n", "containsAll", LOOKUPS / best, best * 1e9 / LOOKUPS, hits);
+    }
+    
+    /*
+     * Skewed traffic: the static tree (the saved shape as a NodePool, and its
+     * Eytzinger copy) against the splay tree copy of the same tree.
+     * 
+     * The trace follows a Zipf distribution over the values of the tree: the value
+     * with rank k is asked for with probability proportional to 1 / k^s. With the
+     * usual s around 1, the top 1% of the values get more than half of the lookups.
+     * Which value gets which rank is random, so the hot values are spread over the
+     * whole tree. All lookups are hits.
+     * 
+     * The splay tree is kept from round to round, so the measured rounds see it
+     * warmed up by the trace, like a copy that has been serving traffic for a while.
+     */
+    @Test
+    void compareZipfLookup() {
+        int size = Integer.getInteger("benchmark.size", 1_000_000);
+        double exponent = Double.parseDouble(System.getProperty("benchmark.zipf", "0.99"));
+        Random random = new Random(42);
+        int[] values = new int[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = random.nextInt();
+        }
+        
+        // The values in a shuffled order give the ranks. Not the input order: the first
+        // values inserted are the top of the static tree, and that would favor it.
+        int[] ranked = values.clone();
+        for (int i = size - 1; i > 0; i--) {
+            int other = random.nextInt(i + 1);
+            int swap = ranked[i];
+            ranked[i] = ranked[other];
+            ranked[other] = swap;
+        }
+        int[] keys = new int[LOOKUPS];
+        double[] cumulative = new double[size];
+        double total = 0;
+        for (int rank = 0; rank < size; rank++) {
+            total += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = total;
+        }
+        for (int i = 0; i < LOOKUPS; i++) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            keys[i] = ranked[Math.min(rank < 0 ? -rank - 1 : rank, size - 1)];
+        }
+        
+        NodePool pool = buildPool(values);
+        PersistentTree version = PersistentTree.fromNodePool(pool);
+        FrozenTree frozen = version.freeze();
+        SplayTree splay = version.splay();
+        
+        System.out.printf("%,d keys, %,d lookups, Zipf s = %.2f%n", size, LOOKUPS, exponent);
+        System.out.printf("%-15s %15s %10s%n", "tree", "lookups/sec", "ns/lookup");
+        report("static", keys, value -> poolContains(pool, value));
+        report("Eytzinger", keys, frozen::contains);
+        report("splay", keys, splay::contains);
+        
+        // Levels walked per lookup: the splay tree as the trace left it, against the saved shape
+        System.out.printf("levels per lookup: static %.1f, splay %.1f (%.1f rotations per lookup)%n",
+                averageDepth(pool, keys), averageDepth(splay.build(), keys),
+                splay.getRotations() / (double) LOOKUPS / (WARMUP_ROUNDS + MEASURED_ROUNDS));
+    }
+    
+    // Average number of nodes visited to find the keys, without changing the tree
+    private static double averageDepth(NodePool pool, int[] keys) {
+        long levels = 0;
+        for (int key : keys) {
+            int node = pool.getRoot();
+            while (node != NodePool.NIL) {
+                levels++;
+                int current = pool.getValue(node);
+                if (key == current) {
+                    break;
+                }
+                node = key < current ? pool.getLeft(node) : pool.getRight(node);
+            }
+        }
+        return levels / (double) keys.length;
+    }
+    
+    private static void measurePool(int[] values, int[] keys) {
+        NodePool pool = buildPool(values);
+        report("NodePool", keys, value -> poolContains(pool, value));
+    }
+    
+    private static void measureObjects(int[] values, int[] keys) {
+        BstNode root = buildPool(values).toBstNode();
+        report("BstNode", keys, value -> nodeContains(root, value));
+    }
+    
+    private static void measureVersion(int[] values, int[] keys) {
+        PersistentTree version = PersistentTree.fromNodePool(buildPool(values));
+        report("PersistentTree", keys, version::contains);
+    }
+    
+    private static void measureFrozen(int[] values, int[] keys) {
+        int[] sorted = Arrays.stream(values).sorted().distinct().toArray();
+        FrozenTree frozen = FrozenTree.fromSorted(sorted);
+        report("Eytzinger", keys, frozen::contains);
+    }
+    
+    private static NodePool buildPool(int[] values) {
+        PlainTree tree = new PlainTree(new HeapNodePool(values.length));
+        for (int value : values) {
+            tree.insert(value);
+        }
+        return tree.build();
+    }
+    
+    private static boolean poolContains(NodePool pool, int value) {
+        int node = pool.getRoot();
+        while (node != NodePool.NIL) {
+            int current = pool.getValue(node);
+            if (value == current) {
+                return true;
+            }
+            node = value < current ? pool.getLeft(node) : pool.getRight(node);
+        }
+        return false;
+    }
+    
+    private static boolean nodeContains(BstNode node, int value) {
+        while (node != null) {
+            if (value == node.getValue()) {
+                return true;
+            }
+            node = value < node.getValue() ? node.getLeft() : node.getRight();
+        }
+        return false;
+    }
+    
+    // Best of the measured rounds; the hit count is printed so the JIT can't skip the lookups
+    private static void report(String layout, int[] keys, IntPredicate contains) {
+        double best = Double.MAX_VALUE;
+        int hits = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            hits = 0;
+            for (int key : keys) {
+                if (contains.test(key)) {
+                    hits++;
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, seconds);
+            }
+        }
+        System.out.printf("%-15s %,15.0f %10.1f   (%,d hits)%n", layout, keys.length / best, best * 1e9 / keys.length, hits);
+    }
+}
@@ -0,0 +1,133 @@
+package com.bstapp.benchmark;
+
+import com.bstapp.service.BinaryFormat;
+import com.bstapp.service.BstService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/*
+ * Reading speed of the binary /process-numbers bodies (int32 and varint, see
+ * BinaryNumberReader) against the same numbers as text, all through BstService
+ * like a real request. The speed is in ns per number, because the bodies have
+ * different sizes.
+ * 
+ * Skipped unless you ask for it, like the other benchmarks. The sizes are input
+ * sizes in MB:
+ * 
+ *   mvn test -Dtest=ParseBenchmark -Dbenchmark=true
+ *   mvn test -Dtest=ParseBenchmark -Dbenchmark=true -Dbenchmark.sizes=1,100,1024
+ * 
+ * The text parser against the vector parser is measured with JMH instead, see
+ * NumberParsingBenchmark in src/jmh. The 1 GB input needs a heap of about 5 GB
+ * (-Xmx5g in argLine).
+ * 
+ * The input is random ints (all sizes of numbers, with signs) separated by ", ",
+ * about 12 characters per number.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class ParseBenchmark {
+    
+    /*
+     * Warm-up goes on until about this much input was read (but at least 3 rounds),
+     * so C2 has compiled the parsers before we measure.
+     */
+    private static final long WARMUP_BYTES = 500L << 20;
+    private static final int MEASURED_ROUNDS = 5;
+    
+    @Test
+    void compareBinaryFormats() throws IOException {
+        BstService bstService = new BstService(null, null);
+        System.out.printf("%-8s %-8s %12s %12s %10s%n", "input", "format", "body MB", "ns/number", "speedup");
+        
+        for (String size : System.getProperty("benchmark.sizes", "1,100").split(",")) {
+            String input = makeInput(Long.parseLong(size.trim()) << 20);
+            int[] numbers = bstService.parseNumberArray(input);
+            byte[] int32 = int32Body(numbers);
+            byte[] varints = varintBody(numbers);
+            
+            double text = bestSeconds(bstService, input);
+            double int32Seconds = bestSeconds(bstService, int32, BinaryFormat.INT32);
+            double varintSeconds = bestSeconds(bstService, varints, BinaryFormat.VARINT);
+            
+            String label = size.trim() + " MB";
+            System.out.printf("%-8s %-8s %12.1f %12.2f %10s%n", label, "text",
+                    input.length() / 1048576.0, text * 1e9 / numbers.length, "1.00x");
+            System.out.printf("%-8s %-8s %12.1f %12.2f %9.2fx%n", label, "int32",
+                    int32.length / 1048576.0, int32Seconds * 1e9 / numbers.length, text / int32Seconds);
+            System.out.printf("%-8s %-8s %12.1f %12.2f %9.2fx%n", label, "varint",
+                    varints.length / 1048576.0, varintSeconds * 1e9 / numbers.length, text / varintSeconds);
+        }
+    }
+    
+    // Parses the input several times and returns the fastest measured run in seconds
+    private double bestSeconds(BstService bstService, String input) {
+        long warmupRounds = Math.max(3, WARMUP_BYTES / input.length());
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < warmupRounds + MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            int[] numbers = bstService.parseNumberArray(input);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (numbers.length == 0) {
+                throw new IllegalStateException("Nothing was parsed");
+            }
+            if (round >= warmupRounds) {
+                best = Math.min(best, seconds);
+            }
+        }
+        return best;
+    }
+    
+    // Same for a binary body, read like the controller does: from a stream that knows its length
+    private double bestSeconds(BstService bstService, byte[] body, BinaryFormat format) throws IOException {
+        long warmupRounds = Math.max(3, WARMUP_BYTES / body.length);
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < warmupRounds + MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            int[] numbers = bstService.readBinaryNumbers(new ByteArrayInputStream(body), body.length, format);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (numbers.length == 0) {
+                throw new IllegalStateException("Nothing was read");
+            }
+            if (round >= warmupRounds) {
+                best = Math.min(best, seconds);
+            }
+        }
+        return best;
+    }
+    
+    private static byte[] int32Body(int[] numbers) {
+        ByteBuffer body = ByteBuffer.allocate(numbers.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        body.asIntBuffer().put(numbers);
+        return body.array();
+    }
+    
+    private static byte[] varintBody(int[] numbers) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(numbers.length * 3);
+        for (int number : numbers) {
+            int zigzag = (number << 1) ^ (number >> 31);
+            while ((zigzag & ~0x7F) != 0) {
+                body.write((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            body.write(zigzag);
+        }
+        return body.toByteArray();
+    }
+    
+    // Random ints separated by ", " until the input has the given size (also used by NumberParsingBenchmark)
+    static String makeInput(long bytes) {
+        Random random = new Random(42);
+        StringBuilder input = new StringBuilder((int) Math.min(bytes + 16, Integer.MAX_VALUE - 16));
+        while (input.length() < bytes) {
+            input.append(random.nextInt() >> random.nextInt(32)).append(", ");
+        }
+        return input.toString();
+    }
+}
@@ -0,0 +1,165 @@
+package com.bstapp.benchmark;
+
+import com.bstapp.service.AvlTree;
+import com.bstapp.service.BalanceMode;
+import com.bstapp.service.BstService;
+import com.bstapp.service.BuildMode;
+import com.bstapp.service.HeapNodePool;
+import com.bstapp.service.ParallelPlainTree;
+import com.bstapp.service.PlainTree;
+import com.bstapp.service.RedBlackTree;
+import com.bstapp.service.SplayTree;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/*
+ * Throughput comparison of the tree engines (plain, AVL, red-black, splay),
+ * plus the sorted bulk build used by "mode": "balanced", and the speedup of the
+ * parallel plain build over the sequential one.
+ * 
+ * This is not a normal unit test - it takes a while and only prints numbers,
+ * so it's skipped unless you ask for it:
+ * 
+ *   mvn test -Dtest=TreeEngineBenchmark -Dbenchmark=true
+ *   mvn test -Dtest=TreeEngineBenchmark -Dbenchmark=true -Dbenchmark.size=5000000
+ * 
+ * Each engine builds a tree from the same input a few times. The first rounds
+ * are warm-up so the JIT compiler has done its work, then I report the best
+ * time of the measured rounds as inserts per second, plus the rotation count
+ * for the engines that rotate (AVL, red-black and splay).
+ * 
+ * Inputs:
+ * - random:  uniformly random ints, the friendly case for the plain BST
+ * - sorted:  0, 1, 2, ... the worst case for the plain BST
+ * - append:  sorted, but every 100th value is random, like our batch jobs
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class TreeEngineBenchmark {
+    
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    
+    private final BstService bstService = new BstService(null, null);
+    
+    @Test
+    void compareEngines() {
+        int size = Integer.getInteger("benchmark.size", 1_000_000);
+        
+        // Single-threaded engines only here, the parallel build has its own benchmark below
+        bstService.setParallelThreshold(Long.MAX_VALUE);
+        
+        System.out.printf("%-8s %-10s %15s %12s%n", "input", "engine", "inserts/sec", "rotations");
+        for (String input : new String[] {"random", "sorted", "append"}) {
+            int[] numbers = makeInput(input, size);
+            for (BalanceMode mode : BalanceMode.values()) {
+                double perSecond = size / bestSeconds(() -> bstService.buildTree(numbers, mode, BuildMode.INSERTION));
+                System.out.printf("%-8s %-10s %,15.0f %12s%n", input, mode, perSecond, rotations(numbers, mode));
+            }
+            double perSecond = size / bestSeconds(() -> bstService.buildTree(numbers, BalanceMode.NONE, BuildMode.BALANCED));
+            System.out.printf("%-8s %-10s %,15.0f %12s%n", input, "BALANCED", perSecond, "-");
+        }
+    }
+    
+    /*
+     * Sequential PlainTree against ParallelPlainTree with 1, 2, 4, ... threads up to
+     * the number of cores, on random input. Both build the same tree, so this is
+     * purely about how well the split into pieces scales.
+     */
+    @Test
+    void compareParallelBuild() {
+        int size = Integer.getInteger("benchmark.size", 1_000_000);
+        int[] numbers = makeInput("random", size);
+        
+        double sequential = bestSeconds(() -> {
+            PlainTree tree = new PlainTree(new HeapNodePool(size));
+            for (int number : numbers) {
+                tree.insert(number);
+            }
+            return tree.build();
+        });
+        System.out.printf("%-10s %15s %8s%n", "threads", "inserts/sec", "speedup");
+        System.out.printf("%-10s %,15.0f %8s%n", "sequential", size / sequential, "1.00x");
+        
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads = threads == cores ? cores + 1 : Math.min(threads * 2, cores)) {
+            ForkJoinPool forkJoinPool = new ForkJoinPool(threads);
+            try {
+                double parallel = bestSeconds(() -> {
+                    ParallelPlainTree tree = new ParallelPlainTree(new HeapNodePool(size), size, forkJoinPool);
+                    for (int number : numbers) {
+                        tree.insert(number);
+                    }
+                    return tree.build();
+                });
+                System.out.printf("%-10d %,15.0f %7.2fx%n", threads, size / parallel, sequential / parallel);
+            } finally {
+                forkJoinPool.shutdown();
+            }
+        }
+    }
+    
+    // Runs the build several times and returns the fastest measured run in seconds
+    private double bestSeconds(Supplier<Object> build) {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            Object root = build.get();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (root == null) {
+                throw new IllegalStateException("Nothing was built");
+            }
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, seconds);
+            }
+        }
+        return best;
+    }
+    
+    private String rotations(int[] numbers, BalanceMode mode) {
+        switch (mode) {
+            case AVL:
+                AvlTree avlTree = new AvlTree(new HeapNodePool(numbers.length));
+                for (int number : numbers) {
+                    avlTree.insert(number);
+                }
+                return String.format("%,d", avlTree.getRotations());
+            case RED_BLACK:
+                RedBlackTree redBlackTree = new RedBlackTree(new HeapNodePool(numbers.length));
+                for (int number : numbers) {
+                    redBlackTree.insert(number);
+                }
+                return String.format("%,d", redBlackTree.getRotations());
+            case SPLAY:
+                SplayTree splayTree = new SplayTree(new HeapNodePool(numbers.length));
+                for (int number : numbers) {
+                    splayTree.insert(number);
+                }
+                return String.format("%,d", splayTree.getRotations());
+            default:
+                return "-";
+        }
+    }
+    
+    private static int[] makeInput(String kind, int size) {
+        Random random = new Random(42);
+        int[] numbers = new int[size];
+        for (int i = 0; i < size; i++) {
+            switch (kind) {
+                case "random":
+                    numbers[i] = random.nextInt();
+                    break;
+                case "sorted":
+                    numbers[i] = i;
+                    break;
+                default:
+                    numbers[i] = i % 100 == 0 ? random.nextInt(size) : i;
+                    break;
+            }
+        }
+        return numbers;
+    }
+}
@@ -1,7 +1,21 @@
 package com.bstapp.controller;
 
 import com.bstapp.model.BstTree;
+import com.bstapp.service.BalanceMode;
+import com.bstapp.service.BinaryFormat;
 import com.bstapp.service.BstService;
+import com.bstapp.service.BuildMode;
+import com.bstapp.service.DeleteResult;
+import com.bstapp.service.DuplicateMode;
+import com.bstapp.service.InvalidNumberException;
+import com.bstapp.service.LookupMode;
+import com.bstapp.service.NumberGenerator;
+import com.bstapp.service.OffHeapMetrics;
+import com.bstapp.service.PersistentTree;
+import com.bstapp.service.RangeAggregate;
+import com.bstapp.service.SetOperation;
+import com.bstapp.service.TreeDiff;
+import com.bstapp.service.TreeNotFoundException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -9,14 +23,22 @@ import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
+import java.io.InputStream;
+import java.io.Reader;
 import java.time.LocalDateTime;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
@@ -72,12 +94,12 @@ class BstControllerTest {
     @Test
     void testProcessNumbersSuccess() throws Exception {
         String inputNumbers = "7, 3, 9";
-        List<Integer> parsedNumbers = Arrays.asList(7, 3, 9);
+        int[] parsedNumbers = {7, 3, 9};
         String expectedJson = "{\"value\":7,\"left\":{\"value\":3},\"right\":{\"value\":9}}";
         
         // Tell the mock service what to return when methods are called
-        when(bstService.parseNumbers(inputNumbers)).thenReturn(parsedNumbers);
-        when(bstService.buildAndSaveTree(parsedNumbers)).thenReturn(expectedJson);
+        when(bstService.parseNumberArray(inputNumbers)).thenReturn(parsedNumbers);
+        when(bstService.buildAndSaveTree(parsedNumbers, BalanceMode.NONE, BuildMode.INSERTION, DuplicateMode.IGNORE)).thenReturn(expectedJson);
         
         // Send a POST request with JSON body and check the response
         mockMvc.perform(post("/process-numbers")
@@ -97,7 +119,7 @@ class BstControllerTest {
     @Test
     void testProcessNumbersInvalidInput() throws Exception {
         // Make the mock service throw an exception
-        when(bstService.parseNumbers(anyString()))
+        when(bstService.parseNumberArray(anyString()))
                 .thenThrow(new NumberFormatException("Invalid number"));
         
         mockMvc.perform(post("/process-numbers")
@@ -159,4 +181,548 @@ class BstControllerTest {
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(MediaType.APPLICATION_JSON));  // Should be JSON
     }
+    
+    /*
+     * TEST 7: Is the "balance" field passed on to the service?
+     * 
+     * {"balance": "avl"} should make the controller ask the service for an AVL tree
+     * instead of the default unbalanced one.
+     */
+    @Test
+    void testProcessNumbersWithAvlBalance() throws Exception {
+        int[] parsedNumbers = {1, 2, 3};
+        String expectedJson = "{\"value\":2,\"left\":{\"value\":1},\"right\":{\"value\":3}}";
+        
+        when(bstService.parseNumberArray("1, 2, 3")).thenReturn(parsedNumbers);
+        when(bstService.buildAndSaveTree(parsedNumbers, BalanceMode.AVL, BuildMode.INSERTION, DuplicateMode.IGNORE)).thenReturn(expectedJson);
+        
+        mockMvc.perform(post("/process-numbers")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"numbers\":\"1, 2, 3\",\"balance\":\"avl\"}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(expectedJson));
+    }
+    
+    /*
+     * TEST 8: An unknown balance mode should be a 400 Bad Request,
+     * not silently fall back to the unbalanced tree.
+     */
+    @Test
+    void testProcessNumbersUnknownBalance() throws Exception {
+        mockMvc.perform(post("/process-numbers")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"numbers\":\"1, 2, 3\",\"balance\":\"splay-ish\"}"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("Unknown balance mode: splay-ish"));
+    }
+    
+    /*
+     * TEST 9: Is the "mode" field passed on to the service?
+     * 
+     * {"mode": "balanced"} asks for a perfectly balanced tree built from the
+     * sorted numbers, so the controller should pass BuildMode.BALANCED along.
+     */
+    @Test
+    void testProcessNumbersWithBalancedMode() throws Exception {
+        int[] parsedNumbers = {3, 1, 2};
+        String expectedJson = "{\"value\":2,\"left\":{\"value\":1},\"right\":{\"value\":3}}";
+        
+        when(bstService.parseNumberArray("3 1 2")).thenReturn(parsedNumbers);
+        when(bstService.buildAndSaveTree(parsedNumbers, BalanceMode.NONE, BuildMode.BALANCED, DuplicateMode.IGNORE)).thenReturn(expectedJson);
+        
+        mockMvc.perform(post("/process-numbers")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"numbers\":\"3 1 2\",\"mode\":\"balanced\"}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(expectedJson));
+    }
+    
+    /*
+     * TEST 10: Does the off-heap metrics endpoint return the service's numbers as JSON?
+     */
+    @Test
+    void testOffHeapMetricsReturnsJson() throws Exception {
+        when(bstService.getOffHeapMetrics()).thenReturn(new OffHeapMetrics(50_000_000L));
+        
+        mockMvc.perform(get("/api/metrics/off-heap"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+                .andExpect(jsonPath("$.threshold").value(50_000_000))
+                .andExpect(jsonPath("$.activePools").exists())
+                .andExpect(jsonPath("$.allocatedBytes").exists());
+    }
+    
+    /*
+     * TEST 11: Deriving a tree returns the new saved row as JSON
+     */
+    @Test
+    void testDeriveTreeReturnsNewTree() throws Exception {
+        List<Integer> parsedNumbers = Arrays.asList(8, 2);
+        BstTree derived = new BstTree("[5, 8, 2]", "{\"value\":5}");
+        derived.setId(2L);
+        derived.setCreatedAt(LocalDateTime.now());
+        
+        when(bstService.parseNumbers("8, 2")).thenReturn(parsedNumbers);
+        when(bstService.deriveTree(1L, parsedNumbers)).thenReturn(derived);
+        
+        mockMvc.perform(post("/api/trees/1/derive")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"numbers\":\"8, 2\"}"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value(2))
+                .andExpect(jsonPath("$.inputNumbers").value("[5, 8, 2]"));
+    }
+    
+    /*
+     * TEST 12: Deriving from a tree that doesn't exist is a 404 Not Found
+     */
+    @Test
+    void testDeriveTreeUnknownId() throws Exception {
+        List<Integer> parsedNumbers = Arrays.asList(1);
+        
+        when(bstService.parseNumbers("1")).thenReturn(parsedNumbers);
+        when(bstService.deriveTree(99L, parsedNumbers)).thenThrow(new TreeNotFoundException(99L));
+        
+        mockMvc.perform(post("/api/trees/99/derive")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"numbers\":\"1\"}"))
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.error").value("Tree not found: 99"));
+    }
+    
+    /*
+     * TEST 13: Creating a shared tree returns 201 Created, and a taken name is 409 Conflict
+     */
+    @Test
+    void testCreateSharedTree() throws Exception {
+        mockMvc.perform(post("/api/shared-trees")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"name\":\"orders\"}"))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.name").value("orders"));
+        
+        doThrow(new IllegalStateException("Shared tree already exists: orders"))
+                .when(bstService).createSharedTree("orders");
+        
+        mockMvc.perform(post("/api/shared-trees")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"name\":\"orders\"}"))
+                .andExpect(status().isConflict())
+                .andExpect(jsonPath("$.error").value("Shared tree already exists: orders"));
+    }
+    
+    /*
+     * TEST 14: Inserting into a shared tree reports how many numbers were new
+     */
+    @Test
+    void testInsertIntoSharedTree() throws Exception {
+        List<Integer> parsedNumbers = Arrays.asList(4, 2, 4);
+        
+        when(bstService.parseNumbers("4 2 4")).thenReturn(parsedNumbers);
+        when(bstService.insertIntoSharedTree("orders", parsedNumbers)).thenReturn(2);
+        when(bstService.getSharedTreeSize("orders")).thenReturn(7L);
+        
+        mockMvc.perform(post("/api/shared-trees/orders/insert")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"numbers\":\"4 2 4\"}"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.inserted").value(2))
+                .andExpect(jsonPath("$.size").value(7));
+    }
+    
+    /*
+     * TEST 15: Unknown shared tree names are 404 Not Found
+     */
+    @Test
+    void testSharedTreeNotFound() throws Exception {
+        when(bstService.getSharedTreeSize("missing")).thenThrow(new TreeNotFoundException("missing"));
+        
+        mockMvc.perform(get("/api/shared-trees/missing"))
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.error").value("Shared tree not found: missing"));
+    }
+    
+    /*
+     * TEST 16: Appending returns the updated row (same id), unknown ids are 404
+     */
+    @Test
+    void testAppendToTree() throws Exception {
+        List<Integer> parsedNumbers = Arrays.asList(8, 2);
+        BstTree updated = new BstTree("[5, 8, 2]", "{\"value\":5}");
+        updated.setId(1L);
+        updated.setCreatedAt(LocalDateTime.now());
+        
+        when(bstService.parseNumbers("8, 2")).thenReturn(parsedNumbers);
+        when(bstService.appendToTree(1L, parsedNumbers)).thenReturn(updated);
+        when(bstService.appendToTree(99L, parsedNumbers)).thenThrow(new TreeNotFoundException(99L));
+        
+        mockMvc.perform(post("/api/trees/1/append")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"numbers\":\"8, 2\"}"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value(1))
+                .andExpect(jsonPath("$.inputNumbers").value("[5, 8, 2]"));
+        
+        mockMvc.perform(post("/api/trees/99/append")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"numbers\":\"8, 2\"}"))
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.error").value("Tree not found: 99"));
+    }
+    
+    /*
+     * TEST 17: Values and a range go to the service in one call, which reports what
+     * was removed and what is left; a request without values or range is 400 Bad Request
+     */
+    @Test
+    void testDeleteValues() throws Exception {
+        when(bstService.deleteFromTree(1L, Arrays.asList(5, 9), 10, 20)).thenReturn(new DeleteResult(1L, 5, 3));
+        
+        mockMvc.perform(delete("/api/trees/1/values?v=5&v=9&lo=10&hi=20"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value(1))
+                .andExpect(jsonPath("$.removed").value(5))
+                .andExpect(jsonPath("$.size").value(3));
+        verify(bstService, times(1)).deleteFromTree(1L, Arrays.asList(5, 9), 10, 20);
+        
+        mockMvc.perform(delete("/api/trees/1/values"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(delete("/api/trees/1/values?lo=10"))
+                .andExpect(status().isBadRequest());
+    }
+    
+    /*
+     * TEST 18: contains answers with a boolean, and range streams the values as a JSON array
+     * 
+     * The range body is written after the controller method returns (it's streamed),
+     * so MockMvc needs the extra asyncDispatch step to see it.
+     */
+    @Test
+    void testTreeContainsAndRange() throws Exception {
+        when(bstService.treeContains(1L, 40, LookupMode.FROZEN)).thenReturn(true);
+        when(bstService.treeRange(1L, 25, 65))
+                .thenReturn(PersistentTree.EMPTY.insertAll(new int[] {50, 30, 70, 40, 60}).range(25, 65));
+        when(bstService.treeRange(99L, 1, 2)).thenThrow(new TreeNotFoundException(99L));
+        
+        mockMvc.perform(get("/api/trees/1/contains?v=40"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.contains").value(true));
+        
+        MvcResult result = mockMvc.perform(get("/api/trees/1/range?lo=25&hi=65"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().json("[30, 40, 50, 60]"));
+        
+        MvcResult missing = mockMvc.perform(get("/api/trees/99/range?lo=1&hi=2")).andReturn();
+        mockMvc.perform(asyncDispatch(missing))
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.error").value("Tree not found: 99"));
+    }
+    
+    /*
+     * TEST 19: rank, select, median and percentile endpoints, and 400 for a bad k
+     */
+    @Test
+    void testOrderStatisticsEndpoints() throws Exception {
+        when(bstService.treeRank(1L, 45)).thenReturn(3);
+        when(bstService.treeSelect(1L, 0)).thenReturn(20);
+        when(bstService.treeSelect(1L, 7)).thenThrow(new IllegalArgumentException("k must be between 0 and 6, was 7"));
+        when(bstService.treePercentile(1L, 50.0)).thenReturn(50);
+        when(bstService.treePercentile(1L, 90.0)).thenReturn(80);
+        
+        mockMvc.perform(get("/api/trees/1/rank?v=45"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.rank").value(3));
+        mockMvc.perform(get("/api/trees/1/select?k=0"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.value").value(20));
+        mockMvc.perform(get("/api/trees/1/select?k=7"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/api/trees/1/median"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.median").value(50));
+        mockMvc.perform(get("/api/trees/1/percentile?p=50&p=90"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.percentiles[0].value").value(50))
+                .andExpect(jsonPath("$.percentiles[1].p").value(90.0))
+                .andExpect(jsonPath("$.percentiles[1].value").value(80));
+    }
+    
+    /*
+     * TEST 20: aggregate returns count, sum, min and max; lo > hi is 400
+     */
+    @Test
+    void testAggregateEndpoint() throws Exception {
+        when(bstService.treeAggregate(1L, 10, 20)).thenReturn(new RangeAggregate(10, 20, 3, 45L, 12, 18));
+        when(bstService.treeAggregate(1L, 20, 10))
+                .thenThrow(new IllegalArgumentException("Range start 20 is bigger than its end 10"));
+        
+        mockMvc.perform(get("/api/trees/1/aggregate?lo=10&hi=20"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count").value(3))
+                .andExpect(jsonPath("$.sum").value(45))
+                .andExpect(jsonPath("$.min").value(12))
+                .andExpect(jsonPath("$.max").value(18));
+        mockMvc.perform(get("/api/trees/1/aggregate?lo=20&hi=10"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("Range start 20 is bigger than its end 10"));
+    }
+    
+    /*
+     * TEST 21: Batch lookup as a boolean array and as a bitmap; unknown format is 400
+     * 
+     * Values 5, 8, 13 with 5 and 13 found: bits 0 and 2, so the bitmap byte is 5 ("BQ==").
+     */
+    @Test
+    void testLookupValues() throws Exception {
+        when(bstService.treeLookup(eq(1L), any(int[].class))).thenReturn(new boolean[] {true, false, true});
+        
+        mockMvc.perform(post("/api/trees/1/lookup")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[5, 8, 13]"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.hits").value(2))
+                .andExpect(jsonPath("$.found[1]").value(false))
+                .andExpect(jsonPath("$.found[2]").value(true));
+        
+        mockMvc.perform(post("/api/trees/1/lookup?format=bitmap")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[5, 8, 13]"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count").value(3))
+                .andExpect(jsonPath("$.bitmap").value("BQ=="));
+        
+        mockMvc.perform(post("/api/trees/1/lookup?format=csv")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[5]"))
+                .andExpect(status().isBadRequest());
+    }
+    
+    /*
+     * TEST 22: contains passes the lookup mode to the service; unknown modes are 400
+     */
+    @Test
+    void testTreeContainsLookupMode() throws Exception {
+        when(bstService.treeContains(1L, 7, LookupMode.SPLAY)).thenReturn(true);
+        
+        mockMvc.perform(get("/api/trees/1/contains?v=7&mode=splay"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.contains").value(true));
+        
+        mockMvc.perform(get("/api/trees/1/contains?v=7"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.contains").value(false));
+        
+        mockMvc.perform(get("/api/trees/1/contains?v=7&mode=btree"))
+                .andExpect(status().isBadRequest());
+    }
+    
+    /*
+     * TEST 23: merge takes the two ids (as numbers or strings) and the operation,
+     * and answers with the new row; bad ids and operations are 400, unknown ids 404
+     */
+    @Test
+    void testMergeTrees() throws Exception {
+        BstTree merged = new BstTree("[4, 2, 6]", "{\"value\":4}");
+        merged.setId(3L);
+        merged.setCreatedAt(LocalDateTime.now());
+        when(bstService.mergeTrees(1L, 2L, SetOperation.INTERSECTION)).thenReturn(merged);
+        when(bstService.mergeTrees(1L, 99L, SetOperation.UNION)).thenThrow(new TreeNotFoundException(99L));
+        
+        mockMvc.perform(post("/api/trees/merge")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"left\": 1, \"right\": \"2\", \"operation\": \"intersection\"}"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value(3))
+                .andExpect(jsonPath("$.inputNumbers").value("[4, 2, 6]"));
+        
+        mockMvc.perform(post("/api/trees/merge")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"left\": 1, \"right\": 99}"))
+                .andExpect(status().isNotFound());
+        
+        mockMvc.perform(post("/api/trees/merge")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"left\": 1}"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("Missing tree id: right"));
+        
+        mockMvc.perform(post("/api/trees/merge")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"left\": \"one\", \"right\": 2}"))
+                .andExpect(status().isBadRequest());
+        
+        mockMvc.perform(post("/api/trees/merge")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"left\": 1, \"right\": 2, \"operation\": \"xor\"}"))
+                .andExpect(status().isBadRequest());
+    }
+    
+    /*
+     * TEST 24: diff returns the service's result as JSON with the default limit of
+     * 100, unknown ids are 404 and a negative limit is 400
+     */
+    @Test
+    void testDiffTrees() throws Exception {
+        TreeDiff diff = TreeDiff.compare(PersistentTree.EMPTY.insertAll(new int[] {50, 30}),
+                PersistentTree.EMPTY.insertAll(new int[] {30, 50, 70}), 100);
+        when(bstService.diffTrees(1L, 2L, 100)).thenReturn(diff);
+        when(bstService.diffTrees(1L, 99L, 100)).thenThrow(new TreeNotFoundException(99L));
+        when(bstService.diffTrees(1L, 2L, -1)).thenThrow(new IllegalArgumentException("limit must not be negative: -1"));
+        
+        mockMvc.perform(get("/api/trees/diff?a=1&b=2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.divergenceLevel").value(0))
+                .andExpect(jsonPath("$.identical").value(false))
+                .andExpect(jsonPath("$.inserted[0]").value(70))
+                .andExpect(jsonPath("$.relocatedCount").value(2))
+                .andExpect(jsonPath("$.relocated[0].b.side").value("root"));
+        mockMvc.perform(get("/api/trees/diff?a=1&b=99"))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(get("/api/trees/diff?a=1&b=2&limit=-1"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("limit must not be negative: -1"));
+    }
+    
+    /*
+     * TEST 25: {"duplicates": "count"} asks the service for a multiset tree, and an
+     * unknown value is a 400
+     */
+    @Test
+    void testProcessNumbersWithCountedDuplicates() throws Exception {
+        int[] parsedNumbers = {2, 1, 2};
+        String expectedJson = "{\"value\":2,\"left\":{\"value\":1,\"count\":1},\"count\":2}";
+        
+        when(bstService.parseNumberArray("2 1 2")).thenReturn(parsedNumbers);
+        when(bstService.buildAndSaveTree(parsedNumbers, BalanceMode.NONE, BuildMode.INSERTION, DuplicateMode.COUNT))
+                .thenReturn(expectedJson);
+        
+        mockMvc.perform(post("/process-numbers")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"numbers\":\"2 1 2\",\"duplicates\":\"count\"}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(expectedJson));
+        
+        mockMvc.perform(post("/process-numbers")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"numbers\":\"2 1 2\",\"duplicates\":\"keep\"}"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("Unknown duplicates mode: keep"));
+    }
+    
+    /*
+     * TEST 26: A bad number in the input is a 400 that also says where the bad
+     * number starts, so a typo in a long list can be found
+     */
+    @Test
+    void testProcessNumbersReportsOffsetOfBadNumber() throws Exception {
+        when(bstService.parseNumberArray("7, 3x, 9")).thenThrow(new InvalidNumberException(3));
+        
+        mockMvc.perform(post("/process-numbers")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"numbers\":\"7, 3x, 9\"}"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("Invalid number format. Please enter valid integers."))
+                .andExpect(jsonPath("$.offset").value(3));
+    }
+    
+    /*
+     * TEST 27: /api/trees/stream hands the body to the service as text or JSON
+     * (depending on the Content-Type) with the options from the query string,
+     * and other content types are 415 Unsupported Media Type
+     */
+    @Test
+    void testStreamNumbers() throws Exception {
+        BstTree saved = new BstTree("[7, 3, 9]", "{\"value\":7}");
+        saved.setId(12L);
+        when(bstService.streamAndSaveTree(any(Reader.class), eq(false), anyLong(), eq(BalanceMode.AVL),
+                eq(BuildMode.INSERTION), eq(DuplicateMode.IGNORE))).thenReturn(saved);
+        when(bstService.streamAndSaveTree(any(Reader.class), eq(true), anyLong(), eq(BalanceMode.NONE),
+                eq(BuildMode.INSERTION), eq(DuplicateMode.COUNT))).thenReturn(saved);
+        
+        mockMvc.perform(post("/api/trees/stream?balance=avl")
+                        .contentType(MediaType.TEXT_PLAIN)
+                        .content("7, 3, 9"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value(12));
+        
+        mockMvc.perform(post("/api/trees/stream?duplicates=count")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[7, 3, 9]"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value(12));
+        
+        mockMvc.perform(post("/api/trees/stream")
+                        .contentType(MediaType.APPLICATION_XML)
+                        .content("<numbers>7</numbers>"))
+                .andExpect(status().isUnsupportedMediaType());
+    }
+    
+    /*
+     * TEST 28: An application/octet-stream body on /process-numbers goes to the
+     * binary reader with the format from the query string, and a broken body is a
+     * 400 with the byte offset
+     */
+    @Test
+    void testProcessBinaryNumbers() throws Exception {
+        int[] parsedNumbers = {7, 3, 9};
+        String expectedJson = "{\"value\":7,\"left\":{\"value\":3},\"right\":{\"value\":9}}";
+        when(bstService.readBinaryNumbers(any(InputStream.class), anyLong(), eq(BinaryFormat.VARINT)))
+                .thenReturn(parsedNumbers);
+        when(bstService.readBinaryNumbers(any(InputStream.class), anyLong(), eq(BinaryFormat.INT32)))
+                .thenThrow(new InvalidNumberException(8));
+        when(bstService.buildAndSaveTree(parsedNumbers, BalanceMode.AVL, BuildMode.INSERTION, DuplicateMode.IGNORE))
+                .thenReturn(expectedJson);
+        
+        // 7, 3, 9 as zigzag varints
+        mockMvc.perform(post("/process-numbers?format=varint&balance=avl")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(new byte[] {14, 6, 18}))
+                .andExpect(status().isOk())
+                .andExpect(content().string(expectedJson));
+        
+        // Two and a half int32s
+        mockMvc.perform(post("/process-numbers")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(new byte[10]))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.offset").value(8));
+        
+        mockMvc.perform(post("/process-numbers?format=int64")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(new byte[8]))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("Unknown binary format: int64"));
+    }
+    
+    /*
+     * TEST 29: A "generator" instead of "numbers" builds the tree from numbers made
+     * on the server; sending both, or an unknown generator, is a 400
+     */
+    @Test
+    void testProcessNumbersWithGenerator() throws Exception {
+        String expectedJson = "{\"value\":1,\"right\":{\"value\":2}}";
+        when(bstService.buildAndSaveTree(any(NumberGenerator.class), eq(BalanceMode.AVL), eq(BuildMode.INSERTION),
+                eq(DuplicateMode.IGNORE))).thenReturn(expectedJson);
+        
+        mockMvc.perform(post("/process-numbers")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"generator\":\"shuffle 1..5000000 seed 42\",\"balance\":\"avl\"}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(expectedJson));
+        
+        mockMvc.perform(post("/process-numbers")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"numbers\":\"1, 2\",\"generator\":\"range 1..2\"}"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("Send either numbers or a generator, not both"));
+        
+        mockMvc.perform(post("/process-numbers")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"generator\":\"fibonacci 10\"}"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("Unknown generator: fibonacci"));
+    }
 }
@@ -0,0 +1,167 @@
+package com.bstapp.service;
+
+import com.bstapp.model.BstTree;
+import com.bstapp.repository.BstTreeRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/*
+ * Tests for binary number bodies on /process-numbers (application/octet-stream),
+ * little-endian int32 and zigzag varints.
+ * 
+ * Like in StreamingInputTest the body is read through a stream that hands out only
+ * a few bytes at a time, so ints and varints get cut in half between two reads.
+ */
+class BinaryInputTest {
+    
+    private BstService bstService;
+    
+    @BeforeEach
+    void setUp() {
+        BstTreeRepository repository = mock(BstTreeRepository.class);
+        bstService = new BstService(repository, new ObjectMapper());
+        when(repository.save(any(BstTree.class))).thenAnswer(invocation -> invocation.getArgument(0));
+    }
+    
+    /*
+     * TEST 1: Both formats give back exactly the numbers that were written, including
+     * the int limits, and the tree is the same as from the text input
+     */
+    @Test
+    void testBothFormatsRoundTrip() throws IOException {
+        Random random = new Random(24);
+        int[] numbers = new int[50_000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = random.nextInt() >> random.nextInt(32);  // All sizes, so all varint lengths
+        }
+        numbers[0] = Integer.MIN_VALUE;
+        numbers[1] = Integer.MAX_VALUE;
+        numbers[2] = 0;
+        numbers[3] = -1;
+        
+        byte[] int32 = int32Body(numbers);
+        byte[] varints = varintBody(numbers);
+        assertArrayEquals(numbers, read(int32, BinaryFormat.INT32, int32.length));
+        assertArrayEquals(numbers, read(varints, BinaryFormat.VARINT, varints.length));
+        assertTrue(varints.length < int32.length);
+        
+        // 7, 3, 9: three bytes as varints
+        assertArrayEquals(new int[] {7, 3, 9}, read(new byte[] {14, 6, 18}, BinaryFormat.VARINT, 3));
+        
+        String text = "7, 3, 9, 1, 4";
+        assertEquals(bstService.buildAndSaveTree(bstService.parseNumberArray(text), BalanceMode.AVL,
+                        BuildMode.INSERTION, DuplicateMode.IGNORE),
+                bstService.buildAndSaveTree(read(varintBody(new int[] {7, 3, 9, 1, 4}), BinaryFormat.VARINT, -1),
+                        BalanceMode.AVL, BuildMode.INSERTION, DuplicateMode.IGNORE));
+    }
+    
+    /*
+     * TEST 2: A wrong or missing Content-Length only changes the first array size,
+     * the result always has exactly the numbers of the body
+     */
+    @Test
+    void testContentLengthIsOnlyAGuess() throws IOException {
+        int[] numbers = new Random(7).ints(100_000).toArray();
+        byte[] int32 = int32Body(numbers);
+        byte[] varints = varintBody(numbers);
+        
+        for (long contentLength : new long[] {-1, 0, 100, int32.length, Long.MAX_VALUE}) {
+            assertArrayEquals(numbers, read(int32, BinaryFormat.INT32, contentLength));
+            assertArrayEquals(numbers, read(varints, BinaryFormat.VARINT, contentLength));
+        }
+    }
+    
+    /*
+     * TEST 3: Broken bodies are a bad number at the byte offset where it starts,
+     * and an empty body is empty input
+     */
+    @Test
+    void testBrokenBodies() {
+        // Two whole ints and two bytes of a third
+        assertEquals(8, badNumberOffset(new byte[10], BinaryFormat.INT32));
+        
+        // 7, then a varint that never ends
+        assertEquals(1, badNumberOffset(new byte[] {14, (byte) 0x80, (byte) 0x80}, BinaryFormat.VARINT));
+        
+        // 7, then a varint with more than 32 bits: a 5th byte with a 5th bit, or a 6th byte
+        assertEquals(1, badNumberOffset(new byte[] {14, -1, -1, -1, -1, 0x1F}, BinaryFormat.VARINT));
+        assertEquals(1, badNumberOffset(new byte[] {14, -1, -1, -1, -1, -1, 0x01}, BinaryFormat.VARINT));
+        
+        // The biggest 5-byte varint is fine (zigzag of Integer.MIN_VALUE)
+        assertDoesNotThrow(() -> read(new byte[] {-1, -1, -1, -1, 0x0F}, BinaryFormat.VARINT, -1));
+        
+        for (BinaryFormat format : BinaryFormat.values()) {
+            assertEquals("Input cannot be empty",
+                    assertThrows(IllegalArgumentException.class, () -> read(new byte[0], format, 0)).getMessage());
+        }
+        
+        assertEquals(BinaryFormat.INT32, BinaryFormat.fromString(null));
+        assertEquals(BinaryFormat.VARINT, BinaryFormat.fromString(" Varint "));
+        assertThrows(IllegalArgumentException.class, () -> BinaryFormat.fromString("int64"));
+    }
+    
+    // ============ Helper methods ============
+    
+    private int[] read(byte[] body, BinaryFormat format, long contentLength) throws IOException {
+        return bstService.readBinaryNumbers(new ChunkedInputStream(body, 5), contentLength, format);
+    }
+    
+    private long badNumberOffset(byte[] body, BinaryFormat format) {
+        return assertThrows(InvalidNumberException.class, () -> read(body, format, body.length)).getOffset();
+    }
+    
+    private static byte[] int32Body(int[] numbers) {
+        ByteBuffer body = ByteBuffer.allocate(numbers.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        body.asIntBuffer().put(numbers);
+        return body.array();
+    }
+    
+    private static byte[] varintBody(int[] numbers) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int number : numbers) {
+            int zigzag = (number << 1) ^ (number >> 31);
+            while ((zigzag & ~0x7F) != 0) {
+                body.write((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            body.write(zigzag);
+        }
+        return body.toByteArray();
+    }
+    
+    // An InputStream that never returns more than a few bytes per read, like a slow upload
+    private static final class ChunkedInputStream extends InputStream {
+        
+        private final ByteArrayInputStream bytes;
+        private final int chunk;
+        
+        ChunkedInputStream(byte[] bytes, int chunk) {
+            this.bytes = new ByteArrayInputStream(bytes);
+            this.chunk = chunk;
+        }
+        
+        @Override
+        public int read() {
+            return bytes.read();
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            return bytes.read(buffer, offset, Math.min(length, chunk));
+        }
+    }
+}
@@ -1,10 +1,17 @@
 package com.bstapp.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeEach;
 
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -226,7 +233,7 @@ class BstServiceUnitTest {
      * 
      * I wanted to be flexible with input format, so users can also
      * enter numbers separated by just spaces like "10 20 30 40".
-     * The regex in parseNumbers handles both commas and spaces.
+     * parseNumbers handles both commas and spaces.
      */
     @Test
     void testNumberParsingWithSpaces() {
@@ -255,6 +262,562 @@ class BstServiceUnitTest {
         });
     }
     
+    /*
+     * TEST 11: Can we build a huge tree from sorted input?
+     * 
+     * Sorted input makes the tree a 5 million level deep linked list.
+     * The old recursive insert threw StackOverflowError long before that,
+     * and walking the whole spine for every number would take forever.
+     * 
+     * I use an AbstractList that makes the numbers on the fly so the test
+     * doesn't need a 5 million element ArrayList of boxed Integers.
+     */
+    @Test
+    void testFiveMillionSortedNumbersDoNotOverflowStack() {
+        int count = 5_000_000;
+        List<Integer> numbers = new AbstractList<>() {
+            @Override
+            public Integer get(int index) {
+                return index;
+            }
+            
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+        
+        BstNode root = bstService.buildBst(numbers);
+        
+        // Walk the right spine with a loop (recursion would overflow here too)
+        int seen = 0;
+        for (BstNode node = root; node != null; node = node.getRight()) {
+            assertEquals(seen, node.getValue());
+            assertNull(node.getLeft());
+            seen++;
+        }
+        assertEquals(count, seen);
+        
+        // Inserting one more value below the deepest node must not overflow either
+        bstService.insert(root, count);
+        BstNode node = root;
+        while (node.getRight() != null) {
+            node = node.getRight();
+        }
+        assertEquals(count, node.getValue());
+    }
+    
+    /*
+     * TEST 12: Does buildBst give the same tree as calling insert for each number?
+     * 
+     * buildBst has a shortcut that attaches a number directly under the last inserted
+     * node when it can. This test makes sure the shortcut never changes the shape,
+     * using random numbers with lots of duplicates and some sorted runs mixed in.
+     */
+    @Test
+    void testBuildBstMatchesRepeatedInsert() {
+        Random random = new Random(42);
+        List<Integer> numbers = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            numbers.add(random.nextInt(500) - 250);
+        }
+        for (int i = 0; i < 200; i++) {
+            numbers.add(i * 3);
+            numbers.add(1000 - i);
+        }
+        numbers.add(Integer.MIN_VALUE);
+        numbers.add(Integer.MAX_VALUE);
+        numbers.add(Integer.MIN_VALUE);
+        
+        BstNode expected = null;
+        for (int num : numbers) {
+            expected = bstService.insert(expected, num);
+        }
+        
+        assertTrue(sameShape(expected, bstService.buildBst(numbers)));
+    }
+    
+    /*
+     * TEST 13: AVL mode should fix the worst case from TEST 7
+     * 
+     * Inserting [1, 2, 3] in order gives a right-skewed tree without balancing,
+     * but AVL does one left rotation and 2 becomes the root.
+     */
+    @Test
+    void testAvlRotatesSortedInput() {
+        BstNode root = bstService.buildBst(Arrays.asList(1, 2, 3), BalanceMode.AVL);
+        
+        assertEquals(2, root.getValue());
+        assertEquals(1, root.getLeft().getValue());
+        assertEquals(3, root.getRight().getValue());
+    }
+    
+    /*
+     * TEST 14: AVL trees stay short even for large sorted input
+     * 
+     * The AVL height bound is about 1.44 * log2(n). For 100,000 sorted numbers that's
+     * around 24 levels, while the unbalanced tree would be 100,000 levels deep.
+     * I also check the BST property, that duplicates were skipped, and that every
+     * node really is balanced.
+     */
+    @Test
+    void testAvlHeightIsLogarithmic() {
+        List<Integer> numbers = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            numbers.add(i);
+            numbers.add(i);  // Every number twice, duplicates must be skipped
+        }
+        
+        BstNode root = bstService.buildBst(numbers, BalanceMode.AVL);
+        
+        assertTrue(isBstValid(root, Integer.MIN_VALUE, Integer.MAX_VALUE));
+        assertEquals(100_000, countNodes(root));
+        int height = balancedHeight(root);
+        assertTrue(height > 0, "Found a node whose subtrees differ by more than 1 level");
+        assertTrue(height <= 1.45 * (Math.log(100_002) / Math.log(2)), "Tree too tall: " + height);
+    }
+    
+    /*
+     * TEST 15: Balance mode NONE is the same as the old buildBst
+     * 
+     * Stored trees must stay reproducible, so the default mode can't change the shape.
+     */
+    @Test
+    void testBalanceNoneMatchesPlainBuild() {
+        List<Integer> numbers = Arrays.asList(7, 3, 9, 1, 4, 8, 10, 2);
+        
+        assertTrue(sameShape(bstService.buildBst(numbers), bstService.buildBst(numbers, BalanceMode.NONE)));
+    }
+    
+    /*
+     * TEST 16: Parsing the "balance" request value
+     */
+    @Test
+    void testBalanceModeFromString() {
+        assertEquals(BalanceMode.NONE, BalanceMode.fromString(null));
+        assertEquals(BalanceMode.NONE, BalanceMode.fromString(""));
+        assertEquals(BalanceMode.NONE, BalanceMode.fromString("none"));
+        assertEquals(BalanceMode.AVL, BalanceMode.fromString("AVL"));
+        assertEquals(BalanceMode.RED_BLACK, BalanceMode.fromString("rb"));
+        assertEquals(BalanceMode.RED_BLACK, BalanceMode.fromString("red-black"));
+        assertThrows(IllegalArgumentException.class, () -> BalanceMode.fromString("treap"));
+    }
+    
+    /*
+     * TEST 17: Red-black trees keep all the red-black rules
+     * 
+     * I build from sorted input (worst case for the plain BST) followed by random
+     * numbers, then check the root is black, no red node has a red child, every
+     * path has the same number of black nodes, and the BST property still holds.
+     */
+    @Test
+    void testRedBlackPropertiesHold() {
+        List<Integer> numbers = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++) {
+            numbers.add(i);
+        }
+        Random random = new Random(7);
+        for (int i = 0; i < 50_000; i++) {
+            numbers.add(random.nextInt());
+        }
+        
+        RbNode root = (RbNode) bstService.buildBst(numbers, BalanceMode.RED_BLACK);
+        
+        assertFalse(root.isRed());
+        assertTrue(isBstValid(root, Integer.MIN_VALUE, Integer.MAX_VALUE));
+        assertTrue(blackHeight(root) > 0, "Red-black rules are broken");
+        assertTrue(balancedTreeHeight(root) <= 2 * (Math.log(countNodes(root) + 1) / Math.log(2)));
+    }
+    
+    /*
+     * TEST 18: Red-black does fewer rotations than AVL
+     * 
+     * A red-black insert rotates at most twice; most inserts are fixed by recoloring.
+     * On random input it ends up with clearly fewer rotations than AVL in total.
+     */
+    @Test
+    void testRedBlackRotatesLessThanAvl() {
+        AvlTree avlTree = new AvlTree();
+        RedBlackTree redBlackTree = new RedBlackTree();
+        Random random = new Random(11);
+        
+        for (int i = 0; i < 50_000; i++) {
+            int value = random.nextInt();
+            avlTree.insert(value);
+            
+            long before = redBlackTree.getRotations();
+            redBlackTree.insert(value);
+            assertTrue(redBlackTree.getRotations() - before <= 2);
+        }
+        
+        assertTrue(redBlackTree.getRotations() < avlTree.getRotations());
+    }
+    
+    /*
+     * TEST 19: The node color is part of the JSON
+     * 
+     * This one needs a real ObjectMapper, so I create a second service just for it.
+     * [2, 1, 3] gives a black root with two red children and no rotations.
+     */
+    @Test
+    void testRedBlackColorInJson() {
+        BstService jsonService = new BstService(null, new ObjectMapper());
+        
+        String json = jsonService.convertToJson(jsonService.buildBst(Arrays.asList(2, 1, 3), BalanceMode.RED_BLACK));
+        
+        assertTrue(json.contains("\"color\" : \"black\""));
+        assertTrue(json.contains("\"color\" : \"red\""));
+        assertFalse(json.contains("parent"));
+    }
+    
+    /*
+     * TEST 20: Balanced mode sorts, removes duplicates and builds from the middle
+     * 
+     * [5, 1, 4, 2, 3, 3, 1] becomes [1, 2, 3, 4, 5], so the tree should be:
+     *        3
+     *       / \
+     *      1   4
+     *       \   \
+     *        2   5
+     */
+    @Test
+    void testBalancedModeBuildsFromMiddle() {
+        List<Integer> numbers = Arrays.asList(5, 1, 4, 2, 3, 3, 1);
+        
+        BstNode root = bstService.buildBst(numbers, BalanceMode.NONE, BuildMode.BALANCED);
+        
+        assertEquals(3, root.getValue());
+        assertEquals(1, root.getLeft().getValue());
+        assertEquals(2, root.getLeft().getRight().getValue());
+        assertNull(root.getLeft().getLeft());
+        assertEquals(4, root.getRight().getValue());
+        assertEquals(5, root.getRight().getRight().getValue());
+        assertNull(root.getRight().getLeft());
+        assertEquals(5, countNodes(root));
+    }
+    
+    /*
+     * TEST 21: Balanced mode gives the minimum possible height
+     * 
+     * 2^20 - 1 distinct numbers in reverse order (with duplicates mixed in) should give a
+     * perfect tree of exactly 20 levels, where every level is completely full.
+     */
+    @Test
+    void testBalancedModeHasMinimumHeight() {
+        int count = (1 << 20) - 1;
+        List<Integer> numbers = new ArrayList<>();
+        for (int i = count - 1; i >= 0; i--) {
+            numbers.add(i * 2);
+            if (i % 10 == 0) {
+                numbers.add(i * 2);
+            }
+        }
+        
+        BstNode root = bstService.buildBst(numbers, BalanceMode.NONE, BuildMode.BALANCED);
+        
+        assertEquals(count, countNodes(root));
+        assertEquals(20, balancedHeight(root));
+        assertTrue(isBstValid(root, Integer.MIN_VALUE, Integer.MAX_VALUE));
+    }
+    
+    /*
+     * TEST 22: Balanced mode can't be combined with AVL or red-black,
+     * and the default mode is the same as the two-argument buildBst
+     */
+    @Test
+    void testBuildModeOptions() {
+        List<Integer> numbers = Arrays.asList(1, 2, 3);
+        
+        assertThrows(IllegalArgumentException.class,
+                () -> bstService.buildBst(numbers, BalanceMode.AVL, BuildMode.BALANCED));
+        assertTrue(sameShape(bstService.buildBst(numbers, BalanceMode.NONE),
+                bstService.buildBst(numbers, BalanceMode.NONE, BuildMode.INSERTION)));
+        assertEquals(BuildMode.INSERTION, BuildMode.fromString(null));
+        assertEquals(BuildMode.BALANCED, BuildMode.fromString("Balanced"));
+        assertThrows(IllegalArgumentException.class, () -> BuildMode.fromString("random"));
+    }
+    
+    /*
+     * TEST 23: The parallel build gives exactly the same tree as the sequential one
+     * 
+     * Stored treeJson must not depend on which engine built it, so I compare the JSON.
+     * Tiny piece sizes make even these small inputs go through the partitions
+     * (both the single-thread and the block version) and the final copy. The inputs
+     * have lots of duplicates and some runs of sorted numbers.
+     */
+    @Test
+    void testParallelBuildMatchesSequential() {
+        Random random = new Random(7);
+        int[] randomNumbers = new int[20_000];
+        int[] mixedNumbers = new int[20_000];
+        for (int i = 0; i < randomNumbers.length; i++) {
+            randomNumbers[i] = random.nextInt(5000);
+            mixedNumbers[i] = i % 100 < 90 ? i : random.nextInt(20_000);
+        }
+        
+        ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+        try {
+            for (int[] numbers : new int[][] {randomNumbers, mixedNumbers, {42}, {5, 5, 5}}) {
+                PlainTree sequential = new PlainTree(new HeapNodePool(numbers.length));
+                ParallelPlainTree parallel = new ParallelPlainTree(
+                        new HeapNodePool(numbers.length), numbers.length, forkJoinPool, 16, 512);
+                for (int number : numbers) {
+                    sequential.insert(number);
+                    parallel.insert(number);
+                }
+                NodePool expected = sequential.build();
+                NodePool actual = parallel.build();
+                
+                assertEquals(expected.size(), actual.size());
+                assertEquals(TreeJsonWriter.write(expected), TreeJsonWriter.write(actual));
+            }
+        } finally {
+            forkJoinPool.shutdown();
+        }
+    }
+    
+    /*
+     * TEST 24: Above the threshold the service builds plain trees in parallel,
+     * and buildBst still gives the same tree as before
+     */
+    @Test
+    void testServiceUsesParallelBuildAboveThreshold() {
+        Random random = new Random(8);
+        List<Integer> numbers = new ArrayList<>();
+        for (int i = 0; i < 200_000; i++) {
+            numbers.add(random.nextInt());
+        }
+        
+        BstService parallelService = new BstService(null, null);
+        parallelService.setParallelThreshold(100_000);
+        
+        assertTrue(parallelService.newEngine(BalanceMode.NONE, BuildMode.INSERTION, 100_000) instanceof ParallelPlainTree);
+        assertTrue(parallelService.newEngine(BalanceMode.NONE, BuildMode.INSERTION, 99_999) instanceof PlainTree);
+        assertTrue(parallelService.newEngine(BalanceMode.AVL, BuildMode.INSERTION, 100_000) instanceof AvlTree);
+        assertTrue(sameShape(bstService.buildBst(numbers), parallelService.buildBst(numbers)));
+    }
+    
+    /*
+     * TEST 25: The one-pass tokenizer accepts and rejects exactly what the old
+     * split + trim + Integer.parseInt code did, including the odd cases
+     * (signs, int limits, overflow, control characters, non-ASCII digits)
+     */
+    @Test
+    void testTokenizerMatchesOldRegexParsing() {
+        List<String> inputs = new ArrayList<>(Arrays.asList(
+                "7, 3, 9", ",7,,3,", "  1\t2\n3\r\n4\f5\u000B6  ", "+5 -0 +0 -7",
+                "2147483647 -2147483648", "2147483648", "-2147483649", "99999999999999999999",
+                "-", "+", "+-1", "1-", "--1", "1 - 2", "\u00011\u0002, 2", "1\u00012", "-\u00011",
+                "\u0001", "\u0001,1", "\u0663\u0664, \uFF15", "1.5", "0x10", "1e3", "007, 010"));
+        Random random = new Random(25);
+        String alphabet = "0123456789 ,\t\n-+\u0001\u0663a";
+        for (int i = 0; i < 5_000; i++) {
+            StringBuilder input = new StringBuilder();
+            for (int length = random.nextInt(14); length > 0; length--) {
+                input.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            inputs.add(input.toString());
+        }
+        
+        for (String input : inputs) {
+            if (input.trim().isEmpty()) {
+                assertThrows(IllegalArgumentException.class, () -> bstService.parseNumbers(input));
+                continue;
+            }
+            List<Integer> expected;
+            try {
+                expected = Arrays.stream(input.split("[,\\s]+"))
+                        .filter(s -> !s.isEmpty())
+                        .map(String::trim)
+                        .map(Integer::parseInt)
+                        .toList();
+            } catch (NumberFormatException e) {
+                assertThrows(InvalidNumberException.class, () -> bstService.parseNumberArray(input));
+                continue;
+            }
+            assertEquals(expected, bstService.parseNumbers(input), input);
+        }
+    }
+    
+    /*
+     * TEST 26: The error says where the bad number starts, and input that comes in
+     * pieces (numbers cut in half between two pieces) parses the same as in one go
+     */
+    @Test
+    void testTokenizerErrorOffsetAndPieces() {
+        InvalidNumberException e = assertThrows(InvalidNumberException.class,
+                () -> bstService.parseNumberArray("12, 7, 3x4, 9"));
+        assertEquals(7, e.getOffset());
+        assertEquals(0, assertThrows(InvalidNumberException.class,
+                () -> bstService.parseNumberArray("-, 1")).getOffset());
+        assertEquals(3, assertThrows(InvalidNumberException.class,
+                () -> bstService.parseNumberArray("1, 2147483648")).getOffset());
+        
+        String input = "  -120, 45 7 +8,,2147483647\t-2147483648 ";
+        for (int cut = 0; cut <= input.length(); cut++) {
+            List<Integer> values = new ArrayList<>();
+            NumberTokenizer tokenizer = new NumberTokenizer(values::add);
+            assertTrue(tokenizer.feed(input, 0, cut));
+            assertTrue(tokenizer.feed(input, cut, input.length()));
+            assertTrue(tokenizer.finish());
+            assertEquals(Arrays.asList(-120, 45, 7, 8, Integer.MAX_VALUE, Integer.MIN_VALUE), values);
+            assertEquals(6, tokenizer.getCount());
+        }
+        
+        NumberTokenizer tokenizer = new NumberTokenizer(value -> { });
+        assertTrue(tokenizer.feed("10, 2", 0, 5));
+        assertFalse(tokenizer.feed("0a, 3", 0, 5));
+        assertEquals(4, tokenizer.getErrorOffset());
+        assertFalse(tokenizer.finish());
+    }
+    
+    /*
+     * TEST 27: parseNumberArray gives exactly the tokenizer's values or error offset
+     * 
+     * With mvn -Pvector this goes through the vector parser first (the parser itself
+     * is tested in VectorNumberParserTest, which is only compiled with the profile).
+     * The inputs are long enough for many vector blocks, so numbers cross block
+     * borders, and have 9 and 10 digit numbers, int limits, signs, bad numbers and
+     * control characters. In the default build the tokenizer does all of it.
+     */
+    @Test
+    void testVectorParserMatchesTokenizer() {
+        assertEquals(ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent() && hasVectorParser(),
+                bstService.isVectorParsing());
+        
+        Random random = new Random(23);
+        String[] separators = {", ", " ", ",", "\n", "\t,", ",\r\n"};
+        String[] oddNumbers = {"0", "+42", "-0", "2147483647", "-2147483648", "2147483648", "-2147483649",
+                "00000000001", "1-2", "--3", "-", "+", "5-", "5x", "\u0663", "\u00014", "1.5"};
+        for (int round = 0; round < 4_000; round++) {
+            boolean odd = round % 2 == 0;
+            StringBuilder input = new StringBuilder(random.nextBoolean() ? " " : "");
+            for (int i = random.nextInt(80); i > 0; i--) {
+                if (odd && random.nextInt(20) == 0) {
+                    input.append(oddNumbers[random.nextInt(oddNumbers.length)]);
+                } else {
+                    input.append(random.nextInt() >> random.nextInt(32));
+                }
+                input.append(separators[random.nextInt(separators.length)]);
+            }
+            String text = input.toString();
+            NumberTokenizer.Parsed expected = NumberTokenizer.parse(text);
+            if (text.trim().isEmpty()) {
+                continue;
+            }
+            if (expected.isValid()) {
+                assertArrayEquals(expected.getValues(), bstService.parseNumberArray(text));
+            } else {
+                assertEquals(expected.getErrorOffset(), assertThrows(InvalidNumberException.class,
+                        () -> bstService.parseNumberArray(text)).getOffset());
+            }
+        }
+    }
+    
+    // True if this build has the vector parser (mvn -Pvector)
+    private static boolean hasVectorParser() {
+        try {
+            Class.forName("com.bstapp.service.VectorNumberParser", false, BstServiceUnitTest.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+    
+    /*
+     * Helper method that returns the number of black nodes on every path from this
+     * node down, or -1 if a red node has a red child or the paths don't agree.
+     */
+    private int blackHeight(RbNode node) {
+        if (node == null) {
+            return 1;
+        }
+        RbNode left = (RbNode) node.getLeft();
+        RbNode right = (RbNode) node.getRight();
+        if (node.isRed() && ((left != null && left.isRed()) || (right != null && right.isRed()))) {
+            return -1;
+        }
+        int leftHeight = blackHeight(left);
+        int rightHeight = blackHeight(right);
+        if (leftHeight < 0 || leftHeight != rightHeight) {
+            return -1;
+        }
+        return leftHeight + (node.isRed() ? 0 : 1);
+    }
+    
+    /*
+     * Helper method that returns the height of a tree. Only use it on balanced trees,
+     * because it's recursive.
+     */
+    private int balancedTreeHeight(BstNode node) {
+        if (node == null) {
+            return 0;
+        }
+        return 1 + Math.max(balancedTreeHeight(node.getLeft()), balancedTreeHeight(node.getRight()));
+    }
+    
+    /*
+     * Helper method that returns the height of a tree, or -1 if some node
+     * is not AVL-balanced. Recursion is fine here because balanced trees are short.
+     */
+    private int balancedHeight(BstNode node) {
+        if (node == null) {
+            return 0;
+        }
+        int left = balancedHeight(node.getLeft());
+        int right = balancedHeight(node.getRight());
+        if (left < 0 || right < 0 || Math.abs(left - right) > 1) {
+            return -1;
+        }
+        return 1 + Math.max(left, right);
+    }
+    
+    /*
+     * Helper method that counts the nodes of a tree using an explicit stack.
+     */
+    private int countNodes(BstNode root) {
+        int count = 0;
+        Deque<BstNode> stack = new ArrayDeque<>();
+        if (root != null) {
+            stack.push(root);
+        }
+        while (!stack.isEmpty()) {
+            BstNode node = stack.pop();
+            count++;
+            if (node.getLeft() != null) {
+                stack.push(node.getLeft());
+            }
+            if (node.getRight() != null) {
+                stack.push(node.getRight());
+            }
+        }
+        return count;
+    }
+    
+    /*
+     * Helper method that checks if two trees have exactly the same shape and values.
+     * It uses an explicit stack so it also works on very deep trees.
+     */
+    private boolean sameShape(BstNode a, BstNode b) {
+        Deque<BstNode[]> stack = new ArrayDeque<>();
+        stack.push(new BstNode[] {a, b});
+        while (!stack.isEmpty()) {
+            BstNode[] pair = stack.pop();
+            if (pair[0] == null || pair[1] == null) {
+                if (pair[0] != pair[1]) {
+                    return false;
+                }
+                continue;
+            }
+            if (pair[0].getValue() != pair[1].getValue()) {
+                return false;
+            }
+            stack.push(new BstNode[] {pair[0].getLeft(), pair[1].getLeft()});
+            stack.push(new BstNode[] {pair[0].getRight(), pair[1].getRight()});
+        }
+        return true;
+    }
+    
     /*
      * Helper method that recursively validates the BST property.
      * 
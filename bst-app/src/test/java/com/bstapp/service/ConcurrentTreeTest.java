@@ -0,0 +1,164 @@
+package com.bstapp.service;
+
+import com.bstapp.model.BstTree;
+import com.bstapp.repository.BstTreeRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/*
+ * Tests for the lock-free shared tree (ConcurrentTree) and the shared tree
+ * methods of BstService.
+ * 
+ * The concurrency test starts all threads at the same moment with a latch, so
+ * they really fight over the same child links.
+ */
+class ConcurrentTreeTest {
+    
+    private BstTreeRepository repository;
+    private BstService bstService;
+    
+    @BeforeEach
+    void setUp() {
+        repository = mock(BstTreeRepository.class);
+        bstService = new BstService(repository, new ObjectMapper());
+        when(repository.save(any(BstTree.class))).thenAnswer(invocation -> invocation.getArgument(0));
+    }
+    
+    /*
+     * TEST 1: Single-threaded it behaves like the normal BST
+     */
+    @Test
+    void testSingleThreadedMatchesPlainTree() {
+        ConcurrentTree tree = new ConcurrentTree();
+        int[] numbers = {50, 30, 70, 30, 20, 60, 80, 50};
+        for (int number : numbers) {
+            tree.insert(number);
+        }
+        
+        assertEquals(6, tree.size());
+        assertTrue(tree.contains(60));
+        assertFalse(tree.contains(65));
+        assertEquals(TreeJsonWriter.write(bstService.buildTree(numbers, BalanceMode.NONE, BuildMode.INSERTION)),
+                TreeJsonWriter.write(tree.snapshot()));
+    }
+    
+    /*
+     * TEST 2: 4 threads insert overlapping ranges at the same time
+     * 
+     * Every value must end up in the tree exactly once, each value is reported
+     * as "new" by exactly one thread, and the tree is still a valid BST.
+     */
+    @Test
+    void testConcurrentInsertsKeepEveryValueOnce() throws Exception {
+        ConcurrentTree tree = new ConcurrentTree();
+        int threads = 4;
+        int perThread = 50_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                int offset = t * perThread / 2;  // Each range overlaps half of the next one
+                results.add(executor.submit(() -> {
+                    start.await();
+                    int inserted = 0;
+                    for (int i = 0; i < perThread; i++) {
+                        // Multiply by an odd number to scramble the order, so the tree isn't a list
+                        if (tree.insert(offset + (int) ((i * 40_503L) % perThread))) {
+                            inserted++;
+                        }
+                    }
+                    return inserted;
+                }));
+            }
+            start.countDown();
+            
+            int totalInserted = 0;
+            for (Future<Integer> result : results) {
+                totalInserted += result.get(60, TimeUnit.SECONDS);
+            }
+            
+            int distinct = (threads - 1) * perThread / 2 + perThread;
+            assertEquals(distinct, totalInserted);
+            assertEquals(distinct, tree.size());
+            for (int value = 0; value < distinct; value++) {
+                assertTrue(tree.contains(value));
+            }
+            
+            NodePool snapshot = tree.snapshot();
+            assertEquals(distinct, snapshot.size());
+            assertTrue(isBstValid(snapshot.toBstNode(), Integer.MIN_VALUE, Integer.MAX_VALUE));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /*
+     * TEST 3: A snapshot is saved with its values in preorder, which rebuild the same tree
+     */
+    @Test
+    void testSnapshotSavesRebuildableTree() {
+        bstService.createSharedTree("orders");
+        assertEquals(5, bstService.insertIntoSharedTree("orders", Arrays.asList(8, 3, 10, 1, 6, 3)));
+        
+        BstTree saved = bstService.snapshotSharedTree("orders");
+        
+        assertEquals("[8, 3, 1, 6, 10]", saved.getInputNumbers());
+        assertEquals(bstService.convertToJson(bstService.buildBst(bstService.parseNumbers("8, 3, 1, 6, 10"))),
+                saved.getTreeJson());
+        assertEquals(bstService.convertToJson(bstService.buildBst(Arrays.asList(8, 3, 10, 1, 6))),
+                saved.getTreeJson());
+        assertTrue(bstService.sharedTreeContains("orders", 6));
+        assertEquals(5, bstService.getSharedTreeSize("orders"));
+    }
+    
+    /*
+     * TEST 4: Names are checked, can't be taken twice, and unknown names are "not found"
+     */
+    @Test
+    void testSharedTreeNamesAndErrors() {
+        bstService.createSharedTree("metrics_2025");
+        
+        assertThrows(IllegalStateException.class, () -> bstService.createSharedTree("metrics_2025"));
+        assertThrows(IllegalArgumentException.class, () -> bstService.createSharedTree("no spaces"));
+        assertThrows(IllegalArgumentException.class, () -> bstService.createSharedTree(""));
+        assertThrows(TreeNotFoundException.class, () -> bstService.insertIntoSharedTree("missing", Arrays.asList(1)));
+        assertThrows(IllegalArgumentException.class, () -> bstService.snapshotSharedTree("metrics_2025"));
+    }
+    
+    // Same check as in BstServiceUnitTest, but with an explicit stack for deep trees
+    private boolean isBstValid(BstNode root, int min, int max) {
+        List<Object[]> stack = new ArrayList<>();
+        stack.add(new Object[] {root, (long) min - 1, (long) max + 1});
+        while (!stack.isEmpty()) {
+            Object[] entry = stack.remove(stack.size() - 1);
+            BstNode node = (BstNode) entry[0];
+            if (node == null) {
+                continue;
+            }
+            long low = (Long) entry[1];
+            long high = (Long) entry[2];
+            if (node.getValue() <= low || node.getValue() >= high) {
+                return false;
+            }
+            stack.add(new Object[] {node.getLeft(), low, (long) node.getValue()});
+            stack.add(new Object[] {node.getRight(), (long) node.getValue(), high});
+        }
+        return true;
+    }
+}
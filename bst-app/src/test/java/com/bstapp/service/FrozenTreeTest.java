@@ -0,0 +1,143 @@
+package com.bstapp.service;
+
+import com.bstapp.model.BstTree;
+import com.bstapp.repository.BstTreeRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/*
+ * Tests for the read-only Eytzinger copy of saved trees (FrozenTree), which
+ * answers the contains lookups.
+ * 
+ * The layout has the tricky index arithmetic, so I check it against a TreeSet
+ * for every size up to a few complete levels (sizes 2^k - 1 are full trees,
+ * the others have a partly filled last level) and for random values.
+ */
+class FrozenTreeTest {
+    
+    /*
+     * TEST 1: Every value is found and no value in between is, for sizes 0 to 130
+     */
+    @Test
+    void testContainsForEverySmallSize() {
+        for (int size = 0; size <= 130; size++) {
+            int[] sorted = new int[size];
+            for (int i = 0; i < size; i++) {
+                sorted[i] = i * 2;  // Odd numbers are the gaps
+            }
+            FrozenTree frozen = FrozenTree.fromSorted(sorted);
+            
+            assertEquals(size, frozen.size());
+            for (int value = -1; value <= size * 2; value++) {
+                assertEquals(value % 2 == 0 && value >= 0 && value < size * 2, frozen.contains(value),
+                        "size " + size + ", value " + value);
+            }
+        }
+    }
+    
+    /*
+     * TEST 2: Random values including the int limits agree with a TreeSet
+     */
+    @Test
+    void testContainsMatchesTreeSet() {
+        Random random = new Random(17);
+        TreeSet<Integer> expected = new TreeSet<>(Arrays.asList(Integer.MIN_VALUE, Integer.MAX_VALUE));
+        PersistentTree tree = PersistentTree.EMPTY.insertAll(new int[] {Integer.MIN_VALUE, Integer.MAX_VALUE});
+        for (int i = 0; i < 10_000; i++) {
+            int value = random.nextInt(40_000) - 20_000;
+            expected.add(value);
+            tree = tree.insert(value);
+        }
+        
+        FrozenTree frozen = tree.freeze();
+        assertEquals(expected.size(), frozen.size());
+        for (int value = -20_500; value <= 20_500; value++) {
+            assertEquals(expected.contains(value), frozen.contains(value));
+        }
+        assertTrue(frozen.contains(Integer.MIN_VALUE));
+        assertTrue(frozen.contains(Integer.MAX_VALUE));
+        assertFalse(PersistentTree.EMPTY.freeze().contains(0));
+    }
+    
+    /*
+     * TEST 3: The copy is made once per version, and the service's contains sees
+     * values appended after the first lookup (the new version gets a new copy)
+     */
+    @Test
+    void testServiceLookupsFollowNewVersions() {
+        BstTreeRepository repository = mock(BstTreeRepository.class);
+        when(repository.save(any(BstTree.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        BstService bstService = new BstService(repository, new ObjectMapper());
+        
+        List<Integer> numbers = Arrays.asList(50, 30, 70);
+        BstTree saved = new BstTree(numbers.toString(), bstService.convertToJson(bstService.buildBst(numbers)));
+        saved.setId(1L);
+        when(repository.findById(1L)).thenReturn(Optional.of(saved));
+        
+        PersistentTree version = bstService.loadVersion(1L);
+        assertSame(version.freeze(), version.freeze());
+        assertTrue(bstService.treeContains(1L, 30));
+        assertFalse(bstService.treeContains(1L, 40));
+        
+        bstService.appendToTree(1L, Arrays.asList(40));
+        assertTrue(bstService.treeContains(1L, 40));
+        bstService.deleteValues(1L, Arrays.asList(30));
+        assertFalse(bstService.treeContains(1L, 30));
+    }
+    
+    /*
+     * TEST 4: containsAll gives the same answers as contains, for tree sizes with
+     * full and partly filled last levels and batch sizes around the group size
+     */
+    @Test
+    void testContainsAllMatchesContains() {
+        Random random = new Random(23);
+        for (int size : new int[] {0, 1, 2, 3, 31, 32, 33, 1000, 4095, 4096}) {
+            int[] sorted = random.ints(size * 3L, -10_000, 10_000).distinct().limit(size).sorted().toArray();
+            FrozenTree frozen = FrozenTree.fromSorted(sorted);
+            for (int batch : new int[] {0, 1, 31, 32, 33, 500}) {
+                int[] values = random.ints(batch, -10_001, 10_001).toArray();
+                boolean[] found = frozen.containsAll(values);
+                assertEquals(batch, found.length);
+                for (int i = 0; i < batch; i++) {
+                    assertEquals(frozen.contains(values[i]), found[i], "size " + size + ", value " + values[i]);
+                }
+            }
+        }
+        
+        FrozenTree limits = FrozenTree.fromSorted(new int[] {Integer.MIN_VALUE, 0, Integer.MAX_VALUE});
+        boolean[] found = limits.containsAll(new int[] {Integer.MAX_VALUE, Integer.MIN_VALUE, 1, -1, 0});
+        assertTrue(found[0] && found[1] && found[4]);
+        assertFalse(found[2] || found[3]);
+    }
+    
+    /*
+     * TEST 5: The prefetch index stays inside the layout for every tree size up to
+     * MAX_SIZE, also where 16 * index doesn't fit in an int anymore (index >= 2^27,
+     * trees of more than 134M values, too big to build in a test)
+     */
+    @Test
+    void testPrefetchIndexDoesNotOverflow() {
+        int biggest = (1 << 30) - 1;
+        for (int n : new int[] {1, 15, 16, 17, 1000, (1 << 27) - 1, 1 << 27, biggest}) {
+            for (int index : new int[] {1, 2, n >>> 4, (n >>> 4) + 1, n / 2, n, 1 << 27, (1 << 27) + 1, biggest}) {
+                if (index >= 1 && index <= n) {
+                    assertEquals((int) Math.min(16L * index, n), FrozenTree.prefetchIndex(index, n),
+                            "index " + index + ", size " + n);
+                }
+            }
+        }
+        assertEquals(biggest, FrozenTree.prefetchIndex(1 << 27, biggest));
+    }
+}
@@ -0,0 +1,267 @@
+package com.bstapp.service;
+
+import com.bstapp.model.BstTree;
+import com.bstapp.repository.BstTreeRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/*
+ * Tests for multiset trees ("duplicates": "count"), where every node counts how
+ * many times its value was inserted.
+ * 
+ * The counts are checked against a TreeMap of frequencies everywhere: in every
+ * engine, in the JSON (both writers and the reader), in the persistent versions
+ * and their queries, and when a saved multiset tree is appended to.
+ */
+class MultisetTest {
+    
+    private BstTreeRepository repository;
+    private BstService bstService;
+    
+    @BeforeEach
+    void setUp() {
+        repository = mock(BstTreeRepository.class);
+        bstService = new BstService(repository, new ObjectMapper());
+        when(repository.save(any(BstTree.class))).thenAnswer(invocation -> invocation.getArgument(0));
+    }
+    
+    /*
+     * TEST 1: Every engine counts the duplicates without extra nodes
+     * 
+     * The tree has the same shape as without counts (same JSON once the counts are
+     * taken out), and each node's count is how often its value was in the input.
+     */
+    @Test
+    void testEveryEngineCountsDuplicates() {
+        Random random = new Random(5);
+        int[] numbers = random.ints(3_000, -200, 200).toArray();
+        TreeMap<Integer, Integer> expected = frequencies(numbers);
+        
+        for (BalanceMode balance : BalanceMode.values()) {
+            assertCounts(expected, numbers, balance, BuildMode.INSERTION);
+        }
+        assertCounts(expected, numbers, BalanceMode.NONE, BuildMode.BALANCED);
+        
+        // The parallel build, with tiny pieces so the pivots and the copying are used
+        NodePool counted = new HeapNodePool(numbers.length);
+        counted.enableCounts();
+        ParallelPlainTree parallel = new ParallelPlainTree(counted, numbers.length, new ForkJoinPool(4), 16, 64);
+        for (int number : numbers) {
+            parallel.insert(number);
+        }
+        try (NodePool sequential = bstService.buildTree(numbers, BalanceMode.NONE, BuildMode.INSERTION,
+                DuplicateMode.COUNT)) {
+            assertEquals(bstService.convertToJson(sequential), bstService.convertToJson(parallel.build()));
+        }
+        
+        // Off-heap pools count the same way
+        try (NodePool offHeap = new OffHeapNodePool()) {
+            offHeap.enableCounts();
+            PlainTree tree = new PlainTree(offHeap);
+            for (int number : numbers) {
+                tree.insert(number);
+            }
+            assertEquals(expected.size(), offHeap.size());
+            assertEquals(expected, countsOf(offHeap));
+        }
+    }
+    
+    /*
+     * TEST 2: The JSON has a "count" on every node, the same as Jackson writes for
+     * the BstNode form, and the reader gets the counts back
+     */
+    @Test
+    void testCountsInJson() {
+        int[] numbers = {50, 30, 70, 30, 50, 50, 20};
+        try (NodePool tree = bstService.buildTree(numbers, BalanceMode.NONE, BuildMode.INSERTION, DuplicateMode.COUNT)) {
+            String json = bstService.convertToJson(tree);
+            assertEquals(bstService.convertToJson(tree.toBstNode()), json);
+            assertTrue(json.contains("\"value\" : 50," + TreeJsonWriter.NEWLINE) && json.contains("\"count\" : 3"));
+            assertEquals(frequencies(numbers), countsOf(TreeJsonReader.read(json)));
+        }
+        
+        // Red-black trees have both; the count comes before the color like in Jackson's output
+        try (NodePool tree = bstService.buildTree(numbers, BalanceMode.RED_BLACK, BuildMode.INSERTION,
+                DuplicateMode.COUNT)) {
+            String json = bstService.convertToJson(tree);
+            assertEquals(bstService.convertToJson(tree.toBstNode()), json);
+            assertTrue(json.indexOf("\"count\"") < json.indexOf("\"color\""));
+            assertEquals(json, bstService.convertToJson(TreeJsonReader.read(json)));
+        }
+        
+        // Without counts nothing changes
+        try (NodePool tree = bstService.buildTree(numbers, BalanceMode.NONE, BuildMode.INSERTION)) {
+            assertFalse(tree.hasCounts());
+            assertFalse(bstService.convertToJson(tree).contains("count"));
+        }
+        assertThrows(IllegalArgumentException.class, () -> TreeJsonReader.read("{\"value\" : 1, \"count\" : 0}"));
+        
+        assertEquals(DuplicateMode.IGNORE, DuplicateMode.fromString(null));
+        assertEquals(DuplicateMode.IGNORE, DuplicateMode.fromString("skip"));
+        assertEquals(DuplicateMode.COUNT, DuplicateMode.fromString(" COUNT "));
+        assertThrows(IllegalArgumentException.class, () -> DuplicateMode.fromString("keep"));
+    }
+    
+    /*
+     * TEST 3: Persistent multiset versions: a duplicate copies the path with a
+     * higher count, range and aggregate include the counts, rank and the plain
+     * range still see each value once
+     */
+    @Test
+    void testPersistentCountsInQueries() {
+        PersistentTree v1 = PersistentTree.MULTISET_EMPTY.insertAll(new int[] {50, 30, 70});
+        PersistentTree v2 = v1.insert(30);
+        assertNotSame(v1, v2);
+        assertEquals(1, v1.getRoot().left.count);
+        assertEquals(2, v2.getRoot().left.count);
+        assertSame(v1.getRoot().right, v2.getRoot().right);
+        assertEquals(3, v2.size());
+        
+        Random random = new Random(9);
+        int[] numbers = random.ints(5_000, -500, 500).toArray();
+        TreeMap<Integer, Integer> expected = frequencies(numbers);
+        PersistentTree tree = PersistentTree.MULTISET_EMPTY.insertAll(numbers);
+        assertTrue(tree.isMultiset());
+        assertEquals(expected.size(), tree.size());
+        
+        for (int i = 0; i < 200; i++) {
+            int lo = random.nextInt(1200) - 600;
+            int hi = lo + random.nextInt(300);
+            List<Integer> withDuplicates = new ArrayList<>();
+            long sum = 0;
+            for (Map.Entry<Integer, Integer> entry : expected.subMap(lo, true, hi, true).entrySet()) {
+                for (int copy = 0; copy < entry.getValue(); copy++) {
+                    withDuplicates.add(entry.getKey());
+                    sum += entry.getKey();
+                }
+            }
+            assertEquals(withDuplicates, toList(tree.rangeWithDuplicates(lo, hi)));
+            assertEquals(new ArrayList<>(expected.subMap(lo, true, hi, true).keySet()), toList(tree.range(lo, hi)));
+            
+            RangeAggregate aggregate = tree.aggregate(lo, hi);
+            assertEquals(withDuplicates.size(), aggregate.getCount());
+            assertEquals(sum, aggregate.getSum());
+        }
+        assertEquals(numbers.length, tree.aggregate(Integer.MIN_VALUE, Integer.MAX_VALUE).getCount());
+        assertEquals(expected.headMap(0).size(), tree.rank(0));
+        
+        // The pool form keeps the counts, and a normal tree has none
+        assertEquals(expected, countsOf(tree.toNodePool()));
+        assertFalse(PersistentTree.fromNodePool(PersistentTree.EMPTY.insert(1).toNodePool()).isMultiset());
+        assertEquals(toList(PersistentTree.EMPTY.insertAll(numbers).range(-50, 50)),
+                toList(PersistentTree.EMPTY.insertAll(numbers).rangeWithDuplicates(-50, 50)));
+    }
+    
+    /*
+     * TEST 4: Appending to a saved multiset tree patches the counts in the stored
+     * JSON (also when a count gets another digit) and the new leaves in front of
+     * them, and the result is the same as writing the whole tree
+     */
+    @Test
+    void testAppendToMultisetTree() {
+        Random random = new Random(13);
+        PersistentTree tree = PersistentTree.MULTISET_EMPTY.insertAll(new int[] {0, Integer.MIN_VALUE, Integer.MAX_VALUE});
+        String json = TreeJsonWriter.write(tree.toNodePool());
+        for (int batch = 0; batch < 50; batch++) {
+            int[] values = random.ints(1 + random.nextInt(20), -30, 30).toArray();
+            PersistentTree next = tree.insertAll(values);
+            json = TreeJsonPatcher.patch(json, tree, next);
+            assertEquals(TreeJsonWriter.write(next.toNodePool()), json);
+            tree = next;
+        }
+        
+        List<Integer> numbers = Arrays.asList(50, 30, 70, 30);
+        String saved = bstService.buildAndSaveTree(numbers, BalanceMode.NONE, BuildMode.INSERTION, DuplicateMode.COUNT);
+        BstTree row = new BstTree(numbers.toString(), saved);
+        row.setId(1L);
+        when(repository.findById(1L)).thenReturn(Optional.of(row));
+        
+        bstService.appendToTree(1L, Arrays.asList(30, 30, 30, 30, 30, 30, 30, 30, 80, 50));
+        List<Integer> combined = new ArrayList<>(numbers);
+        combined.addAll(Arrays.asList(30, 30, 30, 30, 30, 30, 30, 30, 80, 50));
+        int[] all = combined.stream().mapToInt(Integer::intValue).toArray();
+        try (NodePool rebuilt = bstService.buildTree(all, BalanceMode.NONE, BuildMode.INSERTION, DuplicateMode.COUNT)) {
+            assertEquals(bstService.convertToJson(rebuilt), row.getTreeJson());
+        }
+        assertTrue(row.getTreeJson().contains("\"count\" : 10"));
+        assertEquals(Arrays.asList(30, 30, 30, 30, 30, 30, 30, 30, 30, 30, 50, 50),
+                toList(bstService.treeRange(1L, 0, 60)));
+        assertEquals(14, bstService.treeAggregate(1L, Integer.MIN_VALUE, Integer.MAX_VALUE).getCount());
+    }
+    
+    /*
+     * TEST 5: After a delete the stored input repeats each value by its count, so
+     * building from it with "count" gives the same tree again. removed counts every
+     * copy of a deleted value, not the nodes.
+     */
+    @Test
+    void testDeleteKeepsCountsInInput() {
+        List<Integer> numbers = Arrays.asList(50, 30, 70, 30, 70, 70, 60);
+        BstTree row = new BstTree(numbers.toString(),
+                bstService.buildAndSaveTree(numbers, BalanceMode.NONE, BuildMode.INSERTION, DuplicateMode.COUNT));
+        row.setId(1L);
+        when(repository.findById(1L)).thenReturn(Optional.of(row));
+        
+        assertEquals(1, bstService.deleteValues(1L, Arrays.asList(50)));
+        assertEquals("[60, 30, 30, 70, 70, 70]", row.getInputNumbers());
+        List<Integer> input = Arrays.asList(60, 30, 30, 70, 70, 70);
+        assertEquals(bstService.buildAndSaveTree(input, BalanceMode.NONE, BuildMode.INSERTION, DuplicateMode.COUNT),
+                row.getTreeJson());
+        
+        DeleteResult result = bstService.deleteFromTree(1L, Arrays.asList(30), 65, 80);  // 30 twice, 70 three times
+        assertEquals(5, result.getRemoved());
+        assertEquals(1, result.getSize());
+        assertEquals("[60]", row.getInputNumbers());
+    }
+    
+    // Builds the tree with counts and compares it with the frequencies and the uncounted tree
+    private void assertCounts(TreeMap<Integer, Integer> expected, int[] numbers, BalanceMode balance, BuildMode mode) {
+        try (NodePool counted = bstService.buildTree(numbers, balance, mode, DuplicateMode.COUNT);
+             NodePool plain = bstService.buildTree(numbers, balance, mode)) {
+            assertEquals(expected.size(), counted.size(), balance + " " + mode);
+            assertEquals(expected, countsOf(counted), balance + " " + mode);
+            String withoutCounts = bstService.convertToJson(counted)
+                    .replaceAll("," + TreeJsonWriter.NEWLINE + " *\"count\" : \\d+", "");
+            assertEquals(bstService.convertToJson(plain), withoutCounts, balance + " " + mode);
+        }
+    }
+    
+    private static TreeMap<Integer, Integer> frequencies(int[] numbers) {
+        TreeMap<Integer, Integer> counts = new TreeMap<>();
+        for (int number : numbers) {
+            counts.merge(number, 1, Integer::sum);
+        }
+        return counts;
+    }
+    
+    private static TreeMap<Integer, Integer> countsOf(NodePool pool) {
+        TreeMap<Integer, Integer> counts = new TreeMap<>();
+        for (int node = 0; node < pool.size(); node++) {
+            counts.put(pool.getValue(node), pool.getCount(node));
+        }
+        return counts;
+    }
+    
+    private static List<Integer> toList(PrimitiveIterator.OfInt values) {
+        List<Integer> list = new ArrayList<>();
+        values.forEachRemaining((IntConsumer) list::add);
+        return list;
+    }
+}
@@ -0,0 +1,252 @@
+package com.bstapp.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ * Tests for the array-based tree storage (HeapNodePool and OffHeapNodePool) and
+ * the JSON writer that works directly on it (TreeJsonWriter).
+ * 
+ * The most important thing here is that the JSON is exactly the same as what
+ * Jackson writes for the BstNode version of the same tree, because stored trees
+ * were always written by Jackson. So most tests build a tree, convert it to JSON
+ * both ways, and compare the strings.
+ */
+class NodePoolTest {
+    
+    // Service with a real ObjectMapper, so I can compare against Jackson
+    private BstService bstService;
+    
+    @BeforeEach
+    void setUp() {
+        bstService = new BstService(null, new ObjectMapper());
+    }
+    
+    /*
+     * TEST 1: Linking nodes by index
+     * 
+     * I build the tree 7 -> (3, 9) by hand and check the links and the object view.
+     */
+    @Test
+    void testNodesAreLinkedByIndex() {
+        NodePool pool = new HeapNodePool(3);
+        int root = pool.addNode(7);
+        int left = pool.addNode(3);
+        int right = pool.addNode(9);
+        pool.setRoot(root);
+        pool.setLeft(root, left);
+        pool.setRight(root, right);
+        
+        assertEquals(3, pool.size());
+        assertEquals(7, pool.getValue(pool.getRoot()));
+        assertEquals(3, pool.getValue(pool.getLeft(root)));
+        assertEquals(NodePool.NIL, pool.getLeft(left));
+        
+        BstNode node = pool.toBstNode();
+        assertEquals(7, node.getValue());
+        assertEquals(3, node.getLeft().getValue());
+        assertEquals(9, node.getRight().getValue());
+    }
+    
+    /*
+     * TEST 2: The pool grows when the capacity guess was too small
+     */
+    @Test
+    void testPoolGrows() {
+        NodePool pool = new HeapNodePool(1);
+        for (int i = 0; i < 1000; i++) {
+            pool.addNode(i);
+        }
+        
+        assertEquals(1000, pool.size());
+        assertTrue(pool.capacity() >= 1000);
+        assertEquals(999, pool.getValue(999));
+    }
+    
+    /*
+     * TEST 3: Duplicates don't use up nodes, and when the size is known
+     * up front the arrays never grow (no allocation while building)
+     */
+    @Test
+    void testEnginesOnlyAllocateUniqueNodes() {
+        int[] numbers = {5, 3, 5, 7, 3, 5, 1};
+        
+        for (BalanceMode balance : BalanceMode.values()) {
+            NodePool pool = bstService.buildTree(numbers, balance, BuildMode.INSERTION);
+            assertEquals(4, pool.size());
+            assertEquals(numbers.length, pool.capacity());
+        }
+    }
+    
+    /*
+     * TEST 4: JSON from the arrays is identical to Jackson's JSON for every engine
+     */
+    @Test
+    void testJsonMatchesJacksonForEveryEngine() {
+        Random random = new Random(3);
+        int[] numbers = new int[500];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = random.nextInt(1000) - 500;
+        }
+        
+        for (BalanceMode balance : BalanceMode.values()) {
+            assertSameJson(bstService.buildTree(numbers, balance, BuildMode.INSERTION));
+        }
+        assertSameJson(bstService.buildTree(numbers, BalanceMode.NONE, BuildMode.BALANCED));
+        assertSameJson(bstService.buildTree(new int[] {42}, BalanceMode.NONE, BuildMode.INSERTION));
+    }
+    
+    /*
+     * TEST 5: The JSON writer doesn't recurse
+     * 
+     * A sorted input of 20,000 numbers is 20,000 levels deep. The JSON is huge because
+     * of the indentation, but writing it must not throw StackOverflowError.
+     */
+    @Test
+    void testJsonWriterHandlesDeepTrees() {
+        int[] numbers = new int[20_000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = i;
+        }
+        
+        String json = bstService.convertToJson(bstService.buildTree(numbers, BalanceMode.NONE, BuildMode.INSERTION));
+        
+        assertTrue(json.startsWith("{"));
+        assertTrue(json.endsWith("}"));
+        assertTrue(json.contains("\"value\" : 19999"));
+    }
+    
+    /*
+     * TEST 6: Empty pools are written as null, like Jackson does for a null root
+     */
+    @Test
+    void testEmptyPoolIsNull() {
+        NodePool pool = new HeapNodePool(0);
+        
+        assertEquals("null", bstService.convertToJson(pool));
+        assertNull(pool.toBstNode());
+    }
+    
+    /*
+     * TEST 7: Off-heap trees give exactly the same JSON as heap trees
+     * 
+     * With the threshold at 0 every tree goes off-heap, so I can compare them
+     * against a service that keeps everything on the heap.
+     */
+    @Test
+    void testOffHeapJsonMatchesHeap() {
+        Random random = new Random(11);
+        int[] numbers = new int[2000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = random.nextInt(5000) - 2500;
+        }
+        
+        BstService offHeapService = new BstService(null, new ObjectMapper());
+        offHeapService.setOffHeapThreshold(0);
+        
+        for (BalanceMode balance : BalanceMode.values()) {
+            try (NodePool heap = bstService.buildTree(numbers, balance, BuildMode.INSERTION);
+                 NodePool offHeap = offHeapService.buildTree(numbers, balance, BuildMode.INSERTION)) {
+                assertTrue(offHeap instanceof OffHeapNodePool);
+                assertEquals(bstService.convertToJson(heap), offHeapService.convertToJson(offHeap));
+            }
+        }
+        try (NodePool heap = bstService.buildTree(numbers, BalanceMode.NONE, BuildMode.BALANCED);
+             NodePool offHeap = offHeapService.buildTree(numbers, BalanceMode.NONE, BuildMode.BALANCED)) {
+            assertEquals(bstService.convertToJson(heap), offHeapService.convertToJson(offHeap));
+        }
+    }
+    
+    /*
+     * TEST 8: close() gives the off-heap memory back right away
+     * 
+     * 1.5 million sorted numbers need two chunks. While the pool is open the
+     * metrics show the memory, and after close() they are back where they started.
+     */
+    @Test
+    void testOffHeapMemoryIsReleasedOnClose() {
+        OffHeapMetrics before = new OffHeapMetrics(0);
+        int[] numbers = new int[1_500_000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = i;
+        }
+        
+        BstService offHeapService = new BstService(null, null);
+        offHeapService.setOffHeapThreshold(0);
+        OffHeapNodePool pool = (OffHeapNodePool) offHeapService.buildTree(numbers, BalanceMode.NONE, BuildMode.INSERTION);
+        
+        assertEquals(1_500_000, pool.size());
+        assertEquals(1_499_999, pool.getValue(pool.getRight(1_499_998)));
+        OffHeapMetrics open = new OffHeapMetrics(0);
+        assertEquals(before.getActivePools() + 1, open.getActivePools());
+        assertEquals(before.getAllocatedBytes() + pool.getAllocatedBytes(), open.getAllocatedBytes());
+        assertTrue(pool.getAllocatedBytes() >= 3L * numbers.length * Integer.BYTES);
+        
+        pool.close();
+        pool.close();  // Closing twice is fine
+        
+        OffHeapMetrics after = new OffHeapMetrics(0);
+        assertEquals(before.getActivePools(), after.getActivePools());
+        assertEquals(before.getAllocatedBytes(), after.getAllocatedBytes());
+        assertEquals(before.getPoolsReleased() + 1, after.getPoolsReleased());
+        assertTrue(after.getPeakBytes() >= open.getAllocatedBytes());
+    }
+    
+    /*
+     * TEST 9: Using an off-heap pool after close() throws instead of reading freed memory
+     */
+    @Test
+    void testOffHeapPoolCannotBeUsedAfterClose() {
+        OffHeapNodePool pool = new OffHeapNodePool();
+        int root = pool.addNode(7);
+        pool.setRoot(root);
+        pool.close();
+        
+        assertThrows(RuntimeException.class, () -> pool.getValue(root));
+        assertThrows(IllegalStateException.class, () -> pool.addNode(8));
+    }
+    
+    /*
+     * TEST 10: The JSON length is counted exactly before writing, and a tree whose
+     * JSON can't fit in a String is refused without building the String
+     * 
+     * 100,000 sorted numbers without balancing are a chain 100,000 levels deep, so
+     * the indentation alone is tens of billions of characters.
+     */
+    @Test
+    void testJsonLengthIsCountedBeforeWriting() {
+        Random random = new Random(10);
+        int[] numbers = random.ints(3000, -50_000, 50_000).toArray();
+        numbers[0] = Integer.MIN_VALUE;
+        numbers[1] = Integer.MAX_VALUE;
+        for (BalanceMode balance : BalanceMode.values()) {
+            for (DuplicateMode duplicates : DuplicateMode.values()) {
+                try (NodePool pool = bstService.buildTree(numbers, balance, BuildMode.INSERTION, duplicates)) {
+                    assertEquals(TreeJsonWriter.write(pool).length(), TreeJsonWriter.length(pool, 0));
+                }
+            }
+        }
+        
+        int[] sorted = new int[100_000];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i;
+        }
+        try (NodePool chain = bstService.buildTree(sorted, BalanceMode.NONE, BuildMode.INSERTION)) {
+            long length = TreeJsonWriter.length(chain, 0);
+            assertTrue(length > TreeJsonWriter.MAX_LENGTH);
+            assertEquals("Tree is too big to save: its JSON would have " + length
+                            + " characters, the limit is " + TreeJsonWriter.MAX_LENGTH,
+                    assertThrows(IllegalArgumentException.class, () -> TreeJsonWriter.write(chain)).getMessage());
+        }
+    }
+    
+    // Compares the array-based JSON with Jackson's JSON for the same tree
+    private void assertSameJson(NodePool pool) {
+        assertEquals(bstService.convertToJson(pool.toBstNode()), bstService.convertToJson(pool));
+    }
+}
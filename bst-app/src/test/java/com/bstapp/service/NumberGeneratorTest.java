@@ -0,0 +1,203 @@
+package com.bstapp.service;
+
+import com.bstapp.model.BstTree;
+import com.bstapp.repository.BstTreeRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/*
+ * Tests for the "generator" input of /process-numbers (NumberGenerator): ranges,
+ * seeded random numbers and shuffled ranges made on the server.
+ */
+class NumberGeneratorTest {
+    
+    private BstService bstService;
+    private BstTree lastSaved;
+    
+    @BeforeEach
+    void setUp() {
+        BstTreeRepository repository = mock(BstTreeRepository.class);
+        bstService = new BstService(repository, new ObjectMapper());
+        when(repository.save(any(BstTree.class))).thenAnswer(invocation -> {
+            lastSaved = invocation.getArgument(0);
+            return lastSaved;
+        });
+    }
+    
+    /*
+     * TEST 1: Ranges count up or down with their step, include "to" only if a step
+     * lands on it, and the short form "1..5" is a range too
+     */
+    @Test
+    void testRanges() {
+        assertArrayEquals(new int[] {1, 2, 3, 4, 5}, values("1..5"));
+        assertArrayEquals(new int[] {1, 2, 3, 4, 5}, values("Range 1..5"));
+        assertArrayEquals(new int[] {1, 4, 7, 10}, values("range 1..11 step 3"));
+        assertArrayEquals(new int[] {10, 8, 6}, values("range 10..5 step -2"));
+        assertArrayEquals(new int[] {-3}, values("range -3..-3"));
+        assertArrayEquals(new int[] {Integer.MAX_VALUE - 1, Integer.MAX_VALUE},
+                values("range 2147483646..2147483647"));
+        
+        assertEquals(4_294_967_296L, NumberGenerator.parse("range -2147483648..2147483647").size());
+        assertEquals("range 1..11 step 3", NumberGenerator.parse(" RANGE  1..11  step 3 ").toString());
+        assertEquals("range 1..5", NumberGenerator.parse("1..5").toString());
+    }
+    
+    /*
+     * TEST 2: The random generators give the same numbers for the same seed, stay
+     * in their bounds, and a description without a seed gets one that makes the
+     * same numbers again
+     */
+    @Test
+    void testSeededRandomNumbers() {
+        int[] uniform = values("uniform 100000 in -50..49 seed 42");
+        assertEquals(100_000, uniform.length);
+        assertArrayEquals(uniform, values("uniform 100000 in -50..49 seed 42"));
+        assertFalse(Arrays.equals(uniform, values("uniform 100000 in -50..49 seed 43")));
+        assertEquals(-50, Arrays.stream(uniform).min().getAsInt());
+        assertEquals(49, Arrays.stream(uniform).max().getAsInt());
+        assertEquals(-0.5, Arrays.stream(uniform).average().getAsDouble(), 0.5);
+        
+        int[] gaussian = values("gaussian 100000 mean 500 sd 20 seed 7");
+        double mean = Arrays.stream(gaussian).average().getAsDouble();
+        double variance = Arrays.stream(gaussian).mapToDouble(value -> (value - mean) * (value - mean)).sum()
+                / gaussian.length;
+        assertEquals(500, mean, 0.5);
+        assertEquals(20, Math.sqrt(variance), 0.5);
+        assertEquals("gaussian 100000 mean 500 sd 20 seed 7",
+                NumberGenerator.parse("gaussian 100000 sd 20 mean 500 seed 7").toString());
+        
+        // Huge values are clamped to the int range instead of wrapping around
+        assertTrue(Arrays.stream(values("gaussian 1000 sd 1e18 seed 1"))
+                .allMatch(value -> value == Integer.MIN_VALUE || value == Integer.MAX_VALUE));
+        
+        NumberGenerator unseeded = NumberGenerator.parse("uniform 1000");
+        assertTrue(unseeded.toString().matches("uniform 1000 in -2147483648\\.\\.2147483647 seed -?\\d+"));
+        assertArrayEquals(values(unseeded), values(unseeded.toString()));
+    }
+    
+    /*
+     * TEST 3: A shuffled range has every number of the range exactly once, for
+     * sizes around the powers of two (where the Feistel network's bit count changes),
+     * and the order depends on the seed
+     */
+    @Test
+    void testShuffleIsAPermutation() {
+        for (int size = 1; size <= 300; size++) {
+            assertShuffled("shuffle 1.." + size + " seed " + size);
+        }
+        for (int bits = 9; bits <= 17; bits++) {
+            int size = 1 << bits;
+            assertShuffled("shuffle 0.." + (size - 2) + " seed 5");
+            assertShuffled("shuffle 0.." + size + " seed 5");
+        }
+        assertShuffled("shuffle 100..-100 step -7 seed 3");
+        
+        int[] shuffled = values("shuffle 1..1000 seed 1");
+        assertArrayEquals(shuffled, values("shuffle 1..1000 seed 1"));
+        assertFalse(Arrays.equals(shuffled, values("shuffle 1..1000 seed 2")));
+        assertFalse(Arrays.equals(shuffled, values("range 1..1000")));
+    }
+    
+    /*
+     * TEST 4: A generated tree is the same as the tree of the same numbers sent as
+     * an array, in every mode, and the saved input is the generator's description
+     */
+    @Test
+    void testServiceBuildsGeneratedTrees() {
+        String[] descriptions = {"shuffle 1..5000 seed 9", "uniform 5000 in 0..999 seed 9",
+                "gaussian 5000 sd 100 seed 9", "range 5000..1 step -3"};
+        for (String description : descriptions) {
+            NumberGenerator generator = NumberGenerator.parse(description);
+            int[] numbers = values(generator);
+            for (BalanceMode balance : BalanceMode.values()) {
+                assertEquals(bstService.buildAndSaveTree(numbers, balance, BuildMode.INSERTION, DuplicateMode.IGNORE),
+                        bstService.buildAndSaveTree(generator, balance, BuildMode.INSERTION, DuplicateMode.IGNORE));
+            }
+            assertEquals(bstService.buildAndSaveTree(numbers, BalanceMode.NONE, BuildMode.BALANCED, DuplicateMode.COUNT),
+                    bstService.buildAndSaveTree(generator, BalanceMode.NONE, BuildMode.BALANCED, DuplicateMode.COUNT));
+        }
+        
+        bstService.buildAndSaveTree(NumberGenerator.parse("range 1..3"), BalanceMode.NONE, BuildMode.INSERTION,
+                DuplicateMode.IGNORE);
+        assertEquals("range 1..3", lastSaved.getInputNumbers());
+        
+        bstService.setMaxGeneratedCount(1000);
+        assertEquals("Generator makes 1001 numbers, the limit is 1000",
+                assertThrows(IllegalArgumentException.class, () -> bstService.buildAndSaveTree(
+                        NumberGenerator.parse("range 0..1000"), BalanceMode.NONE, BuildMode.INSERTION,
+                        DuplicateMode.IGNORE)).getMessage());
+        
+        // A limit that can't be an array size stops the application at startup
+        assertThrows(IllegalArgumentException.class, () -> bstService.setMaxGeneratedCount(Integer.MAX_VALUE + 1L));
+        assertThrows(IllegalArgumentException.class, () -> bstService.setMaxGeneratedCount(0));
+        
+        // Under the limit, but a range without balancing is a chain whose JSON can't be saved
+        bstService.setMaxGeneratedCount(1_000_000);
+        assertTrue(assertThrows(IllegalArgumentException.class, () -> bstService.buildAndSaveTree(
+                NumberGenerator.parse("range 1..200000"), BalanceMode.NONE, BuildMode.INSERTION,
+                DuplicateMode.IGNORE)).getMessage().startsWith("Tree is too big to save"));
+    }
+    
+    /*
+     * TEST 5: Bad descriptions are IllegalArgumentExceptions that say what's wrong
+     */
+    @Test
+    void testBadDescriptions() {
+        assertBad("Generator cannot be empty", "  ");
+        assertBad("Unknown generator: fibonacci", "fibonacci 10");
+        assertBad("Generator 'range' needs a range or a count", "range");
+        assertBad("Expected a range like 1..100, got: 10", "range 10");
+        assertBad("Range ends must be ints: 1..2147483648", "range 1..2147483648");
+        assertBad("step must not be 0", "range 1..5 step 0");
+        assertBad("Range 1..5 with step -1 is empty", "range 1..5 step -1");
+        assertBad("Unknown generator option: seed", "range 1..5 seed 3");
+        assertBad("Generator option 'step' needs a value", "range 1..5 step");
+        assertBad("Generator option 'seed' is given twice", "shuffle 1..5 seed 1 seed 2");
+        assertBad("Count must be a positive number: 0", "uniform 0");
+        assertBad("Range 5..1 is empty", "uniform 10 in 5..1");
+        assertBad("Seed must be a whole number: x", "uniform 10 seed x");
+        assertBad("Generator 'gaussian' needs an sd (standard deviation)", "gaussian 10");
+        assertBad("sd must not be negative", "gaussian 10 sd -1");
+        assertBad("mean must be a number: nan", "gaussian 10 mean NaN sd 1");
+    }
+    
+    // ============ Helper methods ============
+    
+    private static int[] values(String description) {
+        return values(NumberGenerator.parse(description));
+    }
+    
+    // Collects what a generator makes, for comparing (the service never does this)
+    private static int[] values(NumberGenerator generator) {
+        int[] values = new int[(int) generator.size()];
+        int[] count = {0};
+        IntConsumer sink = value -> values[count[0]++] = value;
+        generator.generate(sink);
+        assertEquals(values.length, count[0]);
+        return values;
+    }
+    
+    // The shuffle has the same numbers as the range without "seed"
+    private static void assertShuffled(String description) {
+        int[] shuffled = values(description);
+        int[] expected = values(description.replace("shuffle", "range").replaceAll(" seed -?\\d+", ""));
+        Arrays.sort(shuffled);
+        Arrays.sort(expected);
+        assertArrayEquals(expected, shuffled);
+    }
+    
+    private static void assertBad(String message, String description) {
+        assertEquals(message, assertThrows(IllegalArgumentException.class,
+                () -> NumberGenerator.parse(description)).getMessage());
+    }
+}
@@ -0,0 +1,853 @@
+package com.bstapp.service;
+
+import com.bstapp.model.BstTree;
+import com.bstapp.repository.BstTreeRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/*
+ * Tests for the persistent (path-copying) tree, the JSON reader that loads saved
+ * trees back into memory, and deriving new trees from saved ones or appending to them.
+ * 
+ * The repository is a Mockito mock here, so no database is needed. save() just
+ * hands out ids to new rows like the real database would, and keeps the last
+ * saved state of each row in rows.
+ */
+class PersistentTreeTest {
+    
+    private BstTreeRepository repository;
+    private BstService bstService;
+    private long nextId;
+    private Map<Long, BstTree> rows;
+    
+    @BeforeEach
+    void setUp() {
+        repository = mock(BstTreeRepository.class);
+        bstService = new BstService(repository, new ObjectMapper());
+        nextId = 100;
+        rows = new HashMap<>();
+        when(repository.save(any(BstTree.class))).thenAnswer(invocation -> {
+            BstTree tree = invocation.getArgument(0);
+            if (tree.getId() == null) {
+                tree.setId(nextId++);  // Existing rows keep their id
+            }
+            rows.put(tree.getId(), tree);
+            return tree;
+        });
+    }
+    
+    /*
+     * TEST 1: Old versions don't change, and only the insert path is copied
+     * 
+     * Tree 50 -> (30, 70). Inserting 80 copies 50 and 70, but the left subtree (30)
+     * is the very same object in both versions.
+     */
+    @Test
+    void testInsertCopiesOnlyThePath() {
+        PersistentTree v1 = PersistentTree.EMPTY.insertAll(new int[] {50, 30, 70, 20});
+        PersistentTree v2 = v1.insert(80);
+        
+        assertEquals(4, v1.size());
+        assertEquals(5, v2.size());
+        assertFalse(v1.contains(80));
+        assertTrue(v2.contains(80));
+        
+        assertNotSame(v1.getRoot(), v2.getRoot());
+        assertNotSame(v1.getRoot().right, v2.getRoot().right);
+        assertSame(v1.getRoot().left, v2.getRoot().left);
+        
+        // Duplicates don't create a new version at all
+        assertSame(v2, v2.insert(30));
+    }
+    
+    /*
+     * TEST 2: Adding numbers to a version gives the same tree as building from
+     * the old input followed by the new numbers
+     */
+    @Test
+    void testDerivedVersionMatchesRebuild() {
+        Random random = new Random(5);
+        int[] all = new int[3000];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = random.nextInt(2000);
+        }
+        int[] first = Arrays.copyOf(all, 2500);
+        int[] rest = Arrays.copyOfRange(all, 2500, all.length);
+        
+        PersistentTree base = PersistentTree.fromNodePool(bstService.buildTree(first, BalanceMode.NONE, BuildMode.INSERTION));
+        PersistentTree derived = base.insertAll(rest);
+        NodePool rebuilt = bstService.buildTree(all, BalanceMode.NONE, BuildMode.INSERTION);
+        
+        assertEquals(rebuilt.size(), derived.size());
+        assertEquals(TreeJsonWriter.write(rebuilt), TreeJsonWriter.write(derived.toNodePool()));
+    }
+    
+    /*
+     * TEST 3: Reading the JSON back gives the same tree for every engine,
+     * including red-black colors, compact JSON and very deep trees
+     */
+    @Test
+    void testJsonReaderRoundTrip() {
+        Random random = new Random(6);
+        int[] numbers = new int[1000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = random.nextInt() / 2;
+        }
+        for (BalanceMode balance : BalanceMode.values()) {
+            String json = TreeJsonWriter.write(bstService.buildTree(numbers, balance, BuildMode.INSERTION));
+            assertEquals(json, TreeJsonWriter.write(TreeJsonReader.read(json)));
+        }
+        
+        NodePool compact = TreeJsonReader.read("{\"value\":-7,\"right\":{\"value\":3},\"left\":null}");
+        assertEquals(-7, compact.getValue(compact.getRoot()));
+        assertEquals(3, compact.getValue(compact.getRight(compact.getRoot())));
+        assertEquals(NodePool.NIL, TreeJsonReader.read("null").getRoot());
+        
+        // 20,000 levels is far more than Jackson would read
+        int[] sorted = new int[20_000];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i;
+        }
+        String deep = TreeJsonWriter.write(bstService.buildTree(sorted, BalanceMode.NONE, BuildMode.INSERTION));
+        assertEquals(20_000, TreeJsonReader.read(deep).size());
+    }
+    
+    /*
+     * TEST 4: Broken JSON is an IllegalArgumentException, not a wrong tree
+     */
+    @Test
+    void testJsonReaderRejectsInvalidJson() {
+        assertThrows(IllegalArgumentException.class, () -> TreeJsonReader.read("{\"value\" : 1"));
+        assertThrows(IllegalArgumentException.class, () -> TreeJsonReader.read("{\"value\" : \"x\"}"));
+        assertThrows(IllegalArgumentException.class, () -> TreeJsonReader.read("{\"size\" : 1}"));
+        assertThrows(IllegalArgumentException.class, () -> TreeJsonReader.read("{\"value\" : 1} extra"));
+    }
+    
+    /*
+     * TEST 5: deriveTree saves a new row with the combined input and the same
+     * treeJson as building from the combined input
+     */
+    @Test
+    void testDeriveTreeSavesNewVersion() {
+        List<Integer> first = Arrays.asList(50, 30, 70, 20, 60);
+        String parentJson = bstService.convertToJson(bstService.buildBst(first));
+        BstTree parent = new BstTree(first.toString(), parentJson);
+        parent.setId(1L);
+        when(repository.findById(1L)).thenReturn(Optional.of(parent));
+        
+        BstTree derived = bstService.deriveTree(1L, Arrays.asList(65, 30, 10));
+        
+        List<Integer> combined = new ArrayList<>(first);
+        combined.addAll(Arrays.asList(65, 30, 10));
+        assertEquals(Long.valueOf(100L), derived.getId());
+        assertEquals("[50, 30, 70, 20, 60, 65, 30, 10]", derived.getInputNumbers());
+        assertEquals(bstService.convertToJson(bstService.buildBst(combined)), derived.getTreeJson());
+        
+        // The parent is unchanged, and the new version is cached under the new id
+        assertEquals(parentJson, parent.getTreeJson());
+        assertEquals(7, bstService.loadVersion(100L).size());
+        assertEquals(5, bstService.loadVersion(1L).size());
+    }
+    
+    /*
+     * TEST 6: Unknown ids and empty input are rejected
+     */
+    @Test
+    void testDeriveTreeErrors() {
+        when(repository.findById(404L)).thenReturn(Optional.empty());
+        
+        assertThrows(TreeNotFoundException.class, () -> bstService.deriveTree(404L, Arrays.asList(1)));
+        assertThrows(IllegalArgumentException.class, () -> bstService.deriveTree(1L, new ArrayList<>()));
+    }
+    
+    /*
+     * TEST 7: Patching new leaves into the stored JSON gives exactly the JSON of
+     * writing the whole tree again
+     * 
+     * Random batches (with negative numbers, duplicates and the int limits) are
+     * appended one after another, each time patching the previous text. A deep
+     * tree from sorted input is included, because there the positions are far
+     * into the text.
+     */
+    @Test
+    void testJsonPatchMatchesFullWrite() {
+        Random random = new Random(11);
+        PersistentTree tree = PersistentTree.EMPTY.insertAll(new int[] {0, Integer.MIN_VALUE, Integer.MAX_VALUE});
+        String json = TreeJsonWriter.write(tree.toNodePool());
+        for (int batch = 0; batch < 50; batch++) {
+            int[] values = new int[1 + random.nextInt(20)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = random.nextInt(2001) - 1000;
+            }
+            PersistentTree next = tree.insertAll(values);
+            json = TreeJsonPatcher.patch(json, tree, next);
+            assertEquals(TreeJsonWriter.write(next.toNodePool()), json);
+            tree = next;
+        }
+        
+        int[] sorted = new int[5_000];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i * 2;
+        }
+        PersistentTree deep = PersistentTree.EMPTY.insertAll(sorted);
+        PersistentTree deeper = deep.insertAll(new int[] {9_999, 20_000, 5, -1});
+        assertEquals(TreeJsonWriter.write(deeper.toNodePool()),
+                TreeJsonPatcher.patch(TreeJsonWriter.write(deep.toNodePool()), deep, deeper));
+        
+        // Text that isn't the writer's layout (compact JSON, colors) is not patched
+        PersistentTree small = PersistentTree.EMPTY.insertAll(new int[] {5, 3});
+        assertNull(TreeJsonPatcher.patch("{\"value\":5,\"left\":{\"value\":3}}", small, small.insert(8)));
+        RedBlackTree redBlack = new RedBlackTree();
+        redBlack.insert(5);
+        redBlack.insert(3);
+        assertNull(TreeJsonPatcher.patch(TreeJsonWriter.write(redBlack.build()), small, small.insert(8)));
+    }
+    
+    /*
+     * TEST 8: appendToTree updates the same row, and the result is the same as
+     * building from the combined input
+     */
+    @Test
+    void testAppendToTreeUpdatesInPlace() {
+        List<Integer> first = Arrays.asList(50, 30, 70, 20, 60);
+        BstTree tree = new BstTree(first.toString(), bstService.convertToJson(bstService.buildBst(first)));
+        tree.setId(1L);
+        when(repository.findById(1L)).thenReturn(Optional.of(tree));
+        
+        BstTree updated = bstService.appendToTree(1L, Arrays.asList(65, 30, 10));
+        
+        List<Integer> combined = new ArrayList<>(first);
+        combined.addAll(Arrays.asList(65, 30, 10));
+        assertSame(tree, updated);
+        assertEquals(Long.valueOf(1L), updated.getId());
+        assertEquals("[50, 30, 70, 20, 60, 65, 30, 10]", updated.getInputNumbers());
+        assertEquals(bstService.convertToJson(bstService.buildBst(combined)), updated.getTreeJson());
+        assertEquals(7, bstService.loadVersion(1L).size());
+        
+        // Only duplicates: nothing changes
+        String json = updated.getTreeJson();
+        bstService.appendToTree(1L, Arrays.asList(50, 10));
+        assertEquals(json, tree.getTreeJson());
+        assertEquals("[50, 30, 70, 20, 60, 65, 30, 10]", tree.getInputNumbers());
+        
+        // A red-black tree can't be patched, it's written again as a plain BST
+        BstTree redBlack = new BstTree("[1, 2, 3]",
+                bstService.convertToJson(bstService.buildBst(Arrays.asList(1, 2, 3), BalanceMode.RED_BLACK)));
+        redBlack.setId(2L);
+        when(repository.findById(2L)).thenReturn(Optional.of(redBlack));
+        bstService.appendToTree(2L, Arrays.asList(4));
+        assertFalse(redBlack.getTreeJson().contains("color"));
+        assertEquals(4, TreeJsonReader.read(redBlack.getTreeJson()).size());
+        
+        when(repository.findById(404L)).thenReturn(Optional.empty());
+        assertThrows(TreeNotFoundException.class, () -> bstService.appendToTree(404L, Arrays.asList(1)));
+        assertThrows(IllegalArgumentException.class, () -> bstService.appendToTree(1L, new ArrayList<>()));
+    }
+    
+    /*
+     * TEST 9: delete and deleteRange give the same values as a TreeSet, keep the
+     * tree a valid BST, and don't change the old version
+     */
+    @Test
+    void testDeleteAndDeleteRange() {
+        Random random = new Random(3);
+        TreeSet<Integer> expected = new TreeSet<>();
+        PersistentTree tree = PersistentTree.EMPTY;
+        for (int i = 0; i < 5_000; i++) {
+            int value = random.nextInt(10_000) - 5_000;
+            tree = tree.insert(value);
+            expected.add(value);
+        }
+        tree = tree.insertAll(new int[] {Integer.MIN_VALUE, Integer.MAX_VALUE});
+        expected.add(Integer.MIN_VALUE);
+        expected.add(Integer.MAX_VALUE);
+        
+        for (int round = 0; round < 200; round++) {
+            PersistentTree before = tree;
+            List<Integer> beforeValues = inorder(before);
+            if (round % 2 == 0) {
+                int value = random.nextInt(10_000) - 5_000;
+                tree = tree.delete(value);
+                expected.remove(value);
+            } else {
+                int lo = random.nextInt(10_000) - 5_000;
+                int hi = lo + random.nextInt(100);
+                tree = tree.deleteRange(lo, hi);
+                expected.subSet(lo, true, hi, true).clear();
+            }
+            assertEquals(new ArrayList<>(expected), inorder(tree));
+            assertEquals(expected.size(), tree.size());
+            assertEquals(beforeValues, inorder(before));
+        }
+        
+        // Ranges at the int limits, a range with nothing in it, and everything
+        assertFalse(tree.deleteRange(Integer.MIN_VALUE, Integer.MIN_VALUE).contains(Integer.MIN_VALUE));
+        assertFalse(tree.deleteRange(Integer.MAX_VALUE, Integer.MAX_VALUE).contains(Integer.MAX_VALUE));
+        assertSame(tree, tree.deleteRange(6_000, 7_000));
+        assertTrue(tree.deleteRange(Integer.MIN_VALUE, Integer.MAX_VALUE).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> PersistentTree.EMPTY.deleteRange(2, 1));
+    }
+    
+    /*
+     * TEST 10: deleteFromTree, deleteValues and deleteRange update the saved row in
+     * place. Values and a range in one request are saved with a single write. The
+     * new input is the preorder of the tree, which builds exactly the same tree again.
+     */
+    @Test
+    void testDeleteFromSavedTree() {
+        List<Integer> first = Arrays.asList(50, 30, 70, 20, 40, 60, 80, 35, 45);
+        BstTree tree = new BstTree(first.toString(), bstService.convertToJson(bstService.buildBst(first)));
+        tree.setId(1L);
+        when(repository.findById(1L)).thenReturn(Optional.of(tree));
+        
+        DeleteResult result = bstService.deleteFromTree(1L, Arrays.asList(50, 99), 32, 45);  // 50; 35, 40, 45
+        assertEquals(4, result.getRemoved());
+        assertEquals(5, result.getSize());
+        verify(repository, times(1)).save(tree);
+        
+        assertEquals(Long.valueOf(1L), tree.getId());
+        assertEquals(5, bstService.loadVersion(1L).size());
+        List<Integer> rebuilt = bstService.parseNumbers(tree.getInputNumbers().replaceAll("[\\[\\]]", ""));
+        assertEquals(bstService.convertToJson(bstService.buildBst(rebuilt)), tree.getTreeJson());
+        
+        // Nothing to delete: the row isn't changed
+        String json = tree.getTreeJson();
+        assertEquals(0, bstService.deleteValues(1L, Arrays.asList(1000)));
+        assertEquals(json, tree.getTreeJson());
+        verify(repository, times(1)).save(tree);
+        
+        // Deleting everything leaves an empty tree, which can be appended to again
+        assertEquals(5, bstService.deleteRange(1L, 0, 100));
+        assertEquals("null", tree.getTreeJson());
+        assertEquals("[]", tree.getInputNumbers());
+        bstService.appendToTree(1L, Arrays.asList(7, 3));
+        assertEquals("[7, 3]", tree.getInputNumbers());
+        assertEquals(bstService.convertToJson(bstService.buildBst(Arrays.asList(7, 3))), tree.getTreeJson());
+        
+        assertThrows(IllegalArgumentException.class, () -> bstService.deleteRange(1L, 5, 4));
+        assertThrows(IllegalArgumentException.class, () -> bstService.deleteValues(1L, new ArrayList<>()));
+        assertThrows(IllegalArgumentException.class, () -> bstService.deleteFromTree(1L, null, null, null));
+        assertThrows(IllegalArgumentException.class, () -> bstService.deleteFromTree(1L, null, 5, null));
+    }
+    
+    /*
+     * TEST 11: range() returns exactly the values of the TreeSet's subSet, in order,
+     * and the service answers contains/range from the saved tree
+     */
+    @Test
+    void testRangeAndContains() {
+        Random random = new Random(5);
+        TreeSet<Integer> expected = new TreeSet<>();
+        PersistentTree tree = PersistentTree.EMPTY;
+        for (int i = 0; i < 3_000; i++) {
+            int value = random.nextInt(6_000) - 3_000;
+            tree = tree.insert(value);
+            expected.add(value);
+        }
+        tree = tree.insertAll(new int[] {Integer.MIN_VALUE, Integer.MAX_VALUE});
+        expected.add(Integer.MIN_VALUE);
+        expected.add(Integer.MAX_VALUE);
+        
+        for (int round = 0; round < 200; round++) {
+            int lo = random.nextInt(7_000) - 3_500;
+            int hi = lo + random.nextInt(300);
+            assertEquals(new ArrayList<>(expected.subSet(lo, true, hi, true)), toList(tree.range(lo, hi)));
+        }
+        assertEquals(new ArrayList<>(expected), toList(tree.range(Integer.MIN_VALUE, Integer.MAX_VALUE)));
+        assertFalse(PersistentTree.EMPTY.range(1, 10).hasNext());
+        assertThrows(IllegalArgumentException.class, () -> PersistentTree.EMPTY.range(10, 1));
+        
+        List<Integer> numbers = Arrays.asList(50, 30, 70, 20, 40, 60, 80);
+        BstTree saved = new BstTree(numbers.toString(), bstService.convertToJson(bstService.buildBst(numbers)));
+        saved.setId(1L);
+        when(repository.findById(1L)).thenReturn(Optional.of(saved));
+        when(repository.findById(404L)).thenReturn(Optional.empty());
+        
+        assertTrue(bstService.treeContains(1L, 40));
+        assertFalse(bstService.treeContains(1L, 45));
+        assertEquals(Arrays.asList(30, 40, 50, 60), toList(bstService.treeRange(1L, 25, 65)));
+        assertThrows(TreeNotFoundException.class, () -> bstService.treeContains(404L, 1));
+        assertThrows(TreeNotFoundException.class, () -> bstService.treeRange(404L, 1, 2));
+    }
+    
+    /*
+     * TEST 12: rank, select and percentile agree with a sorted array, also after
+     * inserts and deletes (which have to keep the subtree sizes right)
+     */
+    @Test
+    void testOrderStatistics() {
+        Random random = new Random(9);
+        PersistentTree tree = PersistentTree.EMPTY;
+        for (int i = 0; i < 2_000; i++) {
+            tree = tree.insert(random.nextInt(100_000));
+        }
+        tree = tree.deleteRange(20_000, 30_000).delete(tree.select(0));
+        int[] sorted = toList(tree.range(Integer.MIN_VALUE, Integer.MAX_VALUE)).stream()
+                .mapToInt(Integer::intValue).toArray();
+        assertEquals(sorted.length, tree.size());
+        
+        for (int k = 0; k < sorted.length; k++) {
+            assertEquals(sorted[k], tree.select(k));
+            assertEquals(k, tree.rank(sorted[k]));
+            assertEquals(k + 1, tree.rank(sorted[k] + 1));
+        }
+        assertEquals(0, tree.rank(Integer.MIN_VALUE));
+        
+        // Nearest rank, with the expected ranks written out (p = 55 and 7 are one too
+        // high with double math: 55.0 / 100 * 100 is 55.00000000000001)
+        PersistentTree hundred = PersistentTree.EMPTY.insertAll(shuffledRange(100, random));
+        double[] percentiles = {0, 0.1, 1, 7, 25, 33.3, 50, 55, 90, 99.9, 100};
+        int[] expected = {1, 1, 1, 7, 25, 34, 50, 55, 90, 100, 100};
+        for (int i = 0; i < percentiles.length; i++) {
+            assertEquals(expected[i], hundred.percentile(percentiles[i]));
+        }
+        PersistentTree tenThousand = PersistentTree.EMPTY.insertAll(shuffledRange(10_000, random));
+        assertEquals(7, tenThousand.percentile(0.07));
+        assertEquals(11, tenThousand.percentile(0.11));
+        assertEquals(5_500, tenThousand.percentile(55));
+        assertEquals(sorted[0], tree.percentile(0));
+        assertEquals(sorted[sorted.length - 1], tree.percentile(100));
+        assertEquals(20, PersistentTree.EMPTY.insertAll(new int[] {30, 10, 20, 40}).percentile(50));
+        
+        PersistentTree small = tree;
+        assertThrows(IllegalArgumentException.class, () -> small.select(sorted.length));
+        assertThrows(IllegalArgumentException.class, () -> small.select(-1));
+        assertThrows(IllegalArgumentException.class, () -> small.percentile(100.5));
+        assertThrows(IllegalArgumentException.class, () -> small.percentile(Double.NaN));
+        assertThrows(IllegalArgumentException.class, () -> PersistentTree.EMPTY.percentile(50));
+    }
+    
+    /*
+     * TEST 13: aggregate gives the same count, sum, min and max as going through
+     * the TreeSet's subSet, including empty ranges and sums beyond the int range
+     */
+    @Test
+    void testRangeAggregate() {
+        Random random = new Random(13);
+        TreeSet<Integer> expected = new TreeSet<>();
+        PersistentTree tree = PersistentTree.EMPTY;
+        for (int i = 0; i < 3_000; i++) {
+            int value = random.nextInt();
+            tree = tree.insert(value);
+            expected.add(value);
+        }
+        tree = tree.deleteRange(0, 100_000_000);
+        expected.subSet(0, true, 100_000_000, true).clear();
+        
+        for (int round = 0; round < 300; round++) {
+            int a = random.nextInt();
+            int b = random.nextInt();
+            int lo = Math.min(a, b);
+            int hi = Math.max(a, b);
+            if (round % 3 == 0) {
+                hi = (int) Math.min(Integer.MAX_VALUE, (long) lo + random.nextInt(2_000_000));
+            }
+            NavigableSet<Integer> range = expected.subSet(lo, true, hi, true);
+            RangeAggregate aggregate = tree.aggregate(lo, hi);
+            assertEquals(range.size(), aggregate.getCount());
+            assertEquals(range.stream().mapToLong(Integer::longValue).sum(), aggregate.getSum());
+            assertEquals(range.isEmpty() ? null : range.first(), aggregate.getMin());
+            assertEquals(range.isEmpty() ? null : range.last(), aggregate.getMax());
+        }
+        
+        RangeAggregate all = tree.aggregate(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        assertEquals(expected.size(), all.getCount());
+        assertEquals(expected.stream().mapToLong(Integer::longValue).sum(), all.getSum());
+        RangeAggregate none = tree.aggregate(1, 100_000_000);
+        assertEquals(0, none.getCount());
+        assertNull(none.getMin());
+        assertThrows(IllegalArgumentException.class, () -> PersistentTree.EMPTY.aggregate(2, 1));
+    }
+    
+    /*
+     * TEST 14: merge gives the same values as the TreeSet operations, for all
+     * three operations and both orders, and the result is perfectly balanced
+     */
+    @Test
+    void testMergeSetOperations() {
+        Random random = new Random(14);
+        for (int round = 0; round < 20; round++) {
+            TreeSet<Integer> left = new TreeSet<>();
+            TreeSet<Integer> right = new TreeSet<>();
+            PersistentTree a = PersistentTree.EMPTY;
+            PersistentTree b = PersistentTree.EMPTY;
+            // Small value ranges so the trees overlap, empty trees now and then
+            for (int i = random.nextInt(3) == 0 ? 0 : random.nextInt(500); i > 0; i--) {
+                int value = random.nextInt(800) - 400;
+                left.add(value);
+                a = a.insert(value);
+            }
+            for (int i = round % 5 == 0 ? 0 : random.nextInt(500); i > 0; i--) {
+                int value = random.nextInt(800) - 200;
+                right.add(value);
+                b = b.insert(value);
+            }
+            
+            TreeSet<Integer> union = new TreeSet<>(left);
+            union.addAll(right);
+            TreeSet<Integer> intersection = new TreeSet<>(left);
+            intersection.retainAll(right);
+            TreeSet<Integer> difference = new TreeSet<>(left);
+            difference.removeAll(right);
+            
+            assertMerged(union, a.merge(b, SetOperation.UNION));
+            assertMerged(union, b.merge(a, SetOperation.UNION));
+            assertMerged(intersection, a.merge(b, SetOperation.INTERSECTION));
+            assertMerged(intersection, b.merge(a, SetOperation.INTERSECTION));
+            assertMerged(difference, a.merge(b, SetOperation.DIFFERENCE));
+        }
+        
+        PersistentTree limits = PersistentTree.EMPTY.insertAll(new int[] {Integer.MAX_VALUE, 0, Integer.MIN_VALUE});
+        assertEquals(Arrays.asList(Integer.MIN_VALUE, Integer.MAX_VALUE),
+                inorder(limits.merge(PersistentTree.EMPTY.insert(0), SetOperation.DIFFERENCE)));
+        assertSame(PersistentTree.EMPTY, limits.merge(PersistentTree.EMPTY, SetOperation.INTERSECTION));
+        
+        assertEquals(SetOperation.UNION, SetOperation.fromString(null));
+        assertEquals(SetOperation.INTERSECTION, SetOperation.fromString("Intersect"));
+        assertEquals(SetOperation.DIFFERENCE, SetOperation.fromString(" difference "));
+        assertThrows(IllegalArgumentException.class, () -> SetOperation.fromString("xor"));
+    }
+    
+    /*
+     * TEST 15: mergeTrees saves the result as a new row whose input rebuilds the
+     * same tree; both source rows stay as they were
+     */
+    @Test
+    void testMergeTreesSavesNewRow() {
+        List<Integer> first = Arrays.asList(1, 2, 3, 4, 5, 6);
+        List<Integer> second = Arrays.asList(40, 5, 3, 50, 60);
+        BstTree one = new BstTree(first.toString(), bstService.convertToJson(bstService.buildBst(first)));
+        one.setId(1L);
+        BstTree two = new BstTree(second.toString(), bstService.convertToJson(bstService.buildBst(second)));
+        two.setId(2L);
+        when(repository.findById(1L)).thenReturn(Optional.of(one));
+        when(repository.findById(2L)).thenReturn(Optional.of(two));
+        when(repository.findById(404L)).thenReturn(Optional.empty());
+        
+        BstTree union = bstService.mergeTrees(1L, 2L, SetOperation.UNION);
+        assertEquals(Long.valueOf(100L), union.getId());
+        PersistentTree merged = bstService.loadVersion(100L);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 40, 50, 60), inorder(merged));
+        assertEquals(union.getTreeJson(), bstService.convertToJson(
+                bstService.buildBst(bstService.parseNumbers(union.getInputNumbers().replaceAll("[\\[\\]]", "")))));
+        assertEquals(bstService.convertToJson(bstService.buildBst(first)), one.getTreeJson());
+        
+        BstTree difference = bstService.mergeTrees(2L, 1L, SetOperation.DIFFERENCE);
+        assertEquals("[50, 40, 60]", difference.getInputNumbers());
+        
+        assertThrows(IllegalArgumentException.class,
+                () -> bstService.mergeTrees(1L, 1L, SetOperation.DIFFERENCE));
+        assertThrows(TreeNotFoundException.class, () -> bstService.mergeTrees(1L, 404L, SetOperation.UNION));
+    }
+    
+    /*
+     * TEST 16: diff of two small trees, checked by hand
+     * 
+     *   a: 50 -> (30 -> (20, 40), 70)        b: 50 -> (40 -> (30, 45), 70 -> (60, -))
+     * 
+     * Level 0 is the same, level 1 differs (30 against 40). 20 is missing, 45 and
+     * 60 are inserted, 30 now hangs under 40 and 40 under 50. 70 kept its parent.
+     */
+    @Test
+    void testTreeDiff() {
+        PersistentTree a = PersistentTree.EMPTY.insertAll(new int[] {50, 30, 70, 20, 40});
+        PersistentTree b = PersistentTree.EMPTY.insertAll(new int[] {50, 40, 70, 30, 45, 60});
+        
+        TreeDiff diff = TreeDiff.compare(a, b, 100);
+        assertFalse(diff.isIdentical());
+        assertEquals(Integer.valueOf(1), diff.getDivergenceLevel());
+        assertEquals(Arrays.asList(20), diff.getMissing());
+        assertEquals(Arrays.asList(45, 60), diff.getInserted());
+        assertEquals(2, diff.getRelocatedCount());
+        TreeDiff.Relocation thirty = diff.getRelocated().get(0);
+        assertEquals(30, thirty.getValue());
+        assertEquals(Integer.valueOf(50), thirty.getA().getParent());
+        assertEquals("left", thirty.getA().getSide());
+        assertEquals(Integer.valueOf(40), thirty.getB().getParent());
+        assertEquals(2, thirty.getB().getDepth());
+        assertEquals(40, diff.getRelocated().get(1).getValue());
+        
+        // The other way round, inserted and missing swap
+        TreeDiff back = TreeDiff.compare(b, a, 100);
+        assertEquals(Arrays.asList(45, 60), back.getMissing());
+        assertEquals(Arrays.asList(20), back.getInserted());
+        
+        // A new root moves only the old root; the limit cuts the lists, not the counts
+        TreeDiff rooted = TreeDiff.compare(a, PersistentTree.EMPTY.insertAll(new int[] {10, 50, 30, 70, 20, 40}), 0);
+        assertEquals(Integer.valueOf(0), rooted.getDivergenceLevel());
+        assertEquals(1, rooted.getInsertedCount());
+        assertEquals(1, rooted.getRelocatedCount());
+        assertTrue(rooted.getInserted().isEmpty());
+        assertTrue(rooted.getRelocated().isEmpty());
+        
+        assertTrue(TreeDiff.compare(a, a.insert(40), 100).isIdentical());
+        assertEquals(Integer.valueOf(3), TreeDiff.compare(a, a.insert(45), 100).getDivergenceLevel());
+        assertEquals(5, TreeDiff.compare(PersistentTree.EMPTY, a, 100).getInsertedCount());
+    }
+    
+    /*
+     * TEST 17: diffTrees between a saved tree and a tree derived from it, and a
+     * deep tree from sorted input against the same values in random order
+     */
+    @Test
+    void testDiffTreesService() {
+        List<Integer> sorted = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            sorted.add(i);
+        }
+        BstTree list = new BstTree(sorted.toString(), plainJson(sorted));
+        list.setId(1L);
+        when(repository.findById(1L)).thenReturn(Optional.of(list));
+        when(repository.findById(404L)).thenReturn(Optional.empty());
+        
+        BstTree derived = bstService.deriveTree(1L, Arrays.asList(-1, 2_000, 500));
+        TreeDiff diff = bstService.diffTrees(1L, derived.getId(), 10);
+        assertEquals(Arrays.asList(-1, 2_000), diff.getInserted());
+        assertEquals(0, diff.getMissingCount());
+        assertEquals(0, diff.getRelocatedCount());
+        assertEquals(Integer.valueOf(1), diff.getDivergenceLevel());
+        
+        List<Integer> shuffled = new ArrayList<>(sorted);
+        Collections.shuffle(shuffled, new Random(17));
+        BstTree random = new BstTree(shuffled.toString(), plainJson(shuffled));
+        random.setId(2L);
+        when(repository.findById(2L)).thenReturn(Optional.of(random));
+        TreeDiff reshaped = bstService.diffTrees(1L, 2L, 10);
+        assertEquals(0, reshaped.getInsertedCount() + reshaped.getMissingCount());
+        assertTrue(reshaped.getRelocatedCount() > 1_000);
+        assertEquals(10, reshaped.getRelocated().size());
+        
+        assertTrue(bstService.diffTrees(2L, 2L, 10).isIdentical());
+        assertThrows(TreeNotFoundException.class, () -> bstService.diffTrees(1L, 404L, 10));
+        assertThrows(IllegalArgumentException.class, () -> bstService.diffTrees(1L, 2L, -1));
+    }
+    
+    /*
+     * TEST 18: The patcher keeps the line breaks of the stored text
+     * 
+     * Jackson writes the system's line separator, so a row written on Windows has
+     * "\r\n" even when it's appended to on Linux (and the other way round). Both
+     * must be patched in their own style, with and without counts, and a text
+     * that mixes the two is not patched at all.
+     */
+    @Test
+    void testJsonPatchKeepsStoredLineBreaks() {
+        Random random = new Random(18);
+        for (String newline : new String[] {"\n", "\r\n"}) {
+            for (PersistentTree empty : new PersistentTree[] {PersistentTree.EMPTY, PersistentTree.MULTISET_EMPTY}) {
+                PersistentTree tree = empty.insertAll(new int[] {500, 250, 750});
+                String json = writeWith(tree, newline);
+                for (int batch = 0; batch < 30; batch++) {
+                    int[] values = new int[1 + random.nextInt(10)];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = random.nextInt(1001);
+                    }
+                    PersistentTree next = tree.insertAll(values);
+                    json = TreeJsonPatcher.patch(json, tree, next);
+                    assertEquals(writeWith(next, newline), json);
+                    tree = next;
+                }
+            }
+        }
+        
+        PersistentTree small = PersistentTree.EMPTY.insertAll(new int[] {5, 3});
+        String mixed = writeWith(small, "\r\n");
+        int last = mixed.lastIndexOf("\r\n");
+        mixed = mixed.substring(0, last) + "\n" + mixed.substring(last + 2);
+        assertNull(TreeJsonPatcher.patch(mixed, small, small.insert(8)));
+    }
+    
+    /*
+     * TEST 19: A reader on a cold cache can't put an old version back in the cache
+     * 
+     * The reader decodes the row it read before an append, after the append has
+     * saved and cached the new version. If its old version replaced the new one,
+     * the next append would start from a tree without the first append's numbers,
+     * and the patcher would fall back to writing that tree over the row.
+     */
+    @Test
+    void testColdCacheReadDuringAppend() throws Exception {
+        List<Integer> first = Arrays.asList(50, 30, 70);
+        BstTree tree = new BstTree(first.toString(), plainJson(first));
+        tree.setId(1L);
+        rows.put(1L, tree);
+        
+        BstService service = changeDuringColdRead(s -> s.appendToTree(1L, Arrays.asList(20)));
+        service.appendToTree(1L, Arrays.asList(80));
+        
+        BstTree row = rows.get(1L);
+        assertEquals("[50, 30, 70, 20, 80]", row.getInputNumbers());
+        assertEquals(plainJson(Arrays.asList(50, 30, 70, 20, 80)), row.getTreeJson());
+        assertEquals(2, row.getRevision());
+        assertEquals(5, service.loadVersion(1L).size());
+    }
+    
+    /*
+     * TEST 20: The same for a delete
+     * 
+     * The reader decodes the row from before the delete. If that version got back
+     * in the cache, deleting the value again would count it as removed, and the next
+     * append would write it back into the row.
+     */
+    @Test
+    void testColdCacheReadDuringDelete() throws Exception {
+        List<Integer> first = Arrays.asList(50, 30, 70, 20);
+        BstTree tree = new BstTree(first.toString(), plainJson(first));
+        tree.setId(1L);
+        rows.put(1L, tree);
+        
+        BstService service = changeDuringColdRead(s -> assertEquals(1, s.deleteValues(1L, Arrays.asList(20))));
+        assertEquals(0, service.deleteValues(1L, Arrays.asList(20)));
+        service.appendToTree(1L, Arrays.asList(80));
+        
+        BstTree row = rows.get(1L);
+        assertEquals("[50, 30, 70, 80]", row.getInputNumbers());
+        assertEquals(plainJson(Arrays.asList(50, 30, 70, 80)), row.getTreeJson());
+        assertEquals(2, row.getRevision());
+    }
+    
+    // JSON of the plain tree through the pool (the BstNode form is too deep for Jackson here)
+    private String plainJson(List<Integer> numbers) {
+        int[] values = numbers.stream().mapToInt(Integer::intValue).toArray();
+        try (NodePool tree = bstService.buildTree(values, BalanceMode.NONE, BuildMode.INSERTION)) {
+            return bstService.convertToJson(tree);
+        }
+    }
+    
+    // Same values as expected, and no deeper than a perfectly balanced tree
+    private static void assertMerged(TreeSet<Integer> expected, PersistentTree merged) {
+        assertEquals(new ArrayList<>(expected), inorder(merged));
+        assertEquals(expected.size(), merged.size());
+        assertTrue(height(merged.getRoot()) <= 32 - Integer.numberOfLeadingZeros(expected.size()));
+    }
+    
+    // The tree's JSON with the given line breaks, like it was written on another system
+    private static String writeWith(PersistentTree tree, String newline) {
+        StringBuilder out = new StringBuilder();
+        TreeJsonWriter.write(tree.toNodePool(), 0, newline, out);
+        return out.toString();
+    }
+    
+    /*
+     * Runs change on a new service (so the cache is cold) while another thread reads
+     * the tree: the reader misses the cache and gets its copy of the row before the
+     * change, and only gets to its treeJson (so decodes and caches it) once the
+     * change is saved and cached. findById hands out copies of row 1, like the
+     * database does. Returns the service, so the caller can go on with the cache the
+     * reader left behind.
+     */
+    private BstService changeDuringColdRead(Consumer<BstService> change) throws Exception {
+        BstService service = new BstService(repository, new ObjectMapper());
+        Thread test = Thread.currentThread();
+        CountDownLatch readerHasRow = new CountDownLatch(1);
+        CountDownLatch changed = new CountDownLatch(1);
+        when(repository.findById(1L)).thenAnswer(invocation -> {
+            BstTree row = rows.get(1L);
+            if (Thread.currentThread() == test) {
+                return Optional.of(copyOf(row));
+            }
+            BstTree slow = new BstTree(row.getInputNumbers(), row.getTreeJson()) {
+                @Override
+                public String getTreeJson() {
+                    readerHasRow.countDown();
+                    try {
+                        changed.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return super.getTreeJson();
+                }
+            };
+            slow.setId(row.getId());
+            slow.setRevision(row.getRevision());
+            return Optional.of(slow);
+        });
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> read = executor.submit(() -> service.loadVersion(1L).size());
+            readerHasRow.await();
+            change.accept(service);
+            changed.countDown();
+            read.get();
+        } finally {
+            executor.shutdown();
+        }
+        return service;
+    }
+    
+    private static BstTree copyOf(BstTree tree) {
+        BstTree copy = new BstTree(tree.getInputNumbers(), tree.getTreeJson());
+        copy.setId(tree.getId());
+        copy.setRevision(tree.getRevision());
+        return copy;
+    }
+    
+    // 1..n in random order (sorted input would make a tree n levels deep)
+    private static int[] shuffledRange(int n, Random random) {
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            int j = random.nextInt(i + 1);
+            values[i] = values[j];
+            values[j] = i + 1;
+        }
+        return values;
+    }
+    
+    private static int height(PersistentTree.Node node) {
+        return node == null ? 0 : 1 + Math.max(height(node.left), height(node.right));
+    }
+    
+    private static List<Integer> toList(PrimitiveIterator.OfInt values) {
+        List<Integer> list = new ArrayList<>();
+        values.forEachRemaining((IntConsumer) list::add);
+        return list;
+    }
+    
+    // Values in sorted order, checked to be a valid BST on the way (explicit stack, trees can be deep)
+    private static List<Integer> inorder(PersistentTree tree) {
+        List<Integer> values = new ArrayList<>();
+        ArrayDeque<PersistentTree.Node> stack = new ArrayDeque<>();
+        PersistentTree.Node node = tree.getRoot();
+        while (node != null || !stack.isEmpty()) {
+            while (node != null) {
+                stack.push(node);
+                node = node.left;
+            }
+            node = stack.pop();
+            if (!values.isEmpty()) {
+                assertTrue(values.get(values.size() - 1) < node.value, "Not a valid BST");
+            }
+            values.add(node.value);
+            node = node.right;
+        }
+        return values;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,174 @@
+package com.bstapp.service;
+
+import com.bstapp.model.BstTree;
+import com.bstapp.repository.BstTreeRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/*
+ * Tests for the splay tree engine (SplayTree) and the "splay" lookup mode.
+ * 
+ * A splay rearranges the tree on every operation, so after each batch of inserts
+ * and lookups I check that it's still a valid BST with exactly the expected values.
+ */
+class SplayTreeTest {
+    
+    /*
+     * TEST 1: Random inserts and lookups agree with a TreeSet, the tree stays a
+     * valid BST, and every value touched ends up at the root
+     */
+    @Test
+    void testMatchesTreeSet() {
+        Random random = new Random(5);
+        SplayTree tree = new SplayTree();
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int i = 0; i < 5000; i++) {
+            int value = random.nextInt(2000) - 1000;
+            tree.insert(value);
+            expected.add(value);
+            assertEquals(value, tree.rootValue());
+        }
+        assertEquals(expected.size(), tree.size());
+        assertEquals(new ArrayList<>(expected), inorder(tree.build()));
+        
+        for (int value = -1100; value <= 1100; value++) {
+            assertEquals(expected.contains(value), tree.contains(value));
+            if (expected.contains(value)) {
+                assertEquals(value, tree.rootValue());
+            }
+        }
+        assertEquals(new ArrayList<>(expected), inorder(tree.build()));
+        assertFalse(new SplayTree().contains(1));
+    }
+    
+    /*
+     * TEST 2: Sorted inserts make a list (each new value is the root), and looking
+     * up the deepest value afterwards roughly halves the depth
+     */
+    @Test
+    void testSplayShortensLongPaths() {
+        SplayTree tree = new SplayTree();
+        for (int i = 0; i < 1024; i++) {
+            tree.insert(i);
+        }
+        assertEquals(1024, height(tree.build()));
+        
+        assertTrue(tree.contains(0));
+        assertEquals(0, tree.rootValue());
+        assertTrue(height(tree.build()) <= 520);
+        assertTrue(tree.getRotations() > 0);
+        assertTrue(tree.contains(Integer.valueOf(1023)));
+        assertFalse(tree.contains(Integer.MAX_VALUE));
+    }
+    
+    /*
+     * TEST 3: "balance": "splay" builds with the splay engine (the last number is the
+     * root, even when it is a duplicate)
+     */
+    @Test
+    void testSplayBalanceMode() {
+        BstService bstService = new BstService(null, null);
+        assertEquals(BalanceMode.SPLAY, BalanceMode.fromString("Splay"));
+        
+        BstNode root = bstService.buildBst(Arrays.asList(50, 30, 70, 40, 60, 30), BalanceMode.SPLAY);
+        assertEquals(30, root.getValue());
+        List<Integer> values = new ArrayList<>();
+        collect(root, values);
+        assertEquals(Arrays.asList(30, 40, 50, 60, 70), values);
+        
+        assertThrows(IllegalArgumentException.class,
+                () -> bstService.buildBst(Arrays.asList(1, 2), BalanceMode.SPLAY, BuildMode.BALANCED));
+    }
+    
+    /*
+     * TEST 4: The splay lookup mode gives the same answers as the frozen one, keeps
+     * one copy per version, and follows appends to the saved tree
+     */
+    @Test
+    void testServiceSplayLookups() {
+        BstTreeRepository repository = mock(BstTreeRepository.class);
+        when(repository.save(any(BstTree.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        BstService bstService = new BstService(repository, new ObjectMapper());
+        
+        List<Integer> numbers = Arrays.asList(50, 30, 70, 20, 40, 60, 80);
+        BstTree saved = new BstTree(numbers.toString(), bstService.convertToJson(bstService.buildBst(numbers)));
+        saved.setId(1L);
+        when(repository.findById(1L)).thenReturn(Optional.of(saved));
+        
+        for (int value = 15; value <= 85; value++) {
+            assertEquals(bstService.treeContains(1L, value, LookupMode.FROZEN),
+                    bstService.treeContains(1L, value, LookupMode.SPLAY));
+        }
+        PersistentTree version = bstService.loadVersion(1L);
+        assertSame(version.splay(), version.splay());
+        assertEquals(7, version.splay().size());
+        
+        bstService.appendToTree(1L, Arrays.asList(65));
+        assertTrue(bstService.treeContains(1L, 65, LookupMode.SPLAY));
+        
+        assertEquals(LookupMode.FROZEN, LookupMode.fromString(null));
+        assertEquals(LookupMode.SPLAY, LookupMode.fromString(" SPLAY "));
+        assertThrows(IllegalArgumentException.class, () -> LookupMode.fromString("btree"));
+    }
+    
+    // Values of a pool tree in order, with an explicit stack (the tree can be a long list)
+    private static List<Integer> inorder(NodePool pool) {
+        List<Integer> values = new ArrayList<>();
+        int[] stack = new int[pool.size()];
+        int top = 0;
+        int node = pool.getRoot();
+        while (node != NodePool.NIL || top > 0) {
+            while (node != NodePool.NIL) {
+                stack[top++] = node;
+                node = pool.getLeft(node);
+            }
+            node = stack[--top];
+            values.add(pool.getValue(node));
+            node = pool.getRight(node);
+        }
+        return values;
+    }
+    
+    // Number of levels, breadth first so long lists don't need deep recursion
+    private static int height(NodePool pool) {
+        List<Integer> level = new ArrayList<>();
+        if (pool.getRoot() != NodePool.NIL) {
+            level.add(pool.getRoot());
+        }
+        int height = 0;
+        while (!level.isEmpty()) {
+            height++;
+            List<Integer> next = new ArrayList<>();
+            for (int node : level) {
+                if (pool.getLeft(node) != NodePool.NIL) {
+                    next.add(pool.getLeft(node));
+                }
+                if (pool.getRight(node) != NodePool.NIL) {
+                    next.add(pool.getRight(node));
+                }
+            }
+            level = next;
+        }
+        return height;
+    }
+    
+    private static void collect(BstNode node, List<Integer> values) {
+        if (node != null) {
+            collect(node.getLeft(), values);
+            values.add(node.getValue());
+            collect(node.getRight(), values);
+        }
+    }
+}
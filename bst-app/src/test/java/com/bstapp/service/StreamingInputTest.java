@@ -0,0 +1,203 @@
+package com.bstapp.service;
+
+import com.bstapp.model.BstTree;
+import com.bstapp.repository.BstTreeRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/*
+ * Tests for building trees straight from a request body (POST /api/trees/stream).
+ * 
+ * The body is read through a Reader that hands out only a few characters at a
+ * time, so numbers get cut in half between two reads like they would in a real
+ * upload. The saved tree always has to be exactly what /process-numbers saves
+ * for the same numbers. The saved input is the tree's preorder instead of the
+ * body, so the body never has to be kept.
+ */
+class StreamingInputTest {
+    
+    private BstService bstService;
+    
+    @BeforeEach
+    void setUp() {
+        BstTreeRepository repository = mock(BstTreeRepository.class);
+        bstService = new BstService(repository, new ObjectMapper());
+        when(repository.save(any(BstTree.class))).thenAnswer(invocation -> invocation.getArgument(0));
+    }
+    
+    /*
+     * TEST 1: A text body read in small pieces gives the same row as /process-numbers,
+     * for every build mode (the parallel and off-heap builds included)
+     */
+    @Test
+    void testTextStreamMatchesProcessNumbers() throws IOException {
+        Random random = new Random(22);
+        int[] numbers = random.ints(20_000, -5_000, 5_000).toArray();
+        String body = Arrays.toString(numbers).replace("[", " ").replace("]", "\n").replace(", ", ",\t");
+        
+        for (BalanceMode balance : BalanceMode.values()) {
+            assertSameAsProcessNumbers(numbers, body, false, balance, BuildMode.INSERTION, DuplicateMode.IGNORE);
+        }
+        assertSameAsProcessNumbers(numbers, body, false, BalanceMode.NONE, BuildMode.BALANCED, DuplicateMode.COUNT);
+        assertSameAsProcessNumbers(numbers, body, false, BalanceMode.AVL, BuildMode.INSERTION, DuplicateMode.COUNT);
+        
+        bstService.setParallelThreshold(1_000);
+        bstService.setOffHeapThreshold(1_000);
+        assertSameAsProcessNumbers(numbers, body, false, BalanceMode.NONE, BuildMode.INSERTION, DuplicateMode.COUNT);
+    }
+    
+    /*
+     * TEST 2: A JSON array body gives the same row as the text, and anything in it
+     * that isn't an int is a bad number at the right offset
+     */
+    @Test
+    void testJsonArrayStream() throws IOException {
+        int[] numbers = {7, 3, 9, 1, 4, Integer.MIN_VALUE, Integer.MAX_VALUE};
+        assertSameAsProcessNumbers(numbers, "[7, 3, 9,1,\n 4, -2147483648, 2147483647] ", true,
+                BalanceMode.NONE, BuildMode.INSERTION, DuplicateMode.IGNORE);
+        
+        assertEquals(4, badNumberOffset("[1, 2.5, 3]", true));
+        assertEquals(4, badNumberOffset("[1, 2147483648]", true));
+        assertEquals(4, badNumberOffset("[1, \"2\"]", true));
+        assertEquals(4, badNumberOffset("[1, [2]]", true));
+        assertThrows(InvalidNumberException.class, () -> stream("[1, 2", true));
+        assertThrows(InvalidNumberException.class, () -> stream("[1, abc]", true));
+        assertThrows(InvalidNumberException.class, () -> stream("[1] 2", true));
+        
+        assertEquals("Body must be a JSON array of numbers",
+                assertThrows(IllegalArgumentException.class, () -> stream("{\"numbers\": [1]}", true)).getMessage());
+        assertEquals("Input cannot be empty",
+                assertThrows(IllegalArgumentException.class, () -> stream(" [ ] ", true)).getMessage());
+    }
+    
+    /*
+     * TEST 3: Errors in text bodies, and a body that fails halfway doesn't leave
+     * its off-heap pool open
+     */
+    @Test
+    void testStreamErrors() {
+        assertEquals(12, badNumberOffset("1, 2, 3, 4, 5x, 6", false));
+        assertEquals("Input cannot be empty",
+                assertThrows(IllegalArgumentException.class, () -> stream(" ,\n ", false)).getMessage());
+        
+        // The modes are checked before the body is read at all
+        Reader unreadable = new Reader() {
+            @Override
+            public int read(char[] buffer, int offset, int length) {
+                throw new AssertionError("The body should not be read");
+            }
+            
+            @Override
+            public void close() {
+            }
+        };
+        assertThrows(IllegalArgumentException.class, () -> bstService.streamAndSaveTree(unreadable, false, -1,
+                BalanceMode.AVL, BuildMode.BALANCED, DuplicateMode.IGNORE));
+        
+        bstService.setOffHeapThreshold(1);
+        long activePools = OffHeapMemory.getActivePools();
+        assertThrows(InvalidNumberException.class, () -> stream("5, 3, 8, oops", false));
+        assertEquals(activePools, OffHeapMemory.getActivePools());
+    }
+    
+    /*
+     * TEST 4: A streamed tree moves off-heap when the real number of nodes reaches
+     * the (lowered) threshold, even though the Content-Length guess was below it,
+     * and the saved row is the same as on the heap
+     */
+    @Test
+    void testStreamGoesOffHeapByRealCount() throws IOException {
+        int[] numbers = new Random(4).ints(5_000, -100_000, 100_000).toArray();
+        String body = Arrays.toString(numbers);
+        bstService.setOffHeapThreshold(2_000);
+        
+        for (BalanceMode balance : BalanceMode.values()) {
+            for (DuplicateMode duplicates : DuplicateMode.values()) {
+                long poolsCreated = OffHeapMemory.getPoolsCreated();
+                long activePools = OffHeapMemory.getActivePools();
+                BstTree saved = bstService.streamAndSaveTree(new ChunkedReader(body, 7), true, -1,
+                        balance, BuildMode.INSERTION, duplicates);
+                assertEquals(poolsCreated + 1, OffHeapMemory.getPoolsCreated(), balance + ", " + duplicates);
+                assertEquals(activePools, OffHeapMemory.getActivePools());
+                assertEquals(heapJson(numbers, balance, duplicates), saved.getTreeJson());
+            }
+        }
+        
+        // Fewer nodes than the threshold stay on the heap (1024 is the guess without a Content-Length)
+        long poolsCreated = OffHeapMemory.getPoolsCreated();
+        stream(Arrays.toString(Arrays.copyOf(numbers, 1_500)), true);
+        assertEquals(poolsCreated, OffHeapMemory.getPoolsCreated());
+    }
+    
+    // ============ Helper methods ============
+    
+    private void assertSameAsProcessNumbers(int[] numbers, String body, boolean json, BalanceMode balance,
+                                            BuildMode mode, DuplicateMode duplicates) throws IOException {
+        BstTree saved = bstService.streamAndSaveTree(new ChunkedReader(body, 7), json, body.length(),
+                balance, mode, duplicates);
+        assertEquals(bstService.buildAndSaveTree(numbers, balance, mode, duplicates), saved.getTreeJson());
+        
+        // The input is the preorder: the same values (each once, or every copy in count mode) ...
+        int[] input = bstService.parseNumberArray(saved.getInputNumbers().replaceAll("[\\[\\]]", ""));
+        int[] expected = duplicates == DuplicateMode.COUNT ? numbers.clone() : Arrays.stream(numbers).distinct().toArray();
+        Arrays.sort(expected);
+        assertArrayEquals(expected, Arrays.stream(input).sorted().toArray());
+        
+        // ... in an order that rebuilds the same tree without balancing (red-black JSON also has colors)
+        if (balance != BalanceMode.RED_BLACK) {
+            assertEquals(saved.getTreeJson(),
+                    bstService.buildAndSaveTree(input, BalanceMode.NONE, BuildMode.INSERTION, duplicates));
+        }
+    }
+    
+    private static String heapJson(int[] numbers, BalanceMode balance, DuplicateMode duplicates) {
+        BstService heapService = new BstService(null, null);
+        try (NodePool tree = heapService.buildTree(numbers, balance, BuildMode.INSERTION, duplicates)) {
+            assertTrue(tree instanceof HeapNodePool);
+            return heapService.convertToJson(tree);
+        }
+    }
+    
+    private BstTree stream(String body, boolean json) throws IOException {
+        return bstService.streamAndSaveTree(new ChunkedReader(body, 3), json, -1,
+                BalanceMode.NONE, BuildMode.INSERTION, DuplicateMode.IGNORE);
+    }
+    
+    private long badNumberOffset(String body, boolean json) {
+        return assertThrows(InvalidNumberException.class, () -> stream(body, json)).getOffset();
+    }
+    
+    // A Reader that never returns more than a few characters per read, like a slow upload
+    private static final class ChunkedReader extends Reader {
+        
+        private final StringReader text;
+        private final int chunk;
+        
+        ChunkedReader(String text, int chunk) {
+            this.text = new StringReader(text);
+            this.chunk = chunk;
+        }
+        
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            return text.read(buffer, offset, Math.min(length, chunk));
+        }
+        
+        @Override
+        public void close() {
+            text.close();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.bstapp.service;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.LongStream;
+
+/*
+ * A faster parser for the usual number input, using SIMD instructions through the
+ * Vector API (jdk.incubator.vector). It works in two passes, like simdjson:
+ * 
+ * 1. Classify: 32 or 64 characters at a time (depending on the CPU) are compared
+ *    in vector lanes to find the digits and the separators. The results go into
+ *    two bitmaps with one bit per character. Anything that is neither a digit, a
+ *    separator nor a sign stops the whole thing right there. Whether the signs
+ *    are in the right places is then checked on the bitmaps, 64 characters at a
+ *    time.
+ * 2. Convert: the numbers are found by jumping from one end of a run of digits
+ *    to the next with Long.numberOfTrailingZeros instead of looking at every
+ *    character again, and each run is converted 8 digits at a time: the 8
+ *    characters are read as one long and combined with three multiplications
+ *    (SWAR, "SIMD within a register"). The bitmaps also give the exact number of
+ *    values up front, so the result array never has to grow.
+ * 
+ * This only handles the common case: ASCII digits, + and -, commas and whitespace,
+ * at most 10 digits per number. For anything else (a bad number, control characters,
+ * non-ASCII digits, 00000000001) parse returns null and the caller uses
+ * NumberTokenizer, which accepts exactly the same syntax and knows where the error
+ * is. So this can never give a different answer, it can only give up.
+ * 
+ * The module is an incubator module and only there if the JVM was started with
+ * --add-modules jdk.incubator.vector. BstService checks that before this class is
+ * ever loaded (see BstService.parseNumberArray).
+ * 
+ * This file is in src/vector/java and only compiled with mvn -Pvector, because javac
+ * needs the module too and then warns about it on every build. Without the profile
+ * the jar doesn't have this class and BstService just uses NumberTokenizer.
+ */
+final class VectorNumberParser {
+    
+    // The widest byte vectors the CPU has, but at most 64 lanes so a lane mask fits in a long
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED.length() <= 64
+            ? ByteVector.SPECIES_PREFERRED : ByteVector.SPECIES_512;
+    
+    // The same vector size seen as longs, and how far each long's 8 mask bits go (0, 8, 16, ...)
+    private static final VectorSpecies<Long> LONG_SPECIES = SPECIES.vectorShape().withLanes(long.class);
+    private static final LongVector MASK_SHIFTS = LongVector.fromArray(LONG_SPECIES,
+            LongStream.range(0, LONG_SPECIES.length()).map(lane -> lane * 8).toArray(), 0);
+    
+    // Reads 8 bytes of a byte[] as a long, the first byte in the lowest bits
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    
+    private VectorNumberParser() {
+    }
+    
+    /*
+     * Parses the input, or returns null if it has anything in it that this parser
+     * doesn't handle. Only strings with Latin-1 characters can be parsed here;
+     * getBytes turns everything else into '?', which makes parse give up.
+     */
+    static int[] parse(String input) {
+        byte[] bytes = input.getBytes(StandardCharsets.ISO_8859_1);
+        return parse(bytes, bytes.length);
+    }
+    
+    static int[] parse(byte[] bytes, int length) {
+        // One bit per character, plus at least one 0 bit after the end so every run of digits ends
+        long[] digits = new long[(length >>> 6) + 1];
+        long[] separators = new long[(length >>> 6) + 1];
+        if (!classify(bytes, length, digits, separators)) {
+            return null;
+        }
+        int count = countNumbers(digits, separators, length);
+        if (count < 0) {
+            return null;
+        }
+        
+        /*
+         * Pass 2: every run of digits is a number. digits ^ (digits << 1) has a 1 bit
+         * where a run starts and one just after where it ends, and they always come in
+         * that order, so going through the 1 bits gives start, end, start, end...
+         */
+        int[] values = new int[count];
+        int index = 0;
+        int start = 0;
+        boolean inNumber = false;
+        long previous = 0;  // The last bit of the word before
+        for (int word = 0; word < digits.length; word++) {
+            long bits = digits[word];
+            long edges = bits ^ ((bits << 1) | previous);
+            previous = bits >>> 63;
+            while (edges != 0) {
+                int position = (word << 6) + Long.numberOfTrailingZeros(edges);
+                edges &= edges - 1;
+                if (!inNumber) {
+                    start = position;
+                    inNumber = true;
+                    continue;
+                }
+                inNumber = false;
+                
+                int digitCount = position - start;
+                if (digitCount > 10) {
+                    return null;  // Leading zeros, or too big anyway
+                }
+                long magnitude = digitCount <= 8
+                        ? digitsValue(bytes, position, digitCount)
+                        : digitsValue(bytes, position - 8, digitCount - 8) * 100_000_000L + digitsValue(bytes, position, 8);
+                // 1 for a minus in front (the sign checks made sure that's all it can be), else 0
+                int negative = start > 0 && bytes[start - 1] == '-' ? 1 : 0;
+                if (magnitude > Integer.MAX_VALUE + (long) negative) {
+                    return null;
+                }
+                values[index++] = (int) ((magnitude ^ -negative) + negative);
+            }
+        }
+        return values;
+    }
+    
+    /*
+     * Pass 1: fills the digit and separator bitmaps. Returns false if some character
+     * is none of digit, separator (',' or \s) or sign.
+     * 
+     * Bytes from 0x80 on are negative in Java, so they fail every comparison below
+     * and end up in the "anything else" group as well.
+     */
+    private static boolean classify(byte[] bytes, int length, long[] digits, long[] separators) {
+        int lanes = SPECIES.length();
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += lanes) {
+            ByteVector chars = ByteVector.fromArray(SPECIES, bytes, i);
+            VectorMask<Byte> digit = chars.compare(VectorOperators.GE, (byte) '0')
+                    .and(chars.compare(VectorOperators.LE, (byte) '9'));
+            VectorMask<Byte> separator = chars.compare(VectorOperators.EQ, (byte) ',')
+                    .or(chars.compare(VectorOperators.EQ, (byte) ' '))
+                    .or(chars.compare(VectorOperators.GE, (byte) '\t').and(chars.compare(VectorOperators.LE, (byte) '\r')));
+            VectorMask<Byte> sign = chars.compare(VectorOperators.EQ, (byte) '-')
+                    .or(chars.compare(VectorOperators.EQ, (byte) '+'));
+            if (!digit.or(separator).or(sign).allTrue()) {
+                return false;
+            }
+            // lanes divides 64, so a block never spans two words of the bitmaps
+            digits[i >>> 6] |= maskBits(digit) << i;
+            separators[i >>> 6] |= maskBits(separator) << i;
+        }
+        
+        // The last few characters that don't fill a whole vector
+        for (; i < length; i++) {
+            byte c = bytes[i];
+            if (c >= '0' && c <= '9') {
+                digits[i >>> 6] |= 1L << i;
+            } else if (c == ',' || c == ' ' || (c >= '\t' && c <= '\r')) {
+                separators[i >>> 6] |= 1L << i;
+            } else if (c != '-' && c != '+') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /*
+     * The same as mask.toLong(), but toLong has no fast SIMD version in JDK 17 and
+     * took more time than everything else in classify together. This only uses
+     * operations that do: the mask becomes bytes of 0xFF or 0x00, every long of 8
+     * such bytes keeps bit k of byte k, and the multiplication adds all eight
+     * bits up into the top byte (no two of them land on the same bit, so nothing
+     * carries). Then the bytes of all longs are put next to each other.
+     */
+    private static long maskBits(VectorMask<Byte> mask) {
+        return mask.toVector().reinterpretAsLongs()
+                .and(0x8040201008040201L)
+                .mul(0x0101010101010101L)
+                .lanewise(VectorOperators.LSHR, 56)
+                .lanewise(VectorOperators.LSHL, MASK_SHIFTS)
+                .reduceLanes(VectorOperators.OR);
+    }
+    
+    /*
+     * Counts the numbers, or returns -1 if a sign is in the wrong place. After
+     * classify, everything that is neither a digit nor a separator is a sign, and a
+     * sign needs a separator (or the start) before it and a digit after it. That
+     * also covers "1-2": a number can only end at a separator or at the end.
+     * 
+     * This works on 64 characters at a time. Shifting a word by one moves every bit
+     * next to its neighbour's, and the bit that falls off the end is the first one
+     * of the next word.
+     */
+    private static int countNumbers(long[] digits, long[] separators, int length) {
+        int numbers = 0;
+        long previousDigit = 0;
+        long previousSeparator = 1;  // The start counts as a separator
+        int last = length >>> 6;
+        for (int word = 0; word <= last; word++) {
+            long digit = digits[word];
+            long separator = separators[word];
+            long inInput = word < last ? -1L : ~(-1L << length);
+            long signs = ~(digit | separator) & inInput;
+            long digitAfter = (digit >>> 1) | (word < last ? digits[word + 1] << 63 : 0);
+            long separatorBefore = (separator << 1) | previousSeparator;
+            if ((signs & ~(digitAfter & separatorBefore)) != 0) {
+                return -1;
+            }
+            // A number starts at every digit that has no digit before it
+            numbers += Long.bitCount(digit & ~((digit << 1) | previousDigit));
+            previousDigit = digit >>> 63;
+            previousSeparator = separator >>> 63;
+        }
+        return numbers;
+    }
+    
+    /*
+     * The value of the count (1 to 8) digits that end just before end.
+     * 
+     * The 8 bytes before end are read as one long. & 0x0F turns '0'..'9' into 0..9,
+     * and the bytes in front of the digits are cleared, so they act like leading
+     * zeros. Then neighbours are combined: pairs of digits (d1 * 10 + d2), pairs of
+     * pairs (* 100) and the two halves (* 10000). None of the steps can carry into
+     * the next group, so the masks keep the groups apart.
+     */
+    private static long digitsValue(byte[] bytes, int end, int count) {
+        if (end < 8) {
+            long value = 0;
+            for (int i = end - count; i < end; i++) {
+                value = value * 10 + (bytes[i] - '0');
+            }
+            return value;
+        }
+        long chunk = (long) LONGS.get(bytes, end - 8);
+        chunk &= 0x0F0F0F0F0F0F0F0FL & (-1L << ((8 - count) << 3));
+        chunk = (chunk * 10 + (chunk >>> 8)) & 0x00FF00FF00FF00FFL;
+        chunk = (chunk * 100 + (chunk >>> 16)) & 0x0000FFFF0000FFFFL;
+        return (chunk * 10000 + (chunk >>> 32)) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,69 @@
+package com.bstapp.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ * Tests for the Vector API number parser. Like the parser, this file is only
+ * compiled with mvn -Pvector, which also runs the tests with the module.
+ * 
+ * The parser may give up (null) on anything unusual, but when it does return
+ * values they have to be exactly the tokenizer's, and it must never give up on
+ * plain input. BstServiceUnitTest TEST 27 checks what the service makes of it.
+ */
+class VectorNumberParserTest {
+    
+    /*
+     * TEST 1: The vector parser gives exactly the tokenizer's values, or gives up
+     * 
+     * Same inputs as BstServiceUnitTest TEST 27: long enough for many vector
+     * blocks, with 9 and 10 digit numbers, int limits and signs. Every other
+     * input has bad or unusual numbers mixed in, only those may make it give up.
+     */
+    @Test
+    void testVectorParserMatchesTokenizer() {
+        Random random = new Random(23);
+        String[] separators = {", ", " ", ",", "\n", "\t,", ",\r\n"};
+        String[] oddNumbers = {"0", "+42", "-0", "2147483647", "-2147483648", "2147483648", "-2147483649",
+                "00000000001", "1-2", "--3", "-", "+", "5-", "5x", "\u0663", "\u00014", "1.5"};
+        for (int round = 0; round < 4_000; round++) {
+            boolean odd = round % 2 == 0;
+            StringBuilder input = new StringBuilder(random.nextBoolean() ? " " : "");
+            for (int i = random.nextInt(80); i > 0; i--) {
+                if (odd && random.nextInt(20) == 0) {
+                    input.append(oddNumbers[random.nextInt(oddNumbers.length)]);
+                } else {
+                    input.append(random.nextInt() >> random.nextInt(32));
+                }
+                input.append(separators[random.nextInt(separators.length)]);
+            }
+            String text = input.toString();
+            NumberTokenizer.Parsed expected = NumberTokenizer.parse(text);
+            
+            int[] values = VectorNumberParser.parse(text);
+            if (values != null) {
+                assertTrue(expected.isValid());
+                assertArrayEquals(expected.getValues(), values);
+            } else {
+                assertTrue(odd, "Gave up on plain input: " + text);
+            }
+        }
+    }
+    
+    /*
+     * TEST 2: The profile really runs the service with the vector parser
+     * 
+     * Without the module (a missing argLine) every other test here would still
+     * pass through the tokenizer, so this makes the wiring fail loudly.
+     */
+    @Test
+    void testServiceUsesVectorParser() {
+        BstService bstService = new BstService(null, null);
+        assertTrue(bstService.isVectorParsing());
+        bstService.setVectorParsing(false);
+        assertFalse(bstService.isVectorParsing());
+    }
+}